@@ -22,6 +22,7 @@ import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.config.html.Configurable;
 import org.atticfs.config.security.SecurityConfig;
 import org.atticfs.config.stream.StreamConfig;
+import org.atticfs.download.TransferScheduler;
 import org.atticfs.roles.Role;
 import org.atticfs.ser.Serializer;
 import org.atticfs.util.ConfigFinder;
@@ -42,6 +43,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 /**
@@ -67,6 +70,8 @@ public class Attic {
     private List<Configurable> configurables = new ArrayList<Configurable>();
 
     private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private TransferScheduler transferScheduler;
     private Serializer serializer;
     private ChannelFactory channelFactory;
     private Properties props = new Properties();
@@ -244,7 +249,15 @@ public class Attic {
             log.warning("error loading configs: " + FileUtils.formatThrowable(e));
         }
 
-        executor = Executors.newFixedThreadPool(getDownloadConfig().getMaxTotalConnections());
+        executor = createExecutor();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "attic-scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        transferScheduler = new TransferScheduler(executor, getDownloadConfig());
 
         channelFactory = ChannelFactory.getFactory();
         channelFactory.init(this);
@@ -324,6 +337,7 @@ public class Attic {
                 role.shutdown();
             }
             executor.shutdownNow();
+            scheduler.shutdownNow();
             writeProperties();
             storeConfigs();
         } catch (IOException e) {
@@ -401,10 +415,49 @@ public class Attic {
         executor.execute(runnable);
     }
 
+    /**
+     * creates a virtual thread per task executor if the download config asks for one and the JVM has them.
+     * Otherwise a pool of maxTotalConnections threads.
+     *
+     * @return
+     */
+    private ExecutorService createExecutor() {
+        if (getDownloadConfig().isVirtualThreads()) {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService service = (ExecutorService) m.invoke(null);
+                log.info("running tasks on virtual threads");
+                return service;
+            } catch (Exception e) {
+                log.warning("virtual threads are not available on this JVM. Using a thread pool instead.");
+            }
+        }
+        return Executors.newFixedThreadPool(getDownloadConfig().getMaxTotalConnections());
+    }
+
     public Executor getExecutor() {
         return executor;
     }
 
+    /**
+     * a single thread shared by periodic tasks, e.g. checking downloads for late requests.
+     * Tasks should be short and must not block.
+     *
+     * @return
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * the scheduler that runs the segment requests of all downloads, within the connection limits of the download config.
+     *
+     * @return
+     */
+    public TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
     public ChannelFactory getChannelFactory() {
         return channelFactory;
     }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.channel;
+
+import java.util.concurrent.Future;
+
+/**
+ * An OutChannel that can send without waiting for the response.
+ * Many requests can then be in progress from a few threads.
+ *
+ * 
+ */
+public interface AsyncOutChannel extends OutChannel {
+
+    /**
+     * Sends data across this channel and returns straight away.
+     *
+     * @param context
+     * @param callback told when the request finishes. Can be null.
+     * @return a future that gives the context once the response has been read.
+     */
+    public Future<ChannelData> send(ChannelData context, ChannelCallback callback);
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.channel;
+
+/**
+ * Told when a request sent with AsyncOutChannel finishes.
+ * Implementations should not block, as they may be called on the channel's own thread.
+ *
+ * 
+ */
+public interface ChannelCallback {
+
+    /**
+     * the request got a response. The outcome may still be an error.
+     *
+     * @param context
+     */
+    public void completed(ChannelData context);
+
+    /**
+     * the request could not be sent or the response could not be read.
+     *
+     * @param context
+     * @param e
+     */
+    public void failed(ChannelData context, Exception e);
+
+}
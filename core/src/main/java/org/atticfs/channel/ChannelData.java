@@ -17,6 +17,8 @@
 package org.atticfs.channel;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 import org.atticfs.identity.Identity;
@@ -60,6 +62,7 @@ public class ChannelData {
     private String outcomeDetail;
     private String target;
     private ByteRange byteRange;
+    private List<ByteRange> byteRanges;
     private Identity remoteIdentity;
     private Identity localIdentity;
 
@@ -74,6 +77,11 @@ public class ChannelData {
     private long inTime = -1;
     private int bufferSize = 8196;
     private File outputFile;
+    // if set, the body of a successful response is written here instead of being returned as response data.
+    // Only used by channels that support it, e.g. AsyncOutChannel implementations.
+    private FileChannel responseChannel;
+    private long responseChannelPosition = 0;
+    private ByteBuffer responseBuffer;
     private int connectionRetryCount = 0;
 
 
@@ -88,6 +96,11 @@ public class ChannelData {
 
     private List<String> acceptedMimeTypes = null;
 
+    // on a GET, the entity tag of a copy the client already has. The data is only returned if it has changed.
+    private String ifNoneMatch;
+    // the entity tag of the data in the response
+    private String entityTag;
+
     public ChannelData(Action action, String endpoint) {
         this.endpoint = new Endpoint(endpoint);
         this.action = action;
@@ -183,6 +196,20 @@ public class ChannelData {
         this.byteRange = byteRange;
     }
 
+    /**
+     * several ranges to request at once. If there is more than one, the response data
+     * is a MultipartRangeInputStream if the remote side returns the ranges as asked.
+     *
+     * @return
+     */
+    public List<ByteRange> getByteRanges() {
+        return byteRanges;
+    }
+
+    public void setByteRanges(List<ByteRange> byteRanges) {
+        this.byteRanges = byteRanges;
+    }
+
     public String getRequestPath() {
         return requestPath;
     }
@@ -239,6 +266,38 @@ public class ChannelData {
         this.outputFile = outputFile;
     }
 
+    public FileChannel getResponseChannel() {
+        return responseChannel;
+    }
+
+    /**
+     * write the body of a successful response into the channel, starting at the given position.
+     *
+     * @param responseChannel
+     * @param position
+     */
+    public void setResponseChannel(FileChannel responseChannel, long position) {
+        this.responseChannel = responseChannel;
+        this.responseChannelPosition = position;
+    }
+
+    public long getResponseChannelPosition() {
+        return responseChannelPosition;
+    }
+
+    public ByteBuffer getResponseBuffer() {
+        return responseBuffer;
+    }
+
+    /**
+     * put the body of a successful response into the buffer. The response fails if it does not fit.
+     *
+     * @param responseBuffer
+     */
+    public void setResponseBuffer(ByteBuffer responseBuffer) {
+        this.responseBuffer = responseBuffer;
+    }
+
     public long getBytesSent() {
         return bytesSent;
     }
@@ -311,6 +370,40 @@ public class ChannelData {
         this.acceptedMimeTypes = acceptedMimeTypes;
     }
 
+    public String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    public void setIfNoneMatch(String ifNoneMatch) {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    public void setEntityTag(String entityTag) {
+        this.entityTag = entityTag;
+    }
+
+    /**
+     * @param header the value of an ETag or If-None-Match header
+     * @return the entity tag without its quotes or weak prefix, or null if there is none.
+     */
+    public static String parseEntityTag(String header) {
+        if (header == null) {
+            return null;
+        }
+        String tag = header.trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            tag = tag.substring(1, tag.length() - 1);
+        }
+        return tag.length() == 0 ? null : tag;
+    }
+
     public boolean isUseCompression() {
         return useCompression;
     }
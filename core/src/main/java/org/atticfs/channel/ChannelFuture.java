@@ -0,0 +1,151 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.channel;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request sent with AsyncOutChannel.
+ * Channels call completed() or failed() once. The callback, if any, is then run on the executor,
+ * or on the calling thread if there is no executor.
+ *
+ * 
+ */
+public class ChannelFuture implements Future<ChannelData> {
+
+    private ChannelData context;
+    private ChannelCallback callback;
+    private Executor executor;
+    private boolean done = false;
+    private boolean cancelled = false;
+    private Exception error;
+
+    public ChannelFuture(ChannelData context, ChannelCallback callback, Executor executor) {
+        this.context = context;
+        this.callback = callback;
+        this.executor = executor;
+    }
+
+    public ChannelData getContext() {
+        return context;
+    }
+
+    public void completed() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            notifyAll();
+        }
+        notifyCallback();
+    }
+
+    public void failed(Exception e) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            error = e;
+            notifyAll();
+        }
+        notifyCallback();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            error = new CancellationException("request was cancelled");
+            notifyAll();
+        }
+        notifyCallback();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized ChannelData get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized ChannelData get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new TimeoutException("no response after " + unit.toMillis(timeout) + "ms");
+            }
+            wait(left);
+        }
+        return result();
+    }
+
+    private ChannelData result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("request was cancelled");
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return context;
+    }
+
+    private void notifyCallback() {
+        if (callback == null) {
+            return;
+        }
+        Runnable r = new Runnable() {
+            public void run() {
+                if (error == null) {
+                    callback.completed(context);
+                } else {
+                    callback.failed(context, error);
+                }
+            }
+        };
+        if (executor == null) {
+            r.run();
+            return;
+        }
+        try {
+            executor.execute(r);
+        } catch (RejectedExecutionException e) {
+            r.run();
+        }
+    }
+}
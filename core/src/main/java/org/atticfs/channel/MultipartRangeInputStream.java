@@ -0,0 +1,207 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.channel;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the parts of a multipart/byteranges response.
+ * Call next() to move to the next part. Reads then return the data of that part only,
+ * ending when the part's Content-Range has been read.
+ *
+ * 
+ */
+
+public class MultipartRangeInputStream extends InputStream {
+
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
+    private static final int MAX_LINE = 8192;
+
+    private InputStream in;
+    private String boundary;
+    private long remaining = 0;
+    private boolean finished = false;
+
+    public MultipartRangeInputStream(InputStream in, String boundary) {
+        this.in = new BufferedInputStream(in);
+        this.boundary = "--" + boundary;
+    }
+
+    /**
+     * gets the boundary from a multipart/byteranges content type.
+     *
+     * @param contentType
+     * @return the boundary or null if this is not a multipart/byteranges type.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith(MULTIPART_BYTERANGES)) {
+            return null;
+        }
+        String[] params = contentType.split(";");
+        for (String param : params) {
+            param = param.trim();
+            if (param.toLowerCase().startsWith("boundary=")) {
+                String b = param.substring("boundary=".length()).trim();
+                if (b.length() > 1 && b.startsWith("\"") && b.endsWith("\"")) {
+                    b = b.substring(1, b.length() - 1);
+                }
+                return b.length() > 0 ? b : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * skips what is left of the current part and reads the headers of the next.
+     *
+     * @return the range of the next part, or null if there are no more parts.
+     * @throws IOException if the body is not well formed.
+     */
+    public ByteRange next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        while (remaining > 0) {
+            long s = in.skip(remaining);
+            if (s <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("unexpected end of multipart body");
+                }
+                s = 1;
+            }
+            remaining -= s;
+        }
+        String line = readLine();
+        while (line != null && line.length() == 0) {
+            line = readLine();
+        }
+        if (line == null) {
+            throw new IOException("unexpected end of multipart body");
+        }
+        line = line.trim();
+        if (line.equals(boundary + "--")) {
+            finished = true;
+            return null;
+        }
+        if (!line.equals(boundary)) {
+            throw new IOException("expected boundary but got:" + line);
+        }
+        ByteRange range = null;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                range = parseContentRange(line.substring(colon + 1).trim());
+            }
+        }
+        if (range == null) {
+            throw new IOException("part has no Content-Range");
+        }
+        remaining = range.getEndOffset() - range.getStartOffset() + 1;
+        return range;
+    }
+
+    /**
+     * parses a Content-Range value of the form bytes from-to/total.
+     * The total may be *.
+     *
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    public static ByteRange parseContentRange(String value) throws IOException {
+        try {
+            String s = value.trim();
+            if (!s.toLowerCase().startsWith("bytes")) {
+                throw new IOException("unsupported range unit:" + value);
+            }
+            s = s.substring("bytes".length()).trim();
+            int dash = s.indexOf('-');
+            int slash = s.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                throw new IOException("malformed Content-Range:" + value);
+            }
+            long from = Long.parseLong(s.substring(0, dash).trim());
+            long to = Long.parseLong(s.substring(dash + 1, slash).trim());
+            String t = s.substring(slash + 1).trim();
+            long total = t.equals("*") ? -1 : Long.parseLong(t);
+            if (to < from) {
+                throw new IOException("malformed Content-Range:" + value);
+            }
+            return new ByteRange(from, to, total);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed Content-Range:" + value);
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                bout.write(c);
+            }
+            if (bout.size() > MAX_LINE) {
+                throw new IOException("multipart header line too long");
+            }
+        }
+        if (c < 0 && bout.size() == 0) {
+            return null;
+        }
+        return bout.toString("ISO-8859-1");
+    }
+
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int c = in.read();
+        if (c >= 0) {
+            remaining--;
+        }
+        return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (len > remaining) {
+            len = (int) remaining;
+        }
+        int c = in.read(b, off, len);
+        if (c > 0) {
+            remaining -= c;
+        }
+        return c;
+    }
+
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -31,6 +31,12 @@ public class DataConfig extends Config {
     private int fileSegmentHashSize = 524288;  // half an MB????
     private long dataQueryInterval = 60 * 60; // DC query interval in seconds.
     private boolean moveIndexedFile = false;
+    // digest algorithm used when indexing, e.g. MD5, SHA-1, SHA-256.
+    private String hashAlgorithm = "MD5";
+    // whether indexed files get a Merkle root over their segment hashes
+    private boolean createMerkleRoot = true;
+    // threads used to verify segments of a file in parallel. 0 means one per processor.
+    private int verificationThreads = 0;
 
 
     public long getMaxLocalData() {
@@ -68,4 +74,31 @@ public class DataConfig extends Config {
         setterCalled("setMoveIndexedFile");
         this.moveIndexedFile = moveIndexedFile;
     }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        setterCalled("setHashAlgorithm");
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public boolean isCreateMerkleRoot() {
+        return createMerkleRoot;
+    }
+
+    public void setCreateMerkleRoot(boolean createMerkleRoot) {
+        setterCalled("setCreateMerkleRoot");
+        this.createMerkleRoot = createMerkleRoot;
+    }
+
+    public int getVerificationThreads() {
+        return verificationThreads;
+    }
+
+    public void setVerificationThreads(int verificationThreads) {
+        setterCalled("setVerificationThreads");
+        this.verificationThreads = verificationThreads;
+    }
 }
@@ -31,20 +31,98 @@ public class DownloadConfig extends Config {
     private int maxTotalConnections = 10;
     // maximum number of concurrent connections per file (per client)
     private int maxFileConnections = 5;
+    // maximum number of concurrent connections to one endpoint host across all files (per client).
+    // Zero or less means no limit.
+    private int maxEndpointConnections = 5;
+    // maximum number of open client connections to one endpoint host, in use or idle, across downloads,
+    // streams and metadata requests. Zero or less means no limit.
+    private int maxHostConnections = 20;
+    // should the Attic run its tasks on virtual threads rather than a pool of maxTotalConnections threads?
+    // This needs a JVM that supports virtual threads. Otherwise the pool is used.
+    private boolean virtualThreads = false;
     // timeout for chunk downloads
     private int connectionIdleTime = 1000 * 60 * 3;
 
     // should intermediate files be created, or should results be written directly to the end result?
     private boolean streamToTargetFile = false;
 
+    // should the target file be sized up front and chunks written straight into it at their offsets?
+    // Segments are then verified in place and no chunk or segment files are created.
+    private boolean preallocateTargetFile = false;
+
+    // should downloads keep a journal of verified segments so they can resume after a crash or restart?
+    private boolean resumable = true;
+
+    // how often, in milliseconds, verified segments and the journal records for them are forced to disk.
+    // Segments verified since the last sync are fetched again after a crash. Zero syncs after every segment.
+    private long journalSyncInterval = 1000;
+
     // size of chunks to download. These are typically smaller than the hashed file segment.
     private int downloadChunkSize = 262144; // 256Kb
 
+    // should the chunk size be chosen per endpoint from its measured throughput and latency?
+    // downloadChunkSize is then only used until an endpoint has been measured.
+    private boolean adaptiveChunkSize = true;
+
+    // bounds for adaptive chunk sizes
+    private int minDownloadChunkSize = 65536; // 64Kb
+    private int maxDownloadChunkSize = 8388608; // 8Mb
+
+    // how long, in milliseconds, an adaptively sized chunk should take to download
+    private long targetChunkTime = 2000;
+
+    // should a duplicate request be sent to another replica when a segment request is late?
+    // The first copy to be verified is kept and the other is cancelled.
+    private boolean hedgeRequests = true;
+
+    // maximum number of duplicate requests in flight for a single segment
+    private int maxHedges = 1;
+
+    // a chunk is never considered late before this many milliseconds, whatever the endpoint's history
+    private long minHedgeDelay = 1000;
+
+    // when this many segments or fewer are left and all of them are in flight,
+    // duplicates are requested without waiting for the requests to be late
+    private int endgameSegments = 4;
+
+    // should segments stay in a pool that endpoints take from as they become free, with idle endpoints
+    // taking queued segments from busy ones? Otherwise each endpoint is given a fixed share of the segments.
+    private boolean workStealing = true;
+
+    // should a download start as soon as the replicas that have answered hold every segment,
+    // rather than waiting for every endpoint's metadata? Replicas that answer later join the running download.
+    private boolean earlyStart = true;
+
+    // how long, in milliseconds, the endpoints are given to return their metadata before the download starts.
+    // If none has answered by then, the download waits for the first. Answers that come later join the running download.
+    private long metadataTimeout = 1000 * 10;
+
+    // maximum number of FileHashes kept from earlier metadata requests. A cached FileHash is revalidated
+    // with a conditional request, so an endpoint whose copy has not changed does not send it again. Zero turns this off.
+    private int metadataCacheSize = 256;
+
+    // should endpoints be asked only for the indexes of the segments they hold, rather than for their FileHash?
+    // The segments are then taken from the data description. An endpoint that does not understand this,
+    // such as an older server, answers NOT_FOUND or something unexpected and is asked for its FileHash instead.
+    private boolean compactAvailability = true;
+
+    // maximum number of segment requests a download keeps waiting to be handed out.
+    // Further requests are created as these are taken, so memory does not grow with the number of segments.
+    private int requestWindow = 32;
+
+    // maximum number of chunk ranges asked for in a single request.
+    // More than one means chunks are fetched with multi-range requests, saving a round trip per chunk.
+    private int rangesPerRequest = 4;
+
     // number of times a request for a segment to a particular endpoint will be attempted again.
     // attempts may not necessarily happen immediately. The request may be queued as a possible
     // option later, and even never get used again.
     private int retryCount = 2;
 
+    // number of chunks of a segment request that may fail before the rest of the request is given up,
+    // leaving the segments not yet fetched to be requested again.
+    private int maxChunkFailures = 3;
+
     // whether data requests should request that data is compressed (gzipped)
     private boolean compress = true;
 
@@ -70,6 +148,33 @@ public class DownloadConfig extends Config {
         this.streamToTargetFile = streamToTargetFile;
     }
 
+    public boolean isPreallocateTargetFile() {
+        return preallocateTargetFile;
+    }
+
+    public void setPreallocateTargetFile(boolean preallocateTargetFile) {
+        setterCalled("setPreallocateTargetFile");
+        this.preallocateTargetFile = preallocateTargetFile;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void setResumable(boolean resumable) {
+        setterCalled("setResumable");
+        this.resumable = resumable;
+    }
+
+    public long getJournalSyncInterval() {
+        return journalSyncInterval;
+    }
+
+    public void setJournalSyncInterval(long journalSyncInterval) {
+        setterCalled("setJournalSyncInterval");
+        this.journalSyncInterval = journalSyncInterval;
+    }
+
     public int getBufferSize() {
         return bufferSize;
     }
@@ -97,6 +202,33 @@ public class DownloadConfig extends Config {
         this.maxFileConnections = maxFileConnections;
     }
 
+    public int getMaxEndpointConnections() {
+        return maxEndpointConnections;
+    }
+
+    public void setMaxEndpointConnections(int maxEndpointConnections) {
+        setterCalled("setMaxEndpointConnections");
+        this.maxEndpointConnections = maxEndpointConnections;
+    }
+
+    public int getMaxHostConnections() {
+        return maxHostConnections;
+    }
+
+    public void setMaxHostConnections(int maxHostConnections) {
+        setterCalled("setMaxHostConnections");
+        this.maxHostConnections = maxHostConnections;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        setterCalled("setVirtualThreads");
+        this.virtualThreads = virtualThreads;
+    }
+
     public int getConnectionIdleTime() {
         return connectionIdleTime;
     }
@@ -115,6 +247,141 @@ public class DownloadConfig extends Config {
         this.downloadChunkSize = downloadChunkSize;
     }
 
+    public boolean isAdaptiveChunkSize() {
+        return adaptiveChunkSize;
+    }
+
+    public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        setterCalled("setAdaptiveChunkSize");
+        this.adaptiveChunkSize = adaptiveChunkSize;
+    }
+
+    public int getMinDownloadChunkSize() {
+        return minDownloadChunkSize;
+    }
+
+    public void setMinDownloadChunkSize(int minDownloadChunkSize) {
+        setterCalled("setMinDownloadChunkSize");
+        this.minDownloadChunkSize = minDownloadChunkSize;
+    }
+
+    public int getMaxDownloadChunkSize() {
+        return maxDownloadChunkSize;
+    }
+
+    public void setMaxDownloadChunkSize(int maxDownloadChunkSize) {
+        setterCalled("setMaxDownloadChunkSize");
+        this.maxDownloadChunkSize = maxDownloadChunkSize;
+    }
+
+    public long getTargetChunkTime() {
+        return targetChunkTime;
+    }
+
+    public void setTargetChunkTime(long targetChunkTime) {
+        setterCalled("setTargetChunkTime");
+        this.targetChunkTime = targetChunkTime;
+    }
+
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    public void setHedgeRequests(boolean hedgeRequests) {
+        setterCalled("setHedgeRequests");
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    public int getMaxHedges() {
+        return maxHedges;
+    }
+
+    public void setMaxHedges(int maxHedges) {
+        setterCalled("setMaxHedges");
+        this.maxHedges = maxHedges;
+    }
+
+    public long getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    public void setMinHedgeDelay(long minHedgeDelay) {
+        setterCalled("setMinHedgeDelay");
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    public int getEndgameSegments() {
+        return endgameSegments;
+    }
+
+    public void setEndgameSegments(int endgameSegments) {
+        setterCalled("setEndgameSegments");
+        this.endgameSegments = endgameSegments;
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    public void setWorkStealing(boolean workStealing) {
+        setterCalled("setWorkStealing");
+        this.workStealing = workStealing;
+    }
+
+    public boolean isEarlyStart() {
+        return earlyStart;
+    }
+
+    public void setEarlyStart(boolean earlyStart) {
+        setterCalled("setEarlyStart");
+        this.earlyStart = earlyStart;
+    }
+
+    public long getMetadataTimeout() {
+        return metadataTimeout;
+    }
+
+    public void setMetadataTimeout(long metadataTimeout) {
+        setterCalled("setMetadataTimeout");
+        this.metadataTimeout = metadataTimeout;
+    }
+
+    public int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    public void setMetadataCacheSize(int metadataCacheSize) {
+        setterCalled("setMetadataCacheSize");
+        this.metadataCacheSize = metadataCacheSize;
+    }
+
+    public boolean isCompactAvailability() {
+        return compactAvailability;
+    }
+
+    public void setCompactAvailability(boolean compactAvailability) {
+        setterCalled("setCompactAvailability");
+        this.compactAvailability = compactAvailability;
+    }
+
+    public int getRequestWindow() {
+        return requestWindow;
+    }
+
+    public void setRequestWindow(int requestWindow) {
+        setterCalled("setRequestWindow");
+        this.requestWindow = requestWindow;
+    }
+
+    public int getRangesPerRequest() {
+        return rangesPerRequest;
+    }
+
+    public void setRangesPerRequest(int rangesPerRequest) {
+        setterCalled("setRangesPerRequest");
+        this.rangesPerRequest = rangesPerRequest;
+    }
+
     public int getRetryCount() {
         return retryCount;
     }
@@ -124,6 +391,15 @@ public class DownloadConfig extends Config {
         this.retryCount = retryCount;
     }
 
+    public int getMaxChunkFailures() {
+        return maxChunkFailures;
+    }
+
+    public void setMaxChunkFailures(int maxChunkFailures) {
+        setterCalled("setMaxChunkFailures");
+        this.maxChunkFailures = maxChunkFailures;
+    }
+
     public boolean isCompress() {
         return compress;
     }
@@ -129,6 +129,15 @@ public class HtmlConfig {
         attic.getDownloadConfig().setStreamToTargetFile(streamToTargetFile);
     }
 
+    @FormComponent(fieldset = "fsdownload", label = "Preallocate the target file and write chunks in place")
+    public boolean isPreallocateTargetFile() {
+        return attic.getDownloadConfig().isPreallocateTargetFile();
+    }
+
+    public void setPreallocateTargetFile(boolean preallocateTargetFile) {
+        attic.getDownloadConfig().setPreallocateTargetFile(preallocateTargetFile);
+    }
+
     @FormComponent(fieldset = "fsdownload", label = "Download buffer size (KB)")
     public int getBufferSize() {
         return attic.getDownloadConfig().getBufferSize() / 1024;
@@ -303,7 +312,7 @@ public class HtmlConfig {
         attic.getStreamConfig().setMaxBufferSize(maxBufferSize * 1024);
     }
 
-    @FormComponent(fieldset = "fsstream", label = "Verify chunks from stream (if buffer size permits)")
+    @FormComponent(fieldset = "fsstream", label = "Verify chunks from stream")
     public boolean isAttemptVerification() {
         return attic.getStreamConfig().isAttemptVerification();
     }
@@ -312,6 +321,33 @@ public class HtmlConfig {
         attic.getStreamConfig().setAttemptVerification(attemptVerification);
     }
 
+    @FormComponent(fieldset = "fsstream", label = "Segments to read ahead")
+    public int getReadAheadSegments() {
+        return attic.getStreamConfig().getReadAheadSegments();
+    }
+
+    public void setReadAheadSegments(int readAheadSegments) {
+        attic.getStreamConfig().setReadAheadSegments(readAheadSegments);
+    }
+
+    @FormComponent(fieldset = "fsstream", label = "Maximum read-ahead buffer (KB)")
+    public int getMaxReadAheadBytes() {
+        return (int) (attic.getStreamConfig().getMaxReadAheadBytes() / 1024);
+    }
+
+    public void setMaxReadAheadBytes(int maxReadAheadBytes) {
+        attic.getStreamConfig().setMaxReadAheadBytes(maxReadAheadBytes * 1024L);
+    }
+
+    @FormComponent(fieldset = "fsstream", label = "Cache streamed data locally")
+    public boolean isCacheLocally() {
+        return attic.getStreamConfig().isCacheLocally();
+    }
+
+    public void setCacheLocally(boolean cacheLocally) {
+        attic.getStreamConfig().setCacheLocally(cacheLocally);
+    }
+
     public synchronized String getHtml() throws Exception {
         AnnotationProcessor ap = new AnnotationProcessor();
         org.wspeer.html.Html html = ap.buildComponent(this);
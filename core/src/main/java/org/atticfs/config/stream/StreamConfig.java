@@ -27,16 +27,36 @@ import org.atticfs.config.Config;
 public class StreamConfig extends Config {
 
     /**
-     * maximum value to buffer up to if attempting verification.
-     * defaults to 1MB
+     * the largest segment held in memory while it is verified. Bigger segments are
+     * spooled to a temporary file instead. defaults to 1MB
      */
     private int maxBufferSize = 1024 * 1024;
     /**
-     * attempts to buffer a data chunk and verify it before passing it to the stream.
-     * If the chunk size (and hence the data referenced by the hash) is bigger than the
-     * bufferSize, then the chunk will not be verified.
+     * verifies each data chunk before passing it to the stream. The chunk's bytes are
+     * released to the reader only once its hash checks out.
      */
     private boolean attemptVerification = true;
+    /**
+     * the number of segments to keep requested or buffered ahead of the read position.
+     * Zero fetches a segment only once the reader has finished with one, after the first
+     * maxFileConnections segments.
+     */
+    private int readAheadSegments = 4;
+    /**
+     * the most bytes the segments ahead of the read position may hold. Each segment counts as
+     * the size of the largest segment in the data. defaults to 16MB
+     */
+    private long maxReadAheadBytes = 16 * 1024 * 1024;
+    /**
+     * the most bytes of verified segments a RandomAccessChannel keeps for reuse. defaults to 32MB
+     */
+    private long blockCacheSize = 32 * 1024 * 1024;
+    /**
+     * writes verified segments of streams into the data worker's DescriptionStore, so later
+     * streams of the same data read them locally. Partially streamed data is kept and only the
+     * missing segments are fetched next time.
+     */
+    private boolean cacheLocally = false;
 
     public int getMaxBufferSize() {
         return maxBufferSize;
@@ -55,4 +75,40 @@ public class StreamConfig extends Config {
         setterCalled("setAttemptVerification");
         this.attemptVerification = attemptVerification;
     }
+
+    public int getReadAheadSegments() {
+        return readAheadSegments;
+    }
+
+    public void setReadAheadSegments(int readAheadSegments) {
+        setterCalled("setReadAheadSegments");
+        this.readAheadSegments = readAheadSegments;
+    }
+
+    public long getMaxReadAheadBytes() {
+        return maxReadAheadBytes;
+    }
+
+    public void setMaxReadAheadBytes(long maxReadAheadBytes) {
+        setterCalled("setMaxReadAheadBytes");
+        this.maxReadAheadBytes = maxReadAheadBytes;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+        setterCalled("setBlockCacheSize");
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    public boolean isCacheLocally() {
+        return cacheLocally;
+    }
+
+    public void setCacheLocally(boolean cacheLocally) {
+        setterCalled("setCacheLocally");
+        this.cacheLocally = cacheLocally;
+    }
 }
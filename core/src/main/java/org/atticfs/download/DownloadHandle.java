@@ -0,0 +1,245 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download;
+
+import org.atticfs.event.DataEvent;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * A running download, returned by Downloader.download(). It gives the DataEvent the Downloader's
+ * DataReceiver is given, once the download has finished.
+ * <p/>
+ * Listeners are told about each segment as it is verified. The verified prefix is the number of bytes
+ * from the start of the data that have all been verified. When the download writes into a preallocated
+ * target file, those bytes can be read from the target file before the download finishes.
+ * <p/>
+ * A download can be paused, which stops it starting new requests, and cancelled. A cancelled download
+ * finishes unsuccessfully, keeping its journal so it can be resumed. Its priority decides which downloads
+ * the TransferScheduler gives free slots to first, and may be changed while it runs.
+ *
+ *
+ */
+
+public class DownloadHandle implements Future<DataEvent> {
+
+    static Logger log = Logger.getLogger("org.atticfs.download.DownloadHandle");
+
+    private Downloader downloader;
+    private DataDescription description;
+    private volatile Transfer.Priority priority = Transfer.Priority.NORMAL;
+    private volatile boolean paused = false;
+    private volatile boolean cancelled = false;
+
+    private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private Set<Long> verified = new HashSet<Long>();
+    // verified segments that start beyond the prefix, end offsets by start offsets
+    private Map<Long, Long> ahead = new TreeMap<Long, Long>();
+    private long prefix = 0;
+    private long verifiedBytes = 0;
+
+    private DataEvent event;
+    private CountDownLatch done = new CountDownLatch(1);
+
+    DownloadHandle(Downloader downloader, DataDescription description) {
+        this.downloader = downloader;
+        this.description = description;
+    }
+
+    public DataDescription getDataDescription() {
+        return description;
+    }
+
+    /**
+     * @return the file the data is written to.
+     */
+    public File getTargetFile() {
+        return downloader.getTargetFile();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Transfer.Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Transfer.Priority priority) {
+        this.priority = priority == null ? Transfer.Priority.NORMAL : priority;
+        downloader.wakeup();
+    }
+
+    /**
+     * stops the download starting new requests. Requests already running are left to finish.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+        downloader.wakeup();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * cancels the download. Running requests are abandoned.
+     *
+     * @param mayInterruptIfRunning ignored. Requests are abandoned between chunks.
+     * @return false if the download had already finished.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        paused = false;
+        downloader.cancelled();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public DataEvent get() throws InterruptedException, ExecutionException {
+        done.await();
+        return event;
+    }
+
+    public DataEvent get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("download of " + description.getId() + " has not finished");
+        }
+        return event;
+    }
+
+    /**
+     * @return the number of bytes from the start of the data that have all been verified.
+     */
+    public synchronized long getVerifiedPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the number of bytes verified so far, including those beyond the prefix.
+     */
+    public synchronized long getVerifiedBytes() {
+        return verifiedBytes;
+    }
+
+    /**
+     * @return the length of the data, or -1 if it is not known.
+     */
+    public long getLength() {
+        return description.getHash() == null ? -1 : description.getHash().getSize();
+    }
+
+    /**
+     * records a verified segment and tells the listeners.
+     *
+     * @param segment
+     * @param endpoint
+     */
+    void segmentVerified(FileSegmentHash segment, Endpoint endpoint) {
+        long pre;
+        synchronized (this) {
+            if (!verified.add(segment.getStartOffset())) {
+                return;
+            }
+            verifiedBytes += segment.getEndOffset() - segment.getStartOffset() + 1;
+            ahead.put(segment.getStartOffset(), segment.getEndOffset());
+            Long end;
+            while ((end = ahead.remove(prefix)) != null) {
+                prefix = end + 1;
+            }
+            pre = prefix;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.segmentVerified(this, segment, endpoint, pre);
+            } catch (RuntimeException e) {
+                log.warning("error telling listener about verified segment:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * records the outcome of the download and tells the listeners.
+     *
+     * @param event
+     */
+    void finished(DataEvent event) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.event = event;
+            done.countDown();
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.downloadFinished(this, event);
+            } catch (RuntimeException e) {
+                log.warning("error telling listener download has finished:" + e.getMessage());
+            }
+        }
+    }
+
+    public static interface Listener {
+
+        /**
+         * a segment has been verified and written.
+         *
+         * @param handle
+         * @param segment
+         * @param endpoint the endpoint the segment came from. Segments recovered from an earlier download give the endpoint recorded then.
+         * @param prefix   the number of bytes from the start of the data that have all been verified.
+         */
+        public void segmentVerified(DownloadHandle handle, FileSegmentHash segment, Endpoint endpoint, long prefix);
+
+        public void downloadFinished(DownloadHandle handle, DataEvent event);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download;
+
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append only record of the segments of a download that have been verified and written to disk,
+ * and the endpoint each one came from. It lives in the download directory and lets a later
+ * Downloader for the same data resume from where a crashed or stopped one left off.
+ * <p/>
+ * The journal is a text file. The first line identifies the data. Each further line records one verified
+ * segment. Every line ends with a CRC32 of the rest of the line so a record torn by a crash is ignored.
+ * Records are held in memory until the journal is synced or closed, when they are written and forced to disk together.
+ * Callers should make sure the data of the pending segments is on disk first. A record whose data did not reach
+ * the disk is not lost data, since a resumed download checks each recorded segment against its hash.
+ *
+ *
+ */
+
+public class DownloadJournal {
+
+    static Logger log = Logger.getLogger("org.atticfs.download.DownloadJournal");
+
+    public static final String JOURNAL_FILE = "download.journal";
+
+    private static final String HEADER = "attic-journal";
+    private static final String SEGMENT = "segment";
+    private static final String VERSION = "1";
+    private static final String NO_ENDPOINT = "-";
+
+    private File file;
+    private DataDescription description;
+    private RandomAccessFile access;
+    private FileChannel channel;
+    private List<Entry> pending = new ArrayList<Entry>();
+    private long syncInterval = 0;
+    private long lastSync = 0;
+
+    public DownloadJournal(File downloadDir, DataDescription description) {
+        this.file = new File(downloadDir, JOURNAL_FILE);
+        this.description = description;
+    }
+
+    /**
+     * @param syncInterval how long, in milliseconds, records may be held before the journal is due a sync.
+     */
+    public synchronized void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * reads the verified segments from an existing journal.
+     * If the journal does not match the data description, it is ignored.
+     *
+     * @return the journal entries for segments that belong to the description.
+     */
+    public List<Entry> read() {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!file.exists()) {
+            return entries;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line = reader.readLine();
+            if (line == null || !header().equals(strip(line))) {
+                log.fine("journal does not match the description. Ignoring " + file);
+                return entries;
+            }
+            FileHash fh = description.getHash();
+            while ((line = reader.readLine()) != null) {
+                String rec = strip(line);
+                if (rec == null) {
+                    log.fine("ignoring damaged journal record:" + line);
+                    continue;
+                }
+                String[] parts = rec.split(" ");
+                if (parts.length != 5 || !parts[0].equals(SEGMENT)) {
+                    continue;
+                }
+                try {
+                    long start = Long.parseLong(parts[1]);
+                    long end = Long.parseLong(parts[2]);
+                    FileSegmentHash seg = fh.getChunkByRange(start, end);
+                    if (seg != null && seg.getHash().equalsIgnoreCase(parts[3])) {
+                        Endpoint ep = parts[4].equals(NO_ENDPOINT) ? null : new Endpoint(decode(parts[4]));
+                        entries.add(new Entry(seg, ep));
+                    }
+                } catch (NumberFormatException e) {
+                    log.fine("ignoring damaged journal record:" + line);
+                }
+            }
+        } catch (IOException e) {
+            log.warning("could not read journal " + file + ": " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * (re)writes the journal with the given entries and leaves it open for appending.
+     *
+     * @param entries the entries still known to be good.
+     * @throws IOException
+     */
+    public synchronized void open(List<Entry> entries) throws IOException {
+        close();
+        access = new RandomAccessFile(file, "rw");
+        access.setLength(0);
+        channel = access.getChannel();
+        write(header());
+        for (Entry entry : entries) {
+            write(record(entry.getSegment(), entry.getEndpoint()));
+        }
+        channel.force(false);
+        pending.clear();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * records a verified segment. It is written to disk at the next sync.
+     *
+     * @param segment
+     * @param endpoint the endpoint the data came from. Can be null.
+     */
+    public synchronized void segmentVerified(FileSegmentHash segment, Endpoint endpoint) {
+        if (channel == null) {
+            return;
+        }
+        pending.add(new Entry(segment, endpoint));
+    }
+
+    /**
+     * @return the segments recorded since the last sync.
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<Entry>(pending);
+    }
+
+    /**
+     * @return true if records are pending and the sync interval has passed since the last sync.
+     */
+    public synchronized boolean isSyncDue() {
+        return pending.size() > 0 && System.currentTimeMillis() - lastSync >= syncInterval;
+    }
+
+    /**
+     * writes the pending records and forces them to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (channel == null || pending.size() == 0) {
+            return;
+        }
+        for (Entry entry : pending) {
+            write(record(entry.getSegment(), entry.getEndpoint()));
+        }
+        channel.force(false);
+        pending.clear();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * syncs any pending records and closes the journal.
+     */
+    public synchronized void close() {
+        try {
+            sync();
+        } catch (IOException e) {
+            log.warning("could not record verified segments in journal " + file + ": " + e.getMessage());
+        }
+        closeFile();
+    }
+
+    private void closeFile() {
+        pending.clear();
+        if (access != null) {
+            try {
+                access.close();
+            } catch (IOException e) {
+                log.fine("could not close journal:" + e.getMessage());
+            }
+            access = null;
+            channel = null;
+        }
+    }
+
+    public synchronized void delete() {
+        closeFile();
+        file.delete();
+    }
+
+    private void write(String line) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = line.getBytes("UTF-8");
+        crc.update(bytes);
+        ByteBuffer buf = ByteBuffer.wrap((line + " " + Long.toHexString(crc.getValue()) + "\n").getBytes("UTF-8"));
+        while (buf.hasRemaining()) {
+            channel.write(buf, channel.size());
+        }
+    }
+
+    /**
+     * checks and removes the trailing CRC.
+     *
+     * @param line
+     * @return the line without the CRC or null if the CRC does not match.
+     */
+    private static String strip(String line) {
+        int space = line.lastIndexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        String rec = line.substring(0, space);
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(rec.getBytes("UTF-8"));
+            if (Long.toHexString(crc.getValue()).equals(line.substring(space + 1))) {
+                return rec;
+            }
+        } catch (UnsupportedEncodingException e) {
+        }
+        return null;
+    }
+
+    private String header() throws UnsupportedEncodingException {
+        FileHash fh = description.getHash();
+        return HEADER + " " + VERSION + " " + encode(description.getId()) + " " + fh.getSize() + " "
+                + encode(fh.getAlgorithm()) + " " + encode(fh.getHash());
+    }
+
+    private String record(FileSegmentHash segment, Endpoint endpoint) throws UnsupportedEncodingException {
+        return SEGMENT + " " + segment.getStartOffset() + " " + segment.getEndOffset() + " "
+                + segment.getHash() + " " + (endpoint == null ? NO_ENDPOINT : encode(endpoint.toString()));
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s == null ? "" : s, "UTF-8");
+    }
+
+    private static String decode(String s) throws UnsupportedEncodingException {
+        return URLDecoder.decode(s, "UTF-8");
+    }
+
+    /**
+     * a verified segment and the endpoint it came from.
+     */
+    public static class Entry {
+        private FileSegmentHash segment;
+        private Endpoint endpoint;
+
+        public Entry(FileSegmentHash segment, Endpoint endpoint) {
+            this.segment = segment;
+            this.endpoint = endpoint;
+        }
+
+        public FileSegmentHash getSegment() {
+            return segment;
+        }
+
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+    }
+}
@@ -18,9 +18,13 @@ package org.atticfs.download;
 
 import org.atticfs.Attic;
 import org.atticfs.channel.ByteRange;
+import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.request.AbstractRequestor;
+import org.atticfs.download.request.DirectFileRequestor;
+import org.atticfs.download.request.EndpointRequest;
 import org.atticfs.download.request.MultipleFileRequestor;
 import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.download.request.SingleFileRequestor;
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.download.table.DownloadTableCreator;
@@ -32,26 +36,28 @@ import org.atticfs.types.DataDescription;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
 import org.atticfs.util.FileUtils;
+import org.atticfs.util.HashUtils;
 import org.atticfs.util.StringConstants;
-import org.wspeer.streamable.RebuiltStreamable;
-import org.wspeer.streamable.StreamableFile;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -74,10 +80,15 @@ public class Downloader implements Runnable {
 
     private File downloadDir;
     private File targetFile;
+    private RandomAccessFile targetAccess;
+    private FileChannel targetChannel;
+    private boolean directWrite = false;
+    private FileDigestPipeline digestPipeline;
+    private DownloadJournal journal;
+    private List<FetchResult> resumed = new ArrayList<FetchResult>();
     private Attic attic;
-
-    private List<Future<List<FetchResult>>> futures = new ArrayList<Future<List<FetchResult>>>();
-
+    private DownloadHandle handle;
+    private volatile DownloadTransfer transfer;
 
     public Downloader(DataReceiver receiver, RequestCollection collection, File downloadDir, Attic attic) {
         if (downloadDir.exists() && !downloadDir.isDirectory()) {
@@ -90,6 +101,7 @@ public class Downloader implements Runnable {
         this.downloadDir.mkdirs();
         this.targetFile = new File(downloadDir, createFileNameFromName(collection.getDataDescription().getId()));
         this.attic = attic;
+        this.handle = new DownloadHandle(this, collection.getDataDescription());
     }
 
     public Class<? extends AbstractRequestor> getRequestorClass() {
@@ -129,8 +141,49 @@ public class Downloader implements Runnable {
         return targetFile;
     }
 
-    public void download() {
+    /**
+     * the channel onto the preallocated target file.
+     * This is null unless the download is writing chunks directly into the target file.
+     *
+     * @return
+     */
+    public FileChannel getTargetChannel() {
+        return targetChannel;
+    }
+
+    /**
+     * the whole file digest built as segments are verified.
+     * This is null unless chunks are written directly into the target file and the data has no Merkle root.
+     *
+     * @return
+     */
+    public FileDigestPipeline getDigestPipeline() {
+        return digestPipeline;
+    }
+
+    /**
+     * starts the download. The receiver is told when it finishes.
+     *
+     * @return the handle of the download
+     */
+    public DownloadHandle download() {
         attic.execute(this);
+        return handle;
+    }
+
+    /**
+     * starts the download with a priority.
+     *
+     * @param priority
+     * @return the handle of the download
+     */
+    public DownloadHandle download(Transfer.Priority priority) {
+        handle.setPriority(priority);
+        return download();
+    }
+
+    public DownloadHandle getHandle() {
+        return handle;
     }
 
     public void run() {
@@ -143,87 +196,388 @@ public class Downloader implements Runnable {
     }
 
     private void fetchData(DataDescription dd, RequestCollection pointers) {
-        CompletionService<List<FetchResult>> ecs = new ExecutorCompletionService<List<FetchResult>>(attic.getExecutor());
         try {
             stats.setPreStartTime(System.currentTimeMillis());
-            if (downloadTableCreator == null) {
-                downloadTableCreator = new DownloadTableCreatorImpl(attic.getDownloadConfig());
-            }
+            boolean resumable = false;
             if (attic.getDownloadConfig().isStreamToTargetFile()) {
                 setRequestorClass(SingleFileRequestor.class);
+            } else if (dd.getHash().getNumChunks() > 0) {
+                if (attic.getDownloadConfig().isPreallocateTargetFile()) {
+                    openTargetFile(dd);
+                    setRequestorClass(DirectFileRequestor.class);
+                }
+                resumable = attic.getDownloadConfig().isResumable();
+            }
+            if (resumable) {
+                resume(dd, pointers);
+            }
+            if (downloadTableCreator == null) {
+                DownloadTableCreatorImpl creator = new DownloadTableCreatorImpl(attic.getDownloadConfig());
+                // segments recovered from the journal are not fetched again,
+                // and other replicas may still join if not every endpoint has answered
+                creator.setSingleSourceWholeFile(resumed.size() == 0 && pointers.isResolved());
+                downloadTableCreator = creator;
+            }
+            if (resumed.size() > 0 && resumed.size() == dd.getHash().getNumChunks()) {
+                log.fine("Downloader.fetchData all segments were recovered from the journal");
+                stats.setPreEndTime(System.currentTimeMillis());
+                complete(new ArrayList<FetchResult>(resumed), dd, null);
+                return;
             }
             DownloadTable table = downloadTableCreator.createTable(pointers);
             log.fine("Downloader.fetchData download table:\n");
             log.fine(table.toString());
             stats.setPreEndTime(System.currentTimeMillis());
-            submit(ecs, table, dd);
+            if (handle.isCancelled()) {
+                throw new DownloadException("download cancelled");
+            }
+            submit(table, dd);
         } catch (DownloadException e) {
             e.printStackTrace();
+            closeTargetFile();
+            if (journal != null) {
+                journal.close();
+            }
             stats.setPreEndTime(System.currentTimeMillis());
-            receiver.dataArrived(new DataEvent(this, dd, e, stats));
+            DataEvent evt = new DataEvent(this, dd, e, stats);
+            receiver.dataArrived(evt);
+            handle.finished(evt);
         }
 
     }
 
-    private void submit(CompletionService<List<FetchResult>> ecs, final DownloadTable table, final DataDescription dd) throws DownloadException {
-        List<FetchResult> results = new ArrayList<FetchResult>();
+    /**
+     * reads the journal left by an earlier download of the same data.
+     * Segments it records are checked against the data on disk. Those that are still good
+     * are removed from the request collection so only the missing segments are requested.
+     *
+     * @param dd
+     * @param pointers
+     */
+    private void resume(DataDescription dd, RequestCollection pointers) {
+        journal = new DownloadJournal(downloadDir, dd);
+        journal.setSyncInterval(attic.getDownloadConfig().getJournalSyncInterval());
+        List<DownloadJournal.Entry> entries = journal.read();
+        List<DownloadJournal.Entry> good = new ArrayList<DownloadJournal.Entry>();
+        if (entries.size() > 0) {
+            good = checkResumed(entries, dd);
+            log.info("Downloader.resume recovered " + good.size() + " of " + dd.getHash().getNumChunks()
+                    + " segments for " + dd.getId());
+        }
+        try {
+            journal.open(good);
+        } catch (IOException e) {
+            log.warning("could not open download journal. Download will not be resumable:" + e.getMessage());
+            journal.close();
+            journal = null;
+        }
+        for (DownloadJournal.Entry entry : good) {
+            FileSegmentHash seg = entry.getSegment();
+            for (EndpointRequest request : pointers.getMappings()) {
+                request.completed(seg);
+            }
+            for (EndpointRequest request : pointers.getReserveMappings()) {
+                request.completed(seg);
+            }
+            File res = directWrite ? targetFile : new File(downloadDir, seg.getStartOffset() + StringConstants.EXT_DATA);
+            FetchResult result = new FetchResult(res, dd, entry.getEndpoint(), seg);
+            result.setByteRange(new ByteRange(seg.getStartOffset(), seg.getEndOffset()));
+            resumed.add(result);
+            handle.segmentVerified(seg, entry.getEndpoint());
+            if (digestPipeline != null) {
+                digestPipeline.add(seg.getStartOffset(), seg.getEndOffset());
+            }
+        }
+    }
+
+    /**
+     * checks the journaled segments against the data on disk.
+     *
+     * @param entries
+     * @param dd
+     * @return the entries whose data is intact, one per segment.
+     */
+    private List<DownloadJournal.Entry> checkResumed(List<DownloadJournal.Entry> entries, DataDescription dd) {
+        Map<Long, DownloadJournal.Entry> unique = new TreeMap<Long, DownloadJournal.Entry>();
+        for (DownloadJournal.Entry entry : entries) {
+            unique.put(entry.getSegment().getStartOffset(), entry);
+        }
+        List<DownloadJournal.Entry> good = new ArrayList<DownloadJournal.Entry>();
+        String algorithm = dd.getHash().getAlgorithm();
+        if (directWrite) {
+            List<FileSegmentHash> segs = new ArrayList<FileSegmentHash>();
+            for (DownloadJournal.Entry entry : unique.values()) {
+                segs.add(entry.getSegment());
+            }
+            try {
+                List<FileSegmentHash> failed = HashUtils.verifySegments(targetChannel, segs, algorithm,
+                        attic.getExecutor(), attic.getDataConfig().getVerificationThreads());
+                for (DownloadJournal.Entry entry : unique.values()) {
+                    if (!failed.contains(entry.getSegment())) {
+                        good.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                log.warning("could not check resumed segments:" + e.getMessage());
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(attic.getDownloadConfig().getBufferSize());
+            for (DownloadJournal.Entry entry : unique.values()) {
+                FileSegmentHash seg = entry.getSegment();
+                File f = new File(downloadDir, seg.getStartOffset() + StringConstants.EXT_DATA);
+                if (f.length() != seg.getEndOffset() - seg.getStartOffset() + 1) {
+                    continue;
+                }
+                RandomAccessFile raf = null;
+                try {
+                    raf = new RandomAccessFile(f, "r");
+                    String hash = HashUtils.hash(raf.getChannel(), 0, f.length() - 1, algorithm, buffer);
+                    if (hash.equalsIgnoreCase(seg.getHash())) {
+                        good.add(entry);
+                    }
+                } catch (Exception e) {
+                    log.fine("could not check resumed segment " + f + ": " + e.getMessage());
+                } finally {
+                    if (raf != null) {
+                        try {
+                            raf.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        }
+        return good;
+    }
+
+    /**
+     * creates the target file at its final size so requestors can write chunks at their offsets.
+     *
+     * @param dd
+     * @throws DownloadException
+     */
+    private void openTargetFile(DataDescription dd) throws DownloadException {
+        try {
+            targetAccess = new RandomAccessFile(targetFile, "rw");
+            targetAccess.setLength(dd.getHash().getSize());
+            targetChannel = targetAccess.getChannel();
+            if (dd.getHash().getMerkleRoot() == null) {
+                // with a Merkle root the verified segments are enough to verify the file
+                digestPipeline = new FileDigestPipeline(targetChannel, dd.getHash().getSize(),
+                        dd.getHash().getAlgorithm(), attic.getDownloadConfig().getBufferSize());
+            }
+            directWrite = true;
+        } catch (IOException e) {
+            closeTargetFile();
+            throw new DownloadException("Could not create target file " + targetFile.getAbsolutePath(), e);
+        } catch (NoSuchAlgorithmException e) {
+            closeTargetFile();
+            throw new DownloadException("Could not create file digest", e);
+        }
+    }
+
+    /**
+     * called by requestors when a segment has been verified and written to disk.
+     * The segment is passed on to the whole file digest and recorded in the journal.
+     * The journal, and the data it records, are forced to disk at most once per journal sync interval.
+     *
+     * @param segment
+     * @param endpoint the endpoint the segment came from
+     */
+    public void onSegmentVerified(FileSegmentHash segment, Endpoint endpoint) {
+        onSegmentVerified(segment, endpoint, null);
+    }
+
+    /**
+     * called by requestors when a segment has been verified and written to disk.
+     *
+     * @param segment
+     * @param endpoint the endpoint the segment came from
+     * @param source   the source that offered the segment's bytes to the digest pipeline, or null.
+     */
+    public void onSegmentVerified(FileSegmentHash segment, Endpoint endpoint, Object source) {
+        if (digestPipeline != null) {
+            digestPipeline.add(segment.getStartOffset(), segment.getEndOffset(), source);
+        }
+        if (journal != null) {
+            journal.segmentVerified(segment, endpoint);
+            if (journal.isSyncDue()) {
+                syncJournal();
+            }
+        }
+        handle.segmentVerified(segment, endpoint);
+    }
+
+    /**
+     * forces the data of the segments recorded since the last sync to disk, then the journal records for them.
+     * Holding the journal stops segments being recorded while their data is being forced.
+     */
+    private void syncJournal() {
+        synchronized (journal) {
+            List<DownloadJournal.Entry> pending = journal.getPending();
+            if (pending.size() == 0) {
+                return;
+            }
+            try {
+                FileChannel channel = targetChannel;
+                if (directWrite && channel != null) {
+                    channel.force(false);
+                } else if (directWrite) {
+                    // the target file has been closed by a download that is finishing
+                    force(targetFile);
+                } else {
+                    for (DownloadJournal.Entry entry : pending) {
+                        force(new File(downloadDir, entry.getSegment().getStartOffset() + StringConstants.EXT_DATA));
+                    }
+                }
+                journal.sync();
+            } catch (IOException e) {
+                log.warning("could not record verified segments in journal:" + e.getMessage());
+            }
+        }
+    }
+
+    private static void force(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * tells the scheduler the download's requests may have become ready, e.g. because it has been resumed.
+     */
+    void wakeup() {
+        attic.getTransferScheduler().wakeup();
+    }
+
+    /**
+     * abandons the running requests once the handle has been cancelled.
+     */
+    void cancelled() {
+        DownloadTransfer t = transfer;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
+    private void closeTargetFile() {
+        if (targetAccess != null) {
+            try {
+                targetAccess.close();
+            } catch (IOException e) {
+                log.fine("could not close target file:" + e.getMessage());
+            }
+            targetAccess = null;
+            targetChannel = null;
+        }
+    }
+
+    /**
+     * hands the table to the Attic's TransferScheduler. This returns straight away.
+     * The download completes on a pool thread when the scheduler finishes the transfer.
+     *
+     * @param table
+     * @param dd
+     * @throws DownloadException
+     */
+    private void submit(DownloadTable table, DataDescription dd) throws DownloadException {
         int numThreads = table.getDownloadConfig().getMaxFileConnections();
         stats.setNumThreads(numThreads);
         stats.setNumChunks(table.getTemplate().getBlockNumber());
         stats.setInitialStatus(table.getTemplate().getStatus().toString());
+        DownloadTransfer transfer = new DownloadTransfer(table, dd);
         for (int i = 0; i < numThreads; i++) {
-            AbstractRequestor ar = createRequestor(table);
-            futures.add(ecs.submit(ar));
+            transfer.requestors.add(createRequestor(table));
         }
+        table.setListener(transfer);
         stats.setStartTime(System.currentTimeMillis());
-        try {
-            for (int count = 0; count < numThreads; count++) {
+        transfer.hedger = startHedging(table);
+        this.transfer = transfer;
+        attic.getTransferScheduler().add(transfer);
+        if (handle.isCancelled()) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * periodically asks the table to duplicate late requests, on the Attic's shared scheduler.
+     * Streaming to the target file writes segments in place as they arrive, so it is not hedged.
+     *
+     * @param table
+     * @return the scheduled check, or null if requests are not hedged.
+     */
+    private ScheduledFuture<?> startHedging(final DownloadTable table) {
+        DownloadConfig config = table.getDownloadConfig();
+        if (!config.isHedgeRequests() || config.isStreamToTargetFile() || table.getTemplate().getBlockNumber() < 2) {
+            return null;
+        }
+        long interval = Math.max(50, config.getMinHedgeDelay() / 4);
+        return attic.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
                 try {
-                    Future<List<FetchResult>> f = ecs.take();
-                    List<FetchResult> reses = f.get();
-                    if (reses != null && reses.size() > 0) {
-                        for (FetchResult res : reses) {
-                            if (res != null) {
-                                results.add(res);
-                            }
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    log.warning("Execution exception thrown:" + e.getMessage());
-                    e.printStackTrace();
+                    table.hedge();
+                } catch (Exception e) {
+                    log.warning("error hedging requests:" + e.getMessage());
                 }
             }
-        } finally {
-            for (Future<List<FetchResult>> future : futures) {
-                log.fine("Downloader.submit canelling future...");
-                future.cancel(true);
-            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * post processes the results and notifies the receiver.
+     * Working files are removed unless the download failed and can be resumed later.
+     *
+     * @param results
+     * @param dd
+     * @param table   the table used for the download, or null if nothing needed downloading.
+     */
+    private void complete(List<FetchResult> results, DataDescription dd, DownloadTable table) {
+        closeTargetFile();
+        log.fine("Downloader.complete about to post process...");
+        if (table != null) {
+            stats.setFinalStatus(table.getResult().getStatus().toString());
         }
-        stats.setEndTime(System.currentTimeMillis());
-        log.fine("Downloader.submit done getting results");
-        log.fine("Downloader.submit results size:" + results.size());
-        log.fine("Downloader.submit about to post process...");
-        stats.setFinalStatus(table.getResult().getStatus().toString());
         stats.setPostStartTime(System.currentTimeMillis());
-        DataEvent evt = postProcess(results, dd, table);
+        DataEvent evt;
+        if (handle.isCancelled()) {
+            evt = new DataEvent(this, dd, "download cancelled", false, null, stats);
+        } else {
+            evt = postProcess(results, dd, table);
+        }
         stats.setPostEndTime(System.currentTimeMillis());
+        boolean keep = false;
+        if (journal != null) {
+            if (evt.isSuccessful()) {
+                journal.delete();
+            } else {
+                syncJournal();
+                journal.close();
+                keep = true;
+            }
+        }
         receiver.dataArrived(evt);
-        try {
-            FileUtils.deleteFiles(downloadDir, true);
-        } catch (FileNotFoundException e) {
-            log.fine(" could not remove working files.");
+        handle.finished(evt);
+        if (!keep) {
+            try {
+                FileUtils.deleteFiles(downloadDir, true);
+            } catch (FileNotFoundException e) {
+                log.fine(" could not remove working files.");
+            }
         }
     }
 
     private DataEvent postProcess(List<FetchResult> results, DataDescription dd, DownloadTable table) {
 
-        int templNum = table.getTemplate().getBlockNumber();
-        int resNum = table.getResult().getBlockNumber();
-        if (templNum != resNum) {
-            log.fine(" not enough chunks arrived back. Should be:" + templNum + " but is:" + resNum);
-            return new DataEvent(this, dd, "not enough chunks", false, null, stats);
+        if (table != null) {
+            int templNum = table.getTemplate().getBlockNumber();
+            int resNum = table.getResult().getBlockNumber();
+            if (templNum != resNum) {
+                log.fine(" not enough chunks arrived back. Should be:" + templNum + " but is:" + resNum);
+                return new DataEvent(this, dd, "not enough chunks", false, null, stats);
+            }
         }
         if (results.size() == 1) {
             Object ret = results.get(0).getResource();
@@ -240,62 +594,138 @@ public class Downloader implements Runnable {
                 return new DataEvent(this, dd, "GOT NOTHING BACK", false, null, stats);
             }
         } else {
-            if (!attic.getDownloadConfig().isStreamToTargetFile()) {
-                RebuiltStreamable s = new RebuiltStreamable(targetFile, "application/octet-stream");
+            // chunks written straight into the target file need no reassembly
+            String digest = null;
+            boolean assembled = false;
+            if (!attic.getDownloadConfig().isStreamToTargetFile() && !directWrite) {
                 for (FetchResult result : results) {
                     Object ret = result.getResource();
-                    if (ret != null) {
-                        if (ret instanceof File) {
-                            org.atticfs.channel.ByteRange range = result.getByteRange();
-                            if (range != null) {
-                                StreamableFile sf = new StreamableFile((File) ret);
-                                try {
-                                    s.addFragment(sf, range.getStartOffset(), s.getLength());
-                                } catch (IOException e) {
-                                    return new DataEvent(this, result.getDescription(), e, stats);
-                                }
-                            } else {
-                                return new DataEvent(this, dd, "No range specified. Is this the whole file? ", false, (File) ret, stats);
-                            }
-                        } else {
-                            log.fine(" GOT SOMETHING BACK WHICH IS NOT A FILE:" + ret);
-                            return new DataEvent(this, dd, "GOT SOMETHING BACK WHICH IS NOT A FILE:" + ret, false, null, stats);
-                        }
-                    } else {
+                    if (ret == null) {
                         log.fine(" GOT NOTHING BACK");
                         return new DataEvent(this, dd, "GOT NOTHING BACK", false, null, stats);
+                    } else if (!(ret instanceof File)) {
+                        log.fine(" GOT SOMETHING BACK WHICH IS NOT A FILE:" + ret);
+                        return new DataEvent(this, dd, "GOT SOMETHING BACK WHICH IS NOT A FILE:" + ret, false, null, stats);
+                    } else if (result.getByteRange() == null) {
+                        return new DataEvent(this, dd, "No range specified. Is this the whole file? ", false, (File) ret, stats);
                     }
                 }
-                log.fine("Downloader.postProcess status of data: " + s.getRebuildStatus());
-                if (s.getRebuildStatus() != RebuiltStreamable.RebuildStatus.COMPLETE) {
+                try {
+                    // with a Merkle root the verified segments are enough, so only the copy is needed
+                    digest = assemble(results, dd, dd.getHash().getMerkleRoot() == null);
+                } catch (IOException e) {
+                    return new DataEvent(this, dd, e, stats);
+                } catch (NoSuchAlgorithmException e) {
+                    return new DataEvent(this, dd, e, stats);
+                }
+                if (digest == null) {
                     return new DataEvent(this, dd, "File is not complete", false, targetFile, stats);
                 }
+                assembled = true;
             }
             long len = dd.getHash().getSize();
             if (targetFile.length() != len) {
                 return new DataEvent(this, dd, "File is not complete", false, targetFile, stats);
             }
-            try {
-                FileChannel channel = new FileInputStream(targetFile).getChannel();
-                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, targetFile.length());
-                Boolean b = verify(buffer, dd.getHash().getHash());
-                if (b == null) {
-                    return new DataEvent(this, dd, "Get me a hot coco.", false, targetFile, stats);
-                } else if (b) {
-                    return new DataEvent(this, dd, "Get me a beer.", true, targetFile, stats);
-                } else {
-                    // umm this could be anyone, but we don't know who!
-                    //EndpointStats.getStats().addBadHashEndpoint();
-                    return new DataEvent(this, dd, "Get me a hot coco.", false, targetFile, stats);
-                }
-            } catch (IOException e) {
-                return new DataEvent(this, dd, "Dig me a hole.", false, targetFile, stats);
+            Boolean b;
+            stats.onVerify(dd.getHash().getHash());
+            Boolean merkle = HashUtils.verifyMerkleRoot(dd.getHash());
+            if ((directWrite || assembled) && merkle != null) {
+                // every segment was verified as it was written, so the root is all that is left to check
+                b = merkle;
+            } else if (assembled) {
+                // the whole file digest was built as the segments were copied into the target file
+                b = digest.equalsIgnoreCase(dd.getHash().getHash());
+            } else if (digestPipeline != null && digestPipeline.isComplete()) {
+                // the whole file digest was built as segments were verified
+                b = digestPipeline.getDigest().equalsIgnoreCase(dd.getHash().getHash());
+            } else {
+                b = HashUtils.verify(targetFile, dd.getHash(), attic.getExecutor(), attic.getDataConfig().getVerificationThreads());
+            }
+            if (b == null) {
+                return new DataEvent(this, dd, "Get me a hot coco.", false, targetFile, stats);
+            } else if (b) {
+                return new DataEvent(this, dd, "Get me a beer.", true, targetFile, stats);
+            } else {
+                // umm this could be anyone, but we don't know who!
+                //EndpointHealth.getHealth().onHashFailure();
+                return new DataEvent(this, dd, "Get me a hot coco.", false, targetFile, stats);
             }
         }
 
 
     }
 
+    /**
+     * copies the segment files into the target file in offset order.
+     * If asked, each buffer is added to the whole file digest on the way, so the file is not read again to verify it.
+     *
+     * @param results
+     * @param dd
+     * @param hash    true to compute the digest of the file.
+     * @return the hex digest of the file, an empty string if it was not asked for,
+     *         or null if the segments do not make up the whole file.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private String assemble(List<FetchResult> results, DataDescription dd, boolean hash) throws IOException, NoSuchAlgorithmException {
+        Map<Long, FetchResult> ordered = new TreeMap<Long, FetchResult>();
+        for (FetchResult result : results) {
+            ordered.put(result.getByteRange().getStartOffset(), result);
+        }
+        String algorithm = dd.getHash().getAlgorithm();
+        MessageDigest md = hash ? HashUtils.createDigest(algorithm) : null;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(attic.getDownloadConfig().getBufferSize(), 1024));
+        RandomAccessFile out = new RandomAccessFile(targetFile, "rw");
+        try {
+            out.setLength(0);
+            FileChannel dest = out.getChannel();
+            long position = 0;
+            for (FetchResult result : ordered.values()) {
+                ByteRange range = result.getByteRange();
+                if (range.getStartOffset() != position) {
+                    return null;
+                }
+                long len = range.getEndOffset() - range.getStartOffset() + 1;
+                RandomAccessFile in = new RandomAccessFile((File) result.getResource(), "r");
+                try {
+                    FileChannel src = in.getChannel();
+                    if (src.size() < len) {
+                        return null;
+                    }
+                    long pos = 0;
+                    while (pos < len) {
+                        buffer.clear();
+                        if (len - pos < buffer.capacity()) {
+                            buffer.limit((int) (len - pos));
+                        }
+                        int c = src.read(buffer, pos);
+                        if (c < 0) {
+                            return null;
+                        }
+                        buffer.flip();
+                        if (md != null) {
+                            md.update(buffer.duplicate());
+                        }
+                        while (buffer.hasRemaining()) {
+                            dest.write(buffer);
+                        }
+                        pos += c;
+                    }
+                } finally {
+                    in.close();
+                }
+                position += len;
+            }
+            if (position != dd.getHash().getSize()) {
+                return null;
+            }
+        } finally {
+            out.close();
+        }
+        return md == null ? "" : HashUtils.toHex(md.digest(), algorithm);
+    }
+
     public String createFileNameFromName(String name) {
         return createDirectoryNameFromName(name) + StringConstants.EXT_DATA;
     }
@@ -314,8 +744,9 @@ public class Downloader implements Runnable {
         }
         stats.onVerify(hash);
         MessageDigest md = null;
+        String algorithm = collection.getDataDescription().getHash().getAlgorithm();
         try {
-            md = MessageDigest.getInstance("MD5");
+            md = HashUtils.createDigest(algorithm);
         } catch (NoSuchAlgorithmException e) {
             return null;
         }
@@ -327,12 +758,7 @@ public class Downloader implements Runnable {
                 in.get(bytes, 0, c);
                 md.update(bytes, 0, c);
             }
-            byte[] digest = md.digest();
-            StringBuffer buf = new StringBuffer();
-            for (int i = 0; i < digest.length; i++) {
-                buf.append(Integer.toHexString((int) digest[i] & 0x00FF));
-            }
-            boolean b = buf.toString().equalsIgnoreCase(hash);
+            boolean b = HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(hash);
 
             log.fine("Downloader.verify returning " + b);
             return b;
@@ -343,6 +769,120 @@ public class Downloader implements Runnable {
     }
 
 
+    /**
+     * the segment requests of this download, as run by the TransferScheduler.
+     * Requestors are reused between requests rather than each holding a thread.
+     */
+    private class DownloadTransfer implements Transfer, DownloadTable.Listener {
+
+        private DownloadTable table;
+        private DataDescription dd;
+        private List<FetchResult> results = Collections.synchronizedList(new ArrayList<FetchResult>(resumed));
+        private LinkedList<AbstractRequestor> requestors = new LinkedList<AbstractRequestor>();
+        private ScheduledFuture<?> hedger;
+        // requests being performed, so they can be abandoned if the download is cancelled
+        private Set<SegmentRequest> running = Collections.synchronizedSet(new HashSet<SegmentRequest>());
+        // the endpoint request of the last request polled, so the table can keep to the same endpoint
+        private volatile long lastId = -1;
+
+        private DownloadTransfer(DownloadTable table, DataDescription dd) {
+            this.table = table;
+            this.dd = dd;
+        }
+
+        public int getMaxConnections() {
+            return table.getDownloadConfig().getMaxFileConnections();
+        }
+
+        public Priority getPriority() {
+            return handle.getPriority();
+        }
+
+        public boolean isPaused() {
+            return handle.isPaused();
+        }
+
+        /**
+         * abandons the running requests. No more are handed out.
+         */
+        private void cancel() {
+            synchronized (running) {
+                for (SegmentRequest request : running) {
+                    request.cancel();
+                }
+            }
+            wakeup();
+        }
+
+        public boolean isComplete() {
+            return handle.isCancelled() || table.isComplete();
+        }
+
+        public SegmentRequest poll() {
+            if (handle.isCancelled()) {
+                return DownloadTable.poison;
+            }
+            SegmentRequest request = table.poll(lastId);
+            if (request != null && request.getPriority() != DownloadTable.Priority.POISON) {
+                lastId = request.getEndpointRequestId();
+            }
+            return request;
+        }
+
+        public void transfer(SegmentRequest request) {
+            if (handle.isCancelled()) {
+                request.cancel();
+                table.onFailure(request);
+                return;
+            }
+            running.add(request);
+            AbstractRequestor requestor;
+            synchronized (requestors) {
+                requestor = requestors.poll();
+            }
+            try {
+                if (requestor == null) {
+                    requestor = createRequestor(table);
+                }
+                List<FetchResult> reses = new ArrayList<FetchResult>();
+                requestor.process(request, reses);
+                for (FetchResult res : reses) {
+                    if (res != null) {
+                        results.add(res);
+                    }
+                }
+            } catch (Exception e) {
+                log.warning("error downloading " + request + ": " + e.getMessage());
+                table.onFailure(request);
+            } finally {
+                running.remove(request);
+                if (requestor != null) {
+                    synchronized (requestors) {
+                        requestors.add(requestor);
+                    }
+                }
+            }
+        }
+
+        public void finished() {
+            if (hedger != null) {
+                hedger.cancel(false);
+            }
+            stats.setEndTime(System.currentTimeMillis());
+            log.fine("Downloader.finished done getting results");
+            log.fine("Downloader.finished results size:" + results.size());
+            List<FetchResult> reses;
+            synchronized (results) {
+                reses = new ArrayList<FetchResult>(results);
+            }
+            complete(reses, dd, table);
+        }
+
+        public void requestsReady(DownloadTable table) {
+            attic.getTransferScheduler().wakeup();
+        }
+    }
+
     public static class FetchResult {
         private FileSegmentHash segment;
         private Object resource;
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download;
+
+import org.atticfs.util.HashUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Computes the whole file digest from verified segments in offset order.
+ * Segments can be added in any order. Whenever the segment at the current digest
+ * position is available, it and any contiguous segments after it are read back from the
+ * target file, which will usually still be in the page cache, and added to the digest.
+ * Only one thread advances the digest at a time. Others just queue their segments and return.
+ * <p/>
+ * The segment that starts at the digest position can also be offered as it arrives. Its bytes go into
+ * a copy of the digest, which replaces the digest if the same source then adds the segment as verified.
+ * So when segments arrive in order, none of them are read back.
+ *
+ *
+ */
+
+public class FileDigestPipeline {
+
+    static Logger log = Logger.getLogger("org.atticfs.download.FileDigestPipeline");
+
+    private FileChannel channel;
+    private MessageDigest md;
+    private String algorithm;
+    private long length;
+    private long position = 0;
+    private boolean advancing = false;
+    private boolean failed = false;
+    private String digest;
+    private SortedMap<Long, Long> pending = new TreeMap<Long, Long>();
+    private ByteBuffer buffer;
+    // the digest of the segment at the position, as offered by its source
+    private MessageDigest tentative;
+    private Object tentativeSource;
+    private long tentativeStart = -1;
+    private long tentativePosition;
+
+    public FileDigestPipeline(FileChannel channel, long length, String algorithm, int bufferSize) throws NoSuchAlgorithmException {
+        this.channel = channel;
+        this.length = length;
+        this.algorithm = algorithm;
+        this.md = HashUtils.createDigest(algorithm);
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 1024));
+    }
+
+    /**
+     * offers bytes of a segment as they arrive. They are only used if they start at the digest position,
+     * or carry on from bytes the same source offered before. Offering bytes at the digest position
+     * starts again, e.g. because the source is fetching the segment again.
+     * The buffer's position is not changed.
+     *
+     * @param source the object that will add the segment once it is verified
+     * @param bytes
+     * @param offset the offset of the first remaining byte in the buffer
+     */
+    public synchronized void offer(Object source, ByteBuffer bytes, long offset) {
+        if (failed || advancing) {
+            return;
+        }
+        if (offset == position) {
+            try {
+                tentative = (MessageDigest) md.clone();
+            } catch (CloneNotSupportedException e) {
+                return;
+            }
+            tentativeSource = source;
+            tentativeStart = offset;
+            tentativePosition = offset;
+        }
+        if (tentative == null || source != tentativeSource || offset != tentativePosition) {
+            return;
+        }
+        tentativePosition += bytes.remaining();
+        tentative.update(bytes.duplicate());
+    }
+
+    /**
+     * add a verified range. Offsets are inclusive.
+     *
+     * @param start
+     * @param end
+     */
+    public void add(long start, long end) {
+        add(start, end, null);
+    }
+
+    /**
+     * add a verified range. Offsets are inclusive.
+     * If the source offered every byte of the range from the digest position, those bytes are used
+     * rather than reading the range back.
+     *
+     * @param start
+     * @param end
+     * @param source the source that offered the bytes, or null if it offered none.
+     */
+    public void add(long start, long end, Object source) {
+        synchronized (this) {
+            if (failed || start < position) {
+                return;
+            }
+            if (source != null && source == tentativeSource && !advancing
+                    && start == position && tentativeStart == start && tentativePosition == end + 1) {
+                md = tentative;
+                position = end + 1;
+                clearTentative();
+            } else {
+                pending.put(start, end);
+            }
+            if (advancing) {
+                return;
+            }
+            advancing = true;
+        }
+        try {
+            while (true) {
+                long from;
+                Long to;
+                synchronized (this) {
+                    to = pending.remove(position);
+                    if (to == null) {
+                        advancing = false;
+                        return;
+                    }
+                    from = position;
+                    if (tentativeStart == from) {
+                        clearTentative();
+                    }
+                }
+                read(from, to);
+                synchronized (this) {
+                    position = to + 1;
+                }
+            }
+        } catch (IOException e) {
+            log.warning("could not add range to file digest:" + e.getMessage());
+            synchronized (this) {
+                failed = true;
+                advancing = false;
+                pending.clear();
+                clearTentative();
+            }
+        }
+    }
+
+    private void clearTentative() {
+        tentative = null;
+        tentativeSource = null;
+        tentativeStart = -1;
+    }
+
+    private void read(long from, long to) throws IOException {
+        long pos = from;
+        while (pos <= to) {
+            buffer.clear();
+            if (to - pos + 1 < buffer.capacity()) {
+                buffer.limit((int) (to - pos + 1));
+            }
+            int c = channel.read(buffer, pos);
+            if (c < 0) {
+                throw new IOException("unexpected end of file at " + pos);
+            }
+            buffer.flip();
+            md.update(buffer);
+            pos += c;
+        }
+    }
+
+    /**
+     * @return true if every byte of the file has been added to the digest.
+     */
+    public synchronized boolean isComplete() {
+        return !failed && !advancing && position == length;
+    }
+
+    /**
+     * @return the hex digest of the whole file, or null if the pipeline is not complete.
+     */
+    public synchronized String getDigest() {
+        if (!isComplete()) {
+            return null;
+        }
+        if (digest == null) {
+            digest = HashUtils.toHex(md.digest(), algorithm);
+        }
+        return digest;
+    }
+}
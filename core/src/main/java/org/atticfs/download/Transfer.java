@@ -0,0 +1,81 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.download;
+
+import org.atticfs.download.request.SegmentRequest;
+
+/**
+ * Work for the TransferScheduler, e.g. the segment requests of a download.
+ *
+ * 
+ */
+
+public interface Transfer {
+
+    /**
+     * classes of transfer. Requests of a higher class are always given free slots before those of a lower one.
+     */
+    static enum Priority {
+        INTERACTIVE,    // someone is waiting for the data
+        NORMAL,
+        BACKGROUND      // e.g. filling a cache
+    }
+
+    /**
+     * @return the class of the transfer. This may change while the transfer runs.
+     */
+    public Priority getPriority();
+
+    /**
+     * @return true if no more requests of the transfer should be started for now.
+     *         Requests already running are left to finish.
+     */
+    public boolean isPaused();
+
+    /**
+     * @return the most requests of this transfer that may run at once.
+     */
+    public int getMaxConnections();
+
+    /**
+     * gets the next request that is ready, without waiting.
+     *
+     * @return the request, null if none is ready at the moment,
+     *         or the poison request if there will be no more.
+     */
+    public SegmentRequest poll();
+
+    /**
+     * @return true if the transfer has nothing more to do, e.g. it is complete or has been cancelled.
+     *         A transfer whose poll() returns null is only finished if this is true, as requests may become ready later.
+     */
+    public boolean isComplete();
+
+    /**
+     * performs a request. Called on a pool thread.
+     *
+     * @param request
+     */
+    public void transfer(SegmentRequest request);
+
+    /**
+     * called once when none of the transfer's requests is running and none is ready.
+     * Called on a pool thread.
+     */
+    public void finished();
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.download;
+
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.download.request.SegmentRequest;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.types.Endpoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Hands out transfer slots to the requests of all the running transfers of an Attic.
+ * <p/>
+ * A request is only given a pool thread once it can run: when fewer than maxTotalConnections requests
+ * are running overall, fewer than its transfer's maximum are running for the transfer, and fewer than
+ * maxEndpointConnections are running to its endpoint's host. Transfers take turns, so a download with
+ * many requests ready cannot starve one that starts later. Turns are only taken within a priority class:
+ * a transfer of a lower class is given a slot only when no transfer of a higher class can use it.
+ * Paused transfers are passed over. A request whose endpoint is busy is held here until the endpoint has a free slot.
+ * <p/>
+ * Nothing waits on a pool thread for work. Transfers are polled when they are added, when one of
+ * the scheduler's requests finishes, and when wakeup() is called because requests have become ready.
+ * A transfer is finished when none of its requests is running or held, and it has either handed out
+ * the poison request or says it is complete. A transfer with nothing ready at the moment stays
+ * registered until wakeup() is called, as requests may be requeued, hedged or added later.
+ *
+ * 
+ */
+
+public class TransferScheduler {
+
+    static Logger log = Logger.getLogger("org.atticfs.download.TransferScheduler");
+
+    private Executor executor;
+    private DownloadConfig config;
+
+    private List<Slots> transfers = new ArrayList<Slots>();
+    // index of the transfer whose turn is next
+    private int turn = 0;
+    private int running = 0;
+    // running requests by endpoint host and port
+    private Map<String, Integer> endpoints = new HashMap<String, Integer>();
+
+    private boolean dispatching = false;
+    private boolean again = false;
+
+    public TransferScheduler(Executor executor, DownloadConfig config) {
+        this.executor = executor;
+        this.config = config;
+    }
+
+    /**
+     * adds a transfer and starts as many of its requests as the limits allow.
+     *
+     * @param transfer
+     */
+    public void add(Transfer transfer) {
+        synchronized (this) {
+            transfers.add(new Slots(transfer));
+        }
+        dispatch();
+    }
+
+    /**
+     * tells the scheduler that requests may have become ready.
+     */
+    public void wakeup() {
+        dispatch();
+    }
+
+    /**
+     * @return the number of requests running.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @param endpoint
+     * @return the number of requests running to the endpoint's host and port.
+     */
+    public synchronized int getRunning(Endpoint endpoint) {
+        Integer count = endpoints.get(key(endpoint));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the number of transfers that have not finished.
+     */
+    public synchronized int getTransfers() {
+        return transfers.size();
+    }
+
+    private static String key(Endpoint endpoint) {
+        return endpoint.getAddress() + ":" + endpoint.getPort();
+    }
+
+    /**
+     * starts requests until none can be started. Only one thread dispatches at a time.
+     * A call made while another thread is dispatching makes that thread go round again.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            again = true;
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!again) {
+                        dispatching = false;
+                        return;
+                    }
+                    again = false;
+                }
+                while (dispatchOne()) {
+                    // keep going
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                dispatching = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * gives the next transfer in turn that has a request that can run a slot.
+     *
+     * @return true if a request was started or a transfer finished.
+     */
+    private boolean dispatchOne() {
+        List<Slots> order;
+        synchronized (this) {
+            if (transfers.size() == 0 || isFull()) {
+                return false;
+            }
+            order = new ArrayList<Slots>(transfers.size());
+            for (int i = 0; i < transfers.size(); i++) {
+                order.add(transfers.get((turn + i) % transfers.size()));
+            }
+        }
+        // the sort is stable, so transfers of the same class keep their turns
+        Collections.sort(order, new Comparator<Slots>() {
+            public int compare(Slots slots, Slots slots1) {
+                return getPriority(slots).compareTo(getPriority(slots1));
+            }
+        });
+        for (Slots slots : order) {
+            if (slots.transfer.isPaused()) {
+                continue;
+            }
+            SegmentRequest request;
+            synchronized (this) {
+                int max = Math.max(1, slots.transfer.getMaxConnections());
+                if (slots.running >= max) {
+                    continue;
+                }
+                request = takeHeld(slots);
+                if (request == null && (slots.exhausted || slots.held.size() >= max)) {
+                    if (finish(slots)) {
+                        return true;
+                    }
+                    continue;
+                }
+            }
+            if (request == null) {
+                request = poll(slots);
+                if (request == null) {
+                    // null only means nothing is ready yet. The transfer is left for wakeup() unless it has ended.
+                    synchronized (this) {
+                        if ((slots.exhausted || slots.transfer.isComplete()) && finish(slots)) {
+                            return true;
+                        }
+                    }
+                    continue;
+                }
+            }
+            synchronized (this) {
+                if (isFull() || !isFree(request.getEndpoint())) {
+                    // the transfer may have requests for other endpoints, so it is polled again
+                    slots.held.add(request);
+                    return true;
+                }
+                start(slots, request);
+            }
+            try {
+                executor.execute(new Slot(slots, request));
+            } catch (RejectedExecutionException e) {
+                log.warning("could not run request " + request + ": " + e.getMessage());
+                release(slots, request);
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static Transfer.Priority getPriority(Slots slots) {
+        Transfer.Priority priority = slots.transfer.getPriority();
+        return priority == null ? Transfer.Priority.NORMAL : priority;
+    }
+
+    private SegmentRequest poll(Slots slots) {
+        SegmentRequest request;
+        try {
+            request = slots.transfer.poll();
+        } catch (RuntimeException e) {
+            log.warning("error getting the next request of a transfer:" + e.getMessage());
+            request = DownloadTable.poison;
+        }
+        if (request != null && request.getPriority() == DownloadTable.Priority.POISON) {
+            synchronized (this) {
+                slots.exhausted = true;
+            }
+            return null;
+        }
+        return request;
+    }
+
+    private boolean isFull() {
+        return running >= Math.max(1, config.getMaxTotalConnections());
+    }
+
+    private boolean isFree(Endpoint endpoint) {
+        int max = config.getMaxEndpointConnections();
+        if (max <= 0) {
+            return true;
+        }
+        Integer count = endpoints.get(key(endpoint));
+        return count == null || count < max;
+    }
+
+    private SegmentRequest takeHeld(Slots slots) {
+        Iterator<SegmentRequest> it = slots.held.iterator();
+        while (it.hasNext()) {
+            SegmentRequest request = it.next();
+            if (isFree(request.getEndpoint())) {
+                it.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void start(Slots slots, SegmentRequest request) {
+        running++;
+        slots.running++;
+        String key = key(request.getEndpoint());
+        Integer count = endpoints.get(key);
+        endpoints.put(key, count == null ? 1 : count + 1);
+        int index = transfers.indexOf(slots);
+        turn = index < 0 ? 0 : index + 1;
+    }
+
+    private synchronized void release(Slots slots, SegmentRequest request) {
+        running--;
+        slots.running--;
+        String key = key(request.getEndpoint());
+        Integer count = endpoints.get(key);
+        if (count == null || count <= 1) {
+            endpoints.remove(key);
+        } else {
+            endpoints.put(key, count - 1);
+        }
+    }
+
+    /**
+     * removes a transfer that has nothing running, held or ready and tells it it has finished.
+     *
+     * @param slots
+     * @return true if the transfer was finished.
+     */
+    private boolean finish(final Slots slots) {
+        if (slots.running > 0 || slots.held.size() > 0) {
+            return false;
+        }
+        int index = transfers.indexOf(slots);
+        if (index < 0) {
+            return false;
+        }
+        transfers.remove(index);
+        if (turn > index) {
+            turn--;
+        }
+        if (turn >= transfers.size()) {
+            turn = 0;
+        }
+        Runnable r = new Runnable() {
+            public void run() {
+                slots.transfer.finished();
+            }
+        };
+        try {
+            executor.execute(r);
+        } catch (RejectedExecutionException e) {
+            r.run();
+        }
+        return true;
+    }
+
+    /**
+     * a transfer and the requests the scheduler is running or holding for it.
+     */
+    private static class Slots {
+        private Transfer transfer;
+        private int running = 0;
+        private boolean exhausted = false;
+        private LinkedList<SegmentRequest> held = new LinkedList<SegmentRequest>();
+
+        private Slots(Transfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+
+    private class Slot implements Runnable {
+
+        private Slots slots;
+        private SegmentRequest request;
+
+        private Slot(Slots slots, SegmentRequest request) {
+            this.slots = slots;
+            this.request = request;
+        }
+
+        public void run() {
+            try {
+                slots.transfer.transfer(request);
+            } catch (Throwable t) {
+                log.warning("error running request " + request + ": " + t.getMessage());
+            } finally {
+                release(slots, request);
+                dispatch();
+            }
+        }
+    }
+}
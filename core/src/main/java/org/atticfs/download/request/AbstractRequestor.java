@@ -16,11 +16,21 @@
 
 package org.atticfs.download.request;
 
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.MultipartRangeInputStream;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.Downloader;
 import org.atticfs.download.table.DownloadTable;
+import org.atticfs.stats.DownloadStats;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.Endpoint;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 /**
@@ -31,10 +41,13 @@ import java.util.logging.Logger;
  * 
  */
 
-public abstract class AbstractRequestor implements Callable<List<Downloader.FetchResult>> {
+public abstract class AbstractRequestor {
 
     static Logger log = Logger.getLogger("org.atticfs.download.request.AbstractRequestor");
 
+    // a connection that stalls for this many times a chunk's deadline is given up on
+    private static final int STALL_FACTOR = 4;
+
     protected DownloadTable table;
     protected Downloader downloader;
 
@@ -43,5 +56,217 @@ public abstract class AbstractRequestor implements Callable<List<Downloader.Fetc
         this.downloader = downloader;
     }
 
-    public abstract List<Downloader.FetchResult> call() throws Exception;
+    /**
+     * downloads a single request taken from the table, adding any results to the list.
+     * Requestors are driven by the TransferScheduler, which polls the table and calls this for each request.
+     *
+     * @param request
+     * @param results
+     * @throws IOException
+     */
+    public abstract void process(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException;
+
+    /**
+     * sizes the chunks of a request to suit its endpoint, if adaptive chunk sizing is on.
+     *
+     * @param request
+     */
+    protected void sizeChunks(SegmentRequest request) {
+        DownloadConfig config = table.getDownloadConfig();
+        if (!config.isAdaptiveChunkSize() || request.getFileSegmentHash() == null) {
+            return;
+        }
+        DownloadStats.EndpointDownloadStats eps = downloader.getStats().getEndpointStats(request.getEndpoint());
+        int size = eps.getChunkSize(config.getDownloadChunkSize(), config.getMinDownloadChunkSize(),
+                config.getMaxDownloadChunkSize(), config.getTargetChunkTime());
+        if (request.resizeDownloadChunks(size)) {
+            log.fine("chunk size for " + request.getEndpoint() + " is now " + size);
+        }
+    }
+
+    /**
+     * sets the deadline of a chunk that is about to be requested, from the endpoint's history.
+     * The table duplicates requests that miss their deadline to other replicas. If no socket timeout
+     * is configured, a connection that stalls for several times the deadline is given up on, so a request
+     * that has lost to a duplicate cannot hang forever.
+     *
+     * @param request
+     * @param chunk
+     * @param cd
+     * @param eps
+     */
+    protected void startChunk(SegmentRequest request, Chunk chunk, ChannelData cd, DownloadStats.EndpointDownloadStats eps) {
+        startRequest(request, chunk.getEndOffset() - chunk.getStartOffset() + 1, cd, eps);
+    }
+
+    private void startRequest(SegmentRequest request, long bytes, ChannelData cd, DownloadStats.EndpointDownloadStats eps) {
+        DownloadConfig config = table.getDownloadConfig();
+        long deadline = eps.getDeadline(bytes);
+        if (!config.isHedgeRequests() || deadline < 0) {
+            request.setDeadline(0);
+            return;
+        }
+        deadline = Math.max(deadline, config.getMinHedgeDelay());
+        request.setDeadline(System.currentTimeMillis() + deadline);
+        if (config.getSocketTimeout() <= 0) {
+            cd.setTimeout((int) Math.min(Integer.MAX_VALUE, deadline * STALL_FACTOR));
+        }
+    }
+
+    /**
+     * @param eps
+     * @return how many chunks to ask the endpoint for in one request.
+     */
+    protected int getRangesPerRequest(DownloadStats.EndpointDownloadStats eps) {
+        if (!eps.isMultiRange()) {
+            return 1;
+        }
+        return Math.max(1, table.getDownloadConfig().getRangesPerRequest());
+    }
+
+    /**
+     * fetches several chunks with a single multi-range request, handing each part to the receiver.
+     * Chunks that arrive complete are marked UNVERIFIED and the rest are marked FAILED.
+     * If the endpoint does not answer with the ranges asked for, no chunk is changed,
+     * the endpoint is asked for one range at a time from then on, and -1 is returned
+     * so the caller can fetch the chunks singly.
+     *
+     * @param request
+     * @param chunks   UNTRIED chunks in offset order
+     * @param out
+     * @param eps
+     * @param receiver
+     * @return the number of chunks that failed, or -1.
+     */
+    protected int requestRanges(SegmentRequest request, List<Chunk> chunks, OutChannel out,
+                                DownloadStats.EndpointDownloadStats eps, PartReceiver receiver) {
+        DownloadConfig config = table.getDownloadConfig();
+        Endpoint target = request.getEndpoint();
+        ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
+        cd.setBufferSize(0);
+        cd.setResponseType(InputStream.class);
+        // the parts are read as they come, so the body must not be compressed
+        cd.setUseCompression(false);
+        cd.setConnectionRetryCount(config.getConnectionRetryCount());
+        cd.setTimeout(config.getSocketTimeout());
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            ranges.add(chunk.getByteRange());
+            bytes += chunk.getEndOffset() - chunk.getStartOffset() + 1;
+        }
+        cd.setByteRanges(ranges);
+        startRequest(request, bytes, cd, eps);
+        eps.incTotalRequests();
+        try {
+            cd = out.send(cd);
+        } catch (Exception e1) {
+            EndpointHealth.getHealth().onConnectionFailure(target);
+        }
+        downloader.getStats().addChannelData(cd, eps);
+        Object data = cd.getResponseData();
+        if (cd.getOutcome() != ChannelData.Outcome.OK) {
+            if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
+                EndpointHealth.getHealth().onErrorResponse(target);
+            }
+            close(data);
+            for (Chunk chunk : chunks) {
+                chunk.setState(Chunk.State.FAILED);
+                eps.onChunkFailed();
+            }
+            return chunks.size();
+        }
+        if (!(data instanceof MultipartRangeInputStream)) {
+            log.fine(target + " did not return the ranges asked for. Asking for one range at a time.");
+            close(data);
+            eps.setMultiRange(false);
+            return -1;
+        }
+        MultipartRangeInputStream in = (MultipartRangeInputStream) data;
+        // the latency is only part of the first chunk's time
+        long latency = cd.getOutTime() + cd.getInTime();
+        boolean gotPart = false;
+        request.setStream(in);
+        try {
+            int index = 0;
+            ByteRange range;
+            while (index < chunks.size() && (range = in.next()) != null) {
+                int i = index;
+                while (i < chunks.size() && !chunks.get(i).getByteRange().equals(range)) {
+                    i++;
+                }
+                if (i == chunks.size()) {
+                    // not asked for, or out of order. It is skipped by the next call to next()
+                    continue;
+                }
+                Chunk chunk = chunks.get(i);
+                index = i + 1;
+                gotPart = true;
+                long expected = chunk.getEndOffset() - chunk.getStartOffset() + 1;
+                long now = System.currentTimeMillis();
+                long len = receiver.receive(chunk, in);
+                long time = System.currentTimeMillis() - now;
+                if (request.isCancelled()) {
+                    break;
+                }
+                eps.incTotalData(len);
+                eps.incTotalTime(time);
+                if (len == expected) {
+                    chunk.setState(Chunk.State.UNVERIFIED);
+                    eps.onChunk(len, time, latency);
+                    latency = -1;
+                }
+            }
+        } catch (IOException e) {
+            if (!gotPart && !request.isCancelled()) {
+                // older servers send the multipart headers but no body
+                log.fine(target + " did not return the ranges asked for. Asking for one range at a time.");
+                eps.setMultiRange(false);
+                return -1;
+            }
+            if (!request.isCancelled()) {
+                log.fine("multi-range response from " + target + " broke off:" + e.getMessage());
+            }
+        } finally {
+            request.setStream(null);
+            close(in);
+        }
+        if (request.isCancelled()) {
+            // another request won. That is not the endpoint's fault
+            return 0;
+        }
+        int failed = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.getState() != Chunk.State.UNVERIFIED) {
+                chunk.setState(Chunk.State.FAILED);
+                eps.onChunkFailed();
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static void close(Object data) {
+        if (data instanceof InputStream) {
+            try {
+                ((InputStream) data).close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * takes the data of one chunk from a multi-range response.
+     */
+    protected static interface PartReceiver {
+
+        /**
+         * @param chunk
+         * @param in    a stream that ends with the chunk's data.
+         * @return the number of bytes taken.
+         * @throws IOException
+         */
+        public long receive(Chunk chunk, InputStream in) throws IOException;
+    }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download.request;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.download.Downloader;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.stats.DownloadStats;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+
+/**
+ * Writes each chunk directly into the preallocated target file at its offset
+ * using positional writes on the Downloader's target channel.
+ * Each segment is hashed as its bytes arrive off the socket, so verification needs
+ * no second read of the data, and no chunk or segment files are created.
+ * Several chunks are fetched at a time with multi-range requests where the endpoint supports them.
+ * <p/>
+ * Only the writer of a segment writes it in place. A duplicate request for a segment that is
+ * already being written, e.g. a hedged request, downloads to its own files and its copy is only
+ * written to the target file if it is verified before the writer's.
+ *
+ *
+ */
+
+public class DirectFileRequestor extends MultipleFileRequestor {
+
+    private ByteBuffer buffer;
+
+    public DirectFileRequestor(DownloadTable table, Downloader downloader) {
+        super(table, downloader);
+        buffer = ByteBuffer.allocateDirect(Math.max(table.getDownloadConfig().getBufferSize(), 1024));
+    }
+
+    protected void chunkedDownload(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException {
+
+        if (table.getResult().containsChunk(request.getFileSegmentHash())) {
+            log.fine("segment already written by another request:" + request.getFileSegmentHash());
+            table.onSuccess(request);
+            return;
+        }
+        SegmentClaim claim = request.getClaim();
+        if (!claim.acquireWriter(request)) {
+            fileDownload(request, results, false);
+            return;
+        }
+        try {
+            directDownload(request, results);
+        } finally {
+            claim.releaseWriter(request);
+        }
+    }
+
+    private void directDownload(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException {
+        Endpoint target = request.getEndpoint();
+        OutChannel out = ChannelFactory.getFactory().createOutChannel();
+        ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
+        cd.setBufferSize(0);
+        cd.setResponseType(InputStream.class);
+        cd.setUseCompression(table.getDownloadConfig().isCompress());
+        cd.setConnectionRetryCount(table.getDownloadConfig().getConnectionRetryCount());
+        cd.setTimeout(table.getDownloadConfig().getSocketTimeout());
+
+        /*
+        Chunks are written in place. Those that arrive intact are left UNVERIFIED
+        and are not fetched again when the request is retried.
+        If the segment fails verification, nothing on disk can be trusted,
+        so every chunk is fetched again once. If that fails too, the chunks are marked
+        as failed so that a later retry, or another endpoint, overwrites the whole segment.
+         */
+        SegmentDigest digest = createDigest(request);
+        boolean downloaded = request(request, cd, out, digest);
+        if (downloaded) {
+            Downloader.FetchResult res = verify(request, digest);
+            if (res == null) {
+                resetChunks(request, Chunk.State.UNTRIED);
+                digest = createDigest(request);
+                if (request(request, cd, out, digest)) {
+                    res = verify(request, digest);
+                }
+            }
+            if (res != null) {
+                table.onSuccess(request);
+                results.add(res);
+            } else {
+                resetChunks(request, Chunk.State.FAILED);
+                table.onFailure(request);
+            }
+        } else {
+            table.onFailure(request);
+        }
+    }
+
+    private SegmentDigest createDigest(SegmentRequest request) throws IOException {
+        try {
+            return new SegmentDigest(request.getFileSegmentHash(), table.getDescription().getHash().getAlgorithm(),
+                    downloader.getDigestPipeline());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Could not create digest: " + e.getMessage());
+        }
+    }
+
+    private void resetChunks(SegmentRequest request, Chunk.State state) {
+        for (Chunk chunk : request.getDownloadChunks()) {
+            chunk.setState(state);
+        }
+    }
+
+    protected boolean request(final SegmentRequest request, ChannelData cd, OutChannel out, final SegmentDigest digest) throws IOException {
+        int failCount = 0;
+        List<Chunk> chunks = request.getDownloadChunks();
+        DownloadStats.EndpointDownloadStats eps = downloader.getStats().getEndpointStats(request.getEndpoint());
+        boolean allDone = true;
+        List<Chunk> pending = new ArrayList<Chunk>();
+        for (Chunk downloadChunk : chunks) {
+            if (downloadChunk.getState() == Chunk.State.UNVERIFIED) {
+                continue;
+            }
+            if (downloadChunk.getState() != Chunk.State.UNTRIED) {
+                allDone = false;
+                continue;
+            }
+            pending.add(downloadChunk);
+        }
+        PartReceiver receiver = new PartReceiver() {
+            public long receive(Chunk chunk, InputStream in) throws IOException {
+                digest.catchUp(downloader.getTargetChannel(), chunk.getStartOffset(), buffer);
+                return write(request, in, chunk.getStartOffset(), chunk.getEndOffset() - chunk.getStartOffset() + 1, digest);
+            }
+        };
+        int ranges = getRangesPerRequest(eps);
+        int i = 0;
+        while (i < pending.size()) {
+            if (request.isCancelled()) {
+                return false;
+            }
+            int n = Math.min(ranges, pending.size() - i);
+            if (n > 1) {
+                int failed = requestRanges(request, pending.subList(i, i + n), out, eps, receiver);
+                if (failed < 0) {
+                    ranges = 1;
+                    continue;
+                }
+                failCount += failed;
+                i += n;
+            } else {
+                if (!requestChunk(request, pending.get(i), cd, out, eps, digest)) {
+                    failCount++;
+                }
+                i++;
+            }
+            // get out of here - too many bad chunks
+            if (failCount > table.getDownloadConfig().getMaxChunkFailures()) {
+                break;
+            }
+        }
+        return failCount == 0 && allDone && !request.isCancelled();
+    }
+
+    private boolean requestChunk(SegmentRequest request, Chunk downloadChunk, ChannelData cd, OutChannel out,
+                                 DownloadStats.EndpointDownloadStats eps, SegmentDigest digest) throws IOException {
+        Endpoint target = request.getEndpoint();
+        cd.setByteRange(downloadChunk.getByteRange());
+        startChunk(request, downloadChunk, cd, eps);
+        eps.incTotalRequests();
+        try {
+            cd = out.send(cd);
+        } catch (Exception e1) {
+            EndpointHealth.getHealth().onConnectionFailure(target);
+        }
+        downloader.getStats().addChannelData(cd, eps);
+        if (cd.getOutcome() != ChannelData.Outcome.OK) {
+            if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
+                EndpointHealth.getHealth().onErrorResponse(target);
+            }
+            downloadChunk.setState(Chunk.State.FAILED);
+            if (cd.getResponseData() instanceof InputStream) {
+                ((InputStream) cd.getResponseData()).close();
+            }
+            eps.onChunkFailed();
+            return false;
+        } else if (cd.getResponseData() instanceof InputStream) {
+            InputStream in = (InputStream) cd.getResponseData();
+            ByteRange received = cd.getByteRange();
+            if (!received.equals(downloadChunk.getByteRange())) {
+                downloadChunk.setState(Chunk.State.FAILED);
+                eps.onChunkFailed();
+                in.close();
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            long expected = downloadChunk.getEndOffset() - downloadChunk.getStartOffset() + 1;
+            long len;
+            request.setStream(in);
+            try {
+                // chunks kept from an earlier attempt are read back into the digest
+                digest.catchUp(downloader.getTargetChannel(), downloadChunk.getStartOffset(), buffer);
+                len = write(request, in, downloadChunk.getStartOffset(), expected, digest);
+            } catch (IOException e) {
+                if (!request.isCancelled()) {
+                    throw e;
+                }
+                // the stream was closed because another request won
+                return false;
+            } finally {
+                request.setStream(null);
+                in.close();
+            }
+            long time = System.currentTimeMillis() - now;
+            if (request.isCancelled()) {
+                return false;
+            }
+            eps.incTotalData(len);
+            eps.incTotalTime(time);
+            if (len == expected) {
+                downloadChunk.setState(Chunk.State.UNVERIFIED);
+                eps.onChunk(len, time, cd.getOutTime() + cd.getInTime());
+                return true;
+            }
+            downloadChunk.setState(Chunk.State.FAILED);
+            eps.onChunkFailed();
+            return false;
+        }
+        downloadChunk.setState(Chunk.State.FAILED);
+        return false;
+    }
+
+    /**
+     * copies the stream into the target file starting at the given position,
+     * adding each buffer to the segment digest on the way.
+     * Writing stops if another request for the segment wins.
+     *
+     * @param request
+     * @param in
+     * @param position
+     * @param max      the number of bytes expected. Anything beyond this is not written.
+     * @param digest
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    protected long write(SegmentRequest request, InputStream in, long position, long max, SegmentDigest digest) throws IOException {
+        FileChannel channel = downloader.getTargetChannel();
+        SegmentClaim claim = request.getClaim();
+        ReadableByteChannel src = Channels.newChannel(in);
+        long total = 0;
+        while (total < max) {
+            buffer.clear();
+            if (max - total < buffer.capacity()) {
+                buffer.limit((int) (max - total));
+            }
+            int c = src.read(buffer);
+            if (c < 0) {
+                break;
+            }
+            buffer.flip();
+            synchronized (claim) {
+                if (claim.isLost(request)) {
+                    break;
+                }
+                digest.update(buffer, position + total);
+                while (buffer.hasRemaining()) {
+                    total += channel.write(buffer, position + total);
+                }
+            }
+        }
+        return total;
+    }
+
+    protected Downloader.FetchResult verify(SegmentRequest request, SegmentDigest digest) throws IOException {
+        FileSegmentHash chunk = request.getFileSegmentHash();
+        digest.catchUp(downloader.getTargetChannel(), chunk.getEndOffset() + 1, buffer);
+        downloader.getStats().onVerify(chunk.getHash());
+        if (digest.verify()) {
+            if (!request.getClaim().claim(request)) {
+                return null;
+            }
+            for (Chunk downloadChunk : request.getDownloadChunks()) {
+                downloadChunk.setState(Chunk.State.VERIFIED);
+            }
+            downloader.onSegmentVerified(chunk, request.getEndpoint(), digest);
+            Downloader.FetchResult res = new Downloader.FetchResult(downloader.getTargetFile(), table.getDescription(), request.getEndpoint(), chunk);
+            res.setByteRange(request.getByteRange());
+            return res;
+        } else {
+            EndpointHealth.getHealth().onHashFailure(request.getEndpoint());
+        }
+        return null;
+    }
+
+    /**
+     * copies a verified duplicate into the target file. Called while holding the claim,
+     * so the writer of the segment cannot overwrite it.
+     *
+     * @param request
+     * @param segmentFile
+     * @return the target file
+     * @throws IOException
+     */
+    protected File install(SegmentRequest request, File segmentFile) throws IOException {
+        FileChannel target = downloader.getTargetChannel();
+        FileInputStream in = new FileInputStream(segmentFile);
+        try {
+            FileChannel src = in.getChannel();
+            long start = request.getFileSegmentHash().getStartOffset();
+            long size = src.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += target.transferFrom(src, start + pos, size - pos);
+            }
+        } finally {
+            in.close();
+        }
+        segmentFile.delete();
+        return downloader.getTargetFile();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download.request;
+
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the FileHash each endpoint last returned for a piece of data, with the entity tag it came with.
+ * The next request for the same data sends the tag, so an endpoint whose copy has not changed
+ * answers without sending its segment hashes again.
+ * <p/>
+ * Entries are keyed by endpoint, description id and whole-file hash. The least recently used
+ * entry is dropped once the cache is full.
+ *
+ *
+ */
+
+public class FileHashCache {
+
+    static Logger log = Logger.getLogger("org.atticfs.download.request.FileHashCache");
+
+    public static final int MAX_ENTRIES = 256;
+
+    private int maxEntries = MAX_ENTRIES;
+
+    private Map<String, Tagged> entries = new LinkedHashMap<String, Tagged>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Tagged> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private static FileHashCache fileHashCache = new FileHashCache();
+
+    private FileHashCache() {
+    }
+
+    public static FileHashCache getCache() {
+        return fileHashCache;
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries zero or less turns the cache off.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        while (entries.size() > Math.max(0, maxEntries)) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * @param endpoint
+     * @param dd
+     * @return the entry for the data from the endpoint, or null if there is none.
+     */
+    public synchronized Tagged get(Endpoint endpoint, DataDescription dd) {
+        String key = key(endpoint, dd);
+        return key == null ? null : entries.get(key);
+    }
+
+    public synchronized void put(Endpoint endpoint, DataDescription dd, String tag, FileHash fileHash) {
+        String key = key(endpoint, dd);
+        if (key == null || tag == null || maxEntries <= 0) {
+            return;
+        }
+        entries.put(key, new Tagged(tag, fileHash));
+    }
+
+    public synchronized void remove(Endpoint endpoint, DataDescription dd) {
+        String key = key(endpoint, dd);
+        if (key != null) {
+            entries.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static String key(Endpoint endpoint, DataDescription dd) {
+        if (dd == null || dd.getId() == null || dd.getHash() == null || dd.getHash().getHash() == null) {
+            return null;
+        }
+        return endpoint.toString() + " " + dd.getId() + " " + dd.getHash().getHash();
+    }
+
+    /**
+     * a FileHash and the entity tag it came with.
+     */
+    public static class Tagged {
+
+        private String tag;
+        private FileHash fileHash;
+
+        private Tagged(String tag, FileHash fileHash) {
+            this.tag = tag;
+            this.fileHash = fileHash;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public FileHash getFileHash() {
+            return fileHash;
+        }
+    }
+}
@@ -18,10 +18,16 @@ package org.atticfs.download.request;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.atticfs.channel.ByteRange;
@@ -31,13 +37,13 @@ import org.atticfs.channel.OutChannel;
 import org.atticfs.download.Downloader;
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.stats.DownloadStats;
-import org.atticfs.stats.EndpointStats;
+import org.atticfs.stats.EndpointHealth;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.FileUtils;
+import org.atticfs.util.HashUtils;
 import org.atticfs.util.StringConstants;
-import org.wspeer.streamable.RebuiltStreamable;
-import org.wspeer.streamable.StreamableFile;
 
 /**
  * Class Description Here...
@@ -47,33 +53,76 @@ import org.wspeer.streamable.StreamableFile;
 
 public class MultipleFileRequestor extends AbstractRequestor {
 
+    private ByteBuffer copyBuffer;
+
     public MultipleFileRequestor(DownloadTable table, Downloader downloader) {
         super(table, downloader);
     }
 
-    public List<Downloader.FetchResult> call() throws Exception {
-        List<Downloader.FetchResult> results = new ArrayList<Downloader.FetchResult>();
-        long id = -1;
-        while (true) {
-            SegmentRequest request = table.next(id);
-            if (request == null || request.getPriority() == DownloadTable.Priority.POISON) {
-                break;
-            }
-            id = request.getEndpointRequestId();
-            FileSegmentHash chunk = request.getFileSegmentHash();
-            if (chunk == null) {
-                singleDownload(request, results);
-            } else {
-                chunkedDownload(request, results);
-            }
+    public void process(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException {
+        FileSegmentHash chunk = request.getFileSegmentHash();
+        if (chunk == null) {
+            singleDownload(request, results);
+        } else {
+            sizeChunks(request);
+            chunkedDownload(request, results);
         }
-        return results;
     }
 
     protected void chunkedDownload(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException {
+        SegmentClaim claim = request.getClaim();
+        boolean writer = claim.acquireWriter(request);
+        try {
+            fileDownload(request, results, writer);
+        } finally {
+            claim.releaseWriter(request);
+        }
+    }
 
-        Endpoint target = request.getEndpoint();
+    /**
+     * downloads the chunks of a segment to files and assembles them into a segment file.
+     * The writer of the segment uses the directory and segment file named after the segment offset,
+     * so that chunks left by an earlier attempt are reused. Other requests for the segment, e.g. hedged duplicates,
+     * use their own files, which are removed afterwards.
+     *
+     * @param request
+     * @param results
+     * @param writer  true if the request is the writer of the segment.
+     * @throws IOException
+     */
+    protected void fileDownload(SegmentRequest request, List<Downloader.FetchResult> results, boolean writer) throws IOException {
+        try {
+            download(request, results, writer);
+        } finally {
+            if (!writer) {
+                File dir = getChunkDir(request, false);
+                if (dir.exists()) {
+                    FileUtils.deleteFiles(dir, true);
+                }
+                getSegmentFile(request, false).delete();
+            }
+        }
+    }
+
+    protected File getChunkDir(SegmentRequest request, boolean writer) {
+        FileSegmentHash chunk = request.getFileSegmentHash();
+        if (writer) {
+            return new File(downloader.getDownloadDir(), chunk.getStartOffset() + "");
+        }
+        return new File(downloader.getDownloadDir(), chunk.getStartOffset() + "." + Long.toHexString(request.getId()));
+    }
+
+    protected File getSegmentFile(SegmentRequest request, boolean writer) {
         FileSegmentHash chunk = request.getFileSegmentHash();
+        if (writer) {
+            return new File(downloader.getDownloadDir(), chunk.getStartOffset() + StringConstants.EXT_DATA);
+        }
+        return new File(downloader.getDownloadDir(), chunk.getStartOffset() + "." + Long.toHexString(request.getId()) + StringConstants.EXT_DATA);
+    }
+
+    private void download(SegmentRequest request, List<Downloader.FetchResult> results, boolean writer) throws IOException {
+
+        Endpoint target = request.getEndpoint();
 
         OutChannel out = ChannelFactory.getFactory().createOutChannel();
         ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
@@ -83,7 +132,7 @@ public class MultipleFileRequestor extends AbstractRequestor {
         cd.setConnectionRetryCount(table.getDownloadConfig().getConnectionRetryCount());
         cd.setTimeout(table.getDownloadConfig().getSocketTimeout());
         // create a directory into which to put the chunks
-        File chunkDownloadDir = new File(downloader.getDownloadDir(), chunk.getStartOffset() + "");
+        File chunkDownloadDir = getChunkDir(request, writer);
         chunkDownloadDir.mkdirs();
 
         /*
@@ -99,16 +148,17 @@ public class MultipleFileRequestor extends AbstractRequestor {
         If this verification fails, a retry is attempted overwriting the chunks that were downloaded
         from a previous request. If this verification fails, everything is deleted because we've
         had one endpoint fail on up and another returning bad chunks. So we start afresh.
+        If another request for the segment wins first, this one is cancelled and fails quietly.
          */
         boolean downloaded = request(request, cd, out, chunkDownloadDir, false);
         if (downloaded) {
-            Downloader.FetchResult res = verify(request, chunkDownloadDir);
+            Downloader.FetchResult res = verify(request, chunkDownloadDir, writer);
             if (res != null) {
                 table.onSuccess(request);
                 results.add(res);
             } else {
                 if (request(request, cd, out, chunkDownloadDir, true)) {
-                    res = verify(request, chunkDownloadDir);
+                    res = verify(request, chunkDownloadDir, writer);
                     if (res != null) {
                         table.onSuccess(request);
                         results.add(res);
@@ -125,57 +175,163 @@ public class MultipleFileRequestor extends AbstractRequestor {
         }
     }
 
-    protected Downloader.FetchResult verify(SegmentRequest request, File chunkDownloadDir) throws IOException {
+    protected Downloader.FetchResult verify(SegmentRequest request, File chunkDownloadDir, boolean writer) throws IOException {
+        SegmentClaim claim = request.getClaim();
+        File segmentFile = getSegmentFile(request, writer);
+        if (writer) {
+            // a copy from another request can be installed over the segment file once it wins,
+            // so the writer holds the claim while it builds its copy
+            synchronized (claim) {
+                if (request.isCancelled() || !rebuild(request, chunkDownloadDir, segmentFile) || !claim.claim(request)) {
+                    return null;
+                }
+                return onVerified(request, segmentFile);
+            }
+        }
+        if (!rebuild(request, chunkDownloadDir, segmentFile)) {
+            return null;
+        }
+        synchronized (claim) {
+            if (!claim.claim(request)) {
+                return null;
+            }
+            return onVerified(request, install(request, segmentFile));
+        }
+    }
+
+    /**
+     * moves the verified copy of a request that is not the writer to where the writer's copy would be.
+     * Called while holding the claim.
+     *
+     * @param request
+     * @param segmentFile
+     * @return the file now holding the segment
+     * @throws IOException
+     */
+    protected File install(SegmentRequest request, File segmentFile) throws IOException {
+        File dest = getSegmentFile(request, true);
+        dest.delete();
+        if (!segmentFile.renameTo(dest)) {
+            throw new IOException("Could not move " + segmentFile + " to " + dest);
+        }
+        return dest;
+    }
+
+    private Downloader.FetchResult onVerified(SegmentRequest request, File segmentFile) {
         FileSegmentHash chunk = request.getFileSegmentHash();
-        List<Chunk> chunks = request.getDownloadChunks();
+        downloader.onSegmentVerified(chunk, request.getEndpoint());
+        Downloader.FetchResult res = new Downloader.FetchResult(segmentFile, table.getDescription(), request.getEndpoint(), chunk);
+        res.setByteRange(request.getByteRange());
+        return res;
+    }
 
-        File finalFile = new File(downloader.getDownloadDir(), chunk.getStartOffset() + StringConstants.EXT_DATA);
-        RebuiltStreamable s = new RebuiltStreamable(finalFile, "application/octet-stream");
-        for (Chunk downloadChunk : chunks) {
-            File chunkFile = new File(chunkDownloadDir, downloadChunk.getStartOffset() + ".chunk");
-            StreamableFile sf = new StreamableFile(chunkFile);
-            try {
-                s.addFragment(sf, downloadChunk.getStartOffset() - chunk.getStartOffset(), s.getLength());
-            } catch (IOException e) {
-                // fall through;
+    /**
+     * assembles the chunk files into the segment file and verifies it.
+     * Each buffer copied is added to the segment digest, so the segment file is not read again to verify it.
+     *
+     * @param request
+     * @param chunkDownloadDir
+     * @param finalFile
+     * @return true if the segment file is complete and matches the segment hash.
+     * @throws IOException
+     */
+    private boolean rebuild(SegmentRequest request, File chunkDownloadDir, File finalFile) throws IOException {
+        FileSegmentHash chunk = request.getFileSegmentHash();
+        List<Chunk> chunks = new ArrayList<Chunk>(request.getDownloadChunks());
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            public int compare(Chunk c, Chunk c1) {
+                return c.getStartOffset() < c1.getStartOffset() ? -1 : (c.getStartOffset() > c1.getStartOffset() ? 1 : 0);
             }
+        });
+        SegmentDigest digest;
+        try {
+            digest = new SegmentDigest(chunk, table.getDescription().getHash().getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Could not create digest: " + e.getMessage());
         }
-        log.fine("Downloader.postProcess status of data: " + s.getRebuildStatus());
-        if (s.getRebuildStatus() == RebuiltStreamable.RebuildStatus.COMPLETE) {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocateDirect(Math.max(table.getDownloadConfig().getBufferSize(), 1024));
+        }
+        FileOutputStream out = new FileOutputStream(finalFile);
+        boolean complete = true;
+        boolean b = false;
+        try {
+            FileChannel dest = out.getChannel();
             for (Chunk downloadChunk : chunks) {
-                downloadChunk.setState(Chunk.State.VERIFIED);
+                File chunkFile = new File(chunkDownloadDir, downloadChunk.getStartOffset() + ".chunk");
+                long len = downloadChunk.getEndOffset() - downloadChunk.getStartOffset() + 1;
+                if (downloadChunk.getStartOffset() != digest.getPosition() || chunkFile.length() != len
+                        || !copy(chunkFile, len, dest, digest)) {
+                    complete = false;
+                    break;
+                }
             }
-            FileChannel channel = new FileInputStream(finalFile).getChannel();
-            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, finalFile.length());
-            boolean b = downloader.verify(buffer, chunk.getHash());
-            if (b) {
-                Downloader.FetchResult res = new Downloader.FetchResult(finalFile, table.getDescription(), request.getEndpoint(), chunk);
-                res.setByteRange(request.getByteRange());
-                return res;
-            } else {
-                finalFile.delete();
-                EndpointStats.getStats().addBadHashEndpoint(request.getEndpoint());
+            log.fine("MultipleFileRequestor.rebuild segment " + chunk.getStartOffset() + " complete: " + complete);
+            if (complete && digest.isComplete()) {
+                for (Chunk downloadChunk : chunks) {
+                    downloadChunk.setState(Chunk.State.VERIFIED);
+                }
+                downloader.getStats().onVerify(chunk.getHash());
+                b = chunk.getHash() == null || digest.verify();
+                if (!b) {
+                    EndpointHealth.getHealth().onHashFailure(request.getEndpoint());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!b) {
+            finalFile.delete();
+        }
+        return b;
+    }
+
+    /**
+     * appends a chunk file to the segment file, adding each buffer to the digest on the way.
+     *
+     * @return false if the chunk file ends early.
+     */
+    private boolean copy(File chunkFile, long len, FileChannel dest, SegmentDigest digest) throws IOException {
+        FileInputStream in = new FileInputStream(chunkFile);
+        try {
+            FileChannel src = in.getChannel();
+            long pos = 0;
+            while (pos < len) {
+                copyBuffer.clear();
+                if (len - pos < copyBuffer.capacity()) {
+                    copyBuffer.limit((int) (len - pos));
+                }
+                int c = src.read(copyBuffer);
+                if (c < 0) {
+                    return false;
+                }
+                copyBuffer.flip();
+                digest.update(copyBuffer, digest.getPosition());
+                while (copyBuffer.hasRemaining()) {
+                    dest.write(copyBuffer);
+                }
+                pos += c;
             }
+        } finally {
+            in.close();
         }
-        return null;
+        return true;
     }
 
     protected boolean request(SegmentRequest request,
                               ChannelData cd,
                               OutChannel out,
-                              File chunkDownloadDir,
+                              final File chunkDownloadDir,
                               boolean retry) {
         int failCount = 0;
         List<Chunk> chunks = request.getDownloadChunks();
-        Endpoint target = request.getEndpoint();
         DownloadStats.EndpointDownloadStats eps = downloader.getStats().getEndpointStats(request.getEndpoint());
-        boolean doneAnything = false;
+        List<Chunk> pending = new ArrayList<Chunk>();
         for (Chunk downloadChunk : chunks) {
             // todo - what about reties on the same endpoint?
             if (downloadChunk.getState() != Chunk.State.UNTRIED) {
                 continue;
             }
-            cd.setByteRange(downloadChunk.getByteRange());
             File downloadFile = new File(chunkDownloadDir, downloadChunk.getStartOffset() + ".chunk");
             if (downloadFile.exists()) {
                 if (retry) {
@@ -188,41 +344,136 @@ public class MultipleFileRequestor extends AbstractRequestor {
                     }
                 }
             }
-            doneAnything = true;
-            cd.setOutputFile(downloadFile);
-            eps.incTotalRequests();
-            try {
-                cd = out.send(cd);
-            } catch (Exception e1) {
-                EndpointStats.getStats().addBadConnectionEndpoint(target);
+            pending.add(downloadChunk);
+        }
+        PartReceiver receiver = new PartReceiver() {
+            public long receive(Chunk chunk, InputStream in) throws IOException {
+                File downloadFile = new File(chunkDownloadDir, chunk.getStartOffset() + ".chunk");
+                long len = write(in, downloadFile);
+                if (len != chunk.getEndOffset() - chunk.getStartOffset() + 1) {
+                    downloadFile.delete();
+                }
+                return len;
+            }
+        };
+        int ranges = getRangesPerRequest(eps);
+        int i = 0;
+        while (i < pending.size()) {
+            if (request.isCancelled()) {
+                return false;
             }
-            downloader.getStats().addChannelData(cd, eps);
-
-            if (cd.getOutcome() != ChannelData.Outcome.OK) {
-                if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
-                    EndpointStats.getStats().addBadMessageEndpoint(target);
+            int n = Math.min(ranges, pending.size() - i);
+            if (n > 1) {
+                int failed = requestRanges(request, pending.subList(i, i + n), out, eps, receiver);
+                if (failed < 0) {
+                    ranges = 1;
+                    continue;
                 }
-                downloadChunk.setState(Chunk.State.FAILED);
-                downloadFile.delete();
-                failCount++;
+                failCount += failed;
+                i += n;
             } else {
-                ByteRange received = cd.getByteRange();
-                if (!received.equals(downloadChunk.getByteRange())) {
-                    downloadChunk.setState(Chunk.State.FAILED);
+                if (!requestChunk(request, pending.get(i), cd, out, chunkDownloadDir, eps)) {
                     failCount++;
-                    downloadFile.delete();
-                } else {
-                    downloadChunk.setState(Chunk.State.UNVERIFIED);
                 }
-
+                i++;
             }
             // get out of here - too many bad chunks
-            // todo - configuration option
-            if (failCount > 3) {
+            if (failCount > table.getDownloadConfig().getMaxChunkFailures()) {
                 break;
             }
         }
-        return failCount == 0 && doneAnything;
+        return failCount == 0 && pending.size() > 0 && !request.isCancelled();
+    }
+
+    private boolean requestChunk(SegmentRequest request, Chunk downloadChunk, ChannelData cd, OutChannel out,
+                                 File chunkDownloadDir, DownloadStats.EndpointDownloadStats eps) {
+        Endpoint target = request.getEndpoint();
+        cd.setByteRange(downloadChunk.getByteRange());
+        File downloadFile = new File(chunkDownloadDir, downloadChunk.getStartOffset() + ".chunk");
+        cd.setOutputFile(downloadFile);
+        startChunk(request, downloadChunk, cd, eps);
+        eps.incTotalRequests();
+        try {
+            cd = out.send(cd);
+        } catch (Exception e1) {
+            EndpointHealth.getHealth().onConnectionFailure(target);
+        }
+        downloader.getStats().addChannelData(cd, eps);
+
+        if (cd.getOutcome() != ChannelData.Outcome.OK) {
+            if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
+                EndpointHealth.getHealth().onErrorResponse(target);
+            }
+            downloadChunk.setState(Chunk.State.FAILED);
+            downloadFile.delete();
+            eps.onChunkFailed();
+            return false;
+        }
+        ByteRange received = cd.getByteRange();
+        if (!received.equals(downloadChunk.getByteRange())) {
+            downloadChunk.setState(Chunk.State.FAILED);
+            downloadFile.delete();
+            eps.onChunkFailed();
+            return false;
+        }
+        downloadChunk.setState(Chunk.State.UNVERIFIED);
+        // the body is read into the file before send returns, so latency cannot be separated out
+        eps.onChunk(cd.getBytesReceived(), cd.getOutTime() + cd.getInTime(), -1);
+        return true;
+    }
+
+    private long write(InputStream in, File file) throws IOException {
+        FileOutputStream fout = new FileOutputStream(file);
+        long total = 0;
+        try {
+            byte[] bytes = new byte[Math.max(table.getDownloadConfig().getBufferSize(), 1024)];
+            int c;
+            while ((c = in.read(bytes)) != -1) {
+                fout.write(bytes, 0, c);
+                total += c;
+            }
+        } finally {
+            fout.close();
+        }
+        return total;
+    }
+
+    /**
+     * writes the whole data to a file, hashing it on the way.
+     *
+     * @param in
+     * @param f
+     * @param dd
+     * @return true if the data matches the whole file hash, false if not, or null if it could not be hashed.
+     * @throws IOException
+     */
+    private Boolean receive(InputStream in, File f, DataDescription dd) throws IOException {
+        String hash = dd.getHash().getHash();
+        String algorithm = dd.getHash().getAlgorithm();
+        MessageDigest md;
+        try {
+            md = HashUtils.createDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            in.close();
+            return null;
+        }
+        FileOutputStream fout = new FileOutputStream(f);
+        try {
+            byte[] bytes = new byte[Math.max(table.getDownloadConfig().getBufferSize(), 1024)];
+            int c;
+            while ((c = in.read(bytes)) != -1) {
+                md.update(bytes, 0, c);
+                fout.write(bytes, 0, c);
+            }
+        } finally {
+            in.close();
+            fout.close();
+        }
+        if (hash == null) {
+            return true;
+        }
+        downloader.getStats().onVerify(hash);
+        return HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(hash);
     }
 
     protected void singleDownload(SegmentRequest request, List<Downloader.FetchResult> results) throws IOException {
@@ -235,17 +486,15 @@ public class MultipleFileRequestor extends AbstractRequestor {
         OutChannel out = ChannelFactory.getFactory().createOutChannel(null);
         ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
         cd.setBufferSize(0);
-        cd.setResponseType(File.class);
+        cd.setResponseType(InputStream.class);
         cd.setUseCompression(table.getDownloadConfig().isCompress());
         cd.setConnectionRetryCount(table.getDownloadConfig().getConnectionRetryCount());
         cd.setTimeout(table.getDownloadConfig().getSocketTimeout());
-        File f = downloader.getTargetFile();
-        cd.setOutputFile(f);
 
         try {
             cd = out.send(cd);
         } catch (Exception e1) {
-            EndpointStats.getStats().addBadConnectionEndpoint(target);
+            EndpointHealth.getHealth().onConnectionFailure(target);
         }
 
         downloader.getStats().addChannelData(cd, eps);
@@ -253,27 +502,25 @@ public class MultipleFileRequestor extends AbstractRequestor {
         DataDescription dd = table.getDescription();
         if (cd.getOutcome() == ChannelData.Outcome.OK) {
             Downloader.FetchResult res;
-            if (cd.getResponseData() instanceof File) {
-                File ret = (File) cd.getResponseData();
-                FileChannel channel = new FileInputStream(ret).getChannel();
-                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, ret.length());
-                Boolean b = downloader.verify(buffer, dd.getHash().getHash());
+            if (cd.getResponseData() instanceof InputStream) {
+                File ret = downloader.getTargetFile();
+                Boolean b = receive((InputStream) cd.getResponseData(), ret, dd);
                 if (b == null) {
                     table.onFailure(request);
                 } else if (b) {
-                    res = new Downloader.FetchResult(cd.getResponseData(), dd, target);
+                    res = new Downloader.FetchResult(ret, dd, target);
                     table.onSuccess(request);
                     results.add(res);
                 } else {
                     table.onFailure(request);
-                    EndpointStats.getStats().addBadHashEndpoint(target);
+                    EndpointHealth.getHealth().onHashFailure(target);
                 }
             } else {
                 table.onFailure(request);
             }
         } else {
             if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
-                EndpointStats.getStats().addBadMessageEndpoint(target);
+                EndpointHealth.getHealth().onErrorResponse(target);
             }
             table.onFailure(request);
         }
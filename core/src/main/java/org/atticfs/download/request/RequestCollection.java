@@ -18,9 +18,12 @@ package org.atticfs.download.request;
 
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.types.DataDescription;
+import org.atticfs.types.FileSegmentHash;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -28,6 +31,8 @@ import java.util.logging.Logger;
  * collection of HashMappings
  * reserve mappings are those for which no information was provided by the data host.
  * These have all the chunks defined in them, as defined in the DataDescription.
+ * Mappings may still be arriving after the collection has been handed to a download.
+ * A listener is told about each one as it is added, and when every endpoint has answered.
  *
  * 
  */
@@ -42,6 +47,9 @@ public class RequestCollection {
     private List<EndpointRequest> mappings = new Vector<EndpointRequest>();
     private List<EndpointRequest> reserves = new Vector<EndpointRequest>();
     private DownloadTable.EndpointRequestComparator c = new DownloadTable.EndpointRequestComparator();
+    // number of endpoints that have been asked for metadata and have not yet answered
+    private int pending = 0;
+    private Listener listener;
 
     public RequestCollection(DataDescription dataDescription) {
         this.dataDescription = dataDescription;
@@ -64,22 +72,125 @@ public class RequestCollection {
         return Arrays.asList(arr);
     }
 
-    public void addMapping(EndpointRequest hash) {
+    public synchronized void addMapping(EndpointRequest hash) {
         if (hash.getEndpoint() != null) {
             this.mappings.add(hash);
+            if (listener != null) {
+                listener.mappingAdded(this, hash, false);
+            }
+            notifyAll();
         }
     }
 
+    public boolean removeMapping(EndpointRequest hash) {
+        return this.mappings.remove(hash);
+    }
+
     public List<EndpointRequest> getReserveMappings() {
         EndpointRequest[] arr = reserves.toArray(new EndpointRequest[reserves.size()]);
         Arrays.sort(arr, c);
         return Arrays.asList(arr);
     }
 
-    public void addReserveMapping(EndpointRequest hash) {
+    public synchronized void addReserveMapping(EndpointRequest hash) {
         if (hash.getEndpoint() != null) {
             this.reserves.add(hash);
+            if (listener != null) {
+                listener.mappingAdded(this, hash, true);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * sets the listener told about mappings as they are added.
+     * It is told about the mappings already in the collection straight away.
+     *
+     * @param listener
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null) {
+            for (EndpointRequest request : getMappings()) {
+                listener.mappingAdded(this, request, false);
+            }
+            for (EndpointRequest request : getReserveMappings()) {
+                listener.mappingAdded(this, request, true);
+            }
+            if (isResolved()) {
+                listener.resolved(this);
+            }
+        }
+    }
+
+    /**
+     * records that endpoints have been asked for metadata.
+     *
+     * @param count
+     */
+    public synchronized void asking(int count) {
+        pending += count;
+    }
+
+    /**
+     * records that an endpoint has answered, or has failed to.
+     */
+    public synchronized void answered() {
+        pending--;
+        if (pending == 0 && listener != null) {
+            listener.resolved(this);
         }
+        notifyAll();
+    }
+
+    /**
+     * @return true if every endpoint asked for metadata has answered.
+     */
+    public synchronized boolean isResolved() {
+        return pending <= 0;
+    }
+
+    /**
+     * waits until every endpoint has answered or, if all is false, until the mappings
+     * so far hold every segment of the data. Once the deadline has passed, waiting stops as soon as
+     * there is a mapping, or every endpoint has answered. Later mappings are still added to the collection.
+     *
+     * @param all
+     * @param deadline time in milliseconds after which to stop waiting if there is a mapping.
+     */
+    public synchronized void await(boolean all, long deadline) {
+        while (!isResolved() && (all || !isCovered())) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                if (mappings.size() > 0) {
+                    return;
+                }
+                // nothing to start with yet. The next answer, or the last, ends the wait
+                wait = 0;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the mappings hold every segment in the data description.
+     */
+    private boolean isCovered() {
+        if (dataDescription == null || dataDescription.getHash() == null) {
+            return false;
+        }
+        int total = dataDescription.getHash().getNumChunks();
+        Set<Long> offsets = new HashSet<Long>();
+        for (EndpointRequest request : mappings) {
+            for (FileSegmentHash seg : request.getChunks()) {
+                offsets.add(seg.getStartOffset());
+            }
+        }
+        return total > 0 && offsets.size() >= total;
     }
 
     /**
@@ -103,5 +214,25 @@ public class RequestCollection {
 
     }
 
+    public static interface Listener {
+
+        /**
+         * a mapping has been added to the collection.
+         *
+         * @param collection
+         * @param request
+         * @param reserve true if the endpoint gave no information about its segments.
+         */
+        public void mappingAdded(RequestCollection collection, EndpointRequest request, boolean reserve);
+
+        /**
+         * every endpoint asked for metadata has answered, so no more mappings will be added.
+         * Called straight away by setListener if this is already so.
+         *
+         * @param collection
+         */
+        public void resolved(RequestCollection collection);
+    }
+
 
 }
\ No newline at end of file
@@ -17,21 +17,24 @@
 package org.atticfs.download.request;
 
 import org.atticfs.Attic;
+import org.atticfs.channel.AsyncOutChannel;
+import org.atticfs.channel.ChannelCallback;
 import org.atticfs.channel.ChannelData;
 import org.atticfs.channel.ChannelFactory;
 import org.atticfs.channel.OutChannel;
-import org.atticfs.stats.EndpointStats;
+import org.atticfs.stats.EndpointHealth;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.DataPointer;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileHash;
+import org.atticfs.types.SegmentAvailability;
 import org.atticfs.util.StringConstants;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 /**
@@ -45,10 +48,14 @@ public class RequestResolver {
     static Logger log = Logger.getLogger("org.atticfs.download.request.RequestResolver");
 
 
+    /**
+     * asks the endpoints in the pointer for their segments. Unless the download config asks for early start
+     * to be off, this returns as soon as the endpoints that have answered hold every segment, or the metadata
+     * timeout has passed and at least one endpoint has given its segments. The other endpoints keep being asked
+     * and are added to the collection as they answer, however late, so they can join the running download.
+     * The timeout is a single deadline for the whole collection, whether the requests are sent at once or in turn.
+     */
     public static RequestCollection createRequestCollection(DataPointer pointer, Attic attic) throws IOException {
-        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
-
-        CompletionService<Boolean> ecs = new ExecutorCompletionService<Boolean>(attic.getExecutor());
         final DataDescription dd = pointer.getDataDescription();
         if (dd == null) {
             throw new IOException("No data description in the data pointer.");
@@ -61,86 +68,224 @@ public class RequestResolver {
             throw new IOException("No hash in file hash. I need this.");
         }
         final RequestCollection coll = new RequestCollection(dd);
-        List<Endpoint> endpoints = pointer.getEndpoints();
-        final Queue<Endpoint> queue = new ConcurrentLinkedQueue<Endpoint>(endpoints);
-        int numThreads = attic.getDownloadConfig().getMaxFileConnections();
-        if (numThreads > endpoints.size()) {
-            numThreads = endpoints.size();
+        FileHashCache.getCache().setMaxEntries(attic.getDownloadConfig().getMetadataCacheSize());
+        List<Endpoint> endpoints = getAvailable(pointer.getEndpoints(), coll, fh);
+        final boolean compact = attic.getDownloadConfig().isCompactAvailability();
+        long deadline = System.currentTimeMillis() + attic.getDownloadConfig().getMetadataTimeout();
+        List<Endpoint> meta = new ArrayList<Endpoint>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.getMetaEndpoint() == null) {
+                coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint));
+            } else {
+                meta.add(endpoint);
+            }
         }
-        try {
+        coll.asking(meta.size());
+        OutChannel channel = ChannelFactory.getFactory().createOutChannel(null);
+        if (channel instanceof AsyncOutChannel) {
+            resolve((AsyncOutChannel) channel, meta, dd, coll, fh, compact);
+        } else {
+            final Queue<Endpoint> queue = new ConcurrentLinkedQueue<Endpoint>(meta);
+            int numThreads = attic.getDownloadConfig().getMaxFileConnections();
+            if (numThreads > meta.size()) {
+                numThreads = meta.size();
+            }
             for (int i = 0; i < numThreads; i++) {
-                futures.add(ecs.submit(new Callable<Boolean>() {
-                    public Boolean call() throws Exception {
-                        return get(queue, dd, coll, fh);
+                attic.execute(new Runnable() {
+                    public void run() {
+                        get(queue, dd, coll, fh, compact);
                     }
-                }));
+                });
+            }
+        }
+        coll.await(!attic.getDownloadConfig().isEarlyStart(), deadline);
+        log.fine("returning collection. all endpoints answered:" + coll.isResolved());
+        return coll;
+    }
+
+    /**
+     * data centers whose circuit breaker is open are not asked for metadata. They are kept as reserve mappings
+     * in case nothing else works. If every breaker is open, all the endpoints are tried anyway.
+     */
+    private static List<Endpoint> getAvailable(List<Endpoint> endpoints, RequestCollection coll, FileHash fh) {
+        List<Endpoint> available = new ArrayList<Endpoint>();
+        List<Endpoint> broken = new ArrayList<Endpoint>();
+        for (Endpoint endpoint : endpoints) {
+            if (EndpointHealth.getHealth().isAvailable(endpoint)) {
+                available.add(endpoint);
+            } else {
+                broken.add(endpoint);
             }
-            for (int count = 0; count < numThreads; count++) {
+        }
+        if (available.size() == 0) {
+            return endpoints;
+        }
+        for (Endpoint endpoint : broken) {
+            log.fine("not asking " + endpoint + " for metadata. Its breaker is open.");
+            coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint));
+        }
+        return available;
+    }
+
+    /**
+     * sends all the metadata requests at once, without a thread per request.
+     * Each response is added to the collection as it arrives.
+     */
+    private static void resolve(AsyncOutChannel out, List<Endpoint> endpoints, final DataDescription dd,
+                                final RequestCollection coll, final FileHash fh, boolean compact) {
+        for (Endpoint endpoint : endpoints) {
+            send(out, endpoint, dd, coll, fh, compact);
+        }
+    }
+
+    private static void send(final AsyncOutChannel out, final Endpoint endpoint, final DataDescription dd,
+                             final RequestCollection coll, final FileHash fh, final boolean compact) {
+        out.send(createRequest(endpoint, dd, compact), new ChannelCallback() {
+            public void completed(ChannelData context) {
+                if (compact && isRefused(context, endpoint)) {
+                    send(out, endpoint, dd, coll, fh, false);
+                    return;
+                }
                 try {
-                    Future<Boolean> f = ecs.take();
-                    Boolean b = f.get();
-                    log.fine("got next Future");
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    log.warning("Execution exception thrown:" + e.getMessage());
-                    e.printStackTrace();
+                    addMapping(context, endpoint, dd, coll, fh);
+                } finally {
+                    coll.answered();
                 }
             }
 
-        } finally {
-            for (Future<Boolean> future : futures) {
-                log.fine("cancelling future...");
-                future.cancel(true);
+            public void failed(ChannelData context, Exception e) {
+                log.fine("could not get file hash from " + endpoint + ": " + e);
+                EndpointHealth.getHealth().onConnectionFailure(endpoint);
+                coll.answered();
+            }
+        });
+    }
+
+    /**
+     * an endpoint that does not know the request for the segments it holds, as servers from before it was added do not,
+     * answers NOT_FOUND or with text that is not a segment availability. Such an endpoint is asked for its FileHash instead.
+     * An endpoint that does not hold the data at all also answers NOT_FOUND, and is then asked again to no further loss.
+     *
+     * @param data the answer to a request for the segments held
+     * @param endpoint
+     * @return true if the endpoint should be asked for its FileHash
+     */
+    private static boolean isRefused(ChannelData data, Endpoint endpoint) {
+        boolean refused = data.getOutcome() == ChannelData.Outcome.NOT_FOUND
+                || (data.getOutcome() == ChannelData.Outcome.OK
+                && (!(data.getResponseData() instanceof String)
+                || SegmentAvailability.parse((String) data.getResponseData()) == null));
+        if (refused) {
+            log.fine(endpoint + " did not give the segments it holds. Asking for its file hash.");
+        }
+        return refused;
+    }
+
+    /**
+     * creates the request for the segments an endpoint holds. If compact is true, only the indexes of
+     * the segments are asked for. Otherwise the endpoint's FileHash is asked for, and if the cache has one
+     * from an earlier request, its tag is sent so the endpoint can answer that it has not changed.
+     */
+    private static ChannelData createRequest(Endpoint endpoint, DataDescription dd, boolean compact) {
+        ChannelData data = new ChannelData(ChannelData.Action.GET);
+        data.setCloseOnFinish(true);
+        Endpoint target = new Endpoint(endpoint.getMetaEndpoint());
+        if (compact) {
+            data.setResponseType(String.class);
+            target = target.addQuery(StringConstants.HAVE_KEY, dd.getId());
+            data.setEndpoint(target.toString());
+            return data;
+        }
+        data.setResponseType(FileHash.class);
+        target = target.addQuery(StringConstants.FILE_HASH_KEY, dd.getId());
+        data.setEndpoint(target.toString());
+        FileHashCache.Tagged entry = FileHashCache.getCache().get(endpoint, dd);
+        if (entry != null) {
+            data.setIfNoneMatch(entry.getTag());
+        }
+        return data;
+    }
+
+    private static void addMapping(ChannelData data, Endpoint endpoint, DataDescription dd, RequestCollection coll, FileHash fh) {
+        if (data.getOutcome() == ChannelData.Outcome.OK || data.getOutcome() == ChannelData.Outcome.NOT_FOUND
+                || data.getOutcome() == ChannelData.Outcome.NOT_MODIFIED) {
+            long latency = data.getOutTime() >= 0 && data.getInTime() >= 0 ? data.getOutTime() + data.getInTime() : -1;
+            EndpointHealth.getHealth().onSuccess(endpoint, 0, 0, latency);
+        }
+        if (data.getOutcome() == ChannelData.Outcome.NOT_MODIFIED) {
+            FileHashCache.Tagged entry = FileHashCache.getCache().get(endpoint, dd);
+            if (entry == null) {
+                log.fine("file hash from " + endpoint + " not modified but no longer cached.");
+                return;
             }
+            log.fine("using cached file hash for " + endpoint);
+            data.setResponseData(entry.getFileHash());
+            data.setOutcome(ChannelData.Outcome.OK);
+        } else if (data.getOutcome() == ChannelData.Outcome.OK && data.getResponseData() instanceof FileHash) {
+            FileHashCache.getCache().put(endpoint, dd, data.getEntityTag(), (FileHash) data.getResponseData());
+        } else {
+            FileHashCache.getCache().remove(endpoint, dd);
+        }
+        if (data.getOutcome() == ChannelData.Outcome.OK) {
+            if (data.getResponseData() != null && data.getResponseData() instanceof FileHash) {
+                FileHash hash = (FileHash) data.getResponseData();
+                if (hash.getHash().equals(dd.getHash().getHash())) {
+                    if (hash.getNumChunks() > 0) {
+                        coll.addMapping(new EndpointRequest(hash.getChunks(), endpoint, data.getOutTime()));
+                    } else {
+                        coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint, data.getOutTime()));
+                    }
+                }
+            } else if (data.getResponseData() instanceof String) {
+                addAvailability((String) data.getResponseData(), endpoint, data.getOutTime(), coll, fh);
+            }
+        } else if (data.getOutcome() == ChannelData.Outcome.NOT_FOUND) {
+            coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint));
+        } else {
+            EndpointHealth.getHealth().onErrorResponse(endpoint);
         }
-        return coll;
     }
 
-    private static Boolean get(Queue<Endpoint> queue, DataDescription dd, RequestCollection coll, FileHash fh) {
+    /**
+     * builds the mapping for an endpoint from the segment indexes it holds.
+     * The segments are taken from the publisher's FileHash, so the endpoint's segment hashes are never sent.
+     */
+    private static void addAvailability(String have, Endpoint endpoint, long outTime, RequestCollection coll, FileHash fh) {
+        SegmentAvailability avail = SegmentAvailability.parse(have);
+        if (avail == null || !fh.getHash().equals(avail.getHash()) || avail.getNumSegments() != fh.getNumChunks()) {
+            log.info("ignoring segment availability from " + endpoint + " that does not match " + fh.getHash()
+                    + " with " + fh.getNumChunks() + " segments: " + have);
+            return;
+        }
+        if (avail.isEmpty()) {
+            coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint, outTime));
+        } else {
+            coll.addMapping(new EndpointRequest(avail.getSegments(fh), endpoint, outTime));
+        }
+    }
+
+    private static void get(Queue<Endpoint> queue, DataDescription dd, RequestCollection coll, FileHash fh, boolean compact) {
         log.fine("size of queue:" + queue.size());
-        while (!queue.isEmpty()) {
-            Endpoint endpoint = queue.remove();
+        Endpoint endpoint;
+        while ((endpoint = queue.poll()) != null) {
             try {
                 OutChannel out = ChannelFactory.getFactory().createOutChannel(null);
-                ChannelData data = new ChannelData(ChannelData.Action.GET);
-                data.setResponseType(FileHash.class);
-                data.setCloseOnFinish(true);
-                String meta = endpoint.getMetaEndpoint();
-                if (meta != null) {
-                    Endpoint target = new Endpoint(meta);
-                    target = target.addQuery(StringConstants.FILE_HASH_KEY, dd.getId());
-                    data.setEndpoint(target.toString());
-                    data = out.send(data);
-                    if (data.getOutcome() == ChannelData.Outcome.OK) {
-                        if (data.getResponseData() != null && data.getResponseData() instanceof FileHash) {
-                            FileHash hash = (FileHash) data.getResponseData();
-                            if (hash.getHash().equals(dd.getHash().getHash())) {
-                                if (hash.getNumChunks() > 0) {
-                                    coll.addMapping(new EndpointRequest(hash.getChunks(), endpoint, data.getOutTime()));
-                                } else {
-                                    coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint, data.getOutTime()));
-                                }
-                            }
-                        }
-                    } else if (data.getOutcome() == ChannelData.Outcome.NOT_FOUND) {
-                        coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint));
-                    } else {   // ikelley
-                   //     EndpointStats.getStats().addBadConnectionEndpoint(endpoint);
-                    }
-                } else {
-                    coll.addReserveMapping(new EndpointRequest(fh.getChunks(), endpoint));
+                ChannelData data = out.send(createRequest(endpoint, dd, compact));
+                if (compact && isRefused(data, endpoint)) {
+                    data = out.send(createRequest(endpoint, dd, false));
                 }
+                addMapping(data, endpoint, dd, coll, fh);
             } catch (IOException e) {
                 e.printStackTrace();
-                EndpointStats.getStats().addBadConnectionEndpoint(endpoint);
+                EndpointHealth.getHealth().onConnectionFailure(endpoint);
             } catch (Exception e) {
                 e.printStackTrace();
-                EndpointStats.getStats().addBadConnectionEndpoint(endpoint);
+                EndpointHealth.getHealth().onConnectionFailure(endpoint);
+            } finally {
+                coll.answered();
             }
 
         }
-        return true;
 
     }
-}
+}
\ No newline at end of file
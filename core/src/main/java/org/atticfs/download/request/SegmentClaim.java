@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download.request;
+
+import org.atticfs.types.Endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared by all the SegmentRequests for the same segment of a download.
+ * <p/>
+ * Only one request at a time is the writer, which may write the segment to its final location
+ * as it arrives. Any other request, e.g. a hedged duplicate, downloads to its own files.
+ * The first request to verify its copy wins the claim and the others are cancelled.
+ * A request that is not the writer may only install its copy in the final location after
+ * winning. Writes to the final location are made while holding the lock on this object,
+ * so a writer that has lost cannot overwrite the winner's copy.
+ *
+ *
+ */
+
+public class SegmentClaim {
+
+    private List<SegmentRequest> requests = new ArrayList<SegmentRequest>();
+    private SegmentRequest writer;
+    private SegmentRequest winner;
+
+    public synchronized void add(SegmentRequest request) {
+        if (!requests.contains(request)) {
+            requests.add(request);
+        }
+    }
+
+    /**
+     * called when a request is finished with, successful or not.
+     *
+     * @param request
+     */
+    public synchronized void remove(SegmentRequest request) {
+        requests.remove(request);
+        if (writer == request) {
+            writer = null;
+        }
+    }
+
+    /**
+     * @return true if no request for the segment is left.
+     */
+    public synchronized boolean isEmpty() {
+        return requests.size() == 0;
+    }
+
+    /**
+     * try to become the writer of the segment.
+     *
+     * @param request
+     * @return true if the request is now the writer
+     */
+    public synchronized boolean acquireWriter(SegmentRequest request) {
+        if (winner != null && winner != request) {
+            return false;
+        }
+        if (writer == null) {
+            writer = request;
+        }
+        return writer == request;
+    }
+
+    public synchronized void releaseWriter(SegmentRequest request) {
+        if (writer == request) {
+            writer = null;
+        }
+    }
+
+    public synchronized boolean isWriter(SegmentRequest request) {
+        return writer == request;
+    }
+
+    /**
+     * claim the segment for a request that has verified its copy.
+     * If the claim succeeds, all other requests for the segment are cancelled.
+     *
+     * @param request
+     * @return true if the request is the winner
+     */
+    public synchronized boolean claim(SegmentRequest request) {
+        if (winner == null) {
+            winner = request;
+            for (SegmentRequest other : requests) {
+                if (other != request) {
+                    other.cancel();
+                }
+            }
+        }
+        return winner == request;
+    }
+
+    public synchronized boolean isWon() {
+        return winner != null;
+    }
+
+    /**
+     * @param request
+     * @return true if another request has won the claim
+     */
+    public synchronized boolean isLost(SegmentRequest request) {
+        return winner != null && winner != request;
+    }
+
+    /**
+     * @return the number of hedged requests that are still active
+     */
+    public synchronized int getHedges() {
+        int count = 0;
+        for (SegmentRequest request : requests) {
+            if (request.isHedge() && !request.isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if a request for the segment is queued or in flight and not cancelled.
+     */
+    public synchronized boolean isActive() {
+        return getSibling(null) != null;
+    }
+
+    /**
+     * @param request
+     * @return another request for the segment that is queued or in flight and not cancelled, or null
+     */
+    public synchronized SegmentRequest getSibling(SegmentRequest request) {
+        for (SegmentRequest other : requests) {
+            if (other != request && !other.isCancelled()) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the endpoints of the active requests for the segment
+     */
+    public synchronized List<Endpoint> getEndpoints() {
+        List<Endpoint> eps = new ArrayList<Endpoint>();
+        for (SegmentRequest request : requests) {
+            if (!request.isCancelled()) {
+                eps.add(request.getEndpoint());
+            }
+        }
+        return eps;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.download.request;
+
+import org.atticfs.download.FileDigestPipeline;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes a FileSegmentHash as its bytes arrive.
+ * Bytes must be passed in offset order. If a range has been written to the target file
+ * without passing through the digest, e.g. a chunk kept from an earlier attempt,
+ * it is read back from the file when the digest reaches it.
+ * <p/>
+ * If the download builds a whole file digest, every byte is offered to it as well,
+ * so a segment that arrives in order is not read back for the file digest either.
+ *
+ *
+ */
+
+public class SegmentDigest {
+
+    private FileSegmentHash segment;
+    private String algorithm;
+    private MessageDigest md;
+    private long position;
+    private FileDigestPipeline pipeline;
+
+    public SegmentDigest(FileSegmentHash segment, String algorithm) throws NoSuchAlgorithmException {
+        this(segment, algorithm, null);
+    }
+
+    /**
+     * @param segment
+     * @param algorithm
+     * @param pipeline  the whole file digest to offer the bytes to, or null.
+     * @throws NoSuchAlgorithmException
+     */
+    public SegmentDigest(FileSegmentHash segment, String algorithm, FileDigestPipeline pipeline) throws NoSuchAlgorithmException {
+        this.segment = segment;
+        this.algorithm = algorithm;
+        this.md = HashUtils.createDigest(algorithm);
+        this.position = segment.getStartOffset();
+        this.pipeline = pipeline;
+    }
+
+    public FileSegmentHash getSegment() {
+        return segment;
+    }
+
+    /**
+     * the next offset the digest expects.
+     *
+     * @return
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * add the remaining bytes of the buffer, which start at the given offset.
+     * The buffer's position is not changed.
+     *
+     * @param buffer
+     * @param offset
+     */
+    public void update(ByteBuffer buffer, long offset) {
+        if (offset != position) {
+            throw new IllegalStateException("expected offset " + position + " but got " + offset);
+        }
+        int len = buffer.remaining();
+        if (pipeline != null) {
+            pipeline.offer(this, buffer, offset);
+        }
+        md.update(buffer.duplicate());
+        position += len;
+    }
+
+    /**
+     * reads from the channel up to, but not including, the given offset.
+     *
+     * @param channel
+     * @param offset
+     * @param scratch buffer to read into.
+     * @throws IOException
+     */
+    public void catchUp(FileChannel channel, long offset, ByteBuffer scratch) throws IOException {
+        while (position < offset) {
+            scratch.clear();
+            if (offset - position < scratch.capacity()) {
+                scratch.limit((int) (offset - position));
+            }
+            int c = channel.read(scratch, position);
+            if (c < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            scratch.flip();
+            update(scratch, position);
+        }
+    }
+
+    public boolean isComplete() {
+        return position == segment.getEndOffset() + 1;
+    }
+
+    /**
+     * completes the digest and compares it with the segment hash.
+     * The digest is reset after this call.
+     *
+     * @return
+     */
+    public boolean verify() {
+        if (!isComplete()) {
+            return false;
+        }
+        String hash = HashUtils.toHex(md.digest(), algorithm);
+        position = segment.getStartOffset();
+        return hash.equalsIgnoreCase(segment.getHash());
+    }
+}
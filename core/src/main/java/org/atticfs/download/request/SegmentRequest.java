@@ -21,6 +21,8 @@ import org.atticfs.download.table.DownloadTable;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -47,6 +49,11 @@ public class SegmentRequest {
     private long endpointRequestId;
     private List<Chunk> downloadChunks = new ArrayList<Chunk>();
     private int retries = 0;
+    private SegmentClaim claim;
+    private boolean hedge = false;
+    private volatile boolean cancelled = false;
+    private volatile Closeable stream;
+    private volatile long deadline = 0;
 
     public SegmentRequest(Endpoint endpoint, FileSegmentHash fileSegmentHash, boolean close, DownloadTable.Priority priority, long endpointRequestId, int downloadChunkSize) {
         this.endpoint = endpoint;
@@ -58,7 +65,31 @@ public class SegmentRequest {
         if (fileSegmentHash != null) {
             createDownloadChunks(downloadChunkSize);
         }
+        setClaim(new SegmentClaim());
+    }
 
+    /**
+     * splits the segment again using a new chunk size.
+     * This only happens if no chunk has been tried yet.
+     *
+     * @param downloadChunkSize
+     * @return true if the chunks were recreated
+     */
+    public boolean resizeDownloadChunks(int downloadChunkSize) {
+        if (fileSegmentHash == null || downloadChunkSize <= 0) {
+            return false;
+        }
+        for (Chunk chunk : downloadChunks) {
+            if (chunk.getState() != Chunk.State.UNTRIED) {
+                return false;
+            }
+        }
+        if (downloadChunks.size() > 0 && downloadChunks.get(0).getEndOffset() - downloadChunks.get(0).getStartOffset() == downloadChunkSize) {
+            return false;
+        }
+        downloadChunks.clear();
+        createDownloadChunks(downloadChunkSize);
+        return true;
     }
 
     private void createDownloadChunks(int downloadChunkSize) {
@@ -135,12 +166,95 @@ public class SegmentRequest {
         this.retries++;
     }
 
+    public SegmentClaim getClaim() {
+        return claim;
+    }
+
+    /**
+     * shares a claim with the other requests for the same segment.
+     *
+     * @param claim
+     */
+    public void setClaim(SegmentClaim claim) {
+        if (this.claim != null) {
+            this.claim.remove(this);
+        }
+        this.claim = claim;
+        claim.add(this);
+    }
+
+    /**
+     * @return true if this is a duplicate of a request that is already in flight.
+     */
+    public boolean isHedge() {
+        return hedge;
+    }
+
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * @return true if the request has been cancelled, or another request for the segment has won.
+     */
+    public boolean isCancelled() {
+        return cancelled || claim.isLost(this);
+    }
+
+    /**
+     * cancels the request. If a response is being read, its stream is closed.
+     */
+    public void cancel() {
+        cancelled = true;
+        closeStream();
+    }
+
+    /**
+     * sets the stream the response is currently being read from, so it can be closed if the request is cancelled.
+     *
+     * @param stream can be null
+     */
+    public void setStream(Closeable stream) {
+        this.stream = stream;
+        if (cancelled) {
+            closeStream();
+        }
+    }
+
+    private void closeStream() {
+        Closeable s = stream;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                log.fine("error closing stream of cancelled request:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the time in milliseconds after which the chunk currently in flight is late, or 0 if there is none.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean isLate(long now) {
+        long d = deadline;
+        return d > 0 && now > d;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("SegmentRequest: endpoint:").append(getEndpoint())
                 .append(", priority:").append(getPriority())
                 .append(", id:").append(getId())
                 .append(", Endpoint Id:").append(getEndpointRequestId())
+                .append(", hedge:").append(isHedge())
                 .append("\n    FileSegmentHash:").append(fileSegmentHash);
 
         for (Chunk downloadChunk : downloadChunks) {
@@ -20,6 +20,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.atticfs.channel.ByteRange;
@@ -29,9 +33,10 @@ import org.atticfs.channel.OutChannel;
 import org.atticfs.download.Downloader;
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.stats.DownloadStats;
-import org.atticfs.stats.EndpointStats;
+import org.atticfs.stats.EndpointHealth;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
 import org.wspeer.streamable.RebuiltStreamable;
 import org.wspeer.streamable.StreamableStream;
 
@@ -44,6 +49,9 @@ import org.wspeer.streamable.StreamableStream;
 public class SingleFileRequestor extends MultipleFileRequestor {
 
     private RebuiltStreamable rebuild;
+    // the digest of the chunks fetched in offset order from the start of the segment, or null
+    private MessageDigest md;
+    private long digested;
 
     public SingleFileRequestor(DownloadTable table, Downloader downloader) {
         super(table, downloader);
@@ -89,15 +97,14 @@ public class SingleFileRequestor extends MultipleFileRequestor {
     protected boolean request(SegmentRequest request, ChannelData cd, OutChannel out, boolean retry) throws IOException {
         int failCount = 0;
         List<Chunk> chunks = request.getDownloadChunks();
-        Endpoint target = request.getEndpoint();
         DownloadStats.EndpointDownloadStats eps = downloader.getStats().getEndpointStats(request.getEndpoint());
-        boolean doneAnything = false;
+        startDigest(request);
+        List<Chunk> pending = new ArrayList<Chunk>();
         for (Chunk downloadChunk : chunks) {
             // todo - what about reties on the same endpoint?
             if (downloadChunk.getState() != Chunk.State.UNTRIED) {
                 continue;
             }
-            cd.setByteRange(downloadChunk.getByteRange());
             boolean hasChunk = rebuild.hasFragment(downloadChunk.getStartOffset(), downloadChunk.getEndOffset());
             if (hasChunk) {
                 if (retry) {
@@ -106,58 +113,130 @@ public class SingleFileRequestor extends MultipleFileRequestor {
                     continue;
                 }
             }
-            doneAnything = true;
-            eps.incTotalRequests();
-            try {
-                cd = out.send(cd);
-            } catch (Exception e1) {
-                EndpointStats.getStats().addBadConnectionEndpoint(target);
+            pending.add(downloadChunk);
+        }
+        PartReceiver receiver = new PartReceiver() {
+            public long receive(Chunk chunk, InputStream in) throws IOException {
+                return rebuild.addFragment(new StreamableStream(digesting(chunk, in)), chunk.getStartOffset(), rebuild.getLength());
+            }
+        };
+        int ranges = getRangesPerRequest(eps);
+        int i = 0;
+        while (i < pending.size()) {
+            if (request.isCancelled()) {
+                return false;
             }
-            downloader.getStats().addChannelData(cd, eps);
-            if (cd.getOutcome() != ChannelData.Outcome.OK) {
-                if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
-                    EndpointStats.getStats().addBadMessageEndpoint(target);
-                }
-                downloadChunk.setState(Chunk.State.FAILED);
-                if (cd.getResponseData() instanceof InputStream) {
-                    ((InputStream) cd.getResponseData()).close();
+            int n = Math.min(ranges, pending.size() - i);
+            if (n > 1) {
+                int failed = requestRanges(request, pending.subList(i, i + n), out, eps, receiver);
+                if (failed < 0) {
+                    ranges = 1;
+                    continue;
                 }
-                failCount++;
+                failCount += failed;
+                i += n;
             } else {
-                if (cd.getResponseData() instanceof InputStream) {
-                    ByteRange received = cd.getByteRange();
-                    if (!received.equals(downloadChunk.getByteRange())) {
-                        downloadChunk.setState(Chunk.State.FAILED);
-                        failCount++;
-                        ((InputStream) cd.getResponseData()).close();
-                    } else {
-                        StreamableStream ss = new StreamableStream((InputStream) cd.getResponseData());
-                        long now = System.currentTimeMillis();
-                        long len = rebuild.addFragment(ss, downloadChunk.getStartOffset(), rebuild.getLength());
-                        eps.incTotalData(len);
-                        eps.incTotalTime(System.currentTimeMillis() - now);
-                        ss.getInputStream().close();
-                        downloadChunk.setState(Chunk.State.UNVERIFIED);
-                    }
-                } else {
+                if (!requestChunk(request, pending.get(i), cd, out, eps)) {
                     failCount++;
                 }
+                i++;
             }
             // get out of here - too many bad chunks
-            // todo - configuration option
-            if (failCount > 3) {
+            if (failCount > table.getDownloadConfig().getMaxChunkFailures()) {
                 break;
             }
         }
-        return failCount == 0 && doneAnything;
+        return failCount == 0 && pending.size() > 0 && !request.isCancelled();
+    }
+
+    private boolean requestChunk(SegmentRequest request, Chunk downloadChunk, ChannelData cd, OutChannel out,
+                                 DownloadStats.EndpointDownloadStats eps) throws IOException {
+        Endpoint target = request.getEndpoint();
+        cd.setByteRange(downloadChunk.getByteRange());
+        startChunk(request, downloadChunk, cd, eps);
+        eps.incTotalRequests();
+        try {
+            cd = out.send(cd);
+        } catch (Exception e1) {
+            EndpointHealth.getHealth().onConnectionFailure(target);
+        }
+        downloader.getStats().addChannelData(cd, eps);
+        if (cd.getOutcome() != ChannelData.Outcome.OK) {
+            if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
+                EndpointHealth.getHealth().onErrorResponse(target);
+            }
+            downloadChunk.setState(Chunk.State.FAILED);
+            if (cd.getResponseData() instanceof InputStream) {
+                ((InputStream) cd.getResponseData()).close();
+            }
+            eps.onChunkFailed();
+            return false;
+        }
+        if (!(cd.getResponseData() instanceof InputStream)) {
+            return false;
+        }
+        ByteRange received = cd.getByteRange();
+        if (!received.equals(downloadChunk.getByteRange())) {
+            downloadChunk.setState(Chunk.State.FAILED);
+            eps.onChunkFailed();
+            ((InputStream) cd.getResponseData()).close();
+            return false;
+        }
+        StreamableStream ss = new StreamableStream(digesting(downloadChunk, (InputStream) cd.getResponseData()));
+        long now = System.currentTimeMillis();
+        long len = rebuild.addFragment(ss, downloadChunk.getStartOffset(), rebuild.getLength());
+        long time = System.currentTimeMillis() - now;
+        eps.incTotalData(len);
+        eps.incTotalTime(time);
+        eps.onChunk(len, time, cd.getOutTime() + cd.getInTime());
+        ss.getInputStream().close();
+        downloadChunk.setState(Chunk.State.UNVERIFIED);
+        return true;
+    }
+
+    private void startDigest(SegmentRequest request) {
+        try {
+            md = HashUtils.createDigest(table.getDescription().getHash().getAlgorithm());
+            digested = request.getFileSegmentHash().getStartOffset();
+        } catch (NoSuchAlgorithmException e) {
+            md = null;
+        }
+    }
+
+    /**
+     * adds the chunk's bytes to the segment digest as they are read, if the chunk carries on from the last one.
+     * Otherwise the digest is dropped and the segment is read back to verify it.
+     *
+     * @param chunk
+     * @param in
+     * @return the stream to read the chunk from
+     */
+    private InputStream digesting(Chunk chunk, InputStream in) {
+        if (md == null || chunk.getStartOffset() != digested) {
+            md = null;
+            return in;
+        }
+        digested = chunk.getEndOffset() + 1;
+        return new DigestInputStream(in, md);
     }
 
     protected Downloader.FetchResult verify(SegmentRequest request) throws IOException {
         FileSegmentHash chunk = request.getFileSegmentHash();
-        FileChannel channel = rebuild.getChannel();
-        MappedByteBuffer buffer =
-                channel.map(FileChannel.MapMode.READ_ONLY, chunk.getStartOffset(), chunk.getEndOffset() - chunk.getStartOffset() + 1);
-        boolean b = downloader.verify(buffer, chunk.getHash());
+        boolean b = false;
+        if (md != null && digested == chunk.getEndOffset() + 1 && chunk.getHash() != null) {
+            downloader.getStats().onVerify(chunk.getHash());
+            String algorithm = table.getDescription().getHash().getAlgorithm();
+            b = HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(chunk.getHash());
+        }
+        md = null;
+        if (!b) {
+            // a chunk was kept from an earlier attempt, or arrived short, so read the segment back
+            FileChannel channel = rebuild.getChannel();
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, chunk.getStartOffset(), chunk.getEndOffset() - chunk.getStartOffset() + 1);
+            Boolean v = downloader.verify(buffer, chunk.getHash());
+            b = v != null && v;
+        }
 
         if (b) {
             Downloader.FetchResult res = new Downloader.FetchResult(rebuild, table.getDescription(), request.getEndpoint(), chunk);
@@ -165,7 +244,7 @@ public class SingleFileRequestor extends MultipleFileRequestor {
             return res;
         } else {
             rebuild.invalidateFragment(chunk.getStartOffset());
-            EndpointStats.getStats().addBadHashEndpoint(request.getEndpoint());
+            EndpointHealth.getHealth().onHashFailure(request.getEndpoint());
         }
 
         return null;
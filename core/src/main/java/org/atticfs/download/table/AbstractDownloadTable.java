@@ -18,13 +18,23 @@ package org.atticfs.download.table;
 
 import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.SegmentClaim;
 import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -44,18 +54,30 @@ public abstract class AbstractDownloadTable implements DownloadTable {
     protected SegmentedData result;
 
     protected volatile boolean complete = false;
+    // more endpoint requests may be added
+    private volatile boolean expecting = false;
 
     protected PriorityQueue<EndpointRequest> secondary = new PriorityQueue<EndpointRequest>(50, new DownloadTable.EndpointRequestComparator());
     protected PriorityQueue<EndpointRequest> tertiary = new PriorityQueue<EndpointRequest>(50, new DownloadTable.EndpointRequestComparator());
 
+    // segment requests that have been handed out and not yet succeeded or failed, by request id
+    protected Map<Long, SegmentRequest> inFlight = new ConcurrentHashMap<Long, SegmentRequest>();
+    // claims shared by all requests for a segment, by segment start offset.
+    // A claim is dropped once no request for its segment is left.
+    private Map<Long, SegmentClaim> claims = new ConcurrentHashMap<Long, SegmentClaim>();
+
+    // primary requests whose segments have not all been made into segment requests yet, by endpoint request id
+    private Map<Long, Source> sources = new HashMap<Long, Source>();
+
     protected DataDescription description;
     protected DownloadConfig config;
+    private volatile Listener listener;
 
     public AbstractDownloadTable(DataDescription description, SegmentedData template, DownloadConfig config) {
         this.description = description;
         this.template = template;
         log.fine("received table has a status of " + template.getStatus());
-        this.result = new SegmentedData(template.getLength());
+        this.result = new SegmentedData(template.getLength(), template.getSegmentSize());
         this.config = config;
     }
 
@@ -81,17 +103,373 @@ public abstract class AbstractDownloadTable implements DownloadTable {
             default:
                 break;
         }
+        ready();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setExpectingRequests(boolean expecting) {
+        this.expecting = expecting;
+        if (!expecting) {
+            // the table may now have ended
+            ready();
+        }
+    }
+
+    protected boolean isExpectingRequests() {
+        return expecting;
+    }
+
+    /**
+     * tells the listener that requests may be waiting.
+     */
+    protected void ready() {
+        Listener l = listener;
+        if (l != null) {
+            l.requestsReady(this);
+        }
+    }
+
+    /**
+     * takes the next request that is not poison from a queue.
+     *
+     * @param queue
+     * @return the request or null if there is none. Tables answer poll() with the poison request
+     *         once they are exhausted rather than passing on the poison put in their queues.
+     */
+    protected SegmentRequest poll(Queue<SegmentRequest> queue) {
+        SegmentRequest req = queue.poll();
+        while (req != null && req.getPriority() == Priority.POISON) {
+            req = queue.poll();
+        }
+        if (req != null) {
+            started(req);
+        }
+        return req;
     }
 
 
     protected abstract void addPrimaryRequest(EndpointRequest request);
 
+    /**
+     * adds the segments of a primary request without creating their segment requests.
+     * These are created by fill() as earlier ones are handed out, so only a window
+     * of requests exists at a time whatever the number of segments.
+     *
+     * @param request
+     */
+    protected synchronized void addSource(EndpointRequest request) {
+        if (sources.get(request.getId()) == null) {
+            sources.put(request.getId(), new Source(request));
+        }
+        fill();
+    }
+
+    /**
+     * @return true if nothing is queued, waiting to be made into a request or in flight.
+     */
+    protected boolean isDry() {
+        return queued() == 0 && !hasPending() && inFlight.isEmpty();
+    }
+
+    /**
+     * @return true if the table is dry and no more endpoint requests are expected, so no request can become ready again.
+     */
+    protected boolean isExhausted() {
+        return !expecting && isDry();
+    }
+
+    /**
+     * @return the segments that have not been downloaded and have no request, e.g. because their requests
+     *         failed before the endpoints of the secondary and tertiary requests were known.
+     *         Empty if there are no secondary or tertiary requests to take them from.
+     */
+    protected List<FileSegmentHash> getOrphans() {
+        List<FileSegmentHash> orphans = new ArrayList<FileSegmentHash>();
+        if ((secondary.size() == 0 && tertiary.size() == 0) || description.getHash() == null) {
+            return orphans;
+        }
+        for (FileSegmentHash seg : description.getHash().getChunks()) {
+            if (!result.containsChunk(seg) && !isClaimed(seg)) {
+                orphans.add(seg);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * @return true if some segments of primary requests have not been made into segment requests yet.
+     */
+    protected synchronized boolean hasPending() {
+        return sources.size() > 0;
+    }
+
+    /**
+     * creates segment requests from the sources, lowest offset first, until the number waiting
+     * reaches the request window. A source with none waiting is always given one,
+     * so a queue kept for an endpoint does not run dry while its endpoint still has segments.
+     */
+    protected synchronized void fill() {
+        if (sources.size() == 0) {
+            return;
+        }
+        int window = Math.max(1, config.getRequestWindow());
+        int waiting = queued();
+        while (true) {
+            Source next = null;
+            Iterator<Source> it = sources.values().iterator();
+            while (it.hasNext()) {
+                Source source = it.next();
+                FileSegmentHash seg = source.peek();
+                while (seg != null && result.containsChunk(seg)) {
+                    source.request.completed(source.next());
+                    seg = source.peek();
+                }
+                if (seg == null) {
+                    it.remove();
+                    continue;
+                }
+                if (waiting >= window && source.waiting > 0) {
+                    continue;
+                }
+                if (next == null || seg.getStartOffset() < next.peek().getStartOffset()) {
+                    next = source;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            SegmentRequest sr = createRequest(next.request, next.next());
+            next.waiting++;
+            enqueue(sr);
+            waiting++;
+        }
+    }
+
     protected abstract void addSecondaryRequest(EndpointRequest request);
 
     protected abstract void addTertiaryRequest(EndpointRequest request);
 
+    /**
+     * puts a segment request on the queue for the requestors.
+     *
+     * @param request
+     */
+    protected abstract void enqueue(SegmentRequest request);
+
+    /**
+     * @return the number of segment requests waiting to be handed out.
+     */
+    protected abstract int queued();
+
+    /**
+     * creates a segment request from an endpoint request.
+     * Requests for the same segment share a SegmentClaim.
+     *
+     * @param request
+     * @param segment can be null, meaning the whole file.
+     * @return
+     */
+    protected SegmentRequest createRequest(EndpointRequest request, FileSegmentHash segment) {
+        SegmentRequest sr = new SegmentRequest(request.getEndpoint(), segment, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+        if (segment != null) {
+            synchronized (claims) {
+                SegmentClaim claim = claims.get(segment.getStartOffset());
+                if (claim == null) {
+                    claim = sr.getClaim();
+                    claims.put(segment.getStartOffset(), claim);
+                } else {
+                    sr.setClaim(claim);
+                }
+            }
+        }
+        return sr;
+    }
+
+    /**
+     * @param segment
+     * @return true if a request for the segment exists that has not been cancelled.
+     */
+    protected boolean isClaimed(FileSegmentHash segment) {
+        SegmentClaim claim = claims.get(segment.getStartOffset());
+        return claim != null && claim.isActive();
+    }
+
+    /**
+     * called when a segment request is handed out.
+     *
+     * @param request
+     */
+    protected void started(SegmentRequest request) {
+        if (request.getFileSegmentHash() != null) {
+            inFlight.put(request.getId(), request);
+            if (!request.isHedge()) {
+                taken(request);
+            }
+        }
+    }
+
+    private synchronized void taken(SegmentRequest request) {
+        Source source = sources.get(request.getEndpointRequestId());
+        if (source != null && source.waiting > 0) {
+            source.waiting--;
+        }
+        fill();
+    }
+
+    /**
+     * called when a segment request has succeeded or failed.
+     *
+     * @param request
+     */
+    protected void finished(SegmentRequest request) {
+        inFlight.remove(request.getId());
+        request.setDeadline(0);
+        FileSegmentHash seg = request.getFileSegmentHash();
+        if (seg != null) {
+            SegmentClaim claim = request.getClaim();
+            claim.remove(request);
+            synchronized (claims) {
+                if (claim.isEmpty() && claims.get(seg.getStartOffset()) == claim) {
+                    claims.remove(seg.getStartOffset());
+                }
+            }
+        }
+    }
+
+    /**
+     * puts a failed request back on the queue for another try.
+     * Its claim is shared again by any request later made for the segment.
+     *
+     * @param request
+     */
+    protected void requeue(SegmentRequest request) {
+        FileSegmentHash seg = request.getFileSegmentHash();
+        if (seg != null) {
+            SegmentClaim claim = request.getClaim();
+            claim.add(request);
+            synchronized (claims) {
+                if (claims.get(seg.getStartOffset()) == null) {
+                    claims.put(seg.getStartOffset(), claim);
+                }
+            }
+        }
+        enqueue(request);
+    }
+
+    public synchronized void hedge() {
+        if (complete || !config.isHedgeRequests()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean endgame = isEndgame();
+        boolean hedged = false;
+        for (SegmentRequest request : new ArrayList<SegmentRequest>(inFlight.values())) {
+            if (request.isCancelled() || request.isHedge()) {
+                continue;
+            }
+            if (!endgame && !request.isLate(now)) {
+                continue;
+            }
+            if (request.getClaim().getHedges() >= config.getMaxHedges()) {
+                continue;
+            }
+            SegmentRequest hedge = createHedge(request);
+            if (hedge != null) {
+                log.fine("hedging " + (endgame ? "in endgame " : "late ") + "request " + request.getId()
+                        + " to " + request.getEndpoint() + " with " + hedge.getEndpoint());
+                enqueue(hedge);
+                hedged = true;
+            }
+        }
+        if (hedged) {
+            ready();
+        }
+    }
+
+    /**
+     * the endgame is when only a few segments are left and they are all in flight.
+     *
+     * @return
+     */
+    protected boolean isEndgame() {
+        int remaining = template.getBlockNumber() - result.getBlockNumber();
+        return remaining > 0 && remaining <= config.getEndgameSegments() && queued() == 0 && !hasPending();
+    }
+
+    /**
+     * creates a duplicate of a request to another replica of the segment.
+     * Replicas from the secondary requests are preferred to those from the tertiary requests.
+     *
+     * @param request
+     * @return the duplicate, or null if no other replica is available.
+     */
+    protected SegmentRequest createHedge(SegmentRequest request) {
+        FileSegmentHash seg = request.getFileSegmentHash();
+        List<Endpoint> busy = request.getClaim().getEndpoints();
+        EndpointRequest replica = findReplica(secondary, seg, busy);
+        if (replica == null) {
+            replica = findReplica(tertiary, seg, busy);
+        }
+        if (replica == null) {
+            return null;
+        }
+        FileSegmentHash other = replica.getChunk(seg.getHash());
+        SegmentRequest hedge = createRequest(replica, other == null ? seg : other);
+        hedge.setHedge(true);
+        hedge.setPriority(Priority.PRIMARY);
+        return hedge;
+    }
+
+    private EndpointRequest findReplica(PriorityQueue<EndpointRequest> queue, FileSegmentHash seg, List<Endpoint> busy) {
+        for (EndpointRequest request : queue) {
+            if (busy.contains(request.getEndpoint())) {
+                continue;
+            }
+            if (request.getChunk(seg.getHash()) != null) {
+                return request;
+            }
+            // a reserve endpoint with no segments listed holds the whole file
+            if (request.getPriority() == Priority.TERTIARY && request.isEmpty() && request.getCompleted().size() == 0) {
+                return request;
+            }
+        }
+        return null;
+    }
+
     public abstract SegmentRequest next(long endpointRequestId);
 
+    /**
+     * the segments of a primary request in offset order, and how many of the
+     * segment requests made from them are waiting to be handed out.
+     */
+    private static class Source {
+        private EndpointRequest request;
+        private List<FileSegmentHash> segments;
+        private int index = 0;
+        private int waiting = 0;
+
+        private Source(EndpointRequest request) {
+            this.request = request;
+            this.segments = request.getChunks();
+            Collections.sort(segments, new Comparator<FileSegmentHash>() {
+                public int compare(FileSegmentHash seg, FileSegmentHash seg1) {
+                    return seg.getStartOffset() < seg1.getStartOffset() ? -1 : (seg.getStartOffset() > seg1.getStartOffset() ? 1 : 0);
+                }
+            });
+        }
+
+        private FileSegmentHash peek() {
+            return index < segments.size() ? segments.get(index) : null;
+        }
+
+        private FileSegmentHash next() {
+            return segments.get(index++);
+        }
+    }
+
 
     public abstract void onSuccess(SegmentRequest request);
 
@@ -53,7 +53,9 @@ public interface DownloadTable {
     public void addRequest(EndpointRequest request);
 
     /**
-     * get the next SegmentRequest for processing
+     * get the next SegmentRequest for processing,
+     * waiting until one is ready. Downloads poll the table from the TransferScheduler instead;
+     * this is used by the StreamRequestors of a Streamer, which each hold a thread for the stream.
      *
      * @param endpointRequestId this is the id of the EndpointRequest from which the segmentRequest is created.
      *                          Clients should use this to inform the table what endpoint request has just been processed.
@@ -62,10 +64,41 @@ public interface DownloadTable {
      */
     public SegmentRequest next(long endpointRequestId);
 
+    /**
+     * get the next SegmentRequest for processing if one is ready, without waiting.
+     *
+     * @param endpointRequestId as for next(). Tables that keep a queue per endpoint look there first.
+     * @return the request, null if none is ready at the moment, or the poison request if the table is complete.
+     */
+    public SegmentRequest poll(long endpointRequestId);
+
+    /**
+     * sets the listener that is told when requests become ready other than during
+     * onSuccess or onFailure, e.g. when requests are added or hedged.
+     *
+     * @param listener
+     */
+    public void setListener(Listener listener);
+
+    /**
+     * while true, a table that has run out of requests does not end, as endpoint requests
+     * may still be added, e.g. for endpoints that answer after the download has started.
+     *
+     * @param expecting
+     */
+    public void setExpectingRequests(boolean expecting);
+
     public void onSuccess(SegmentRequest request);
 
     public void onFailure(SegmentRequest request);
 
+    /**
+     * issues duplicate requests to other replicas for segments whose requests are late,
+     * or for every outstanding segment once the download is in its endgame.
+     * Called periodically while the download is running.
+     */
+    public void hedge();
+
     public SegmentedData getTemplate();
 
     public SegmentedData getResult();
@@ -76,6 +109,11 @@ public interface DownloadTable {
 
     public DownloadConfig getDownloadConfig();
 
+    static interface Listener {
+
+        public void requestsReady(DownloadTable table);
+    }
+
     static class EndpointRequestComparator implements Comparator<EndpointRequest> {
 
         public int compare(EndpointRequest request, EndpointRequest request1) {
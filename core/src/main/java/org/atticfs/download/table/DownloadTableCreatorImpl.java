@@ -20,6 +20,7 @@ import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.DownloadException;
 import org.atticfs.download.request.EndpointRequest;
 import org.atticfs.download.request.RequestCollection;
+import org.atticfs.stats.EndpointHealth;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileHash;
@@ -27,19 +28,23 @@ import org.atticfs.types.FileSegmentHash;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 
 /**
  * takes a MappingCollection and returns FetchRequests by constructing
  * segment requests that attempt to rebuild a whole file.
+ * Mappings added to the collection after the table has been created join the running table
+ * as secondary requests, or tertiary ones for reserves.
  *
  * 
  */
 
-public class DownloadTableCreatorImpl implements DownloadTableCreator {
+public class DownloadTableCreatorImpl implements DownloadTableCreator, RequestCollection.Listener {
 
     static Logger log = Logger.getLogger("org.atticfs.download.table.DownloadTableCreatorImpl");
 
@@ -48,12 +53,26 @@ public class DownloadTableCreatorImpl implements DownloadTableCreator {
 
     protected DownloadConfig config;
     protected DownloadTable table;
+    // ids of the mappings the table was created from
+    private Set<Long> used = new HashSet<Long>();
+
+    // if a single endpoint has every segment, ask for the whole file in one request
+    // rather than segment by segment.
+    protected boolean singleSourceWholeFile = true;
 
 
     public DownloadTableCreatorImpl(DownloadConfig config) {
         this.config = config;
     }
 
+    public boolean isSingleSourceWholeFile() {
+        return singleSourceWholeFile;
+    }
+
+    public void setSingleSourceWholeFile(boolean singleSourceWholeFile) {
+        this.singleSourceWholeFile = singleSourceWholeFile;
+    }
+
     public DownloadTable createTable(RequestCollection collection) throws DownloadException {
 
         FileHash fileHash = collection.getDataDescription().getHash();
@@ -64,6 +83,13 @@ public class DownloadTableCreatorImpl implements DownloadTableCreator {
         if (length <= 0) {
             throw new DownloadException("No length of data defined. It can't be zero - surely.");
         }
+        demoteBroken(collection);
+        for (EndpointRequest req : collection.getMappings()) {
+            used.add(req.getId());
+        }
+        for (EndpointRequest req : collection.getReserveMappings()) {
+            used.add(req.getId());
+        }
         List<EndpointRequest> mappings = collection.getMappings();
         if (mappings.size() == 0) {
             mappings = collection.getReserveMappings();
@@ -75,12 +101,13 @@ public class DownloadTableCreatorImpl implements DownloadTableCreator {
 
         int totalSegs = fileHash.getNumChunks();
         log.fine("totalSegments:" + totalSegs);
-        SegmentedData data = new SegmentedData(length);
+        SegmentedData data = new SegmentedData(length, SegmentedData.getSegmentSize(fileHash.getChunks(), length));
         table = createTable(collection.getDataDescription(), data);
 
         if (mappings.size() == 1) {
             log.fine("DownloadTableCreatorImpl.getRequests only one hash mapping. Extracting from that.");
-            return oneRequest(mappings.get(0));
+            oneRequest(mappings.get(0));
+            return listen(collection);
         }
 
         while (mappings.size() > 0) {
@@ -91,11 +118,75 @@ public class DownloadTableCreatorImpl implements DownloadTableCreator {
         if (mappings.size() > 0) {
             mappings = matchMappings(totalSegs, mappings, table);
         }
-        return onComplete(collection);
+        onComplete(collection);
+        return listen(collection);
 
     }
 
+    /**
+     * adds mappings that arrive after the table has been created to the table.
+     * The table is told to expect more requests until every endpoint has answered.
+     *
+     * @param collection
+     * @return the table
+     */
+    protected DownloadTable listen(RequestCollection collection) {
+        table.setExpectingRequests(true);
+        collection.setListener(this);
+        return table;
+    }
+
+    public void resolved(RequestCollection collection) {
+        DownloadTable t = table;
+        if (t != null) {
+            t.setExpectingRequests(false);
+        }
+    }
+
+    public synchronized void mappingAdded(RequestCollection collection, EndpointRequest request, boolean reserve) {
+        if (table == null || table.isComplete() || !used.add(request.getId())) {
+            return;
+        }
+        if (reserve || !EndpointHealth.getHealth().isUsable(request.getEndpoint())) {
+            request.setPriority(DownloadTable.Priority.TERTIARY);
+        } else {
+            request.setPriority(DownloadTable.Priority.SECONDARY);
+        }
+        log.fine("adding late mapping for " + request.getEndpoint() + " as " + request.getPriority());
+        table.addRequest(request);
+    }
+
+    /**
+     * moves the mappings for data centers whose circuit breaker is open to the reserve mappings,
+     * so they are only asked for segments that no other endpoint has.
+     * Nothing is moved unless at least one mapping is to a healthy data center.
+     *
+     * @param collection
+     */
+    protected void demoteBroken(RequestCollection collection) {
+        List<EndpointRequest> broken = new ArrayList<EndpointRequest>();
+        boolean healthy = false;
+        for (EndpointRequest req : collection.getMappings()) {
+            if (EndpointHealth.getHealth().isUsable(req.getEndpoint())) {
+                healthy = true;
+            } else {
+                broken.add(req);
+            }
+        }
+        if (!healthy) {
+            return;
+        }
+        for (EndpointRequest req : broken) {
+            log.fine("demoting " + req.getEndpoint() + " to a reserve. Its breaker is open.");
+            collection.removeMapping(req);
+            collection.addReserveMapping(req);
+        }
+    }
+
     protected DownloadTable createTable(DataDescription dd, SegmentedData data) {
+        if (config.isWorkStealing()) {
+            return new WorkStealingDownloadTable(dd, data, config);
+        }
         return new SimpleDownloadTable(dd, data, config);
     }
 
@@ -219,7 +310,7 @@ public class DownloadTableCreatorImpl implements DownloadTableCreator {
         log.fine("segments data status:" + data.getStatus());
         log.fine("chunks:" + request.getChunks().size());
         data.addChunks(request.getChunks());
-        if (data.getStatus() == DownloadTable.Status.COMPLETE) {
+        if (data.getStatus() == DownloadTable.Status.COMPLETE && singleSourceWholeFile) {
             table.addRequest(new EndpointRequest(DownloadTable.Priority.PRIMARY, new ArrayList<FileSegmentHash>(), request.getEndpoint()));
         } else {
             table.addRequest(request);
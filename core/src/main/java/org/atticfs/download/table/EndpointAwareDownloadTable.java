@@ -19,6 +19,7 @@ package org.atticfs.download.table;
 import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.DownloadException;
 import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.SegmentClaim;
 import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.FileSegmentHash;
@@ -26,7 +27,6 @@ import org.atticfs.types.FileSegmentHash;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 
 /**
@@ -40,7 +40,6 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
     private PriorityBlockingQueue<SegmentRequest>[] requests;
     private SegmentRequestComparator segComp = new SegmentRequestComparatorImpl();
 
-    private Map<String, FileSegmentHash> processing = new ConcurrentHashMap<String, FileSegmentHash>();
     // request endpoint ids mapped to queues in the array
     private Map<Long, Integer> queueEndpoints = new HashMap<Long, Integer>();
     private int numThreads;
@@ -82,18 +81,13 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
             return; // this request has already been processed
         }
         int next = getNextQueue();
+        queueEndpoints.put(request.getId(), next);
         if (request.getChunks().size() > 0) {
-            List<FileSegmentHash> chunks = request.getChunks();
-            for (FileSegmentHash chunk : chunks) {
-                SegmentRequest sr = new SegmentRequest(request.getEndpoint(), chunk, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
-                sr.setPriority(request.getPriority());
-                requests[next].add(sr);
-            }
+            addSource(request);
         } else {
-            SegmentRequest sr = new SegmentRequest(request.getEndpoint(), null, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+            SegmentRequest sr = createRequest(request, null);
             requests[next].add(sr);
         }
-        queueEndpoints.put(request.getId(), next);
 
     }
 
@@ -130,11 +124,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
                 }
             }
             SegmentRequest req = requests[queueNum].take();
-            synchronized (this) {
-                if (req.getFileSegmentHash() != null) {
-                    processing.put(req.getHash(), req.getFileSegmentHash());
-                }
-            }
+            started(req);
             return req;
         } catch (InterruptedException e) {
 
@@ -142,6 +132,41 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
         return DownloadTable.poison;
     }
 
+    public synchronized SegmentRequest poll(long endpointRequestId) {
+        if (complete) {
+            return DownloadTable.poison;
+        }
+        Integer first = endpointRequestId < 0 ? null : queueEndpoints.get(endpointRequestId);
+        int start = first == null || first >= numThreads ? getNextQueue() : first;
+        SegmentRequest req = poll(start);
+        if (req == null && isDry()) {
+            for (FileSegmentHash seg : getOrphans()) {
+                findDupicate(seg);
+            }
+            req = poll(start);
+        }
+        if (req == null && isExhausted()) {
+            return DownloadTable.poison;
+        }
+        return req;
+    }
+
+    /**
+     * takes a request from the first queue that has one, starting at the given queue.
+     *
+     * @param start
+     * @return the request or null if all the queues are empty.
+     */
+    private SegmentRequest poll(int start) {
+        for (int i = 0; i < numThreads; i++) {
+            SegmentRequest req = poll(requests[(start + i) % numThreads]);
+            if (req != null) {
+                return req;
+            }
+        }
+        return null;
+    }
+
     private void clearTable(FileSegmentHash hash) {
         for (EndpointRequest request : secondary) {
             request.completed(hash);
@@ -152,7 +177,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
         if (hash == null) {
             if (tertiary.size() > 0) {
                 EndpointRequest request = tertiary.remove();
-                SegmentRequest sr = new SegmentRequest(request.getEndpoint(), null, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                SegmentRequest sr = createRequest(request, null);
                 Integer queueNum = queueEndpoints.get(request.getId());
                 if (queueNum == null) {
                     queueNum = getNextQueue();
@@ -165,7 +190,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
             for (EndpointRequest request : secondary) {
                 FileSegmentHash other = request.getChunk(hash.getHash());
                 if (other != null) {
-                    SegmentRequest sr = new SegmentRequest(request.getEndpoint(), other, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                    SegmentRequest sr = createRequest(request, other);
                     found = true;
                     Integer queueNum = queueEndpoints.get(request.getId());
                     if (queueNum == null) {
@@ -179,7 +204,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
                 for (EndpointRequest request : tertiary) {
                     FileSegmentHash other = request.getChunk(hash.getHash());
                     if (other != null) {
-                        SegmentRequest sr = new SegmentRequest(request.getEndpoint(), other, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                        SegmentRequest sr = createRequest(request, other);
                         found = true;
                         Integer queueNum = queueEndpoints.get(request.getId());
                         if (queueNum == null) {
@@ -193,7 +218,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
             if (!found) {
                 if (tertiary.size() > 0) {
                     EndpointRequest request = tertiary.remove();
-                    SegmentRequest sr = new SegmentRequest(request.getEndpoint(), hash, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                    SegmentRequest sr = createRequest(request, hash);
                     found = true;
                     Integer queueNum = queueEndpoints.get(request.getId());
                     if (queueNum == null) {
@@ -207,7 +232,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
     }
 
     private void checkFinished() {
-        if (complete || template.equals(result) || (secondary.size() == 0 && tertiary.size() == 0 && queuesAreEmpty())) {
+        if (complete || result.containsAll(template) || (secondary.size() == 0 && tertiary.size() == 0 && queuesAreEmpty() && !hasPending())) {
             log.fine("=============EndpointAwareDownloadTable.checkFinished I AM FINISHED============");
             for (PriorityBlockingQueue<SegmentRequest> request : requests) {
                 for (int i = 0; i < numThreads * 2; i++) {
@@ -229,6 +254,7 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
 
 
     public synchronized void onSuccess(SegmentRequest request) {
+        finished(request);
         if (request.getFileSegmentHash() == null) {
             complete = true;
             try {
@@ -237,17 +263,17 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
 
             }
         } else {
+            // cancels any duplicates still in flight
+            request.getClaim().claim(request);
             try {
                 if (result.addChunk(request.getFileSegmentHash())) {
                     AbstractDownloadTable.log.fine(" yipeee! added segment:" + request.getFileSegmentHash());
-                    if (result.getStatus() == Status.COMPLETE || result.equals(template)) {
+                    if (result.getStatus() == Status.COMPLETE || result.containsAll(template)) {
                         AbstractDownloadTable.log.fine("result is complete!!!!!");
                         this.complete = true;
                     }
                     clearTable(request.getFileSegmentHash());
                 }
-                processing.remove(request.getHash());
-
             } catch (DownloadException e) {
                 e.printStackTrace();
             }
@@ -255,11 +281,46 @@ public class EndpointAwareDownloadTable extends AbstractDownloadTable {
         checkFinished();
     }
 
+    protected void enqueue(SegmentRequest request) {
+        Integer queueNum = queueEndpoints.get(request.getEndpointRequestId());
+        if (queueNum == null) {
+            queueNum = getNextQueue();
+            queueEndpoints.put(request.getEndpointRequestId(), queueNum);
+        }
+        requests[queueNum].add(request);
+    }
+
+    protected int queued() {
+        int count = 0;
+        for (PriorityBlockingQueue<SegmentRequest> queue : requests) {
+            for (SegmentRequest request : queue) {
+                if (request.getPriority() != Priority.POISON) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     public synchronized void onFailure(SegmentRequest request) {
-        findDupicate(request.getFileSegmentHash());
-        if (request.getFileSegmentHash() != null) {
-            processing.remove(request.getHash());
+        finished(request);
+        SegmentClaim claim = request.getClaim();
+        claim.remove(request);
+        if (request.isCancelled()) {
+            // another request for the segment has won
+            checkFinished();
+            return;
+        }
+        SegmentRequest sibling = claim.getSibling(request);
+        if (sibling != null) {
+            // another request for the segment is still in flight, so it stands in for this one
+            // and may itself be hedged if it runs late.
+            sibling.setHedge(false);
+            checkFinished();
+            return;
         }
+        request.setHedge(false);
+        findDupicate(request.getFileSegmentHash());
         checkFinished();
 
     }
@@ -24,9 +24,18 @@ import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * represents a data unit made up of segments.
+ * <p/>
+ * If the segments are all the same size, apart from a shorter last one, the data is
+ * indexed by segment number. Segments are then recorded in an atomic bitset, and the count
+ * and extent of the segments present are swapped in together, so adding, finding and checking
+ * for completion take no lock and a reader always sees a count and extent that belong together.
+ * Otherwise segments are kept in a map by offset that is guarded by a lock.
  *
  * 
  */
@@ -46,18 +55,127 @@ public class SegmentedData {
 
     private static FileSegmentHash TOKEN = new FileSegmentHash("token", 0, 0);
 
+    // the size of every segment but the last when the data is indexed, otherwise -1
+    private final long segmentSize;
+    private final int numSegments;
+    private AtomicLongArray bits;
+    private AtomicReferenceArray<FileSegmentHash> indexed;
+    // the number of segments present and the lowest and highest segment numbers, replaced as a whole
+    private final AtomicReference<Extent> extent = new AtomicReference<Extent>(new Extent(0, Integer.MAX_VALUE, -1));
+
     public SegmentedData(long length) {
+        this(length, -1);
+    }
+
+    /**
+     * @param length
+     * @param segmentSize the size of every segment but the last. Zero or less means segments can be any size.
+     */
+    public SegmentedData(long length, long segmentSize) {
         this.length = length;
+        if (segmentSize > 0 && length > 0 && (length + segmentSize - 1) / segmentSize <= Integer.MAX_VALUE) {
+            this.segmentSize = segmentSize;
+            this.numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+            this.bits = new AtomicLongArray((numSegments + 63) / 64);
+            this.indexed = new AtomicReferenceArray<FileSegmentHash>(numSegments);
+        } else {
+            this.segmentSize = -1;
+            this.numSegments = 0;
+        }
+    }
+
+    /**
+     * finds the fixed segment size of a list of segments covering data of the given length.
+     *
+     * @param segments
+     * @param length
+     * @return the size of every segment but the last, or -1 if the segments are not all the same size
+     *         or they do not cover the data in order.
+     */
+    public static long getSegmentSize(List<FileSegmentHash> segments, long length) {
+        if (segments.size() == 0) {
+            return -1;
+        }
+        long size = segments.get(0).getEndOffset() - segments.get(0).getStartOffset() + 1;
+        if (size <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            FileSegmentHash seg = segments.get(i);
+            if (seg.getStartOffset() != i * size || seg.getEndOffset() != Math.min((i + 1) * size, length) - 1) {
+                return -1;
+            }
+        }
+        if (segments.get(segments.size() - 1).getEndOffset() != length - 1) {
+            return -1;
+        }
+        return size;
     }
 
     public long getLength() {
         return length;
     }
 
+    /**
+     * @return the size of every segment but the last, or -1 if the data is not indexed by segment number.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isIndexed() {
+        return segmentSize > 0;
+    }
+
+    /**
+     * @param hash
+     * @return the segment number, or -1 if the segment does not fit the fixed segment size.
+     */
+    private int index(FileSegmentHash hash) {
+        long start = hash.getStartOffset();
+        if (start < 0 || start % segmentSize != 0) {
+            return -1;
+        }
+        long i = start / segmentSize;
+        if (i >= numSegments || hash.getEndOffset() != Math.min(start + segmentSize, length) - 1) {
+            return -1;
+        }
+        return (int) i;
+    }
+
+    private boolean isSet(int i) {
+        return (bits.get(i >>> 6) & (1L << (i & 63))) != 0;
+    }
+
+    /**
+     * sets the bit for a segment.
+     *
+     * @param i
+     * @return true if the bit was not already set.
+     */
+    private boolean set(int i) {
+        int word = i >>> 6;
+        long mask = 1L << (i & 63);
+        while (true) {
+            long curr = bits.get(word);
+            if ((curr & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(word, curr, curr | mask)) {
+                return true;
+            }
+        }
+    }
+
     public boolean containsChunk(FileSegmentHash hash) {
+        if (isIndexed()) {
+            int i = index(hash);
+            return i >= 0 && isSet(i);
+        }
         try {
             lock.acquire();
-            return segments.containsKey(hash.getHash());
+            FileSegmentHash block = segments.get(hash.getStartOffset());
+            return block != null && block != TOKEN && block.getEndOffset() == hash.getEndOffset();
         } catch (InterruptedException e) {
 
         } finally {
@@ -67,11 +185,24 @@ public class SegmentedData {
     }
 
     public int getBlockNumber() {
+        if (isIndexed()) {
+            return extent.get().count;
+        }
         return segments.size() / 2;
     }
 
 
     public List<FileSegmentHash> getChunks() {
+        if (isIndexed()) {
+            List<FileSegmentHash> chunks = new ArrayList<FileSegmentHash>();
+            for (int i = 0; i < numSegments; i++) {
+                FileSegmentHash chunk = indexed.get(i);
+                if (chunk != null && isSet(i)) {
+                    chunks.add(chunk);
+                }
+            }
+            return chunks;
+        }
         try {
             lock.acquire();
             return new ArrayList<FileSegmentHash>(segments.values());
@@ -84,6 +215,18 @@ public class SegmentedData {
     }
 
     public boolean addChunk(FileSegmentHash segment) throws DownloadException {
+        if (isIndexed()) {
+            int i = index(segment);
+            if (i < 0 || !set(i)) {
+                return false;
+            }
+            indexed.set(i, segment);
+            Extent curr;
+            do {
+                curr = extent.get();
+            } while (!extent.compareAndSet(curr, curr.add(i)));
+            return true;
+        }
         try {
             lock.acquire();
             FileSegmentHash block = segments.get(segment.getStartOffset());
@@ -209,10 +352,68 @@ public class SegmentedData {
 
     }*/
     public DownloadTable.Status getStatus() {
+        if (isIndexed()) {
+            Extent curr = extent.get();
+            if (curr.count == 0) {
+                return DownloadTable.Status.EMPTY;
+            }
+            if (curr.count == numSegments) {
+                return DownloadTable.Status.COMPLETE;
+            }
+            // one run of segments with a gap at one end only
+            if (curr.last - curr.first + 1 == curr.count && (curr.first == 0 || curr.last == numSegments - 1)) {
+                return DownloadTable.Status.CONTINUOUS;
+            }
+            return DownloadTable.Status.DISCONTINUOUS;
+        }
         return status;
     }
 
+    /**
+     * checks whether this data has every segment the other has.
+     * If both are indexed in the same way, this is false if the other has more segments,
+     * true if the other has every segment, and otherwise decided by comparing the bitsets.
+     * If not, each segment of the other is looked up here.
+     *
+     * @param other
+     * @return true if every segment of the other is here.
+     */
+    public boolean containsAll(SegmentedData other) {
+        if (isIndexed() && other.isIndexed() && length == other.length && segmentSize == other.segmentSize) {
+            int num = other.extent.get().count;
+            if (extent.get().count < num) {
+                return false;
+            }
+            if (num == numSegments) {
+                return true;
+            }
+            for (int i = 0; i < bits.length(); i++) {
+                long theirs = other.bits.get(i);
+                if ((bits.get(i) & theirs) != theirs) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (getBlockNumber() < other.getBlockNumber()) {
+            return false;
+        }
+        for (FileSegmentHash chunk : other.getChunks()) {
+            if (chunk != TOKEN && !containsChunk(chunk)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public String toString() {
+        if (isIndexed()) {
+            StringBuilder sb = new StringBuilder();
+            for (FileSegmentHash segment : getChunks()) {
+                sb.append(segment.getHash() + " " + segment.getStartOffset() + "-" + segment.getEndOffset() + ",");
+            }
+            return sb.toString();
+        }
         try {
             lock.acquire();
             StringBuilder sb = new StringBuilder();
@@ -228,8 +429,41 @@ public class SegmentedData {
         return "not known";
     }
 
+    /**
+     * the number of segments present and the lowest and highest segment numbers.
+     */
+    private static class Extent {
+        private final int count;
+        private final int first;
+        private final int last;
+
+        private Extent(int count, int first, int last) {
+            this.count = count;
+            this.first = first;
+            this.last = last;
+        }
+
+        private Extent add(int i) {
+            return new Extent(count + 1, Math.min(first, i), Math.max(last, i));
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
+        if (isIndexed()) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            SegmentedData that = (SegmentedData) o;
+
+            if (length != that.length) return false;
+            if (segmentSize != that.segmentSize) return false;
+            if (extent.get().count != that.extent.get().count) return false;
+            for (int i = 0; i < bits.length(); i++) {
+                if (bits.get(i) != that.bits.get(i)) return false;
+            }
+            return true;
+        }
         try {
             lock.acquire();
 
@@ -253,6 +487,14 @@ public class SegmentedData {
 
     @Override
     public int hashCode() {
+        if (isIndexed()) {
+            int result = (int) (length ^ (length >>> 32));
+            for (int i = 0; i < bits.length(); i++) {
+                long word = bits.get(i);
+                result = 31 * result + (int) (word ^ (word >>> 32));
+            }
+            return result;
+        }
         try {
             lock.acquire();
 
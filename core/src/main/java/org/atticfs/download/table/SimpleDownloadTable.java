@@ -20,14 +20,13 @@ import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.download.DownloadException;
 import org.atticfs.download.request.Chunk;
 import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.SegmentClaim;
 import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.FileSegmentHash;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 
 /**
@@ -40,8 +39,6 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
 
     protected PriorityBlockingQueue<SegmentRequest> requests;
 
-    protected Map<String, FileSegmentHash> processing = new ConcurrentHashMap<String, FileSegmentHash>();
-
     public SimpleDownloadTable(DataDescription description, SegmentedData template, DownloadConfig config) {
         super(description, template, config);
         requests = new PriorityBlockingQueue<SegmentRequest>(50, new SegmentRequestComparatorImpl());
@@ -58,13 +55,9 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
 
         if (request.getChunks().size() > 0) {
             log.info(" adding primary request with endpoint:" + request.getEndpoint());
-            List<FileSegmentHash> chunks = request.getChunks();
-            for (FileSegmentHash chunk : chunks) {
-                SegmentRequest sr = new SegmentRequest(request.getEndpoint(), chunk, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
-                requests.add(sr);
-            }
+            addSource(request);
         } else {
-            SegmentRequest sr = new SegmentRequest(request.getEndpoint(), null, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+            SegmentRequest sr = createRequest(request, null);
             requests.add(sr);
         }
     }
@@ -94,11 +87,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
         }
         try {
             SegmentRequest req = requests.take();
-            synchronized (this) {
-                if (req.getFileSegmentHash() != null) {
-                    processing.put(req.getHash(), req.getFileSegmentHash());
-                }
-            }
+            started(req);
             return req;
         } catch (InterruptedException e) {
 
@@ -106,6 +95,23 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
         return DownloadTable.poison;
     }
 
+    public synchronized SegmentRequest poll(long endpointRequestId) {
+        if (complete) {
+            return DownloadTable.poison;
+        }
+        SegmentRequest req = poll(requests);
+        if (req == null && isDry()) {
+            for (FileSegmentHash seg : getOrphans()) {
+                findDupicate(seg);
+            }
+            req = poll(requests);
+        }
+        if (req == null && isExhausted()) {
+            return DownloadTable.poison;
+        }
+        return req;
+    }
+
     private void clearTable(FileSegmentHash hash) {
         for (EndpointRequest request : secondary) {
             request.completed(hash);
@@ -116,7 +122,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
         if (hash == null) {
             if (tertiary.size() > 0) {
                 EndpointRequest request = tertiary.remove();
-                SegmentRequest sr = new SegmentRequest(request.getEndpoint(), null, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                SegmentRequest sr = createRequest(request, null);
                 requests.add(sr);
             }
         } else {
@@ -129,7 +135,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
                 } else {
                     FileSegmentHash other = request.removeChunk(hash.getHash());
                     if (other != null) {
-                        SegmentRequest sr = new SegmentRequest(request.getEndpoint(), other, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                        SegmentRequest sr = createRequest(request, other);
                         found = true;
                         requests.add(sr);
                     }
@@ -144,7 +150,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
                     } else {
                         FileSegmentHash other = request.removeChunk(hash.getHash());
                         if (other != null) {
-                            SegmentRequest sr = new SegmentRequest(request.getEndpoint(), other, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                            SegmentRequest sr = createRequest(request, other);
                             found = true;
                             requests.add(sr);
                         }
@@ -154,7 +160,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
             if (!found) {
                 if (tertiary.size() > 0) {
                     EndpointRequest request = tertiary.remove();
-                    SegmentRequest sr = new SegmentRequest(request.getEndpoint(), hash, false, request.getPriority(), request.getId(), config.getDownloadChunkSize());
+                    SegmentRequest sr = createRequest(request, hash);
                     found = true;
                     requests.add(sr);
                 }
@@ -163,7 +169,7 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
     }
 
     private void checkFinished() {
-        if (complete || template.equals(result) || (secondary.size() == 0 && tertiary.size() == 0 && requests.size() == 0)) {
+        if (complete || result.containsAll(template) || (secondary.size() == 0 && tertiary.size() == 0 && requests.size() == 0 && !hasPending())) {
             log.fine("=============SimpleDownloadTable.checkFinished I AM FINISHED============");
             for (int i = 0; i < config.getMaxFileConnections() * 2; i++) {
                 requests.put(DownloadTable.poison);
@@ -172,7 +178,22 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
     }
 
 
+    protected void enqueue(SegmentRequest request) {
+        requests.add(request);
+    }
+
+    protected int queued() {
+        int count = 0;
+        for (SegmentRequest request : requests) {
+            if (request.getPriority() != DownloadTable.Priority.POISON) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public synchronized void onSuccess(SegmentRequest request) {
+        finished(request);
         if (request.getFileSegmentHash() == null) {
             complete = true;
             try {
@@ -181,17 +202,17 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
 
             }
         } else {
+            // cancels any duplicates still in flight
+            request.getClaim().claim(request);
             try {
                 if (result.addChunk(request.getFileSegmentHash())) {
                     AbstractDownloadTable.log.fine(" yipeee! added segment:" + request.getFileSegmentHash());
-                    if (result.getStatus() == DownloadTable.Status.COMPLETE || result.equals(template)) {
+                    if (result.getStatus() == DownloadTable.Status.COMPLETE || result.containsAll(template)) {
                         AbstractDownloadTable.log.fine("result is complete!!!!!");
                         this.complete = true;
                     }
                     clearTable(request.getFileSegmentHash());
                 }
-                processing.remove(request.getHash());
-
             } catch (DownloadException e) {
                 e.printStackTrace();
             }
@@ -200,6 +221,23 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
     }
 
     public synchronized void onFailure(SegmentRequest request) {
+        finished(request);
+        SegmentClaim claim = request.getClaim();
+        claim.remove(request);
+        if (request.isCancelled()) {
+            // another request for the segment has won
+            checkFinished();
+            return;
+        }
+        SegmentRequest sibling = claim.getSibling(request);
+        if (sibling != null) {
+            // another request for the segment is still in flight, so it stands in for this one
+            // and may itself be hedged if it runs late.
+            sibling.setHedge(false);
+            checkFinished();
+            return;
+        }
+        request.setHedge(false);
         if (request.getRetries() < config.getRetryCount()) {
             List<Chunk> chunks = request.getDownloadChunks();
             for (Chunk chunk : chunks) {
@@ -209,13 +247,9 @@ public class SimpleDownloadTable extends AbstractDownloadTable {
                 }
             }
             request.incRetries();
-            requests.add(request);
+            requeue(request);
         }
         findDupicate(request.getFileSegmentHash());
-        if (request.getFileSegmentHash() != null) {
-            processing.remove(request.getHash());
-
-        }
         checkFinished();
 
     }
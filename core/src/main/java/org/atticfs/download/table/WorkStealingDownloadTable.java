@@ -0,0 +1,488 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.download.table;
+
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.download.DownloadException;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.SegmentClaim;
+import org.atticfs.download.request.SegmentRequest;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table that hands segments out as endpoints become free rather than fixing
+ * how many each endpoint downloads up front.
+ * <p/>
+ * The segments of primary requests form the home queue of their endpoint. Secondary and tertiary
+ * requests record the other endpoints that hold a segment. Whenever a request is wanted, the endpoint
+ * with the fewest requests in flight is chosen and takes the lowest segment of its home queue.
+ * An endpoint whose home queue is empty steals the highest segment it holds from the longest queue of another endpoint.
+ * Fast endpoints finish their own share early and then take over work from slow ones, so the
+ * slowest endpoint no longer decides when the download finishes.
+ * <p/>
+ * Segments are numbered, by their index if the template is indexed, otherwise in the order they are first listed.
+ * The segments an endpoint holds, has queued and has failed are bitsets of segment numbers, so an endpoint
+ * costs a bit per segment whatever its requests list. Segment requests are only created when a segment is handed out.
+ * <p/>
+ * Tertiary (reserve) endpoints only download segments that no other endpoint can provide,
+ * and endpoints whose circuit breaker is open are only used when no other endpoint has work.
+ *
+ *
+ */
+
+public class WorkStealingDownloadTable extends AbstractDownloadTable {
+
+    // endpoints by the order their requests were added
+    private Map<Endpoint, Worker> workers = new LinkedHashMap<Endpoint, Worker>();
+    // the endpoint of each request handed out and not yet finished, by request id
+    private Map<Long, Worker> leased = new HashMap<Long, Worker>();
+    // whole file requests and hedges. These are for a particular endpoint and are taken first.
+    private LinkedList<SegmentRequest> ready = new LinkedList<SegmentRequest>();
+    // segments by number
+    private List<FileSegmentHash> segments = new ArrayList<FileSegmentHash>();
+    // segment numbers by start offset, if the template is not indexed
+    private Map<Long, Integer> numbers = new HashMap<Long, Integer>();
+    // segments waiting in a home queue
+    private BitSet queued = new BitSet();
+    private int waiting = 0;
+
+    public WorkStealingDownloadTable(DataDescription description, SegmentedData template, DownloadConfig config) {
+        super(description, template, config);
+    }
+
+    protected void addPrimaryRequest(EndpointRequest request) {
+        Worker worker = getWorker(request, false);
+        if (request.getChunks().size() == 0 && request.getCompleted().size() == 0) {
+            ready.add(createRequest(request, null));
+            return;
+        }
+        hold(worker, request.getChunks());
+    }
+
+    protected void addSecondaryRequest(EndpointRequest request) {
+        if (request.getChunks().size() > 0) {
+            log.fine(" adding request:" + request);
+            secondary.add(request);
+            hold(getWorker(request, false), request.getChunks());
+        }
+    }
+
+    protected void addTertiaryRequest(EndpointRequest request) {
+        tertiary.add(request);
+        Worker worker = getWorker(request, true);
+        if (request.isEmpty() && request.getCompleted().size() == 0) {
+            worker.wholeFile = true;
+        }
+        hold(worker, request.getChunks());
+    }
+
+    private Worker getWorker(EndpointRequest request, boolean reserve) {
+        Worker worker = workers.get(request.getEndpoint());
+        if (worker == null) {
+            worker = new Worker(request, reserve);
+            workers.put(request.getEndpoint(), worker);
+        } else if (worker.reserve && !reserve) {
+            // the endpoint has been promoted, so it is asked for segments in its own right
+            worker.request = request;
+            worker.reserve = false;
+        }
+        return worker;
+    }
+
+    /**
+     * @param seg
+     * @return the number of the segment. A segment not seen before is given the next number.
+     */
+    private int number(FileSegmentHash seg) {
+        int i;
+        long size = template.getSegmentSize();
+        long count = size > 0 ? (template.getLength() + size - 1) / size : 0;
+        if (size > 0 && seg.getStartOffset() % size == 0 && seg.getStartOffset() / size < count) {
+            i = (int) (seg.getStartOffset() / size);
+        } else {
+            // numbered after the indexed segments, so the two cannot clash
+            Integer n = numbers.get(seg.getStartOffset());
+            if (n == null) {
+                n = (int) Math.max(count, segments.size());
+                numbers.put(seg.getStartOffset(), n);
+            }
+            i = n;
+        }
+        while (segments.size() <= i) {
+            segments.add(null);
+        }
+        if (segments.get(i) == null) {
+            segments.set(i, seg);
+        }
+        return i;
+    }
+
+    /**
+     * records the segments an endpoint holds. Segments no other endpoint has queued yet
+     * are added to its home queue.
+     *
+     * @param worker
+     * @param segs
+     */
+    private void hold(Worker worker, List<FileSegmentHash> segs) {
+        for (FileSegmentHash seg : segs) {
+            int i = number(seg);
+            worker.held.set(i);
+            if (!result.containsChunk(seg) && !queued.get(i) && !isClaimed(seg)) {
+                queue(worker, i);
+            }
+        }
+    }
+
+    private void queue(Worker worker, int i) {
+        worker.home.set(i);
+        worker.homeSize++;
+        queued.set(i);
+        waiting++;
+    }
+
+    private FileSegmentHash unqueue(Worker worker, int i) {
+        worker.home.clear(i);
+        worker.homeSize--;
+        queued.clear(i);
+        waiting--;
+        return segments.get(i);
+    }
+
+    public synchronized SegmentRequest next(long endpointRequestId) {
+        while (true) {
+            SegmentRequest req = poll(endpointRequestId);
+            if (req != null) {
+                return req;
+            }
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                return DownloadTable.poison;
+            }
+        }
+    }
+
+    public synchronized SegmentRequest poll(long endpointRequestId) {
+        if (complete || isExhausted()) {
+            return DownloadTable.poison;
+        }
+        SegmentRequest req = takeReady();
+        if (req == null) {
+            req = take(true);
+        }
+        if (req == null && !hasWork(true)) {
+            req = take(false);
+        }
+        if (req != null) {
+            started(req);
+        }
+        return req;
+    }
+
+    /**
+     * @return true if there is nothing left to hand out, nothing in flight and no more requests are expected.
+     */
+    @Override
+    protected boolean isExhausted() {
+        return !isExpectingRequests() && waiting == 0 && ready.size() == 0 && leased.size() == 0;
+    }
+
+    private SegmentRequest takeReady() {
+        Iterator<SegmentRequest> it = ready.iterator();
+        while (it.hasNext()) {
+            SegmentRequest req = it.next();
+            if (req.isCancelled()) {
+                it.remove();
+                continue;
+            }
+            Worker worker = workers.get(req.getEndpoint());
+            if (worker == null || worker.isFree()) {
+                it.remove();
+                lease(req, worker);
+                return req;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * takes a segment for the free endpoint with the fewest requests in flight.
+     *
+     * @param usable if true, only endpoints whose breaker is not open are considered
+     * @return the request or null if no free endpoint has work.
+     */
+    private SegmentRequest take(boolean usable) {
+        List<Worker> free = new ArrayList<Worker>();
+        for (Worker worker : workers.values()) {
+            if (worker.isFree() && EndpointHealth.getHealth().isUsable(worker.endpoint) == usable) {
+                free.add(worker);
+            }
+        }
+        while (free.size() > 0) {
+            Worker best = free.get(0);
+            for (Worker worker : free) {
+                if (worker.leases < best.leases) {
+                    best = worker;
+                }
+            }
+            free.remove(best);
+            FileSegmentHash seg = best.homeSize > 0 ? unqueue(best, best.home.nextSetBit(0)) : steal(best);
+            if (seg != null) {
+                SegmentRequest req = createRequest(best.request, seg);
+                lease(req, best);
+                return req;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param usable if true, only endpoints whose breaker is not open are considered
+     * @return true if any of the endpoints has a segment it could take, whether it is free or not.
+     */
+    private boolean hasWork(boolean usable) {
+        for (Worker worker : workers.values()) {
+            if (EndpointHealth.getHealth().isUsable(worker.endpoint) != usable) {
+                continue;
+            }
+            if (worker.homeSize > 0) {
+                return true;
+            }
+            if (!worker.reserve && worker.held.intersects(queued)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * takes the highest segment the thief holds from the longest home queue of another endpoint.
+     * Reserve endpoints do not steal.
+     *
+     * @param thief
+     * @return the segment, or null if there is nothing to steal
+     */
+    private FileSegmentHash steal(Worker thief) {
+        if (thief.reserve || !thief.held.intersects(queued)) {
+            return null;
+        }
+        List<Worker> victims = new ArrayList<Worker>();
+        for (Worker worker : workers.values()) {
+            if (worker != thief && worker.homeSize > 0) {
+                victims.add(worker);
+            }
+        }
+        while (victims.size() > 0) {
+            Worker victim = victims.get(0);
+            for (Worker worker : victims) {
+                if (worker.homeSize > victim.homeSize) {
+                    victim = worker;
+                }
+            }
+            victims.remove(victim);
+            BitSet both = (BitSet) victim.home.clone();
+            both.and(thief.held);
+            int i = both.length() - 1;
+            if (i >= 0) {
+                log.fine(thief.endpoint + " stole segment " + i + " from " + victim.endpoint);
+                return unqueue(victim, i);
+            }
+        }
+        return null;
+    }
+
+    private void lease(SegmentRequest request, Worker worker) {
+        if (worker != null) {
+            worker.leases++;
+        }
+        leased.put(request.getId(), worker);
+    }
+
+    protected synchronized void finished(SegmentRequest request) {
+        super.finished(request);
+        if (leased.containsKey(request.getId())) {
+            Worker worker = leased.remove(request.getId());
+            if (worker != null) {
+                worker.leases--;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * puts a segment back in the home queue of the endpoint holding it that has the shortest queue.
+     * Reserve endpoints are only used if no other endpoint holds the segment.
+     *
+     * @param seg
+     * @return false if no endpoint holds the segment.
+     */
+    private boolean requeue(FileSegmentHash seg) {
+        int i = number(seg);
+        Worker best = null;
+        for (Worker worker : workers.values()) {
+            if (!worker.held.get(i)) {
+                if (!worker.wholeFile || worker.failed.get(i)) {
+                    continue;
+                }
+                worker.held.set(i);
+            }
+            if (best == null || (best.reserve && !worker.reserve)
+                    || (best.reserve == worker.reserve && worker.homeSize < best.homeSize)) {
+                best = worker;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        queue(best, i);
+        return true;
+    }
+
+    private void clearTable(FileSegmentHash hash) {
+        for (EndpointRequest request : secondary) {
+            request.completed(hash);
+        }
+    }
+
+    public synchronized void onSuccess(SegmentRequest request) {
+        finished(request);
+        if (request.getFileSegmentHash() == null) {
+            complete = true;
+            try {
+                result.addChunks(template.getChunks());
+            } catch (DownloadException e) {
+
+            }
+        } else {
+            // cancels any duplicates still in flight
+            request.getClaim().claim(request);
+            try {
+                if (result.addChunk(request.getFileSegmentHash())) {
+                    log.fine(" yipeee! added segment:" + request.getFileSegmentHash());
+                    if (result.getStatus() == Status.COMPLETE || result.containsAll(template)) {
+                        log.fine("result is complete!!!!!");
+                        this.complete = true;
+                    }
+                    clearTable(request.getFileSegmentHash());
+                }
+            } catch (DownloadException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void onFailure(SegmentRequest request) {
+        finished(request);
+        FileSegmentHash seg = request.getFileSegmentHash();
+        if (seg == null) {
+            if (!request.isCancelled() && tertiary.size() > 0) {
+                EndpointRequest reserve = tertiary.remove();
+                ready.add(createRequest(reserve, null));
+            }
+            return;
+        }
+        SegmentClaim claim = request.getClaim();
+        claim.remove(request);
+        Worker worker = workers.get(request.getEndpoint());
+        if (worker != null && !request.isCancelled()) {
+            // the endpoint has had its chance with this segment
+            int i = number(seg);
+            worker.held.clear(i);
+            worker.failed.set(i);
+        }
+        if (request.isCancelled() || result.containsChunk(seg) || claim.isWon()) {
+            // another request for the segment has won
+            return;
+        }
+        SegmentRequest sibling = claim.getSibling(request);
+        if (sibling != null) {
+            // another request for the segment is still in flight, so it stands in for this one
+            sibling.setHedge(false);
+            return;
+        }
+        if (!requeue(seg)) {
+            log.warning("no endpoint left to download segment " + seg + " from");
+        }
+    }
+
+    protected synchronized void enqueue(SegmentRequest request) {
+        ready.add(request);
+        notifyAll();
+    }
+
+    protected synchronized int queued() {
+        return waiting + ready.size();
+    }
+
+    @Override
+    protected String primaryRequests() {
+        StringBuilder sb = new StringBuilder();
+        for (Worker worker : workers.values()) {
+            sb.append("\n").append(worker);
+        }
+        for (SegmentRequest sr : ready) {
+            sb.append("\n").append(sr);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * an endpoint, the segments it holds, and the segments it will download unless they are stolen.
+     */
+    private class Worker {
+        private Endpoint endpoint;
+        private EndpointRequest request;
+        private boolean reserve;
+        // a reserve that holds every segment
+        private boolean wholeFile = false;
+        private BitSet held = new BitSet();
+        private BitSet home = new BitSet();
+        private int homeSize = 0;
+        private BitSet failed = new BitSet();
+        private int leases = 0;
+
+        private Worker(EndpointRequest request, boolean reserve) {
+            this.endpoint = request.getEndpoint();
+            this.request = request;
+            this.reserve = reserve;
+        }
+
+        private boolean isFree() {
+            int max = config.getMaxEndpointConnections();
+            return max <= 0 || leases < max;
+        }
+
+        public String toString() {
+            return endpoint + (reserve ? " (reserve)" : "") + " queued:" + homeSize + " held:" + held.cardinality()
+                    + " in flight:" + leases;
+        }
+    }
+}
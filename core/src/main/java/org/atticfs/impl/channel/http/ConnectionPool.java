@@ -0,0 +1,343 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.impl.channel.http;
+
+import org.atticfs.stats.ConnectionStats;
+import org.wspeer.http.Connection;
+import org.wspeer.http.HttpConnection;
+import org.wspeer.http.PeerProperties;
+import org.wspeer.http.RequestContext;
+import org.wspeer.security.ConnectionContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A pool of client connections shared by every HttpClient created by a factory, keyed by scheme and authority.
+ * <p/>
+ * A connection is lent out for a single request and handed back once its response body has been read.
+ * Only a few idle connections are kept per host because the server gives each open connection its own thread.
+ * They are held by IdleConnections, as the NioTransport's are. Before an idle connection is lent out again
+ * it is checked: one that has been closed, has been idle for longer than the idle timeout, has been reused
+ * the maximum number of times, or has unread data waiting on it, is evicted.
+ * <p/>
+ * The number of connections open to a host, in use or idle, can be capped. A request that finds the cap
+ * reached waits for a connection to be handed back, for up to its timeout.
+ *
+ *
+ */
+
+public class ConnectionPool {
+
+    static Logger log = Logger.getLogger("org.atticfs.impl.channel.http.ConnectionPool");
+
+    // how long to wait for a connection if the request has no timeout
+    private static final long DEFAULT_WAIT = 1000 * 60;
+
+    private PeerProperties props;
+    private int maxPerHost;
+    private IdleConnections<PooledConnection> idle = new IdleConnections<PooledConnection>(0, 0);
+    // connections lent out by host
+    private Map<String, Host> hosts = new HashMap<String, Host>();
+    private boolean closed = false;
+
+    /**
+     * @param idleTimeout how long a connection may be idle before it is evicted
+     * @param maxIdle     the number of idle connections kept per host
+     * @param maxPerHost  the number of connections that may be open to a host. Zero or less means no limit.
+     */
+    public ConnectionPool(long idleTimeout, int maxIdle, int maxPerHost) {
+        setLimits(idleTimeout, maxIdle, maxPerHost);
+    }
+
+    /**
+     * @param props the properties of the peer, used to create connections.
+     */
+    public synchronized void setProperties(PeerProperties props) {
+        this.props = props;
+    }
+
+    public synchronized void setLimits(long idleTimeout, int maxIdle, int maxPerHost) {
+        idle.setLimits(idleTimeout, maxIdle);
+        this.maxPerHost = maxPerHost;
+        notifyAll();
+    }
+
+    /**
+     * lend a connection to the endpoint of the request.
+     *
+     * @param rc
+     * @param fresh if true an idle connection is not reused. Used to retry a request that failed on a reused connection.
+     * @return a connection that must be handed back with release()
+     * @throws IOException if no connection could be made, or none became available before the request timed out.
+     */
+    public PooledConnection acquire(RequestContext rc, boolean fresh) throws IOException {
+        String endpoint = rc.getRequestEndpoint();
+        String key = getKey(endpoint);
+        long now = System.currentTimeMillis();
+        long deadline = now + (rc.getTimeout() > 0 ? rc.getTimeout() : DEFAULT_WAIT);
+        List<PooledConnection> dead = new ArrayList<PooledConnection>();
+        PeerProperties props;
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("connection pool is closed");
+                }
+                props = this.props;
+                idle.sweep(now, dead);
+                while (true) {
+                    PooledConnection conn;
+                    while (!fresh && (conn = idle.take(key, now, dead)) != null) {
+                        if (isHealthy(conn)) {
+                            lease(key);
+                            conn.lend();
+                            ConnectionStats.getStats().onReused();
+                            return conn;
+                        }
+                        evict(conn, dead);
+                    }
+                    if (maxPerHost <= 0 || getLeased(key) + idle.size(key) < maxPerHost) {
+                        break;
+                    }
+                    if (idle.evictOldest(key, dead)) {
+                        // made room for a fresh connection
+                        continue;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("no connection to " + key + " became available. " + getLeased(key) + " are in use");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted waiting for a connection to " + key);
+                    }
+                    now = System.currentTimeMillis();
+                }
+                // reserve the place while connecting
+                lease(key);
+            }
+        } finally {
+            close(dead);
+        }
+        try {
+            PooledConnection conn = new PooledConnection(key, new HttpConnection(endpoint, rc, props));
+            ConnectionStats.getStats().onCreated();
+            conn.lend();
+            return conn;
+        } catch (IOException e) {
+            synchronized (this) {
+                unlease(key);
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * hand back a connection.
+     *
+     * @param conn
+     * @param reuse true if the whole response has been read and the connection may carry another request.
+     */
+    public void release(PooledConnection conn, boolean reuse) {
+        List<PooledConnection> dead = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            if (!conn.lent) {
+                return;
+            }
+            conn.lent = false;
+            unlease(conn.key);
+            if (reuse && !closed && !conn.isClosed()) {
+                idle.add(conn.key, conn, System.currentTimeMillis(), dead);
+            } else {
+                dead.add(conn);
+            }
+            notifyAll();
+        }
+        close(dead);
+    }
+
+    /**
+     * @return the number of connections that are lent out.
+     */
+    public synchronized int getLeased() {
+        int count = 0;
+        for (Host host : hosts.values()) {
+            count += host.leased;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of idle connections held.
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * closes the idle connections. Connections that are lent out are closed when they are handed back.
+     */
+    public void close() {
+        List<PooledConnection> dead = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            closed = true;
+            idle.clear(dead);
+            notifyAll();
+        }
+        close(dead);
+    }
+
+    private int getLeased(String key) {
+        Host host = hosts.get(key);
+        return host == null ? 0 : host.leased;
+    }
+
+    private void lease(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host();
+            hosts.put(key, host);
+        }
+        host.leased++;
+    }
+
+    /**
+     * a host is forgotten once none of its connections is lent out. Its idle connections are held by IdleConnections.
+     *
+     * @param key
+     */
+    private void unlease(String key) {
+        Host host = hosts.get(key);
+        if (host != null && --host.leased <= 0) {
+            hosts.remove(key);
+        }
+    }
+
+    private boolean isHealthy(PooledConnection conn) {
+        int maxReuse = props == null ? 0 : props.getMaxConnectionReuse();
+        if (maxReuse > 0 && conn.uses >= maxReuse) {
+            return false;
+        }
+        try {
+            // nothing should arrive on an idle connection. If anything has, it is left over or the server is closing it
+            return conn.getInputStream().available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evict(PooledConnection conn, List<PooledConnection> dead) {
+        log.fine("evicting connection to " + conn.key);
+        ConnectionStats.getStats().onEvicted();
+        dead.add(conn);
+    }
+
+    private void close(List<PooledConnection> dead) {
+        for (PooledConnection conn : dead) {
+            conn.closeConnection();
+        }
+    }
+
+    static String getKey(String endpoint) throws IOException {
+        try {
+            URI uri = new URI(endpoint);
+            return uri.getScheme() + "://" + uri.getAuthority();
+        } catch (URISyntaxException e) {
+            throw new IOException("bad endpoint:" + endpoint);
+        }
+    }
+
+    private static class Host {
+        private int leased = 0;
+    }
+
+    /**
+     * A connection lent out by the pool.
+     * HttpPeer closes its connection when it has finished with a request, even though the body of a streamed response
+     * may not have been read yet, so close() here does nothing. The connection is closed,
+     * or kept, when it is handed back to the pool.
+     */
+    public static class PooledConnection implements Connection, IdleConnections.Idle {
+
+        private String key;
+        private Connection conn;
+        private boolean lent = false;
+        private int uses = 0;
+
+        private PooledConnection(String key, Connection conn) {
+            this.key = key;
+            this.conn = conn;
+        }
+
+        private void lend() {
+            lent = true;
+            uses++;
+        }
+
+        public String getEndpoint() {
+            return conn.getEndpoint();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return conn.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return conn.getOutputStream();
+        }
+
+        public void close() throws IOException {
+        }
+
+        public boolean isClosed() {
+            return conn.isClosed();
+        }
+
+        public String getId() {
+            return conn.getId();
+        }
+
+        public ConnectionContext getConnectionContext() {
+            return conn.getConnectionContext();
+        }
+
+        /**
+         * @return true if the connection has carried a request before this one.
+         */
+        public boolean isReused() {
+            return uses > 1;
+        }
+
+        private void closeConnection() {
+            try {
+                conn.close();
+            } catch (IOException e) {
+                log.fine("error closing connection to " + key + ":" + e.getMessage());
+            }
+        }
+    }
+}
@@ -83,7 +83,7 @@ public class DataHandler {
         } else if (data instanceof String) {
             s = new StreamableString((String) data, mime);
         } else if (data instanceof File) {
-            s = new StreamableRandomAccessFile((File) data, mime);
+            s = new StreamableFileChannel((File) data, mime);
         } else if (data instanceof Streamable) {
             s = (Streamable) data;
         } else if (data instanceof Serializable) {
@@ -18,6 +18,7 @@ package org.atticfs.impl.channel.http;
 
 import org.atticfs.Attic;
 import org.atticfs.channel.*;
+import org.atticfs.config.download.DownloadConfig;
 import org.atticfs.config.security.Keystore;
 import org.atticfs.config.security.SecurityChangeEvent;
 import org.atticfs.config.security.SecurityChangeListener;
@@ -35,7 +36,7 @@ import java.util.List;
 import java.util.Random;
 
 /**
- * Class Description Here...
+ * Creates HTTP channels. All the clients it creates share one connection pool.
  *
  * 
  */
@@ -44,28 +45,47 @@ public class HttpChannelFactory extends ChannelFactory implements SecurityChange
 
     private HttpPeer peer;
     private PeerProperties props;
+    private ConnectionPool pool;
 
     public HttpChannelFactory() {
         props = new PeerProperties();
+        DownloadConfig dc = new DownloadConfig();
+        pool = new ConnectionPool(dc.getConnectionIdleTime(), getMaxIdle(dc), dc.getMaxHostConnections());
+    }
+
+    /**
+     * @param dc
+     * @return the number of idle connections a client should keep per host.
+     */
+    public static int getMaxIdle(DownloadConfig dc) {
+        return dc.getMaxEndpointConnections() > 0 ? dc.getMaxEndpointConnections() : dc.getMaxFileConnections();
+    }
+
+    /**
+     * @return the pool of client connections shared by the channels this factory creates.
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
     private synchronized HttpPeer getPeer() {
         if (peer == null) {
             peer = new HttpPeer();
+            pool.setProperties(peer.getPeerProperties());
         }
         return peer;
     }
 
     @Override
     public OutChannel createOutChannel(ChannelProperties properties) throws IOException {
-        HttpClient client = new HttpClient(getPeer());
+        HttpClient client = new HttpClient(getPeer(), pool);
         client.open(properties);
         return client;
     }
 
     @Override
     public OutChannel createOutChannel() throws IOException {
-        return new HttpClient(getPeer());
+        return new HttpClient(getPeer(), pool);
     }
 
     @Override
@@ -89,7 +109,9 @@ public class HttpChannelFactory extends ChannelFactory implements SecurityChange
         }
         SecurityConfig config = attic.getSecurityConfig();
         props.setHttps(config.isSecure());
-        props.setConnectionIdleTimeout(attic.getDownloadConfig().getConnectionIdleTime());
+        DownloadConfig dc = attic.getDownloadConfig();
+        props.setConnectionIdleTimeout(dc.getConnectionIdleTime());
+        pool.setLimits(dc.getConnectionIdleTime(), getMaxIdle(dc), dc.getMaxHostConnections());
         SecurityContext sc = new SecurityContext(attic.getHomeDir() + File.separator + "sec");
         sc.setRequireClientAuth(config.isRequireClientAuthentication());
         List<Keystore> keystores = config.getKeystores();
@@ -134,6 +156,7 @@ public class HttpChannelFactory extends ChannelFactory implements SecurityChange
         }
         DataHandler.setSerializer(ser);
         peer = new HttpPeer(props);
+        pool.setProperties(props);
     }
 
     public void securityChangeHappened(SecurityChangeEvent event) {
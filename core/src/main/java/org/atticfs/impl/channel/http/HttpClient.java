@@ -16,13 +16,19 @@
 
 package org.atticfs.impl.channel.http;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.atticfs.channel.ChannelData;
 import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.MultipartRangeInputStream;
 import org.atticfs.channel.OutChannel;
+import org.atticfs.impl.channel.http.ConnectionPool.PooledConnection;
 import org.atticfs.protocol.AtticProtocol;
+import org.atticfs.stats.ConnectionStats;
 import org.atticfs.types.Endpoint;
 import org.wspeer.http.ByteRange;
 import org.wspeer.http.Http;
@@ -41,16 +47,30 @@ import org.wspeer.streamable.Streamable;
  * 4. Streamable
  * 5. Serializable
  * 6. File
+ * <p/>
+ * If the client is given a connection pool, each request borrows a connection from it. The connection goes back
+ * to the pool once the response has been read, or, for a streamed response, when the stream is closed.
  *
  * 
  */
 
 public class HttpClient implements OutChannel {
 
+    // how much of an unread streamed response is read and thrown away so its connection can be reused
+    private static final long MAX_DRAIN = 64 * 1024;
+    // the zero length chunk and empty trailer that end a chunked body
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
     private HttpPeer peer;
+    private ConnectionPool pool;
 
     public HttpClient(HttpPeer peer) {
+        this(peer, null);
+    }
+
+    public HttpClient(HttpPeer peer, ConnectionPool pool) {
         this.peer = peer;
+        this.pool = pool;
     }
 
     public void open(ChannelProperties properties) throws IOException {
@@ -95,20 +115,64 @@ public class HttpClient implements OutChannel {
         if (context.getResponseType() != null && InputStream.class.isAssignableFrom(context.getResponseType())) {
             rc.setDirectStream(true);
         }
-        if (context.getByteRange() != null) {
+        boolean multiRange = context.getByteRanges() != null && context.getByteRanges().size() > 1;
+        if (multiRange) {
+            List<ByteRange> ranges = new ArrayList<ByteRange>();
+            for (org.atticfs.channel.ByteRange range : context.getByteRanges()) {
+                ranges.add(new ByteRange(range.getStartOffset(), range.getEndOffset()));
+            }
+            rc.setRequestRanges(ranges);
+            rc.setDirectStream(true);
+        } else if (context.getByteRange() != null) {
             rc.setRequestRange(new ByteRange(context.getByteRange().getStartOffset(), context.getByteRange().getEndOffset()));
         }
         if (context.getAcceptedMimeTypes() != null) {
             rc.setAcceptedMedia(context.getAcceptedMimeTypes());
         }
+        if (context.getIfNoneMatch() != null) {
+            rc.setRequestHeader(Http.IF_NONE_MATCH, "\"" + context.getIfNoneMatch() + "\"");
+        }
         rc.setMaxRetries(context.getConnectionRetryCount());
         rc.setCompress(context.isUseCompression());
         rc.setKeepAlive(!context.isCloseOnFinish());
-        Response response = invoke(rc, action);
-        if (response == null) {
-            throw new IOException("could not invoke endpoint:" + endpoint + " with action:" +
-                    action + " and " + (data == null ? "no data" : "data:" + data));
+        Response response;
+        PooledConnection conn = null;
+        if (pool == null) {
+            response = invoke(rc, action);
+        } else {
+            response = invokePooled(rc, action, context.getConnectionRetryCount());
+            conn = (PooledConnection) rc.getConnection();
         }
+        try {
+            if (response == null) {
+                throw new IOException("could not invoke endpoint:" + endpoint + " with action:" +
+                        action + " and " + (data == null ? "no data" : "data:" + data));
+            }
+            boolean reuse = conn != null && isReusable(rc, response);
+            if (handleResponse(context, rc, response, multiRange, conn, reuse)) {
+                conn = null;
+            } else if (conn != null) {
+                // a streamed body that was not handed out as a stream has been read to the end, or not at all
+                pool.release(conn, reuse && !rc.isDirectStream());
+                conn = null;
+            }
+        } finally {
+            if (conn != null) {
+                pool.release(conn, false);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * fills in the context from the response.
+     *
+     * @return true if the response data is a stream that hands the connection back to the pool when it is closed.
+     * @throws Exception
+     */
+    private boolean handleResponse(ChannelData context, RequestContext rc, Response response, boolean multiRange,
+                                   PooledConnection conn, boolean reuse) throws Exception {
+        boolean handedOff = false;
         long start = rc.getOutStartTime();
         long end = rc.getOutEndTime();
         if (start > 0 && end > 0) {
@@ -121,6 +185,7 @@ public class HttpClient implements OutChannel {
         }
         context.setOutcome(getOutcomeForStatus(response));
         context.setOutcomeDetail(response.getOutcome());
+        context.setEntityTag(ChannelData.parseEntityTag(rc.getResponseHeader(Http.ETAG)));
         if (context.getOutcome() != ChannelData.Outcome.OK) {
             context.setResponseType(String.class);
         }
@@ -137,7 +202,22 @@ public class HttpClient implements OutChannel {
         if (res != null) {
             Streamable respData = res.getStreamable();
             if (respData != null) {
-                context.setResponseData(DataHandler.getResponseObject(context.getResponseType(), respData));
+                String boundary = MultipartRangeInputStream.getBoundary(response.getContext().getResponseHeader(Http.CONTENT_TYPE));
+                if (multiRange && boundary != null && context.getOutcome() == ChannelData.Outcome.OK) {
+                    InputStream in = respData.getInputStream();
+                    if (conn != null) {
+                        in = new ReleasingInputStream(in, rc, conn, reuse);
+                        handedOff = true;
+                    }
+                    context.setResponseData(new MultipartRangeInputStream(in, boundary));
+                } else {
+                    Object obj = DataHandler.getResponseObject(context.getResponseType(), respData);
+                    if (conn != null && rc.isDirectStream() && obj instanceof InputStream) {
+                        obj = new ReleasingInputStream((InputStream) obj, rc, conn, reuse);
+                        handedOff = true;
+                    }
+                    context.setResponseData(obj);
+                }
             }
         }
         if (rc.getOutDataLength() > 0) {
@@ -146,11 +226,86 @@ public class HttpClient implements OutChannel {
         if (rc.getInDataLength() > 0) {
             context.setBytesReceived(rc.getInDataLength());
         }
-        return context;
+        return handedOff;
+    }
+
+    /**
+     * sends the request on a connection from the pool.
+     * HttpPeer would retry on the same connection, so retries are made here instead, each on a new connection.
+     * A failure on a reused connection, which the server may have closed while it was idle,
+     * is retried once without counting against the retries.
+     */
+    private Response invokePooled(RequestContext rc, ChannelData.Action action, int maxRetries) throws IOException {
+        rc.setMaxRetries(0);
+        rc.setCacheConnection(false);
+        boolean fresh = false;
+        int retries = 0;
+        while (true) {
+            PooledConnection conn = pool.acquire(rc, fresh);
+            rc.setConnection(conn);
+            Response response;
+            try {
+                response = invoke(rc, action);
+            } catch (IOException e) {
+                pool.release(conn, false);
+                if (conn.isReused() && !fresh) {
+                    ConnectionStats.getStats().onEvicted();
+                    fresh = true;
+                } else if (retries < maxRetries) {
+                    retries++;
+                } else {
+                    throw e;
+                }
+                log.fine("retrying request to " + rc.getRequestEndpoint() + " after:" + e.getMessage());
+                rc.reset();
+                rc.setConnection(null);
+                continue;
+            }
+            if (response == null) {
+                pool.release(conn, false);
+                return null;
+            }
+            if (response.getOutcomeType() == Http.StatusType.EXCEPTION && conn.isReused() && !fresh) {
+                pool.release(conn, false);
+                ConnectionStats.getStats().onEvicted();
+                fresh = true;
+                rc.reset();
+                rc.setConnection(null);
+                continue;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * a connection can carry another request if the server will keep it open and the end of the response body
+     * can be found without the server closing the connection.
+     */
+    private boolean isReusable(RequestContext rc, Response response) {
+        if (response.getOutcomeType() != Http.StatusType.SUCCESS || !rc.isKeepAlive()) {
+            return false;
+        }
+        String connection = rc.getResponseHeader(Http.CONNECTION);
+        if (connection != null && connection.equalsIgnoreCase("close")) {
+            return false;
+        }
+        if (!rc.isDirectStream() || rc.getResponseHeader(Http.CONTENT_LENGTH) != null) {
+            return true;
+        }
+        return isChunked(rc);
+    }
+
+    private static boolean isChunked(RequestContext rc) {
+        String encoding = rc.getResponseHeader("Transfer-Encoding");
+        return encoding != null && encoding.equalsIgnoreCase("chunked");
     }
 
     private ChannelData.Outcome getOutcomeForStatus(Response response) {
         Http.StatusType status = response.getOutcomeType();
+        Integer code = response.getContext().getResponseCode();
+        if (code != null && code == 304) {
+            return ChannelData.Outcome.NOT_MODIFIED;
+        }
         if (status == Http.StatusType.SUCCESS) {
             return ChannelData.Outcome.OK;
         } else if (status == Http.StatusType.CLIENT_ERROR) {
@@ -184,5 +339,106 @@ public class HttpClient implements OutChannel {
         peer.close();
     }
 
+    /**
+     * Hands the connection back to the pool when a streamed response body is closed.
+     * If the reader stopped early, a small remainder of the body is read and thrown away so the connection
+     * can be reused. Closing the stream while another thread is reading from it closes the connection.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+
+        private PooledConnection conn;
+        private boolean reuse;
+        // a decompressing stream ends with the compressed data and never reads the last chunk of a chunked body
+        private boolean lastChunk;
+        private volatile int reading = 0;
+        private boolean released = false;
+
+        private ReleasingInputStream(InputStream in, RequestContext rc, PooledConnection conn, boolean reuse) {
+            super(in);
+            this.conn = conn;
+            this.reuse = reuse;
+            String coding = rc.getResponseHeader("Content-Encoding");
+            this.lastChunk = isChunked(rc) && coding != null && !coding.equalsIgnoreCase("identity");
+        }
+
+        public int read() throws IOException {
+            reading++;
+            try {
+                return super.read();
+            } finally {
+                reading--;
+            }
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            reading++;
+            try {
+                return super.read(b, off, len);
+            } finally {
+                reading--;
+            }
+        }
+
+        public long skip(long n) throws IOException {
+            reading++;
+            try {
+                return super.skip(n);
+            } finally {
+                reading--;
+            }
+        }
+
+        public void close() throws IOException {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            boolean ok = reuse && reading == 0 && drain();
+            try {
+                if (!ok) {
+                    super.close();
+                }
+            } finally {
+                pool.release(conn, ok);
+            }
+        }
+
+        private boolean drain() {
+            try {
+                byte[] b = new byte[4096];
+                long total = 0;
+                while (total <= MAX_DRAIN) {
+                    int c = in.read(b);
+                    if (c < 0) {
+                        return !lastChunk || readLastChunk();
+                    }
+                    total += c;
+                }
+            } catch (IOException e) {
+                log.fine("could not read the rest of a response:" + e.getMessage());
+            }
+            return false;
+        }
+
+        /**
+         * reads the zero length chunk that ends a chunked body, straight off the connection.
+         * Anything other than exactly a zero size line and an empty line, e.g. a chunk extension or trailers,
+         * leaves the connection in a state we cannot be sure of, so it is not reused.
+         *
+         * @return true if the terminator was read as expected.
+         */
+        private boolean readLastChunk() throws IOException {
+            InputStream raw = conn.getInputStream();
+            for (int i = 0; i < LAST_CHUNK.length; i++) {
+                if (raw.read() != LAST_CHUNK[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
 
 }
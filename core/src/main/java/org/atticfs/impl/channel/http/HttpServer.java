@@ -16,6 +16,7 @@
 
 package org.atticfs.impl.channel.http;
 
+import org.atticfs.channel.ByteRange;
 import org.atticfs.channel.ChannelData;
 import org.atticfs.channel.ChannelProperties;
 import org.atticfs.channel.ChannelRequestHandler;
@@ -163,11 +164,14 @@ public class HttpServer extends AbstractTarget implements InChannel {
                 throw new RequestProcessException("Error occured", status);
             }
             context.setResponseCode(status);
+            if (cd.getEntityTag() != null) {
+                context.setResponseHeader(Http.ETAG, "\"" + cd.getEntityTag() + "\"");
+            }
             try {
                 if (cd.getResponseData() != null) {
                     Streamable s = DataHandler.getStreamableForData(cd.getResponseData(), cd.getMimeType(), context);
                     if (s != null) {
-                        context.setResponseEntity(s);
+                        context.setResponseEntity(multipart(context, cd.getResponseData(), s, status));
                     }
                 }
             } catch (Exception e) {
@@ -175,6 +179,28 @@ public class HttpServer extends AbstractTarget implements InChannel {
             }
         }
 
+        /**
+         * httpeer writes no body for a request with several ranges, so if a file is asked for
+         * with more than one range, the multipart/byteranges response is built here and
+         * the Range header is removed so httpeer sends the entity as it is.
+         *
+         * @return the entity to send
+         */
+        private Streamable multipart(RequestContext context, Object data, Streamable s, int status) {
+            if (status != 200 || !(data instanceof File)) {
+                return s;
+            }
+            File file = (File) data;
+            List<ByteRange> ranges = MultipartByteRanges.parseRanges(context.getRequestHeaders(Http.RANGE), file.length());
+            if (ranges == null || ranges.size() < 2) {
+                return s;
+            }
+            log.fine("serving " + ranges.size() + " ranges of " + file);
+            context.removeRequestHeader(Http.RANGE);
+            context.setResponseCode(206);
+            return new MultipartByteRanges(file, s.getMimeType(), ranges);
+        }
+
         public void onDelete(RequestContext context) throws org.wspeer.http.RequestProcessException {
             ChannelData.Action action = ChannelData.Action.DELETE;
             ChannelData cd = new ChannelData(action);
@@ -269,6 +295,7 @@ public class HttpServer extends AbstractTarget implements InChannel {
             cd.setRequestPath(context.getRequestPath());
             cd.setEndpoint(context.getRequestEndpoint());
             cd.setTarget(server.createTarget(context.getRequestTarget()));
+            cd.setIfNoneMatch(ChannelData.parseEntityTag(context.getRequestHeader(Http.IF_NONE_MATCH)));
             List<X509Certificate> local = context.getConnection().getConnectionContext().getLocalCertificates();
             if (local != null && local.size() > 0) {
                 cd.setLocalIdentity(new X509Identity(local));
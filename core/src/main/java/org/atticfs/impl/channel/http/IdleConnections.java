@@ -0,0 +1,258 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.impl.channel.http;
+
+import org.atticfs.stats.ConnectionStats;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The idle connections of a client, keyed by host, most recently used first.
+ * Used by the ConnectionPool of the blocking client and by the NioTransport, so both keep
+ * idle connections under the same rules: no more than maxIdle per host, none idle for longer
+ * than the idle timeout, and none that has been closed. A host with no idle connections is forgotten.
+ * <p/>
+ * Connections that are evicted are added to a list given by the caller, to be closed
+ * once the caller has let go of any lock. This class is not thread safe.
+ *
+ *
+ */
+
+public class IdleConnections<C extends IdleConnections.Idle> {
+
+    /**
+     * a connection that can be held idle.
+     */
+    public static interface Idle {
+
+        /**
+         * @return true if the connection can no longer be used.
+         */
+        public boolean isClosed();
+    }
+
+    private long idleTimeout;
+    private int maxIdle;
+    private int size = 0;
+    private Map<String, LinkedList<Entry<C>>> hosts = new HashMap<String, LinkedList<Entry<C>>>();
+
+    /**
+     * @param idleTimeout how long a connection may be idle before it is evicted
+     * @param maxIdle     the number of idle connections kept per host
+     */
+    public IdleConnections(long idleTimeout, int maxIdle) {
+        setLimits(idleTimeout, maxIdle);
+    }
+
+    public void setLimits(long idleTimeout, int maxIdle) {
+        this.idleTimeout = idleTimeout;
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    /**
+     * holds a connection that has finished a request. If the host already has maxIdle
+     * idle connections, the one that has been idle longest is evicted.
+     *
+     * @param key
+     * @param conn
+     * @param now
+     * @param dead evicted connections are added to this
+     * @return true if the connection is held
+     */
+    public boolean add(String key, C conn, long now, List<C> dead) {
+        if (maxIdle == 0 || conn.isClosed()) {
+            evict(conn, dead);
+            return false;
+        }
+        LinkedList<Entry<C>> list = hosts.get(key);
+        if (list == null) {
+            list = new LinkedList<Entry<C>>();
+            hosts.put(key, list);
+        }
+        list.addFirst(new Entry<C>(conn, now));
+        size++;
+        if (list.size() > maxIdle) {
+            size--;
+            evict(list.removeLast().conn, dead);
+        }
+        return true;
+    }
+
+    /**
+     * takes the most recently used connection to a host that is open and has not been idle too long.
+     * Those passed over are evicted.
+     *
+     * @param key
+     * @param now
+     * @param dead
+     * @return the connection or null if there is none
+     */
+    public C take(String key, long now, List<C> dead) {
+        LinkedList<Entry<C>> list = hosts.get(key);
+        if (list == null) {
+            return null;
+        }
+        C found = null;
+        while (found == null && list.size() > 0) {
+            Entry<C> entry = list.removeFirst();
+            size--;
+            if (isUsable(entry, now)) {
+                found = entry.conn;
+            } else {
+                evict(entry.conn, dead);
+            }
+        }
+        if (list.size() == 0) {
+            hosts.remove(key);
+        }
+        return found;
+    }
+
+    /**
+     * evicts the connection to a host that has been idle longest, e.g. to make room for a new one.
+     *
+     * @param key
+     * @param dead
+     * @return true if there was one
+     */
+    public boolean evictOldest(String key, List<C> dead) {
+        LinkedList<Entry<C>> list = hosts.get(key);
+        if (list == null) {
+            return false;
+        }
+        size--;
+        evict(list.removeLast().conn, dead);
+        if (list.size() == 0) {
+            hosts.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * forgets an idle connection without closing it, e.g. one the caller has found closed.
+     *
+     * @param key
+     * @param conn
+     * @return true if it was held
+     */
+    public boolean remove(String key, C conn) {
+        LinkedList<Entry<C>> list = hosts.get(key);
+        if (list == null) {
+            return false;
+        }
+        boolean removed = false;
+        Iterator<Entry<C>> it = list.iterator();
+        while (it.hasNext()) {
+            if (it.next().conn == conn) {
+                it.remove();
+                size--;
+                removed = true;
+                break;
+            }
+        }
+        if (list.size() == 0) {
+            hosts.remove(key);
+        }
+        return removed;
+    }
+
+    /**
+     * evicts the connections that are closed or have been idle too long.
+     *
+     * @param now
+     * @param dead
+     */
+    public void sweep(long now, List<C> dead) {
+        Iterator<LinkedList<Entry<C>>> lists = hosts.values().iterator();
+        while (lists.hasNext()) {
+            LinkedList<Entry<C>> list = lists.next();
+            Iterator<Entry<C>> it = list.iterator();
+            while (it.hasNext()) {
+                Entry<C> entry = it.next();
+                if (!isUsable(entry, now)) {
+                    it.remove();
+                    size--;
+                    evict(entry.conn, dead);
+                }
+            }
+            if (list.size() == 0) {
+                lists.remove();
+            }
+        }
+    }
+
+    /**
+     * lets go of all the idle connections, adding them to the list to be closed.
+     *
+     * @param dead
+     */
+    public void clear(List<C> dead) {
+        for (LinkedList<Entry<C>> list : hosts.values()) {
+            for (Entry<C> entry : list) {
+                dead.add(entry.conn);
+            }
+        }
+        hosts.clear();
+        size = 0;
+    }
+
+    /**
+     * @param key
+     * @return the number of idle connections to a host.
+     */
+    public int size(String key) {
+        LinkedList<Entry<C>> list = hosts.get(key);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * @return the number of idle connections.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of hosts with idle connections.
+     */
+    public int getHosts() {
+        return hosts.size();
+    }
+
+    private boolean isUsable(Entry<C> entry, long now) {
+        return !entry.conn.isClosed() && now - entry.since <= idleTimeout;
+    }
+
+    private void evict(C conn, List<C> dead) {
+        ConnectionStats.getStats().onEvicted();
+        dead.add(conn);
+    }
+
+    private static class Entry<C> {
+        private C conn;
+        private long since;
+
+        private Entry(C conn, long since) {
+            this.conn = conn;
+            this.since = since;
+        }
+    }
+}
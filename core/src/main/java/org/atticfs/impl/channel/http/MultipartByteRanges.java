@@ -0,0 +1,208 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.impl.channel.http;
+
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.MultipartRangeInputStream;
+import org.wspeer.streamable.AbstractStreamable;
+import org.wspeer.streamable.Streamable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multipart/byteranges entity made from several ranges of a file.
+ * httpeer only writes single range responses itself, so the server uses this
+ * for requests that ask for more than one range.
+ * Each part has its own Content-Type and Content-Range headers.
+ *
+ * 
+ */
+
+public class MultipartByteRanges extends AbstractStreamable {
+
+    private static final long serialVersionUID = 1L;
+
+    private File file;
+    private List<ByteRange> ranges;
+    private String boundary;
+    private List<byte[]> headers = new ArrayList<byte[]>();
+    private byte[] footer;
+    private long length;
+
+    public MultipartByteRanges(File file, String contentType, List<ByteRange> ranges) {
+        this(file, contentType, ranges, createBoundary());
+    }
+
+    private MultipartByteRanges(File file, String contentType, List<ByteRange> ranges, String boundary) {
+        super(MultipartRangeInputStream.MULTIPART_BYTERANGES + "; boundary=" + boundary);
+        this.file = file;
+        this.ranges = ranges;
+        this.boundary = boundary;
+        long total = file.length();
+        for (ByteRange range : ranges) {
+            byte[] header = ascii("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes " + range.getStartOffset() + "-" + range.getEndOffset() + "/" + total + "\r\n\r\n");
+            headers.add(header);
+            length += header.length + range.getEndOffset() - range.getStartOffset() + 1;
+        }
+        footer = ascii("\r\n--" + boundary + "--\r\n");
+        length += footer.length;
+    }
+
+    private static String createBoundary() {
+        return "attic" + Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+
+    /**
+     * parses the values of Range request headers against an entity of the given length.
+     * The values may have been split on commas, so they are joined before parsing.
+     * Ranges that start beyond the end of the entity are dropped and open ranges are closed at the end.
+     *
+     * @param values
+     * @param total  the length of the entity
+     * @return the ranges in the order asked for, or null if the header is missing or malformed.
+     */
+    public static List<ByteRange> parseRanges(List<String> values, long total) {
+        if (values == null || values.size() == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(value.trim());
+        }
+        String s = sb.toString();
+        if (!s.toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        String[] specs = s.substring("bytes=".length()).split(",");
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                if (spec.length() == 0) {
+                    continue;
+                }
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String from = spec.substring(0, dash).trim();
+                String to = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (from.length() == 0) {
+                    // suffix range - the last n bytes
+                    long n = Long.parseLong(to);
+                    if (n <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, total - n);
+                    end = total - 1;
+                } else {
+                    start = Long.parseLong(from);
+                    end = total - 1;
+                    if (to.length() > 0) {
+                        long last = Long.parseLong(to);
+                        if (last < start) {
+                            return null;
+                        }
+                        end = Math.min(last, end);
+                    }
+                }
+                if (start >= total) {
+                    continue;
+                }
+                ranges.add(new ByteRange(start, end, total));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    public Object getContent() {
+        return file;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("MultipartByteRanges can only be written to a stream");
+    }
+
+    public ReadableByteChannel getInputChannel() throws IOException {
+        throw new IOException("MultipartByteRanges can only be written to a stream");
+    }
+
+    public boolean hasInputStream() {
+        return false;
+    }
+
+    public long writeTo(OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        long written = 0;
+        try {
+            FileChannel channel = in.getChannel();
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                byte[] header = headers.get(i);
+                out.write(header);
+                written += header.length;
+                long len = range.getEndOffset() - range.getStartOffset() + 1;
+                StreamableFileChannel.transfer(channel, range.getStartOffset(), len, out);
+                written += len;
+            }
+            out.write(footer);
+            written += footer.length;
+            out.flush();
+        } finally {
+            in.close();
+        }
+        return written;
+    }
+
+    public long readFrom(Streamable streamable) throws IOException {
+        throw new IOException("MultipartByteRanges is read only");
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+}
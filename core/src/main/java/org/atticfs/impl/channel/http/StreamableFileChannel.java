@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.impl.channel.http;
+
+import org.atticfs.util.BufferPool;
+import org.wspeer.streamable.StreamableRandomAccessFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A file whose ranges are written a buffer at a time, or with FileChannel.transferTo, rather than read into an array first.
+ * httpeer writes a single range response by asking for the whole range at once, and StreamableRandomAccessFile
+ * answers that with an array the size of the range.
+ * <p/>
+ * If the stream has a channel, as a file stream or a stream that is itself a channel does, the bytes
+ * are handed to it with FileChannel.transferTo so the kernel copies them. httpeer's sockets are plain
+ * sockets without channels, so for those the range is copied through a buffer from the BufferPool.
+ * Compressed responses are left to StreamableRandomAccessFile, as httpeer already asks for those
+ * a buffer at a time.
+ *
+ *
+ */
+
+public class StreamableFileChannel extends StreamableRandomAccessFile {
+
+    private static final long serialVersionUID = 1L;
+
+    private File file;
+
+    public StreamableFileChannel(File file, String mime) {
+        super(file, mime);
+        this.file = file;
+    }
+
+    public StreamableFileChannel(File file) {
+        super(file);
+        this.file = file;
+    }
+
+    /**
+     * @param out
+     * @param start  the offset of the first byte
+     * @param length the number of bytes
+     * @return the number of bytes written, or -1 if the range is not in the file.
+     * @throws IOException
+     */
+    public long writeTo(OutputStream out, long start, long length) throws IOException {
+        if (out instanceof DeflaterOutputStream) {
+            return super.writeTo(out, start, length);
+        }
+        long total = file.length();
+        if (start < 0 || length < 0 || start >= total || start + length > total) {
+            return -1;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            transfer(in.getChannel(), start, length, out);
+            out.flush();
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+    /**
+     * writes a range of a file to a stream. The stream is not closed.
+     *
+     * @param channel
+     * @param start   the offset of the first byte
+     * @param length  the number of bytes
+     * @param out
+     * @throws IOException if the file ends before the range does.
+     */
+    static void transfer(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = null;
+        if (out instanceof WritableByteChannel) {
+            target = (WritableByteChannel) out;
+        } else if (out instanceof FileOutputStream) {
+            target = ((FileOutputStream) out).getChannel();
+        }
+        long pos = start;
+        long end = start + length;
+        if (target != null) {
+            while (pos < end) {
+                long c = channel.transferTo(pos, end - pos, target);
+                if (c <= 0) {
+                    throw new IOException("unexpected end of file at " + pos);
+                }
+                pos += c;
+            }
+            return;
+        }
+        byte[] buf = BufferPool.getPool().take();
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (pos < end) {
+                bb.clear();
+                bb.limit((int) Math.min(buf.length, end - pos));
+                int c = channel.read(bb, pos);
+                if (c <= 0) {
+                    throw new IOException("unexpected end of file at " + pos);
+                }
+                out.write(buf, 0, c);
+                pos += c;
+            }
+        } finally {
+            BufferPool.getPool().give(buf);
+        }
+    }
+}
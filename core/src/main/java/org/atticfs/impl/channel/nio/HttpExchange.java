@@ -0,0 +1,566 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.impl.channel.nio;
+
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFuture;
+import org.atticfs.channel.MultipartRangeInputStream;
+import org.atticfs.impl.channel.http.DataHandler;
+import org.atticfs.types.Endpoint;
+import org.wspeer.streamable.StreamableData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single GET request and the parsing of its response, driven by the NioTransport.
+ * The body of a successful response goes into the context's response channel, response buffer or output file
+ * if one is set. Otherwise it is held in memory and turned into response data of the requested type.
+ *
+ * 
+ */
+class HttpExchange {
+
+    private static enum State {
+        STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, DONE
+    }
+
+    private ChannelData context;
+    private ChannelFuture future;
+    private String host;
+    private int port;
+    private ByteBuffer request;
+    private int attempts = 0;
+
+    private State state = State.STATUS;
+    private StringBuilder line = new StringBuilder();
+    private int status = -1;
+    private String reason = "";
+    private Map<String, String> headers = new HashMap<String, String>();
+    private long remaining = -1;
+    private boolean keepAlive = true;
+    private long received = 0;
+    private long bodyLength = 0;
+
+    private FileChannel channel;
+    private long position;
+    private RandomAccessFile outputFile;
+    private boolean toFile = false;
+    private ByteBuffer buffer;
+    private ByteArrayOutputStream memory;
+    private boolean discard = false;
+
+    private long outStart = -1;
+    private long outEnd = -1;
+    private long inStart = -1;
+    private long lastActivity;
+
+    HttpExchange(ChannelData context, ChannelFuture future) throws IOException {
+        this.context = context;
+        this.future = future;
+        Endpoint endpoint = context.getEndpoint();
+        this.host = endpoint.getAddress();
+        this.port = endpoint.getPort() > -1 ? endpoint.getPort() : 80;
+        this.request = ByteBuffer.wrap(createRequest(endpoint).getBytes("ISO-8859-1"));
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    ChannelData getContext() {
+        return context;
+    }
+
+    ChannelFuture getFuture() {
+        return future;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getKey() {
+        return host + ":" + port;
+    }
+
+    ByteBuffer getRequest() {
+        return request;
+    }
+
+    /**
+     * @return true if the request may be sent again on a new connection.
+     */
+    boolean retry() {
+        attempts++;
+        if (attempts > Math.max(0, context.getConnectionRetryCount()) || received > 0) {
+            return false;
+        }
+        request.rewind();
+        return true;
+    }
+
+    boolean hasReceived() {
+        return received > 0;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && !context.isCloseOnFinish();
+    }
+
+    /**
+     * @param now
+     * @return true if the context's timeout has passed since anything was last sent or received.
+     */
+    boolean isTimedOut(long now) {
+        return context.getTimeout() > 0 && now - lastActivity > context.getTimeout();
+    }
+
+    void onConnect() {
+        outStart = System.currentTimeMillis();
+        lastActivity = outStart;
+    }
+
+    void onSent() {
+        outEnd = System.currentTimeMillis();
+        lastActivity = outEnd;
+    }
+
+    /**
+     * consumes response bytes.
+     *
+     * @param in
+     * @return true if the response is complete.
+     * @throws IOException
+     */
+    boolean onData(ByteBuffer in) throws IOException {
+        long now = System.currentTimeMillis();
+        if (inStart < 0) {
+            inStart = now;
+        }
+        lastActivity = now;
+        received += in.remaining();
+        while (in.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case STATUS:
+                    if (readLine(in)) {
+                        parseStatus(takeLine());
+                        state = State.HEADERS;
+                    }
+                    break;
+                case HEADERS:
+                    if (readLine(in)) {
+                        String header = takeLine();
+                        if (header.length() == 0) {
+                            startBody();
+                        } else {
+                            int colon = header.indexOf(':');
+                            if (colon > 0) {
+                                headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+                            }
+                        }
+                    }
+                    break;
+                case BODY:
+                    int n = remaining < 0 ? in.remaining() : (int) Math.min(in.remaining(), remaining);
+                    body(in, n);
+                    if (remaining > 0) {
+                        remaining -= n;
+                        if (remaining == 0) {
+                            state = State.DONE;
+                        }
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        String size = takeLine();
+                        int semi = size.indexOf(';');
+                        if (semi > -1) {
+                            size = size.substring(0, semi);
+                        }
+                        try {
+                            remaining = Long.parseLong(size.trim(), 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("bad chunk size:" + size);
+                        }
+                        state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    int c = (int) Math.min(in.remaining(), remaining);
+                    body(in, c);
+                    remaining -= c;
+                    if (remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(in)) {
+                        takeLine();
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILER:
+                    if (readLine(in)) {
+                        if (takeLine().length() == 0) {
+                            state = State.DONE;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (state == State.DONE) {
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * the connection was closed by the server.
+     *
+     * @throws IOException if the response was not complete.
+     */
+    void onClosed() throws IOException {
+        if (state == State.BODY && remaining < 0) {
+            keepAlive = false;
+            state = State.DONE;
+            finish();
+            return;
+        }
+        throw new IOException("connection closed before the response was complete");
+    }
+
+    /**
+     * releases anything opened for the body. Called whether or not the exchange succeeded.
+     */
+    void close() {
+        if (outputFile != null) {
+            try {
+                outputFile.close();
+            } catch (IOException e) {
+            }
+            outputFile = null;
+        }
+    }
+
+    private String createRequest(Endpoint endpoint) throws IOException {
+        String target;
+        try {
+            String path = endpoint.getPath();
+            if (path == null || path.length() == 0) {
+                path = "/";
+            }
+            target = new URI(null, null, path, endpoint.getQuery(), null).toASCIIString();
+        } catch (URISyntaxException e) {
+            throw new IOException("bad endpoint " + endpoint + ": " + e.getMessage());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(target).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (endpoint.getPort() > -1) {
+            sb.append(":").append(endpoint.getPort());
+        }
+        sb.append("\r\n");
+        String range = createRange();
+        if (range != null) {
+            sb.append("Range: ").append(range).append("\r\n");
+        }
+        List<String> accepted = context.getAcceptedMimeTypes();
+        if (accepted != null && accepted.size() > 0) {
+            sb.append("Accept: ");
+            for (int i = 0; i < accepted.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(accepted.get(i));
+            }
+            sb.append("\r\n");
+        }
+        if (context.getIfNoneMatch() != null) {
+            sb.append("If-None-Match: \"").append(context.getIfNoneMatch()).append("\"\r\n");
+        }
+        sb.append("Accept-Encoding: identity\r\n");
+        sb.append("Connection: ").append(context.isCloseOnFinish() ? "close" : "keep-alive").append("\r\n");
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+    private String createRange() {
+        List<ByteRange> ranges = context.getByteRanges();
+        if (ranges != null && ranges.size() > 1) {
+            StringBuilder sb = new StringBuilder("bytes=");
+            for (int i = 0; i < ranges.size(); i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(ranges.get(i).getStartOffset()).append("-").append(ranges.get(i).getEndOffset());
+            }
+            return sb.toString();
+        }
+        ByteRange range = context.getByteRange();
+        if (range != null) {
+            return "bytes=" + range.getStartOffset() + "-" + range.getEndOffset();
+        }
+        return null;
+    }
+
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char ch = (char) (in.get() & 0xff);
+            if (ch == '\n') {
+                return true;
+            }
+            if (ch != '\r') {
+                line.append(ch);
+                if (line.length() > 8192) {
+                    throw new IOException("response line too long");
+                }
+            }
+        }
+        return false;
+    }
+
+    private String takeLine() {
+        String s = line.toString();
+        line.setLength(0);
+        return s;
+    }
+
+    private void parseStatus(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line:" + statusLine);
+        }
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line:" + statusLine);
+        }
+        reason = parts.length > 2 ? parts[2] : "";
+        if (parts[0].equals("HTTP/1.0")) {
+            keepAlive = false;
+        }
+    }
+
+    private void startBody() throws IOException {
+        String connection = headers.get("connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                keepAlive = false;
+            } else if (connection.equalsIgnoreCase("keep-alive")) {
+                keepAlive = true;
+            }
+        }
+        String encoding = headers.get("transfer-encoding");
+        String length = headers.get("content-length");
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+            state = State.CHUNK_SIZE;
+        } else if (length != null) {
+            try {
+                remaining = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad content length:" + length);
+            }
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else if (status == 204 || status == 304 || (status >= 100 && status < 200)) {
+            state = State.DONE;
+        } else {
+            // read until the server closes the connection
+            keepAlive = false;
+            state = State.BODY;
+        }
+        openSink();
+    }
+
+    /**
+     * decides where the body goes. Only the body of a successful response that is what was asked for
+     * goes to the context's channel, buffer or file.
+     *
+     * @throws IOException
+     */
+    private void openSink() throws IOException {
+        boolean ok = status >= 200 && status < 300;
+        boolean ranged = context.getByteRange() != null || context.getByteRanges() != null;
+        boolean target = context.getResponseChannel() != null || context.getResponseBuffer() != null;
+        if (ok && ranged && target && status != 206) {
+            // the whole entity came back. Writing it at the requested position would corrupt the target.
+            discard = true;
+            return;
+        }
+        if (ok && context.getResponseChannel() != null) {
+            channel = context.getResponseChannel();
+            position = context.getResponseChannelPosition();
+        } else if (ok && context.getResponseBuffer() != null) {
+            buffer = context.getResponseBuffer();
+        } else if (ok && context.getOutputFile() != null) {
+            outputFile = new RandomAccessFile(context.getOutputFile(), "rw");
+            outputFile.setLength(0);
+            toFile = true;
+            channel = outputFile.getChannel();
+            position = 0;
+        } else {
+            memory = new ByteArrayOutputStream();
+        }
+    }
+
+    private void body(ByteBuffer in, int n) throws IOException {
+        ByteBuffer slice = in.duplicate();
+        slice.limit(slice.position() + n);
+        in.position(in.position() + n);
+        bodyLength += n;
+        if (discard) {
+            return;
+        }
+        if (channel != null) {
+            while (slice.hasRemaining()) {
+                position += channel.write(slice, position);
+            }
+        } else if (buffer != null) {
+            if (buffer.remaining() < n) {
+                throw new IOException("response does not fit in the response buffer");
+            }
+            buffer.put(slice);
+        } else {
+            if (slice.hasArray()) {
+                memory.write(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+            } else {
+                byte[] bytes = new byte[slice.remaining()];
+                slice.get(bytes);
+                memory.write(bytes);
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        close();
+        long now = System.currentTimeMillis();
+        if (outStart > 0 && outEnd > 0) {
+            context.setOutTime(outEnd - outStart);
+        }
+        if (inStart > 0) {
+            context.setInTime(now - inStart);
+        }
+        context.setBytesSent(request.limit());
+        context.setBytesReceived(bodyLength);
+        context.setOutcome(getOutcome());
+        context.setOutcomeDetail(reason);
+        if (discard) {
+            context.setOutcome(ChannelData.Outcome.UNKNOWN);
+            context.setOutcomeDetail("requested range was not returned");
+        }
+        String location = headers.get("location");
+        if (location != null) {
+            context.setLocation(location);
+        }
+        context.setEntityTag(ChannelData.parseEntityTag(headers.get("etag")));
+        String contentRange = headers.get("content-range");
+        if (contentRange != null) {
+            ByteRange range = MultipartRangeInputStream.parseContentRange(contentRange);
+            if (range != null) {
+                context.setByteRange(range);
+            }
+        }
+        if (memory != null) {
+            context.setResponseData(getResponseData());
+        } else if (toFile) {
+            context.setResponseData(context.getOutputFile());
+        }
+    }
+
+    private Object getResponseData() throws IOException {
+        String mime = headers.get("content-type");
+        byte[] bytes = memory.toByteArray();
+        memory = null;
+        if (context.getOutcome() != ChannelData.Outcome.OK) {
+            context.setResponseType(String.class);
+            return toString(bytes, mime);
+        }
+        String boundary = MultipartRangeInputStream.getBoundary(mime);
+        if (boundary != null && context.getByteRanges() != null && context.getByteRanges().size() > 1) {
+            return new MultipartRangeInputStream(new ByteArrayInputStream(bytes), boundary);
+        }
+        Class<?> type = context.getResponseType();
+        if (type != null && InputStream.class.isAssignableFrom(type)) {
+            return new ByteArrayInputStream(bytes);
+        }
+        if (type != null && String.class.equals(type)) {
+            return toString(bytes, mime);
+        }
+        try {
+            StreamableData data = mime == null ? new StreamableData(bytes) : new StreamableData(bytes, stripParameters(mime));
+            return DataHandler.getResponseObject(type, data);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("could not read response data: " + e.getMessage());
+        }
+    }
+
+    private static String stripParameters(String mime) {
+        int semi = mime.indexOf(';');
+        return semi > -1 ? mime.substring(0, semi).trim() : mime;
+    }
+
+    private static String toString(byte[] bytes, String mime) {
+        String charset = "UTF-8";
+        if (mime != null) {
+            int i = mime.toLowerCase().indexOf("charset=");
+            if (i > -1) {
+                charset = mime.substring(i + 8).trim();
+                int semi = charset.indexOf(';');
+                if (semi > -1) {
+                    charset = charset.substring(0, semi);
+                }
+            }
+        }
+        try {
+            return new String(bytes, charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes);
+        }
+    }
+
+    private ChannelData.Outcome getOutcome() {
+        if (status >= 200 && status < 300) {
+            return ChannelData.Outcome.OK;
+        } else if (status == 304) {
+            return ChannelData.Outcome.NOT_MODIFIED;
+        } else if (status >= 400 && status < 500) {
+            return ChannelData.Outcome.CLIENT_ERROR;
+        } else if (status >= 500) {
+            return ChannelData.Outcome.SERVER_ERROR;
+        }
+        return ChannelData.Outcome.UNKNOWN;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.impl.channel.nio;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.channel.InChannel;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.impl.channel.http.HttpChannelFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * A ChannelFactory whose out channels are NioHttpClients. Select it by setting the
+ * ChannelFactory.FACTORY_PROPERTY system property to this class name.
+ * In channels, and out requests the non-blocking client does not handle, use the HttpChannelFactory.
+ *
+ * 
+ */
+public class NioChannelFactory extends ChannelFactory {
+
+    private HttpChannelFactory http = new HttpChannelFactory();
+    private NioTransport transport;
+    private Executor executor;
+
+    private synchronized NioTransport getTransport() {
+        if (transport == null) {
+            transport = createTransport(new DownloadConfig());
+        }
+        return transport;
+    }
+
+    @Override
+    public OutChannel createOutChannel(ChannelProperties properties) throws IOException {
+        NioHttpClient client = new NioHttpClient(getTransport(), http.createOutChannel(), executor);
+        client.open(properties);
+        return client;
+    }
+
+    @Override
+    public OutChannel createOutChannel() throws IOException {
+        return new NioHttpClient(getTransport(), http.createOutChannel(), executor);
+    }
+
+    @Override
+    public InChannel createInChannel(ChannelRequestHandler handler) throws IOException {
+        return http.createInChannel(handler);
+    }
+
+    @Override
+    public InChannel createInChannel(ChannelRequestHandler handler, ChannelProperties properties) throws IOException {
+        return http.createInChannel(handler, properties);
+    }
+
+    public synchronized void init(Attic attic) {
+        http.init(attic);
+        executor = attic.getExecutor();
+        if (transport == null) {
+            transport = createTransport(attic.getDownloadConfig());
+        }
+    }
+
+    private static NioTransport createTransport(DownloadConfig config) {
+        return new NioTransport(config.getConnectionIdleTime(), HttpChannelFactory.getMaxIdle(config), config.getBufferSize());
+    }
+}
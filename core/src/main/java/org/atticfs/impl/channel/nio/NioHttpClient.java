@@ -0,0 +1,125 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.impl.channel.nio;
+
+import org.atticfs.channel.AsyncOutChannel;
+import org.atticfs.channel.ChannelCallback;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFuture;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.protocol.AtticProtocol;
+import org.atticfs.types.Endpoint;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An AsyncOutChannel that sends plain http GET requests without request data through the NioTransport,
+ * so no thread waits for the response. Anything else, e.g. https, or requests with data,
+ * is sent with the blocking channel on the executor.
+ *
+ * 
+ */
+public class NioHttpClient implements AsyncOutChannel {
+
+    private NioTransport transport;
+    private OutChannel blocking;
+    private Executor executor;
+
+    public NioHttpClient(NioTransport transport, OutChannel blocking, Executor executor) {
+        this.transport = transport;
+        this.blocking = blocking;
+        this.executor = executor;
+    }
+
+    public void open(ChannelProperties properties) throws IOException {
+        blocking.open(properties);
+    }
+
+    public void open() throws IOException {
+        blocking.open();
+    }
+
+    public ChannelData send(ChannelData context) throws Exception {
+        try {
+            return send(context, null).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public Future<ChannelData> send(final ChannelData context, ChannelCallback callback) {
+        final ChannelFuture future = new ChannelFuture(context, callback, executor);
+        Endpoint endpoint = context.getEndpoint();
+        if (context.getAction() == null) {
+            future.failed(new IOException("No action defined!"));
+            return future;
+        }
+        if (endpoint == null) {
+            future.failed(new IOException("No endpoint defined!"));
+            return future;
+        }
+        if (endpoint.getScheme() != null && endpoint.getScheme().equalsIgnoreCase(AtticProtocol.SCHEME_ATTIC)) {
+            endpoint.setScheme("http");
+        }
+        if (isNonBlocking(context)) {
+            try {
+                transport.submit(new HttpExchange(context, future));
+            } catch (IOException e) {
+                future.failed(e);
+            }
+            return future;
+        }
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    blocking.send(context);
+                    future.completed();
+                } catch (Exception e) {
+                    future.failed(e);
+                }
+            }
+        };
+        if (executor == null) {
+            r.run();
+        } else {
+            try {
+                executor.execute(r);
+            } catch (RejectedExecutionException e) {
+                future.failed(e);
+            }
+        }
+        return future;
+    }
+
+    private boolean isNonBlocking(ChannelData context) {
+        return context.getAction() == ChannelData.Action.GET
+                && context.getRequestData() == null
+                && "http".equalsIgnoreCase(context.getEndpoint().getScheme());
+    }
+
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.impl.channel.nio;
+
+import org.atticfs.impl.channel.http.IdleConnections;
+import org.atticfs.stats.ConnectionStats;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Runs HTTP exchanges on non-blocking sockets from a single selector thread.
+ * Connections are kept open after a response unless either side asks for them to be closed,
+ * and reused for later requests to the same host and port. Only a few idle connections are kept per host,
+ * held by IdleConnections as the blocking client's ConnectionPool holds its own, as servers that give each open connection a thread from a bounded pool stop answering new connections
+ * while idle ones hold all their threads.
+ *
+ * 
+ */
+public class NioTransport implements Runnable {
+
+    static Logger log = Logger.getLogger("org.atticfs.impl.channel.nio.NioTransport");
+
+    private static final long SELECT_TIMEOUT = 250;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed = false;
+    private Queue<HttpExchange> pending = new ConcurrentLinkedQueue<HttpExchange>();
+    // idle connections by host and port. Only used on the transport thread
+    private IdleConnections<Connection> idle;
+    private ByteBuffer readBuffer;
+
+    public NioTransport(long idleTimeout, int maxIdle, int bufferSize) {
+        this.idle = new IdleConnections<Connection>(idleTimeout, Math.max(1, maxIdle));
+        this.readBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 8192));
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        thread = new Thread(this, "attic-nio-transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void submit(HttpExchange exchange) throws IOException {
+        if (closed) {
+            throw new IOException("transport is closed");
+        }
+        start();
+        pending.add(exchange);
+        selector.wakeup();
+    }
+
+    public void close() {
+        closed = true;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                HttpExchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    begin(exchange);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SELECT_TIMEOUT) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            } catch (Exception e) {
+                log.warning("error in transport loop:" + e.getMessage());
+            }
+        }
+        shutdown();
+    }
+
+    private void begin(HttpExchange exchange) {
+        if (exchange.getFuture().isDone()) {
+            return;
+        }
+        List<Connection> dead = new ArrayList<Connection>();
+        Connection conn = idle.take(exchange.getKey(), System.currentTimeMillis(), dead);
+        close(dead);
+        try {
+            if (conn != null) {
+                conn.reused = true;
+                ConnectionStats.getStats().onReused();
+                conn.start(exchange);
+                conn.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            SocketChannel sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            conn = new Connection(sc, exchange.getKey());
+            ConnectionStats.getStats().onCreated();
+            conn.start(exchange);
+            if (sc.connect(new InetSocketAddress(exchange.getHost(), exchange.getPort()))) {
+                conn.key = sc.register(selector, SelectionKey.OP_WRITE, conn);
+            } else {
+                conn.key = sc.register(selector, SelectionKey.OP_CONNECT, conn);
+            }
+        } catch (IOException e) {
+            if (conn != null) {
+                conn.close();
+            }
+            fail(exchange, e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        HttpExchange exchange = conn.exchange;
+        if (exchange == null) {
+            // an idle connection that the server has closed, or sent something we did not ask for
+            conn.close();
+            if (idle.remove(conn.hostKey, conn)) {
+                ConnectionStats.getStats().onEvicted();
+            }
+            return;
+        }
+        try {
+            if (!key.isValid()) {
+                throw new ClosedChannelException();
+            }
+            if (exchange.getFuture().isCancelled()) {
+                conn.close();
+                exchange.close();
+                return;
+            }
+            if (key.isConnectable()) {
+                conn.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                conn.channel.write(exchange.getRequest());
+                if (!exchange.getRequest().hasRemaining()) {
+                    exchange.onSent();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                int c = conn.channel.read(readBuffer);
+                if (c < 0) {
+                    conn.close();
+                    if (conn.reused && !exchange.hasReceived()) {
+                        // the server closed the idle connection before it saw the request
+                        ConnectionStats.getStats().onEvicted();
+                        conn.exchange = null;
+                        exchange.getRequest().rewind();
+                        begin(exchange);
+                        return;
+                    }
+                    exchange.onClosed();
+                    done(conn, exchange, false);
+                    return;
+                }
+                readBuffer.flip();
+                if (exchange.onData(readBuffer)) {
+                    done(conn, exchange, exchange.isKeepAlive() && !readBuffer.hasRemaining());
+                }
+            }
+        } catch (IOException e) {
+            conn.close();
+            exchange.close();
+            if (!exchange.hasReceived() && exchange.retry()) {
+                log.fine("retrying request to " + exchange.getKey() + " after " + e.getMessage());
+                begin(exchange);
+            } else {
+                fail(exchange, e);
+            }
+        }
+    }
+
+    private void done(Connection conn, HttpExchange exchange, boolean reuse) {
+        conn.exchange = null;
+        if (reuse) {
+            List<Connection> dead = new ArrayList<Connection>();
+            if (idle.add(conn.hostKey, conn, System.currentTimeMillis(), dead)) {
+                // read interest lets us see the server close the connection while it is idle
+                conn.key.interestOps(SelectionKey.OP_READ);
+            }
+            close(dead);
+        } else {
+            conn.close();
+        }
+        exchange.getFuture().completed();
+    }
+
+    private void fail(HttpExchange exchange, Exception e) {
+        exchange.close();
+        exchange.getFuture().failed(e);
+    }
+
+    private static void close(List<Connection> dead) {
+        for (Connection conn : dead) {
+            conn.close();
+        }
+    }
+
+    /**
+     * fails exchanges that have timed out and closes connections that have been idle too long.
+     *
+     * @param now
+     */
+    private void sweep(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (conn == null || conn.exchange == null) {
+                continue;
+            }
+            HttpExchange exchange = conn.exchange;
+            if (exchange.getFuture().isCancelled()) {
+                conn.close();
+                exchange.close();
+            } else if (exchange.isTimedOut(now)) {
+                conn.close();
+                fail(exchange, new SocketTimeoutException("no data from " + exchange.getKey() + " for " + exchange.getContext().getTimeout() + "ms"));
+            }
+        }
+        List<Connection> dead = new ArrayList<Connection>();
+        idle.sweep(now, dead);
+        close(dead);
+    }
+
+    private void shutdown() {
+        List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+        for (SelectionKey key : keys) {
+            Connection conn = (Connection) key.attachment();
+            if (conn != null) {
+                conn.close();
+                if (conn.exchange != null) {
+                    fail(conn.exchange, new IOException("transport closed"));
+                }
+            }
+        }
+        HttpExchange exchange;
+        while ((exchange = pending.poll()) != null) {
+            fail(exchange, new IOException("transport closed"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static class Connection implements IdleConnections.Idle {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String hostKey;
+        private HttpExchange exchange;
+        private boolean reused = false;
+
+        private Connection(SocketChannel channel, String hostKey) {
+            this.channel = channel;
+            this.hostKey = hostKey;
+        }
+
+        private void start(HttpExchange exchange) {
+            this.exchange = exchange;
+            exchange.onConnect();
+        }
+
+        public boolean isClosed() {
+            return !channel.isOpen() || (key != null && !key.isValid());
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -210,6 +210,14 @@ public class JDeserializer {
         if (size != null) {
             fh.setSize(size);
         }
+        String algorithm = (String) map.get("algorithm");
+        if (algorithm != null) {
+            fh.setAlgorithm(algorithm);
+        }
+        String root = (String) map.get("merkleRoot");
+        if (root != null) {
+            fh.setMerkleRoot(root);
+        }
 
         List<Object> chunks = (List<Object>) map.get(WireType.Type.Segment.toString());
         if (chunks != null) {
@@ -17,6 +17,7 @@
 package org.atticfs.impl.ser.json;
 
 import org.atticfs.types.*;
+import org.atticfs.util.HashUtils;
 
 import java.lang.reflect.Array;
 import java.util.Iterator;
@@ -235,6 +236,12 @@ public class JSerializer {
         beginObject();
         add("hash", fh.getHash(), true);
         add("size", fh.getSize());
+        if (!HashUtils.isDefaultAlgorithm(fh.getAlgorithm())) {
+            add("algorithm", fh.getAlgorithm());
+        }
+        if (fh.getMerkleRoot() != null) {
+            add("merkleRoot", fh.getMerkleRoot());
+        }
         if (fh.getChunks().size() > 0) {
             addComma();
             addAttribute(WireType.Type.Segment.toString());
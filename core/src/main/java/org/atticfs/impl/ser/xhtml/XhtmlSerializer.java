@@ -18,6 +18,7 @@ package org.atticfs.impl.ser.xhtml;
 
 import org.atticfs.ser.Serializer;
 import org.atticfs.types.*;
+import org.atticfs.util.HashUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -355,9 +356,11 @@ public class XhtmlSerializer implements Serializer {
 
     private FileHash filehashFromElement(Element root) {
         Map<String, List<Element>> nodes = findElements(root, CLS_PREFIX + "hash",
-                CLS_PREFIX + "size", CLS_PREFIX + SEGMENT);
+                CLS_PREFIX + "size", CLS_PREFIX + "algorithm", CLS_PREFIX + "merkle-root", CLS_PREFIX + SEGMENT);
         String hash = getMappedString(nodes, CLS_PREFIX + "hash");
         String size = getMappedString(nodes, CLS_PREFIX + "size");
+        String algorithm = getMappedString(nodes, CLS_PREFIX + "algorithm");
+        String merkleRoot = getMappedString(nodes, CLS_PREFIX + "merkle-root");
         List<Element> segs = getMappedElements(nodes, CLS_PREFIX + SEGMENT);
         FileHash fh = new FileHash();
 
@@ -365,6 +368,12 @@ public class XhtmlSerializer implements Serializer {
             try {
                 fh.setHash(hash);
                 fh.setSize(Long.parseLong(size));
+                if (algorithm != null) {
+                    fh.setAlgorithm(algorithm);
+                }
+                if (merkleRoot != null) {
+                    fh.setMerkleRoot(merkleRoot);
+                }
                 for (Element seg : segs) {
                     FileSegmentHash fsh = segmentFromElement(seg);
                     if (fsh == null) {
@@ -383,8 +392,14 @@ public class XhtmlSerializer implements Serializer {
         Div div = new Div();
         div.addClass(CLS_PREFIX + FILEHASH);
         div.addChild(new TextContainer("h3", "File Details"));
-        addPara("MD5 hash of data:", CLS_PREFIX + "hash", fh.getHash(), div);
+        addPara(fh.getAlgorithm() + " hash of data:", CLS_PREFIX + "hash", fh.getHash(), div);
         addPara("Data size:", CLS_PREFIX + "size", fh.getSize() + "", div);
+        if (!HashUtils.isDefaultAlgorithm(fh.getAlgorithm())) {
+            addPara("Hash algorithm:", CLS_PREFIX + "algorithm", fh.getAlgorithm(), div);
+        }
+        if (fh.getMerkleRoot() != null) {
+            addPara("Merkle root of segment hashes:", CLS_PREFIX + "merkle-root", fh.getMerkleRoot(), div);
+        }
 
         List<FileSegmentHash> segs = fh.getChunks();
         for (FileSegmentHash seg : segs) {
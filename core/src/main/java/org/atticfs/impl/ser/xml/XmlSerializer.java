@@ -18,6 +18,7 @@ package org.atticfs.impl.ser.xml;
 
 import org.atticfs.ser.Serializer;
 import org.atticfs.types.*;
+import org.atticfs.util.HashUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -486,6 +487,10 @@ public class XmlSerializer implements Serializer {
                 seg.setHash(e.getTextContent().trim());
             } else if (nc.equals("size")) {
                 seg.setSize(Long.parseLong(e.getTextContent().trim()));
+            } else if (nc.equals("algorithm")) {
+                seg.setAlgorithm(e.getTextContent().trim());
+            } else if (nc.equals("merkleRoot")) {
+                seg.setMerkleRoot(e.getTextContent().trim());
             } else if (nc.equals(WireType.Type.Segment.toString())) {
                 seg.addSegment(segmentFromElement(e));
             }
@@ -511,6 +516,16 @@ public class XmlSerializer implements Serializer {
             curr.appendChild(doc.createTextNode(seg.getSize() + ""));
             root.appendChild(curr);
         }
+        if (!HashUtils.isDefaultAlgorithm(seg.getAlgorithm())) {
+            Element curr = doc.createElementNS(NS_ATTIC, "algorithm");
+            curr.appendChild(doc.createTextNode(seg.getAlgorithm()));
+            root.appendChild(curr);
+        }
+        if (seg.getMerkleRoot() != null) {
+            Element curr = doc.createElementNS(NS_ATTIC, "merkleRoot");
+            curr.appendChild(doc.createTextNode(seg.getMerkleRoot()));
+            root.appendChild(curr);
+        }
         if (seg.getNumChunks() > 0) {
             List<FileSegmentHash> hashes = seg.getChunks();
             for (FileSegmentHash hash : hashes) {
@@ -25,6 +25,7 @@ import org.atticfs.store.DescriptionStore;
 import org.atticfs.store.index.DescriptionListener;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.FileHash;
+import org.atticfs.types.SegmentAvailability;
 import org.atticfs.util.FileUtils;
 import org.atticfs.util.StringConstants;
 
@@ -65,6 +66,15 @@ public class FileDescriptionStore implements DescriptionStore {
         return null;
     }
 
+    public SegmentAvailability getAvailability(String id) {
+        DataDescription desc = getDataDescription(id);
+        if (desc == null || desc.getHash() == null) {
+            return null;
+        }
+        // files are stored whole, so every segment of the description is held
+        return SegmentAvailability.create(desc.getHash(), desc.getHash());
+    }
+
     public DataDescription removeDescription(String id) {
         File desc = createDescFile(id);
         DataDescription dd = null;
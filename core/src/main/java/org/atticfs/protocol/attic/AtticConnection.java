@@ -22,6 +22,7 @@ import org.atticfs.channel.OutChannel;
 import org.atticfs.download.request.RequestCollection;
 import org.atticfs.download.request.RequestResolver;
 import org.atticfs.stream.AtticInputStream;
+import org.atticfs.stream.RandomAccessChannel;
 import org.atticfs.stream.Streamer;
 import org.atticfs.types.DataPointer;
 import org.atticfs.types.Endpoint;
@@ -36,9 +37,11 @@ import java.net.URLConnection;
  * URL connection for the attic protocol.
  * This supports two request properties that are propagated to an Attic instance's StreamConfig:
  * <p/>
- * 1. MAX_INMEMORY_BUFFER - maximum in memory buffer size used for verifying the stream data
- * 2. ATTEMPT_VERIFICATION - whether to attempt verification of data as it arrives.
- * This is dependent on the hashed chunk sizes being <= maximum buffer size.
+ * 1. MAX_INMEMORY_BUFFER - the largest chunk held in memory while it is verified. Bigger chunks are spooled to a temporary file.
+ * 2. ATTEMPT_VERIFICATION - whether to verify data as it arrives.
+ * 3. READ_AHEAD_SEGMENTS - the number of segments to keep requested or buffered ahead of the reader.
+ * 4. MAX_READ_AHEAD_BYTES - the most bytes the segments ahead of the reader may hold.
+ * 5. CACHE_LOCALLY - whether to keep verified segments in the local data worker store.
  *
  * 
  */
@@ -50,9 +53,16 @@ public class
 
     public static final String ATTEMPT_VERIFICATION = "org.atticfs.protocol.attic.attempt.verification";
 
+    public static final String READ_AHEAD_SEGMENTS = "org.atticfs.protocol.attic.read.ahead.segments";
+
+    public static final String MAX_READ_AHEAD_BYTES = "org.atticfs.protocol.attic.max.read.ahead.bytes";
+
+    public static final String CACHE_LOCALLY = "org.atticfs.protocol.attic.cache.locally";
+
     private AtticInputStream stream;
     private Attic attic;
     private Streamer streamer;
+    private RequestCollection collection;
 
     public AtticConnection(URL url) {
         this(url, Attic.getDefaultAttic());
@@ -78,6 +88,7 @@ public class
             Object o = resp.getResponseData();
             if (resp.getOutcome() == ChannelData.Outcome.OK && o != null && o instanceof DataPointer) {
                 RequestCollection coll = RequestResolver.createRequestCollection((DataPointer) resp.getResponseData(), attic);
+                collection = coll;
                 stream = new AtticInputStream(this.attic);
                 streamer = new Streamer(coll, attic);
                 stream.setSource(streamer);
@@ -106,6 +117,20 @@ public class
         } else if (key.equals(ATTEMPT_VERIFICATION)) {
             boolean b = Boolean.parseBoolean(value);
             attic.getStreamConfig().setAttemptVerification(b);
+        } else if (key.equals(READ_AHEAD_SEGMENTS)) {
+            try {
+                attic.getStreamConfig().setReadAheadSegments(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+
+            }
+        } else if (key.equals(MAX_READ_AHEAD_BYTES)) {
+            try {
+                attic.getStreamConfig().setMaxReadAheadBytes(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+
+            }
+        } else if (key.equals(CACHE_LOCALLY)) {
+            attic.getStreamConfig().setCacheLocally(Boolean.parseBoolean(value));
         }
     }
 
@@ -115,6 +140,15 @@ public class
         return stream;
     }
 
+    /**
+     * @return a channel for reading the data from any position, instead of the input stream.
+     * @throws IOException
+     */
+    public RandomAccessChannel getChannel() throws IOException {
+        connect();
+        return new RandomAccessChannel(collection, attic);
+    }
+
     public OutputStream getOutputStream() throws IOException {
         return null;
     }
@@ -18,6 +18,8 @@ package org.atticfs.roles.handlers;
 
 import org.atticfs.channel.ChannelData;
 import org.atticfs.store.DescriptionStore;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.SegmentAvailability;
 import org.atticfs.types.WireType;
 import org.atticfs.util.StringConstants;
 import org.atticfs.util.UriUtils;
@@ -46,6 +48,10 @@ public class DescriptionRequestHandler extends AbstractRequestHandler {
     protected ChannelData handleGet(ChannelData context) {
         log.fine("DescriptionRequestHandler.handleRequest ENTER");
         String targetPath = context.getRequestPath();
+        String have = UriUtils.extractQuery(targetPath, StringConstants.HAVE_KEY);
+        if (have != null) {
+            return handleHave(context, have);
+        }
         String id = UriUtils.extractId(targetPath, StringConstants.DESCRIPTION_KEY);
 
         WireType wt = null;
@@ -58,7 +64,18 @@ public class DescriptionRequestHandler extends AbstractRequestHandler {
             id = UriUtils.extractId(targetPath, StringConstants.FILE_HASH_KEY);
             log.fine("DescriptionRequestHandler.handleGet getting filehash id:" + id);
             if (id != null) {
-                wt = store.getFileHash(id);
+                FileHash fh = store.getFileHash(id);
+                if (fh != null) {
+                    // the tag changes as a partial copy gains segments
+                    String tag = fh.getHash() + "-" + fh.getNumChunks();
+                    context.setEntityTag(tag);
+                    if (tag.equals(context.getIfNoneMatch())) {
+                        log.fine("DescriptionRequestHandler.handleGet filehash " + id + " not modified");
+                        context.setOutcome(ChannelData.Outcome.NOT_MODIFIED);
+                        return context;
+                    }
+                }
+                wt = fh;
             }
         }
         if (wt != null) {
@@ -71,6 +88,21 @@ public class DescriptionRequestHandler extends AbstractRequestHandler {
         return context;
     }
 
+    /**
+     * answers with the segments held of some data as a line of text, rather than with the whole FileHash.
+     */
+    private ChannelData handleHave(ChannelData context, String id) {
+        log.fine("DescriptionRequestHandler.handleHave getting availability of id:" + id);
+        SegmentAvailability avail = store.getAvailability(id);
+        if (avail != null) {
+            context.setResponseData(avail.toString());
+            context.setOutcome(ChannelData.Outcome.OK);
+        } else {
+            context.setOutcome(ChannelData.Outcome.NOT_FOUND);
+        }
+        return context;
+    }
+
     public String getPath() {
         return path;
     }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices;
+
+/**
+ * Base of the harnesses run from a main method. Each test prints a banner, then each check
+ * as passed or FAILED. exit() ends the run with 1 if any check failed.
+ *
+ *
+ */
+
+public abstract class Harness {
+
+    private int failures = 0;
+
+    /**
+     * prints the banner of a test.
+     *
+     * @param test the name of the test
+     */
+    protected void begin(String test) {
+        System.out.println("====================================" + test + "====================================");
+    }
+
+    /**
+     * @param name   what is checked
+     * @param ok     whether it holds
+     * @param detail printed if the check fails. May be null.
+     */
+    protected void check(String name, boolean ok, String detail) {
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "passed: " : "FAILED: ") + name + (detail == null || ok ? "" : " got:" + detail));
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * exits the VM, with 1 if any check failed.
+     */
+    public void exit() {
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.download.DownloadHandle;
+import org.atticfs.download.DownloadJournal;
+import org.atticfs.download.Downloader;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.download.table.RoundRobinTableCreator;
+import org.atticfs.event.DataEvent;
+import org.atticfs.event.DataReceiver;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a file of random bytes from a local server into a preallocated target file,
+ * checking the file is written in place, verified in place, and resumed from in place.
+ * args:
+ * 1. the port of the local server. Defaults to 18131.
+ * <p/>
+ * The files and the Attic home are written to the temp directory. The files are deleted afterwards.
+ *
+ *
+ */
+
+public class DirectWriteTest extends Harness {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final int SEGMENTS = 8;
+
+    private byte[] data;
+    private File file;
+    // every byte of the file changed
+    private File bad;
+    private FileHash hash;
+    private Attic attic;
+    private Endpoint endpoint;
+    // requests the server has been sent
+    private AtomicInteger requests = new AtomicInteger();
+    // while held, the server does not answer
+    private final Object gate = new Object();
+    private boolean held = false;
+    // the first request is answered with the bad file
+    private volatile boolean corrupt = false;
+
+    public DirectWriteTest(int port) throws Exception {
+        // the last segment is short
+        data = new byte[SEGMENT * SEGMENTS - 1000];
+        new Random(7).nextBytes(data);
+        file = write(data);
+        byte[] flipped = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            flipped[i] = (byte) (data[i] ^ 0xff);
+        }
+        bad = write(flipped);
+        hash = createFileHash();
+        // a new home, so settings stored by an earlier run are not loaded
+        attic = new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-direct-" + System.currentTimeMillis()).getAbsolutePath());
+        attic.init();
+        attic.getDownloadConfig().setPreallocateTargetFile(true);
+        attic.getDownloadConfig().setMaxFileConnections(1);
+        // each segment is journaled as soon as it is verified
+        attic.getDownloadConfig().setJournalSyncInterval(0);
+        serve(port);
+        endpoint = new Endpoint("http://127.0.0.1:" + port + "/direct/data");
+    }
+
+    /**
+     * the target file has its full length from the start, and the verified prefix can be read from it.
+     */
+    public void testPreallocate() throws Exception {
+        begin("testPreallocate");
+        hold();
+        Downloader downloader = createDownloader("direct-1");
+        DownloadHandle handle = downloader.download();
+        waitFor(1);
+        handle.pause();
+        release();
+        check("one request while paused", settle() == 1 && handle.getVerifiedPrefix() == SEGMENT,
+                requests.get() + " " + handle.getVerifiedPrefix());
+        File target = handle.getTargetFile();
+        check("target sized before finishing", !handle.isDone() && target.length() == data.length, "" + target.length());
+        check("target channel open", downloader.getTargetChannel() != null, null);
+        check("verified prefix read from the target", same(target, SEGMENT), null);
+        check("no chunk or segment files", chunkFiles(downloader).size() == 0, "" + chunkFiles(downloader));
+        handle.resume();
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("download finishes", event.isSuccessful() && target.equals(event.getFile()), event.getDetail());
+        check("target holds the data", same(target, data.length), null);
+        check("each segment requested once", requests.get() == SEGMENTS, "" + requests.get());
+        check("still no chunk or segment files", chunkFiles(downloader).size() == 0, "" + chunkFiles(downloader));
+    }
+
+    /**
+     * a segment that fails verification in the target file is fetched again over it.
+     */
+    public void testCorrupt() throws Exception {
+        begin("testCorrupt");
+        corrupt = true;
+        DownloadHandle handle = createDownloader("direct-2").download();
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("download finishes", event.isSuccessful(), event.getDetail());
+        check("bad segment fetched again", requests.get() == SEGMENTS + 1 && !corrupt, "" + requests.get());
+        check("bad bytes written over", same(handle.getTargetFile(), data.length), null);
+    }
+
+    /**
+     * a cancelled download keeps its target file and journal, and a new download of the same data
+     * requests only the segments not yet verified.
+     */
+    public void testResume() throws Exception {
+        begin("testResume");
+        hold();
+        Downloader downloader = createDownloader("direct-3");
+        DownloadHandle handle = downloader.download();
+        waitFor(1);
+        handle.pause();
+        release();
+        settle();
+        handle.cancel(true);
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("cancelled download fails", !event.isSuccessful(), event.getDetail());
+        check("journal kept", new File(downloader.getDownloadDir(), DownloadJournal.JOURNAL_FILE).length() > 0, null);
+
+        handle = createDownloader("direct-3").download();
+        event = handle.get(10, TimeUnit.SECONDS);
+        check("resumed download finishes", event.isSuccessful() && same(handle.getTargetFile(), data.length), event.getDetail());
+        check("only missing segments requested", requests.get() == SEGMENTS - 1, "" + requests.get());
+    }
+
+    private Downloader createDownloader(String id) {
+        requests.set(0);
+        DataDescription dd = new DataDescription(id);
+        dd.setHash(hash);
+        RequestCollection rc = new RequestCollection(dd);
+        rc.addMapping(new EndpointRequest(DownloadTable.Priority.PRIMARY, hash.getChunks(), endpoint));
+        Downloader downloader = new Downloader(new DataReceiver() {
+            public void dataArrived(DataEvent event) {
+            }
+        }, rc, new File(attic.getHome(), "downloads"), attic);
+        // one endpoint would otherwise be asked for the whole file in one request
+        RoundRobinTableCreator creator = new RoundRobinTableCreator(attic.getDownloadConfig());
+        creator.setSingleSourceWholeFile(false);
+        downloader.setTableCreator(creator);
+        return downloader;
+    }
+
+    /**
+     * @return the files in the download directory other than the journal
+     */
+    private List<String> chunkFiles(Downloader downloader) {
+        List<String> names = new ArrayList<String>();
+        File[] files = downloader.getDownloadDir().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.getName().equals(DownloadJournal.JOURNAL_FILE)) {
+                    names.add(f.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private void hold() {
+        synchronized (gate) {
+            held = true;
+        }
+    }
+
+    private void release() {
+        synchronized (gate) {
+            held = false;
+            gate.notifyAll();
+        }
+    }
+
+    /**
+     * @param count
+     * @return the number of requests, once there are count of them or five seconds have passed
+     */
+    private int waitFor(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (requests.get() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests, after giving any that should not be made time to arrive
+     */
+    private int settle() throws InterruptedException {
+        Thread.sleep(500);
+        return requests.get();
+    }
+
+    /**
+     * @param f
+     * @param len
+     * @return true if the first len bytes of f are those of the data
+     */
+    private boolean same(File f, int len) throws IOException {
+        if (f == null || f.length() < len) {
+            return false;
+        }
+        byte[] bytes = new byte[len];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        for (int i = 0; i < len; i++) {
+            if (bytes[i] != data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File f = File.createTempFile("attic-direct", ".bin");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private void serve(int port) throws IOException {
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("direct");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                requests.incrementAndGet();
+                synchronized (gate) {
+                    while (held) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                File f = file;
+                if (corrupt) {
+                    corrupt = false;
+                    f = bad;
+                }
+                context.setResponseData(f);
+                context.setMimeType("application/octet-stream");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+    }
+
+    private FileHash createFileHash() throws Exception {
+        FileHash fh = new FileHash();
+        fh.setSize(data.length);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long start = 0; start < data.length; start += SEGMENT) {
+                long end = Math.min(start + SEGMENT, data.length) - 1;
+                fh.addSegment(new FileSegmentHash(HashUtils.hash(raf.getChannel(), start, end, fh.getAlgorithm(), buffer), start, end));
+            }
+            fh.setHash(HashUtils.hash(raf.getChannel(), 0, data.length - 1, fh.getAlgorithm(), buffer));
+        } finally {
+            raf.close();
+        }
+        return fh;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18131;
+        DirectWriteTest test = new DirectWriteTest(port);
+        try {
+            test.testPreallocate();
+            test.testCorrupt();
+            test.testResume();
+        } finally {
+            test.file.delete();
+            test.bad.delete();
+        }
+        test.exit();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.download.Downloader;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.event.DataEvent;
+import org.atticfs.event.DataReceiver;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the thread pool with virtual threads for many concurrent downloads from a local server.
+ * Run once per mode, each in its own JVM, so the thread and memory figures are not mixed up.
+ * args:
+ * 1. pool or virtual
+ * 2. the number of concurrent downloads
+ * 3. maxTotalConnections
+ * <p/>
+ * Each run uses a new Attic home in the temp directory, so settings stored by an earlier run are not loaded.
+ * The home is left in place and can be deleted afterwards.
+ * Prints the time taken, the peak number of live threads and the heap in use at the end.
+ *
+ * 
+ */
+
+public class ExecutorBenchmark {
+
+    private static final int PORT = 18125;
+    private static final long SIZE = 4 * 1024 * 1024;
+    private static final long SEGMENT = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("I need a mode (pool or virtual), a number of downloads and maxTotalConnections");
+            System.exit(0);
+        }
+        boolean virtual = args[0].equals("virtual");
+        int downloads = Integer.parseInt(args[1]);
+        int connections = Integer.parseInt(args[2]);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "attic-bench-" + args[0] + "-" + System.currentTimeMillis());
+        String home = dir.getAbsolutePath();
+
+        Attic attic = new Attic(home);
+        DownloadConfig config = attic.getDownloadConfig();
+        config.setVirtualThreads(virtual);
+        config.setMaxTotalConnections(connections);
+        config.setMaxEndpointConnections(0);
+        config.setResumable(false);
+        config.setHedgeRequests(false);
+        attic.init();
+
+        final File source = new File(home, "bench.bin");
+        FileHash fh = createSource(source);
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(PORT);
+        props.setServerContext("bench");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                context.setResponseData(source);
+                context.setMimeType("application/octet-stream");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+
+        List<FileSegmentHash> segments = fh.getChunks();
+        final List<DataEvent> events = new ArrayList<DataEvent>();
+        DataReceiver receiver = new DataReceiver() {
+            public void dataArrived(DataEvent event) {
+                synchronized (events) {
+                    events.add(event);
+                    events.notifyAll();
+                }
+            }
+        };
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < downloads; i++) {
+            DataDescription dd = new DataDescription("bench-" + i);
+            dd.setHash(fh);
+            RequestCollection rc = new RequestCollection(dd);
+            rc.addMapping(new EndpointRequest(DownloadTable.Priority.PRIMARY, segments,
+                    new Endpoint("http://localhost:" + PORT + "/bench/data")));
+            rc.addMapping(new EndpointRequest(DownloadTable.Priority.PRIMARY, segments,
+                    new Endpoint("http://127.0.0.1:" + PORT + "/bench/data")));
+            new Downloader(receiver, rc, new File(home, "downloads"), attic).download();
+        }
+        int peakLive = 0;
+        synchronized (events) {
+            while (events.size() < downloads) {
+                events.wait(10);
+                peakLive = Math.max(peakLive, threads.getThreadCount());
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        int failed = 0;
+        for (DataEvent event : events) {
+            if (!event.isSuccessful()) {
+                failed++;
+            }
+        }
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        double mb = (double) downloads * SIZE / (1024 * 1024);
+        System.out.println("mode=" + args[0] + " downloads=" + downloads + " connections=" + connections
+                + " failed=" + failed + " ms=" + time + " MB/s=" + (time == 0 ? 0 : (long) (mb * 1000 / time))
+                + " peakThreads=" + Math.max(peakLive, threads.getPeakThreadCount())
+                + " heapMB=" + heap / (1024 * 1024) + " home=" + home);
+        System.exit(0);
+    }
+
+    private static FileHash createSource(File source) throws Exception {
+        source.getParentFile().mkdirs();
+        if (source.length() != SIZE) {
+            byte[] data = new byte[(int) SIZE];
+            new Random(7).nextBytes(data);
+            FileOutputStream out = new FileOutputStream(source);
+            out.write(data);
+            out.close();
+        }
+        FileHash fh = new FileHash();
+        fh.setSize(SIZE);
+        fh.setAlgorithm("MD5");
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        try {
+            for (long s = 0; s < SIZE; s += SEGMENT) {
+                long e = Math.min(SIZE, s + SEGMENT) - 1;
+                fh.addSegment(new FileSegmentHash(HashUtils.hash(raf.getChannel(), s, e, "MD5", buffer), s, e));
+            }
+            fh.setHash(HashUtils.hash(raf.getChannel(), 0, SIZE - 1, "MD5", buffer));
+        } finally {
+            raf.close();
+        }
+        return fh;
+    }
+}
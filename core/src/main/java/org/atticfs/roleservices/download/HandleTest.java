@@ -0,0 +1,310 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.download.DownloadHandle;
+import org.atticfs.download.Downloader;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.download.table.RoundRobinTableCreator;
+import org.atticfs.event.DataEvent;
+import org.atticfs.event.DataReceiver;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a file of random bytes from a local server that can be made to hold its answers,
+ * checking what the DownloadHandle of each download reports and how it controls the download.
+ * args:
+ * 1. the port of the local server. Defaults to 18130.
+ * <p/>
+ * The file and the Attic home are written to the temp directory. The file is deleted afterwards.
+ *
+ *
+ */
+
+public class HandleTest extends Harness {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final int SEGMENTS = 8;
+
+    private byte[] data;
+    private File file;
+    private FileHash hash;
+    private Attic attic;
+    private Endpoint endpoint;
+    // requests the server has been sent
+    private AtomicInteger requests = new AtomicInteger();
+    // while held, the server does not answer
+    private final Object gate = new Object();
+    private boolean held = false;
+    private int downloads = 0;
+
+    public HandleTest(int port) throws Exception {
+        // the last segment is short
+        data = new byte[SEGMENT * SEGMENTS - 1000];
+        new Random(5).nextBytes(data);
+        file = File.createTempFile("attic-handle", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        hash = createFileHash();
+        // a new home, so settings stored by an earlier run are not loaded
+        attic = new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-handle-" + System.currentTimeMillis()).getAbsolutePath());
+        attic.init();
+        attic.getDownloadConfig().setMaxFileConnections(1);
+        serve(port);
+        endpoint = new Endpoint("http://127.0.0.1:" + port + "/handle/data");
+    }
+
+    /**
+     * segments verified out of order only extend the prefix once the gap before them is filled.
+     */
+    public void testPrefix() {
+        begin("testPrefix");
+        // not started, so segments are only ever verified by the test
+        Downloader downloader = createDownloader();
+        DownloadHandle handle = downloader.getHandle();
+        final List<Long> told = new ArrayList<Long>();
+        handle.addListener(new DownloadHandle.Listener() {
+            public void segmentVerified(DownloadHandle handle, FileSegmentHash segment, Endpoint endpoint, long prefix) {
+                told.add(prefix);
+            }
+
+            public void downloadFinished(DownloadHandle handle, DataEvent event) {
+            }
+        });
+        List<FileSegmentHash> segments = hash.getChunks();
+        check("nothing verified", handle.getVerifiedPrefix() == 0 && handle.getVerifiedBytes() == 0
+                && handle.getLength() == data.length, null);
+        downloader.onSegmentVerified(segments.get(2), endpoint);
+        check("segment beyond a gap", handle.getVerifiedPrefix() == 0 && handle.getVerifiedBytes() == SEGMENT,
+                handle.getVerifiedPrefix() + " " + handle.getVerifiedBytes());
+        downloader.onSegmentVerified(segments.get(0), endpoint);
+        check("first segment", handle.getVerifiedPrefix() == SEGMENT, "" + handle.getVerifiedPrefix());
+        downloader.onSegmentVerified(segments.get(1), endpoint);
+        check("gap filled joins the segment beyond it", handle.getVerifiedPrefix() == SEGMENT * 3, "" + handle.getVerifiedPrefix());
+        downloader.onSegmentVerified(segments.get(1), endpoint);
+        check("segment verified twice counted once", handle.getVerifiedBytes() == SEGMENT * 3 && told.size() == 3,
+                handle.getVerifiedBytes() + " " + told);
+        for (int i = SEGMENTS - 1; i >= 3; i--) {
+            downloader.onSegmentVerified(segments.get(i), endpoint);
+        }
+        check("prefix is the whole data", handle.getVerifiedPrefix() == data.length && handle.getVerifiedBytes() == data.length,
+                handle.getVerifiedPrefix() + " " + handle.getVerifiedBytes());
+        check("listeners told the prefix", told.size() == SEGMENTS && told.get(0) == 0 && told.get(2) == SEGMENT * 3
+                && told.get(SEGMENTS - 2) == SEGMENT * 3 && told.get(SEGMENTS - 1) == data.length, "" + told);
+    }
+
+    /**
+     * a paused download starts no new requests, though the one running finishes.
+     */
+    public void testPause() throws Exception {
+        begin("testPause");
+        hold();
+        DownloadHandle handle = createDownloader().download();
+        check("first request sent", waitFor(1) == 1, "" + requests.get());
+        handle.pause();
+        release();
+        check("no request while paused", settle() == 1 && !handle.isDone() && handle.isPaused(), "" + requests.get());
+        check("one segment verified", handle.getVerifiedPrefix() == SEGMENT, "" + handle.getVerifiedPrefix());
+        handle.resume();
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("resumed download finishes", event.isSuccessful() && same(event.getFile()), event.getDetail());
+        check("each segment requested once", requests.get() == SEGMENTS, "" + requests.get());
+    }
+
+    public void testTimeout() throws Exception {
+        begin("testTimeout");
+        hold();
+        DownloadHandle handle = createDownloader().download();
+        waitFor(1);
+        try {
+            handle.get(200, TimeUnit.MILLISECONDS);
+            check("unfinished download times out", false, null);
+        } catch (TimeoutException e) {
+            check("unfinished download times out", !handle.isDone(), null);
+        }
+        check("cancelled while running", handle.cancel(true) && handle.isCancelled(), null);
+        release();
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("cancelled download fails", !event.isSuccessful() && handle.isDone(), event.getDetail());
+        check("cancelled only once", !handle.cancel(true), null);
+    }
+
+    public void testFinished() throws Exception {
+        begin("testFinished");
+        DownloadHandle handle = createDownloader().download();
+        DataEvent event = handle.get(10, TimeUnit.SECONDS);
+        check("finished", event.isSuccessful() && handle.isDone() && same(event.getFile()), event.getDetail());
+        check("finished download cannot be cancelled", !handle.cancel(true) && !handle.isCancelled(), null);
+        check("same event after", handle.get(0, TimeUnit.MILLISECONDS) == event && handle.get() == event, null);
+        check("prefix is the whole data", handle.getVerifiedPrefix() == data.length, "" + handle.getVerifiedPrefix());
+    }
+
+    /**
+     * each download has data of its own, so none resumes the journal of another.
+     */
+    private Downloader createDownloader() {
+        requests.set(0);
+        DataDescription dd = new DataDescription("handle-" + (++downloads));
+        dd.setHash(hash);
+        RequestCollection rc = new RequestCollection(dd);
+        rc.addMapping(new EndpointRequest(DownloadTable.Priority.PRIMARY, hash.getChunks(), endpoint));
+        Downloader downloader = new Downloader(new DataReceiver() {
+            public void dataArrived(DataEvent event) {
+            }
+        }, rc, new File(attic.getHome(), "downloads"), attic);
+        // one endpoint would otherwise be asked for the whole file in one request
+        RoundRobinTableCreator creator = new RoundRobinTableCreator(attic.getDownloadConfig());
+        creator.setSingleSourceWholeFile(false);
+        downloader.setTableCreator(creator);
+        return downloader;
+    }
+
+    private void hold() {
+        synchronized (gate) {
+            held = true;
+        }
+    }
+
+    private void release() {
+        synchronized (gate) {
+            held = false;
+            gate.notifyAll();
+        }
+    }
+
+    /**
+     * @param count
+     * @return the number of requests, once there are count of them or five seconds have passed
+     */
+    private int waitFor(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (requests.get() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests, after giving any that should not be made time to arrive
+     */
+    private int settle() throws InterruptedException {
+        Thread.sleep(500);
+        return requests.get();
+    }
+
+    private boolean same(File f) throws IOException {
+        if (f == null || f.length() != data.length) {
+            return false;
+        }
+        byte[] bytes = new byte[data.length];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        return Arrays.equals(bytes, data);
+    }
+
+    private void serve(int port) throws IOException {
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("handle");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                requests.incrementAndGet();
+                synchronized (gate) {
+                    while (held) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                context.setResponseData(file);
+                context.setMimeType("application/octet-stream");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+    }
+
+    private FileHash createFileHash() throws Exception {
+        FileHash fh = new FileHash();
+        fh.setSize(data.length);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long start = 0; start < data.length; start += SEGMENT) {
+                long end = Math.min(start + SEGMENT, data.length) - 1;
+                fh.addSegment(new FileSegmentHash(HashUtils.hash(raf.getChannel(), start, end, fh.getAlgorithm(), buffer), start, end));
+            }
+            fh.setHash(HashUtils.hash(raf.getChannel(), 0, data.length - 1, fh.getAlgorithm(), buffer));
+        } finally {
+            raf.close();
+        }
+        return fh;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18130;
+        HandleTest test = new HandleTest(port);
+        try {
+            test.testPrefix();
+            test.testPause();
+            test.testTimeout();
+            test.testFinished();
+        } finally {
+            test.file.delete();
+        }
+        test.exit();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.roleservices.Harness;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.Endpoint;
+
+/**
+ * Opens and closes the circuit breakers of the endpoint health registry.
+ * The registry reads the clock, so this waits out the real back off, about ten seconds in all.
+ *
+ *
+ */
+
+public class HealthTest extends Harness {
+
+    private EndpointHealth health = EndpointHealth.getHealth();
+
+    public void testOpening() {
+        begin("testOpening");
+        health.clear();
+        Endpoint a = new Endpoint("http://a.com:8080/dc/data/1");
+        for (int i = 1; i < EndpointHealth.MAX_CONSECUTIVE_FAILURES; i++) {
+            health.onConnectionFailure(a);
+        }
+        check("closed below the failures in a row", health.getHealth(a).getState() == EndpointHealth.State.CLOSED
+                && health.isAvailable(a), null);
+        health.onSuccess(a, 1000, 10, 5);
+        for (int i = 1; i < EndpointHealth.MAX_CONSECUTIVE_FAILURES; i++) {
+            health.onErrorResponse(a);
+        }
+        check("a success starts the count again", health.getHealth(a).getState() == EndpointHealth.State.CLOSED, null);
+        // another file on the same data center
+        health.onErrorResponse(new Endpoint("http://a.com:8080/dc/data/2"));
+        check("opened by failures in a row", health.getHealth(a).getState() == EndpointHealth.State.OPEN, null);
+        check("open is not available", !health.isAvailable(a) && !health.isUsable(a), null);
+        check("open scores zero", health.getHealth(a).getScore() == 0, "" + health.getHealth(a).getScore());
+        check("other ports are not affected", health.isAvailable(new Endpoint("http://a.com:8081/dc")), null);
+
+        Endpoint b = new Endpoint("http://b.com/dc");
+        for (int i = 0; i < EndpointHealth.MAX_HASH_FAILURES; i++) {
+            health.onSuccess(b, 1000, 10, 5);
+            health.onHashFailure(b);
+        }
+        check("opened by hash failures", health.getHealth(b).getState() == EndpointHealth.State.OPEN, null);
+
+        // two failures in three never make five in a row, but do make the error rate
+        Endpoint c = new Endpoint("http://c.com/dc");
+        int sent = 0;
+        while (sent < EndpointHealth.MIN_REQUESTS - 1) {
+            sent += fail(c, 2);
+            health.onSuccess(c, 1000, 10, 5);
+            sent++;
+        }
+        check("closed until there are enough requests", health.getHealth(c).getState() == EndpointHealth.State.CLOSED,
+                "" + health.getHealth(c));
+        fail(c, 1);
+        check("opened by the error rate", health.getHealth(c).getState() == EndpointHealth.State.OPEN,
+                "" + health.getHealth(c));
+    }
+
+    public void testClosing() throws InterruptedException {
+        begin("testClosing");
+        health.clear();
+        Endpoint a = new Endpoint("http://a.com/dc");
+        Endpoint b = new Endpoint("http://b.com/dc");
+        fail(a, EndpointHealth.MAX_CONSECUTIVE_FAILURES);
+        fail(b, EndpointHealth.MAX_CONSECUTIVE_FAILURES);
+        Thread.sleep(EndpointHealth.MIN_BACKOFF + 200);
+
+        check("half open after the back off", health.getHealth(a).getState() == EndpointHealth.State.HALF_OPEN
+                && health.isUsable(a), null);
+        check("one trial is let through", health.isAvailable(a) && !health.isAvailable(a), null);
+        health.onSuccess(a, 1000, 10, 5);
+        check("closed by a good trial", health.getHealth(a).getState() == EndpointHealth.State.CLOSED
+                && health.isAvailable(a) && health.isAvailable(a), null);
+
+        check("trial for the other", health.isAvailable(b), null);
+        health.onConnectionFailure(b);
+        check("opened again by a failed trial", health.getHealth(b).getState() == EndpointHealth.State.OPEN
+                && !health.isAvailable(b), null);
+        Thread.sleep(EndpointHealth.MIN_BACKOFF + 200);
+        check("open for twice as long", health.getHealth(b).getState() == EndpointHealth.State.OPEN, null);
+        health.clear();
+    }
+
+    private int fail(Endpoint endpoint, int times) {
+        for (int i = 0; i < times; i++) {
+            health.onConnectionFailure(endpoint);
+        }
+        return times;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HealthTest test = new HealthTest();
+        test.testOpening();
+        test.testClosing();
+        test.exit();
+    }
+}
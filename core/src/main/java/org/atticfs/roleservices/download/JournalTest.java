@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.download.DownloadJournal;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.roleservices.ser.TypeMaker;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a download journal and reads it back the way a resumed Downloader does.
+ * The journal is written to a directory in the temp directory that is deleted afterwards.
+ *
+ *
+ */
+
+public class JournalTest extends Harness {
+
+    private File dir;
+
+    public JournalTest() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "attic-journal-" + System.currentTimeMillis());
+        dir.mkdirs();
+    }
+
+    public void testResume() throws Exception {
+        begin("testResume");
+        DataDescription dd = createDescription("abc");
+        List<FileSegmentHash> segs = dd.getHash().getChunks();
+        Endpoint odd = new Endpoint("http://foo.com:8080/dc/data?id=a b&x=1");
+
+        DownloadJournal journal = new DownloadJournal(dir, dd);
+        journal.open(new ArrayList<DownloadJournal.Entry>());
+        journal.segmentVerified(segs.get(0), new Endpoint("http://foo.com/dc"));
+        journal.segmentVerified(segs.get(3), odd);
+        journal.segmentVerified(segs.get(5), null);
+        journal.sync();
+        // not yet synced, so a process that died now would leave only three
+        journal.segmentVerified(segs.get(7), null);
+        List<DownloadJournal.Entry> entries = new DownloadJournal(dir, dd).read();
+        check("unsynced records are not on disk", entries.size() == 3, "" + entries.size());
+        journal.close();
+
+        entries = new DownloadJournal(dir, dd).read();
+        check("close writes pending records", entries.size() == 4 && entries.get(3).getSegment() == segs.get(7), "" + entries.size());
+        if (entries.size() == 4) {
+            check("segments in order", entries.get(0).getSegment() == segs.get(0) && entries.get(1).getSegment() == segs.get(3)
+                    && entries.get(2).getSegment() == segs.get(5), null);
+            check("endpoint survives encoding", odd.equals(entries.get(1).getEndpoint()), "" + entries.get(1).getEndpoint());
+            check("no endpoint", entries.get(2).getEndpoint() == null, "" + entries.get(2).getEndpoint());
+        }
+
+        // a record torn by a crash, and one whose CRC does not match
+        FileOutputStream out = new FileOutputStream(journal.getFile(), true);
+        out.write("segment 80 89 hashabc8 - 1234".getBytes("UTF-8"));
+        out.write("\nsegment 90 99 hashab".getBytes("UTF-8"));
+        out.close();
+        check("damaged records are ignored", new DownloadJournal(dir, dd).read().size() == 4, null);
+
+        // resumed with the entries still good, then appended to
+        DownloadJournal resumed = new DownloadJournal(dir, dd);
+        List<DownloadJournal.Entry> good = resumed.read();
+        good.remove(0);
+        resumed.open(good);
+        resumed.segmentVerified(segs.get(9), null);
+        resumed.sync();
+        resumed.close();
+        entries = new DownloadJournal(dir, dd).read();
+        check("rewritten without the dropped entry", entries.size() == 4 && entries.get(0).getSegment() == segs.get(3)
+                && entries.get(3).getSegment() == segs.get(9), "" + entries.size());
+
+        // a deleted journal does not write its pending records first
+        journal = new DownloadJournal(dir, dd);
+        journal.open(new ArrayList<DownloadJournal.Entry>());
+        journal.segmentVerified(segs.get(1), null);
+        journal.delete();
+        check("delete leaves no journal", !journal.getFile().exists() && journal.getPending().size() == 0, null);
+    }
+
+    public void testOtherData() throws Exception {
+        begin("testOtherData");
+        DataDescription dd = createDescription("abc");
+        DownloadJournal journal = new DownloadJournal(dir, dd);
+        journal.open(new ArrayList<DownloadJournal.Entry>());
+        journal.segmentVerified(dd.getHash().getChunks().get(1), null);
+        journal.sync();
+        journal.close();
+
+        check("journal of other data is ignored", new DownloadJournal(dir, createDescription("xyz")).read().size() == 0, null);
+
+        DataDescription changed = createDescription("abc");
+        changed.getHash().getChunks().get(1).setHash("changed");
+        check("segment with another hash is ignored", new DownloadJournal(dir, changed).read().size() == 0, null);
+
+        journal.delete();
+        check("deleted journal reads empty", new DownloadJournal(dir, dd).read().size() == 0, null);
+    }
+
+    public void testSyncDue() throws Exception {
+        begin("testSyncDue");
+        DataDescription dd = createDescription("abc");
+        DownloadJournal journal = new DownloadJournal(dir, dd);
+        journal.setSyncInterval(60 * 1000);
+        journal.open(new ArrayList<DownloadJournal.Entry>());
+        check("nothing pending", !journal.isSyncDue(), null);
+        journal.segmentVerified(dd.getHash().getChunks().get(2), null);
+        check("not due before the interval", !journal.isSyncDue() && journal.getPending().size() == 1, null);
+        journal.setSyncInterval(0);
+        check("due once the interval has passed", journal.isSyncDue(), null);
+        journal.sync();
+        check("nothing pending after a sync", !journal.isSyncDue() && journal.getPending().size() == 0, null);
+        journal.delete();
+    }
+
+    private DataDescription createDescription(String id) {
+        DataDescription dd = TypeMaker.createDataDescription(id);
+        dd.setHash(TypeMaker.createFileHash(id));
+        return dd;
+    }
+
+
+    private void cleanUp() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        JournalTest test = new JournalTest();
+        try {
+            test.testResume();
+            test.testOtherData();
+            test.testSyncDue();
+        } finally {
+            test.cleanUp();
+        }
+        test.exit();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.channel.MultipartRangeInputStream;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.impl.channel.http.MultipartByteRanges;
+import org.atticfs.roleservices.Harness;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the parsing of Range headers, the multipart/byteranges body the server writes and the client reads,
+ * and that a server that answers several ranges with the whole entity is seen as such, so the requestor
+ * can fall back to one range at a time.
+ * args:
+ * 1. the port of the local server. Defaults to 18127.
+ *
+ *
+ */
+
+public class MultiRangeTest extends Harness {
+
+    private byte[] data;
+    private File file;
+
+    public MultiRangeTest() throws IOException {
+        data = new byte[100000];
+        new Random(5).nextBytes(data);
+        file = File.createTempFile("attic-multirange", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testParseRanges() {
+        begin("testParseRanges");
+        List<ByteRange> ranges = MultipartByteRanges.parseRanges(Arrays.asList("bytes=0-9, 20-29", "-5"), 100);
+        check("split values are joined", ranges != null && ranges.size() == 3, "" + ranges);
+        if (ranges != null && ranges.size() == 3) {
+            check("first range", range(ranges.get(0), 0, 9), "" + ranges.get(0));
+            check("second range", range(ranges.get(1), 20, 29), "" + ranges.get(1));
+            check("suffix range", range(ranges.get(2), 95, 99), "" + ranges.get(2));
+        }
+        ranges = MultipartByteRanges.parseRanges(Arrays.asList("bytes=90-,95-200,100-110"), 100);
+        check("open and long ranges end at the entity, ranges past it are dropped", ranges != null && ranges.size() == 2
+                && range(ranges.get(0), 90, 99) && range(ranges.get(1), 95, 99), "" + ranges);
+        String[] bad = new String[]{"items=0-9", "bytes=9-0", "bytes=a-b", "bytes=10"};
+        for (String s : bad) {
+            check("rejects '" + s + "'", MultipartByteRanges.parseRanges(Arrays.asList(s), 100) == null, null);
+        }
+        check("no header", MultipartByteRanges.parseRanges(new ArrayList<String>(), 100) == null, null);
+    }
+
+    public void testParts() throws IOException {
+        begin("testParts");
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        ranges.add(new ByteRange(0, 999, data.length));
+        ranges.add(new ByteRange(5000, 5099, data.length));
+        ranges.add(new ByteRange(99000, 99999, data.length));
+        MultipartByteRanges entity = new MultipartByteRanges(file, "application/octet-stream", ranges);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        long written = entity.writeTo(bout);
+        check("length matches what is written", written == entity.getLength() && written == bout.size(), written + " " + entity.getLength());
+
+        String boundary = MultipartRangeInputStream.getBoundary(entity.getMimeType());
+        check("boundary from the content type", entity.getBoundary().equals(boundary), boundary);
+        MultipartRangeInputStream in = new MultipartRangeInputStream(new ByteArrayInputStream(bout.toByteArray()), boundary);
+        ByteRange first = in.next();
+        check("first part", first != null && range(first, 0, 999) && same(in, first), "" + first);
+        // the second part is not read, so next() must skip it
+        ByteRange second = in.next();
+        check("second part", second != null && range(second, 5000, 5099), "" + second);
+        ByteRange third = in.next();
+        check("unread part is skipped", third != null && range(third, 99000, 99999) && same(in, third), "" + third);
+        check("no more parts", in.next() == null, null);
+        check("still no more parts", in.next() == null, null);
+    }
+
+    public void testMalformed() throws IOException {
+        begin("testMalformed");
+        check("not multipart", MultipartRangeInputStream.getBoundary("application/octet-stream") == null, null);
+        check("quoted boundary", "a b".equals(MultipartRangeInputStream.getBoundary("multipart/byteranges; boundary=\"a b\"")), null);
+        check("no boundary", MultipartRangeInputStream.getBoundary("multipart/byteranges") == null, null);
+
+        // older servers send the multipart headers but no body
+        check("empty body fails", fails(""), null);
+        check("other boundary fails", fails("\r\n--other\r\nContent-Range: bytes 0-1/2\r\n\r\nab\r\n--other--\r\n"), null);
+        check("part without a range fails", fails("\r\n--b\r\nContent-Type: text/plain\r\n\r\nab\r\n--b--\r\n"), null);
+        check("bad range fails", fails("\r\n--b\r\nContent-Range: bytes 5-1/9\r\n\r\nab\r\n--b--\r\n"), null);
+        check("body cut short fails", fails("\r\n--b\r\nContent-Range: bytes 0-99/100\r\n\r\nab"), null);
+
+        ByteRange range = MultipartRangeInputStream.parseContentRange("bytes 10-19/*");
+        check("unknown total", range(range, 10, 19) && range.getLength() == -1, "" + range);
+    }
+
+    /**
+     * a file is served as multipart/byteranges. Bytes are not: httpeer sends the multipart headers for them
+     * but no body, as older servers did for files. The requestor must be able to tell, so it falls back.
+     */
+    public void testServer(int port) throws Exception {
+        begin("testServer");
+        // a new home, so settings stored by an earlier run are not loaded
+        new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-multirange-" + System.currentTimeMillis()).getAbsolutePath()).init();
+        serve(port);
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        ranges.add(new ByteRange(100, 199, -1));
+        ranges.add(new ByteRange(50000, 50099, -1));
+
+        ChannelData cd = request("http://127.0.0.1:" + port + "/multirange/data/file", ranges);
+        check("file answered", cd.getOutcome() == ChannelData.Outcome.OK, "" + cd.getOutcome());
+        check("file answered with parts", cd.getResponseData() instanceof MultipartRangeInputStream, "" + cd.getResponseData());
+        if (cd.getResponseData() instanceof MultipartRangeInputStream) {
+            MultipartRangeInputStream in = (MultipartRangeInputStream) cd.getResponseData();
+            for (ByteRange asked : ranges) {
+                ByteRange got = in.next();
+                check("part " + asked.getStartOffset(), got != null && range(got, asked.getStartOffset(), asked.getEndOffset()) && same(in, got), "" + got);
+            }
+            check("no more parts", in.next() == null, null);
+            in.close();
+        }
+
+        cd = request("http://127.0.0.1:" + port + "/multirange/data/bytes", ranges);
+        check("bytes answered", cd.getOutcome() == ChannelData.Outcome.OK, "" + cd.getOutcome());
+        check("bytes answered without parts, so the requestor falls back", !hasPart(cd.getResponseData()), null);
+    }
+
+    private void serve(int port) throws IOException {
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("multirange");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                boolean bytes = String.valueOf(context.getTarget()).endsWith("bytes");
+                context.setResponseData(bytes ? data : file);
+                context.setMimeType("application/octet-stream");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+    }
+
+    private ChannelData request(String endpoint, List<ByteRange> ranges) throws Exception {
+        OutChannel out = ChannelFactory.getFactory().createOutChannel(null);
+        ChannelData cd = new ChannelData(ChannelData.Action.GET, endpoint);
+        cd.setBufferSize(0);
+        cd.setResponseType(InputStream.class);
+        cd.setUseCompression(false);
+        cd.setByteRanges(ranges);
+        return out.send(cd);
+    }
+
+    /**
+     * the test AbstractRequestor.requestRanges makes before it falls back to one range at a time.
+     */
+    private boolean hasPart(Object data) {
+        if (!(data instanceof MultipartRangeInputStream)) {
+            return false;
+        }
+        MultipartRangeInputStream in = (MultipartRangeInputStream) data;
+        try {
+            return in.next() != null;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private boolean fails(String body) {
+        try {
+            MultipartRangeInputStream in = new MultipartRangeInputStream(new ByteArrayInputStream(body.getBytes("ISO-8859-1")), "b");
+            while (in.next() != null) {
+                // drains each part
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private boolean same(InputStream in, ByteRange range) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int c;
+        while ((c = in.read(buf)) != -1) {
+            bout.write(buf, 0, c);
+        }
+        byte[] got = bout.toByteArray();
+        byte[] expected = new byte[(int) (range.getEndOffset() - range.getStartOffset() + 1)];
+        System.arraycopy(data, (int) range.getStartOffset(), expected, 0, expected.length);
+        return Arrays.equals(expected, got);
+    }
+
+    private boolean range(ByteRange range, long start, long end) {
+        return range.getStartOffset() == start && range.getEndOffset() == end;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18127;
+        MultiRangeTest test = new MultiRangeTest();
+        test.testParseRanges();
+        test.testParts();
+        test.testMalformed();
+        test.testServer(port);
+        test.exit();
+    }
+}
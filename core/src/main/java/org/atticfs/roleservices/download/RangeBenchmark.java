@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.impl.channel.http.StreamableFileChannel;
+import org.wspeer.streamable.PartialStreamable;
+import org.wspeer.streamable.StreamableRandomAccessFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Compares the way ranges of a file were written to a response, StreamableRandomAccessFile,
+ * with StreamableFileChannel. Each range is written to a loopback socket the way httpeer writes
+ * a single range response, and a thread on the other end reads and drops the bytes.
+ * Run once per mode, each in its own JVM, so the figures are not mixed up.
+ * args:
+ * 1. copy or transfer
+ * 2. the size of each range in KB
+ * 3. the number of ranges
+ * <p/>
+ * Prints the time taken, the CPU time of the writing thread and the bytes written per CPU second.
+ * The source file is left in the temp directory and reused by later runs.
+ *
+ *
+ */
+
+public class RangeBenchmark {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("I need a mode (copy or transfer), a range size in KB and a number of ranges");
+            System.exit(0);
+        }
+        boolean transfer = args[0].equals("transfer");
+        long rangeSize = Long.parseLong(args[1]) * 1024;
+        int count = Integer.parseInt(args[2]);
+        if (rangeSize <= 0 || rangeSize > SIZE) {
+            System.out.println("the range size must be between 1 and " + SIZE / 1024 + " KB");
+            System.exit(0);
+        }
+        File source = new File(System.getProperty("java.io.tmpdir"), "attic-range-bench.bin");
+        createSource(source);
+        PartialStreamable s = transfer ? new StreamableFileChannel(source, "application/octet-stream")
+                : new StreamableRandomAccessFile(source, "application/octet-stream");
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final Socket accepted;
+        Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        accepted = server.accept();
+        final long[] read = new long[1];
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                byte[] buf = new byte[65536];
+                try {
+                    InputStream in = accepted.getInputStream();
+                    int c;
+                    while ((c = in.read(buf)) != -1) {
+                        read[0] += c;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        drain.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        OutputStream out = socket.getOutputStream();
+        Random random = new Random(7);
+        long written = 0;
+        long cpu = threads.getCurrentThreadCpuTime();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long offset = (long) (random.nextDouble() * (SIZE - rangeSize + 1));
+            long c = s.writeTo(out, offset, rangeSize);
+            if (c != rangeSize) {
+                System.out.println("range at " + offset + " wrote " + c + " bytes");
+                System.exit(1);
+            }
+            written += c;
+        }
+        cpu = threads.getCurrentThreadCpuTime() - cpu;
+        long time = System.currentTimeMillis() - start;
+        socket.shutdownOutput();
+        drain.join();
+        socket.close();
+        accepted.close();
+        server.close();
+
+        double mb = (double) written / (1024 * 1024);
+        System.out.println("mode=" + args[0] + " rangeKB=" + rangeSize / 1024 + " ranges=" + count
+                + " read=" + read[0] + " ms=" + time + " cpuMs=" + cpu / 1000000
+                + " MB/s=" + (time == 0 ? 0 : (long) (mb * 1000 / time))
+                + " MB/cpuS=" + (cpu == 0 ? 0 : (long) (mb * 1000000000L / cpu))
+                + " heapMB=" + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024));
+        System.exit(0);
+    }
+
+    private static void createSource(File source) throws Exception {
+        if (source.length() == SIZE) {
+            return;
+        }
+        byte[] data = new byte[1024 * 1024];
+        Random random = new Random(7);
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            for (long i = 0; i < SIZE; i += data.length) {
+                random.nextBytes(data);
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.FileHashCache;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.request.RequestResolver;
+import org.atticfs.impl.store.FileDescriptionStore;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.roles.handlers.DescriptionRequestHandler;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.DataPointer;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Asks a local server for its FileHash again and again, checking the entity tag sent
+ * and whether the server answers that its copy has not changed.
+ * args:
+ * 1. the port of the local server. Defaults to 18129.
+ * <p/>
+ * The Attic home is written to the temp directory.
+ *
+ *
+ */
+
+public class RevalidateTest extends Harness {
+
+    private static final int SEGMENTS = 6;
+
+    private Attic attic;
+    private Endpoint endpoint;
+    private DataDescription dd;
+    // what the server holds. null if it holds nothing
+    private volatile FileHash served;
+    // the tag the server was last sent, and how it answered
+    private volatile String sentTag;
+    private volatile ChannelData.Outcome outcome;
+
+    public RevalidateTest(int port) throws Exception {
+        dd = new DataDescription("revalidate-1");
+        dd.setHash(createFileHash(SEGMENTS));
+        // a new home, so settings stored by an earlier run are not loaded
+        attic = new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-revalidate-" + System.currentTimeMillis()).getAbsolutePath());
+        attic.init();
+        attic.getDownloadConfig().setCompactAvailability(false);
+        serve(port);
+        endpoint = new Endpoint("http://127.0.0.1:" + port + "/revalidate/data");
+        endpoint.setMetaEndpoint("http://127.0.0.1:" + port + "/revalidate/meta");
+    }
+
+    public void testRevalidate() throws Exception {
+        begin("testRevalidate");
+        FileHashCache cache = FileHashCache.getCache();
+        cache.clear();
+        served = dd.getHash();
+        RequestCollection coll = resolve();
+        check("first request sends no tag", sentTag == null, sentTag);
+        check("first request answered in full", outcome == ChannelData.Outcome.OK, "" + outcome);
+        FileHashCache.Tagged entry = cache.get(endpoint, dd);
+        check("answer cached with its tag", entry != null && (served.getHash() + "-" + SEGMENTS).equals(entry.getTag()),
+                entry == null ? null : entry.getTag());
+        check("mapping from the answer", segments(coll) == SEGMENTS, "" + segments(coll));
+
+        coll = resolve();
+        check("tag sent again", entry != null && entry.getTag().equals(sentTag), sentTag);
+        check("not modified", outcome == ChannelData.Outcome.NOT_MODIFIED, "" + outcome);
+        check("mapping from the cache", segments(coll) == SEGMENTS, "" + segments(coll));
+        check("still cached", cache.size() == 1 && cache.get(endpoint, dd) != null, "" + cache.size());
+
+        // a partial copy that has gained segments since
+        served = createFileHash(SEGMENTS - 2);
+        coll = resolve();
+        check("changed copy answered in full", outcome == ChannelData.Outcome.OK, "" + outcome);
+        entry = cache.get(endpoint, dd);
+        check("new tag cached", entry != null && (served.getHash() + "-" + (SEGMENTS - 2)).equals(entry.getTag()),
+                entry == null ? null : entry.getTag());
+        check("mapping from the changed copy", segments(coll) == SEGMENTS - 2, "" + segments(coll));
+
+        served = null;
+        coll = resolve();
+        check("not found", outcome == ChannelData.Outcome.NOT_FOUND, "" + outcome);
+        check("dropped from the cache", cache.get(endpoint, dd) == null && cache.size() == 0, "" + cache.size());
+        check("no mapping without the data", coll.getMappings().size() == 0, "" + coll.getMappings().size());
+    }
+
+    public void testEviction() throws Exception {
+        begin("testEviction");
+        FileHashCache cache = FileHashCache.getCache();
+        cache.clear();
+        cache.setMaxEntries(2);
+        Endpoint a = new Endpoint("http://a.com/dc");
+        Endpoint b = new Endpoint("http://b.com/dc");
+        Endpoint c = new Endpoint("http://c.com/dc");
+        cache.put(a, dd, "a", dd.getHash());
+        cache.put(b, dd, "b", dd.getHash());
+        cache.get(a, dd);
+        cache.put(c, dd, "c", dd.getHash());
+        check("full cache keeps its size", cache.size() == 2, "" + cache.size());
+        check("least recently used dropped", cache.get(b, dd) == null && cache.get(a, dd) != null && cache.get(c, dd) != null, null);
+        cache.setMaxEntries(1);
+        check("smaller cache trimmed", cache.size() == 1 && cache.get(c, dd) != null, "" + cache.size());
+        cache.setMaxEntries(0);
+        cache.put(a, dd, "a", dd.getHash());
+        check("zero turns the cache off", cache.size() == 0, "" + cache.size());
+        cache.setMaxEntries(FileHashCache.MAX_ENTRIES);
+    }
+
+    private RequestCollection resolve() throws IOException {
+        sentTag = null;
+        outcome = null;
+        Set<Endpoint> endpoints = new HashSet<Endpoint>();
+        endpoints.add(endpoint);
+        return RequestResolver.createRequestCollection(new DataPointer(dd, endpoints), attic);
+    }
+
+    private static int segments(RequestCollection coll) {
+        List<EndpointRequest> mappings = coll.getMappings();
+        return mappings.size() == 1 ? mappings.get(0).getChunks().size() : -1;
+    }
+
+    private void serve(int port) throws IOException {
+        File home = new File(attic.getHome(), "revalidate");
+        FileDescriptionStore store = new FileDescriptionStore(attic, new File(home, "data"), new File(home, "desc"), null) {
+            public FileHash getFileHash(String id) {
+                return dd.getId().equals(id) ? served : null;
+            }
+        };
+        final DescriptionRequestHandler handler = new DescriptionRequestHandler(store);
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("revalidate");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                sentTag = context.getIfNoneMatch();
+                ChannelData ret = handler.handleRequest(context);
+                outcome = ret.getOutcome();
+                return ret;
+            }
+
+            public String getPath() {
+                return handler.getPath();
+            }
+        }, props);
+    }
+
+    /**
+     * segments of a made up file. A partial copy has the same whole-file hash with fewer segments.
+     */
+    private static FileHash createFileHash(int segments) {
+        FileHash fh = new FileHash();
+        fh.setSize(SEGMENTS * 1024);
+        for (int i = 0; i < segments; i++) {
+            fh.addSegment(new FileSegmentHash("0123456789abcdef0123456789abcde" + i, i * 1024, i * 1024 + 1023));
+        }
+        fh.setHash("fedcba9876543210fedcba9876543210");
+        return fh;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18129;
+        RevalidateTest test = new RevalidateTest(port);
+        test.testRevalidate();
+        test.testEviction();
+        test.exit();
+    }
+}
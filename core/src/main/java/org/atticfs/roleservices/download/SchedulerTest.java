@@ -0,0 +1,244 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.download.Transfer;
+import org.atticfs.download.TransferScheduler;
+import org.atticfs.download.request.SegmentRequest;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs transfers through a TransferScheduler whose pool is a queue the test works through by hand,
+ * so the order requests are started in is fixed.
+ *
+ *
+ */
+
+public class SchedulerTest extends Harness {
+
+    private ManualExecutor executor;
+    private TransferScheduler scheduler;
+    // names of the requests in the order they ran
+    private List<String> ran = new ArrayList<String>();
+
+    private void setUp(int maxTotal) {
+        DownloadConfig config = new DownloadConfig();
+        config.setMaxTotalConnections(maxTotal);
+        config.setMaxEndpointConnections(0);
+        executor = new ManualExecutor();
+        scheduler = new TransferScheduler(executor, config);
+        ran.clear();
+    }
+
+    public void testFinishing() {
+        begin("testFinishing");
+        setUp(4);
+        TestTransfer t = new TestTransfer("a", Transfer.Priority.NORMAL, 2);
+        scheduler.add(t);
+        executor.runAll();
+        check("nothing ready yet, so not finished", scheduler.getTransfers() == 1 && t.finished == 0, null);
+
+        t.ready("a1");
+        t.ready("a2");
+        t.ready("a3");
+        scheduler.wakeup();
+        check("no more than the transfer's maximum run", scheduler.getRunning() == 2, "" + scheduler.getRunning());
+        executor.runAll();
+        check("requests ran", ran.size() == 3, "" + ran);
+        check("drained but not ended, so not finished", scheduler.getTransfers() == 1 && t.finished == 0, null);
+
+        t.end();
+        scheduler.wakeup();
+        executor.runAll();
+        check("finished once after the poison", scheduler.getTransfers() == 0 && t.finished == 1, "" + t.finished);
+        scheduler.wakeup();
+        executor.runAll();
+        check("not finished again", t.finished == 1, "" + t.finished);
+    }
+
+    public void testComplete() {
+        begin("testComplete");
+        setUp(4);
+        TestTransfer t = new TestTransfer("a", Transfer.Priority.NORMAL, 2);
+        t.ready("a1");
+        scheduler.add(t);
+        // the request is started, not yet run
+        t.complete = true;
+        scheduler.wakeup();
+        check("not finished while a request is running", scheduler.getTransfers() == 1 && t.finished == 0, null);
+        executor.runAll();
+        check("complete transfer finished without the poison", scheduler.getTransfers() == 0 && t.finished == 1, "" + t.finished);
+    }
+
+    public void testPriority() {
+        begin("testPriority");
+        setUp(1);
+        TestTransfer background = new TestTransfer("bg", Transfer.Priority.BACKGROUND, 4);
+        background.ready("bg1");
+        background.ready("bg2");
+        background.ready("bg3");
+        background.end();
+        scheduler.add(background);
+        TestTransfer interactive = new TestTransfer("in", Transfer.Priority.INTERACTIVE, 4);
+        interactive.ready("in1");
+        interactive.ready("in2");
+        interactive.end();
+        scheduler.add(interactive);
+        TestTransfer normal = new TestTransfer("no", Transfer.Priority.NORMAL, 4);
+        normal.ready("no1");
+        normal.end();
+        scheduler.add(normal);
+        executor.runAll();
+        // bg1 was started before the others were added
+        check("higher classes first", ran.toString().equals("[bg1, in1, in2, no1, bg2, bg3]"), ran.toString());
+        check("all finished", background.finished == 1 && interactive.finished == 1 && normal.finished == 1, null);
+    }
+
+    public void testTurns() {
+        begin("testTurns");
+        setUp(1);
+        TestTransfer a = new TestTransfer("a", Transfer.Priority.NORMAL, 4);
+        TestTransfer b = new TestTransfer("b", Transfer.Priority.NORMAL, 4);
+        for (int i = 1; i <= 3; i++) {
+            a.ready("a" + i);
+            b.ready("b" + i);
+        }
+        a.end();
+        b.end();
+        scheduler.add(a);
+        scheduler.add(b);
+        executor.runAll();
+        check("same class takes turns", ran.toString().equals("[a1, b1, a2, b2, a3, b3]"), ran.toString());
+
+        // a lower class is raised while it runs
+        setUp(1);
+        TestTransfer first = new TestTransfer("first", Transfer.Priority.NORMAL, 4);
+        TestTransfer later = new TestTransfer("later", Transfer.Priority.BACKGROUND, 4);
+        first.ready("first1");
+        first.ready("first2");
+        first.end();
+        later.ready("later1");
+        later.ready("later2");
+        later.end();
+        scheduler.add(first);
+        scheduler.add(later);
+        later.priority = Transfer.Priority.INTERACTIVE;
+        executor.runAll();
+        check("a change of class is seen", ran.toString().equals("[first1, later1, later2, first2]"), ran.toString());
+    }
+
+
+    /**
+     * a pool that runs nothing until asked.
+     */
+    private static class ManualExecutor implements Executor {
+        private LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+        public synchronized void execute(Runnable runnable) {
+            queue.add(runnable);
+        }
+
+        private void runAll() {
+            while (true) {
+                Runnable r;
+                synchronized (this) {
+                    if (queue.size() == 0) {
+                        return;
+                    }
+                    r = queue.removeFirst();
+                }
+                r.run();
+            }
+        }
+    }
+
+    private class TestTransfer implements Transfer {
+        private String name;
+        private volatile Priority priority;
+        private int max;
+        private LinkedList<SegmentRequest> ready = new LinkedList<SegmentRequest>();
+        private boolean ended = false;
+        private volatile boolean complete = false;
+        private volatile int finished = 0;
+
+        private TestTransfer(String name, Priority priority, int max) {
+            this.name = name;
+            this.priority = priority;
+            this.max = max;
+        }
+
+        private synchronized void ready(String request) {
+            ready.add(new SegmentRequest(new Endpoint("http://" + name + ".com/data"),
+                    new FileSegmentHash(request, 0, 9), false, DownloadTable.Priority.PRIMARY, 0, 10));
+        }
+
+        private synchronized void end() {
+            ended = true;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public boolean isPaused() {
+            return false;
+        }
+
+        public int getMaxConnections() {
+            return max;
+        }
+
+        public synchronized SegmentRequest poll() {
+            if (ready.size() > 0) {
+                return ready.removeFirst();
+            }
+            return ended ? DownloadTable.poison : null;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public void transfer(SegmentRequest request) {
+            synchronized (ran) {
+                ran.add(request.getFileSegmentHash().getHash());
+            }
+        }
+
+        public void finished() {
+            finished++;
+        }
+    }
+
+    public static void main(String[] args) {
+        SchedulerTest test = new SchedulerTest();
+        test.testFinishing();
+        test.testComplete();
+        test.testPriority();
+        test.testTurns();
+        test.exit();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.download.DownloadException;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.download.table.SegmentedData;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.FileSegmentHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the segments held by SegmentedData indexed by segment number, whose bitset spans
+ * several words, and the count and extent the status is worked out from.
+ *
+ *
+ */
+
+public class SegmentedDataTest extends Harness {
+
+    private static final int SIZE = 100;
+    // three words of bits, the last partly used
+    private static final int SEGMENTS = 130;
+    private static final long LENGTH = SIZE * SEGMENTS - 30;
+
+    private List<FileSegmentHash> segments = new ArrayList<FileSegmentHash>();
+
+    public SegmentedDataTest() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new FileSegmentHash("h" + i, i * SIZE, Math.min((i + 1) * SIZE, LENGTH) - 1));
+        }
+    }
+
+    public void testSegmentSize() {
+        begin("testSegmentSize");
+        check("fixed size with a short last segment", SegmentedData.getSegmentSize(segments, LENGTH) == SIZE, null);
+        check("not the whole length", SegmentedData.getSegmentSize(segments, LENGTH + 1) == -1, null);
+        List<FileSegmentHash> gap = new ArrayList<FileSegmentHash>(segments);
+        gap.remove(5);
+        check("a gap", SegmentedData.getSegmentSize(gap, LENGTH) == -1, null);
+        List<FileSegmentHash> odd = new ArrayList<FileSegmentHash>();
+        odd.add(new FileSegmentHash("a", 0, 99));
+        odd.add(new FileSegmentHash("b", 100, 149));
+        odd.add(new FileSegmentHash("c", 150, 249));
+        check("sizes differ", SegmentedData.getSegmentSize(odd, 250) == -1, null);
+        check("indexed", new SegmentedData(LENGTH, SIZE).isIndexed() && !new SegmentedData(LENGTH).isIndexed(), null);
+    }
+
+    public void testExtent() throws DownloadException {
+        begin("testExtent");
+        SegmentedData data = new SegmentedData(LENGTH, SIZE);
+        check("empty", data.getStatus() == DownloadTable.Status.EMPTY && data.getBlockNumber() == 0, null);
+        check("first added", data.addChunk(segments.get(0)) && data.getStatus() == DownloadTable.Status.CONTINUOUS, null);
+        check("added once", !data.addChunk(segments.get(0)) && data.getBlockNumber() == 1, "" + data.getBlockNumber());
+        for (int i = 1; i < 65; i++) {
+            data.addChunk(segments.get(i));
+        }
+        check("run across a word", data.getBlockNumber() == 65 && data.getStatus() == DownloadTable.Status.CONTINUOUS,
+                "" + data.getBlockNumber());
+        check("bits either side of the word", data.containsChunk(segments.get(63)) && data.containsChunk(segments.get(64))
+                && !data.containsChunk(segments.get(65)), null);
+        data.addChunk(segments.get(SEGMENTS - 1));
+        check("short last segment", data.containsChunk(segments.get(SEGMENTS - 1)), null);
+        check("gap in the middle", data.getStatus() == DownloadTable.Status.DISCONTINUOUS, null);
+
+        check("segment that does not fit", !data.addChunk(new FileSegmentHash("x", 70 * SIZE, 71 * SIZE))
+                && !data.addChunk(new FileSegmentHash("y", 70 * SIZE + 1, 71 * SIZE))
+                && !data.containsChunk(new FileSegmentHash("x", 70 * SIZE, 71 * SIZE))
+                && data.getBlockNumber() == 66, "" + data.getBlockNumber());
+
+        SegmentedData end = new SegmentedData(LENGTH, SIZE);
+        for (int i = 100; i < SEGMENTS; i++) {
+            end.addChunk(segments.get(i));
+        }
+        check("run to the end", end.getStatus() == DownloadTable.Status.CONTINUOUS, null);
+        SegmentedData middle = new SegmentedData(LENGTH, SIZE);
+        for (int i = 60; i < 70; i++) {
+            middle.addChunk(segments.get(i));
+        }
+        check("run in the middle", middle.getStatus() == DownloadTable.Status.DISCONTINUOUS, null);
+
+        check("run only partly held", !data.containsAll(middle) && middle.containsAll(middle), null);
+        SegmentedData inside = new SegmentedData(LENGTH, SIZE);
+        inside.addChunk(segments.get(3));
+        inside.addChunk(segments.get(64));
+        inside.addChunk(segments.get(SEGMENTS - 1));
+        check("contains segments in every word", data.containsAll(inside) && !inside.containsAll(data), null);
+        SegmentedData other = new SegmentedData(LENGTH, SIZE);
+        for (int i = 0; i < 66; i++) {
+            other.addChunk(segments.get(i + 1));
+        }
+        check("same count, other segments", !data.containsAll(other) && !data.equals(other), null);
+
+        for (FileSegmentHash seg : segments) {
+            data.addChunk(seg);
+        }
+        check("complete", data.getStatus() == DownloadTable.Status.COMPLETE && data.getBlockNumber() == SEGMENTS, null);
+        check("chunks in order", data.getChunks().equals(segments), null);
+        SegmentedData shuffled = new SegmentedData(LENGTH, SIZE);
+        List<FileSegmentHash> order = new ArrayList<FileSegmentHash>(segments);
+        Collections.shuffle(order, new Random(1));
+        shuffled.addChunks(order);
+        check("equal whatever the order added", shuffled.equals(data) && shuffled.hashCode() == data.hashCode(), null);
+    }
+
+    /**
+     * threads add the same segments in different orders. Each is added once and the count is exact.
+     */
+    public void testConcurrent() throws Exception {
+        begin("testConcurrent");
+        final SegmentedData data = new SegmentedData(LENGTH, SIZE);
+        final AtomicInteger added = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final List<FileSegmentHash> order = new ArrayList<FileSegmentHash>(segments);
+            Collections.shuffle(order, new Random(t));
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (FileSegmentHash seg : order) {
+                            if (data.addChunk(seg)) {
+                                added.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        check("each segment added once", added.get() == SEGMENTS, "" + added.get());
+        check("count is exact", data.getBlockNumber() == SEGMENTS && data.getStatus() == DownloadTable.Status.COMPLETE,
+                "" + data.getBlockNumber());
+    }
+
+    public static void main(String[] args) throws Exception {
+        SegmentedDataTest test = new SegmentedDataTest();
+        test.testSegmentSize();
+        test.testExtent();
+        test.testConcurrent();
+        test.exit();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.download;
+
+import org.atticfs.config.download.DownloadConfig;
+import org.atticfs.download.DownloadException;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.SegmentRequest;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.download.table.SegmentedData;
+import org.atticfs.download.table.WorkStealingDownloadTable;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out the segments of a work stealing table to endpoints that each take one request at a time,
+ * finishing the requests by hand so the order segments are handed out in is fixed.
+ *
+ *
+ */
+
+public class WorkStealingTest extends Harness {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final int SEGMENTS = 8;
+
+    private Endpoint a = new Endpoint("http://a.com/dc");
+    private Endpoint b = new Endpoint("http://b.com/dc");
+    private Endpoint reserve = new Endpoint("http://reserve.com/dc");
+    private FileHash hash;
+    private WorkStealingDownloadTable table;
+    // endpoint and segment of each request handed out, in order
+    private List<String> taken = new ArrayList<String>();
+
+    public WorkStealingTest() {
+        hash = new FileHash();
+        long length = SEGMENT * SEGMENTS - 1000;
+        hash.setSize(length);
+        for (int i = 0; i < SEGMENTS; i++) {
+            hash.addSegment(new FileSegmentHash("0123456789abcdef0123456789abcde" + i, i * SEGMENT, Math.min((i + 1) * SEGMENT, length) - 1));
+        }
+        hash.setHash("fedcba9876543210fedcba9876543210");
+    }
+
+    private void setUp() throws DownloadException {
+        EndpointHealth.getHealth().clear();
+        DownloadConfig config = new DownloadConfig();
+        config.setWorkStealing(true);
+        config.setMaxEndpointConnections(1);
+        DataDescription dd = new DataDescription("stealing");
+        dd.setHash(hash);
+        // the segments to download, as the table creator gives them
+        SegmentedData template = new SegmentedData(hash.getSize(), SEGMENT);
+        template.addChunks(hash.getChunks());
+        table = new WorkStealingDownloadTable(dd, template, config);
+        taken.clear();
+    }
+
+    /**
+     * an endpoint that has finished its own segments takes the highest of another's.
+     */
+    public void testStealing() throws DownloadException {
+        begin("testStealing");
+        setUp();
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, a, 0, 4));
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, b, 4, 8));
+        table.addRequest(request(DownloadTable.Priority.SECONDARY, a, 4, 8));
+        table.addRequest(request(DownloadTable.Priority.SECONDARY, b, 0, 4));
+        table.setExpectingRequests(false);
+
+        SegmentRequest slow = poll();
+        SegmentRequest fast = poll();
+        check("each endpoint starts its own segments", "[a0, b4]".equals(taken.toString()), taken.toString());
+        check("busy endpoints take nothing more", table.poll(-1) == null, null);
+        for (int i = 0; i < 3; i++) {
+            table.onSuccess(slow);
+            slow = poll();
+        }
+        check("own segments in order", "[a0, b4, a1, a2, a3]".equals(taken.toString()), taken.toString());
+        table.onSuccess(slow);
+        slow = poll();
+        check("idle endpoint steals the highest segment", "a7".equals(name(slow)), name(slow));
+        table.onSuccess(slow);
+        slow = poll();
+        check("and the next highest", "a6".equals(name(slow)), name(slow));
+        table.onSuccess(fast);
+        fast = poll();
+        check("victim keeps its lowest segment", "b5".equals(name(fast)), name(fast));
+        check("nothing left to take", table.poll(-1) == null && !table.isComplete(), null);
+        table.onSuccess(slow);
+        table.onSuccess(fast);
+        check("complete once every segment is verified", table.isComplete()
+                && table.poll(-1).getPriority() == DownloadTable.Priority.POISON, null);
+        check("each segment handed out once", taken.size() == SEGMENTS, taken.toString());
+    }
+
+    /**
+     * a failed segment is given to another endpoint that holds it, never back to the one that failed.
+     */
+    public void testFailure() throws DownloadException {
+        begin("testFailure");
+        setUp();
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, a, 0, 4));
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, b, 4, 8));
+        table.addRequest(request(DownloadTable.Priority.SECONDARY, a, 4, 8));
+        table.setExpectingRequests(false);
+
+        SegmentRequest first = poll();
+        SegmentRequest failed = poll();
+        table.onFailure(failed);
+        table.onSuccess(first);
+        drain();
+        check("failed segment taken by the other holder", taken.contains("a4") && taken.lastIndexOf("b4") == 1, taken.toString());
+        check("complete", table.isComplete(), null);
+
+        setUp();
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, a, 0, 4));
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, b, 4, 8));
+        table.setExpectingRequests(false);
+        table.onFailure(poll());
+        drain();
+        check("segment no one else holds is not retried", !taken.subList(1, taken.size()).contains("a0")
+                && taken.size() == SEGMENTS, taken.toString());
+        check("table ends without it", !table.isComplete() && table.poll(-1).getPriority() == DownloadTable.Priority.POISON, null);
+    }
+
+    /**
+     * a reserve that holds the whole file only takes segments no other endpoint can provide.
+     */
+    public void testReserve() throws DownloadException {
+        begin("testReserve");
+        setUp();
+        table.addRequest(request(DownloadTable.Priority.PRIMARY, a, 0, SEGMENTS));
+        table.addRequest(new EndpointRequest(DownloadTable.Priority.TERTIARY, new ArrayList<FileSegmentHash>(), reserve));
+        table.setExpectingRequests(false);
+
+        SegmentRequest failed = poll();
+        check("reserve idle while the primary has work", table.poll(-1) == null, null);
+        table.onFailure(failed);
+        SegmentRequest next = poll();
+        SegmentRequest rescued = poll();
+        check("reserve takes the failed segment", "a1".equals(name(next)) && "reserve0".equals(name(rescued)), taken.toString());
+        table.onSuccess(next);
+        table.onSuccess(rescued);
+        drain();
+        check("reserve takes nothing else", taken.toString().indexOf("reserve") == taken.toString().lastIndexOf("reserve"),
+                taken.toString());
+        check("complete", table.isComplete(), null);
+    }
+
+    /**
+     * hands out and succeeds requests until the table ends.
+     */
+    private void drain() {
+        SegmentRequest req;
+        while ((req = poll()) != null && req.getPriority() != DownloadTable.Priority.POISON) {
+            table.onSuccess(req);
+        }
+    }
+
+    private SegmentRequest poll() {
+        SegmentRequest req = table.poll(-1);
+        if (req != null && req.getPriority() != DownloadTable.Priority.POISON) {
+            taken.add(name(req));
+        }
+        return req;
+    }
+
+    /**
+     * @return the host of the endpoint followed by the segment number, e.g. a3
+     */
+    private static String name(SegmentRequest req) {
+        if (req == null || req.getFileSegmentHash() == null) {
+            return String.valueOf(req);
+        }
+        String host = req.getEndpoint().toString();
+        host = host.substring(host.indexOf("//") + 2, host.indexOf('.'));
+        return host + req.getFileSegmentHash().getStartOffset() / SEGMENT;
+    }
+
+    private EndpointRequest request(DownloadTable.Priority priority, Endpoint endpoint, int from, int to) {
+        return new EndpointRequest(priority, new ArrayList<FileSegmentHash>(hash.getChunks().subList(from, to)), endpoint);
+    }
+
+    public static void main(String[] args) throws Exception {
+        WorkStealingTest test = new WorkStealingTest();
+        test.testStealing();
+        test.testFailure();
+        test.testReserve();
+        test.exit();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.protocol;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.impl.channel.http.ConnectionPool;
+import org.atticfs.impl.channel.http.HttpChannelFactory;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.stats.ConnectionStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests to a local server that can be made to hold its answers, checking that
+ * the client connection pool reuses its connections and keeps to its limits.
+ * args:
+ * 1. the port of the local server. Defaults to 18132.
+ * <p/>
+ * The Attic home is written to the temp directory.
+ *
+ *
+ */
+
+public class ConnectionPoolTest extends Harness {
+
+    private Attic attic;
+    private ConnectionPool pool;
+    private String endpoint;
+    // requests the server has been sent, and the most it has been answering at once
+    private AtomicInteger requests = new AtomicInteger();
+    private AtomicInteger active = new AtomicInteger();
+    private AtomicInteger maxActive = new AtomicInteger();
+    // while held, the server does not answer
+    private final Object gate = new Object();
+    private boolean held = false;
+
+    public ConnectionPoolTest(int port) throws Exception {
+        // a new home, so settings stored by an earlier run are not loaded
+        attic = new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-pool-" + System.currentTimeMillis()).getAbsolutePath());
+        attic.init();
+        pool = ((HttpChannelFactory) ChannelFactory.getFactory()).getConnectionPool();
+        serve(port);
+        endpoint = "http://127.0.0.1:" + port + "/pool/data";
+    }
+
+    /**
+     * requests made one after another share one connection.
+     */
+    public void testReuse() throws Exception {
+        begin("testReuse");
+        pool.setLimits(60 * 1000, 2, 4);
+        ConnectionStats stats = ConnectionStats.getStats();
+        long created = stats.getCreated();
+        long reused = stats.getReused();
+        boolean ok = true;
+        for (int i = 0; i < 5; i++) {
+            ok &= "ok".equals(request(0).getResponseData());
+        }
+        check("requests answered", ok && requests.get() == 5, "" + requests.get());
+        check("one connection created", stats.getCreated() - created == 1, "" + (stats.getCreated() - created));
+        check("and reused for the rest", stats.getReused() - reused == 4, "" + (stats.getReused() - reused));
+        check("connection handed back", pool.getLeased() == 0 && pool.getIdle() == 1, pool.getLeased() + " " + pool.getIdle());
+    }
+
+    /**
+     * requests beyond the cap wait for a connection to be handed back, and only a few are kept idle.
+     */
+    public void testCap() throws Exception {
+        begin("testCap");
+        pool.setLimits(60 * 1000, 1, 2);
+        requests.set(0);
+        maxActive.set(0);
+        hold();
+        int count = 4;
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger answered = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if ("ok".equals(request(0).getResponseData())) {
+                            answered.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        check("requests up to the cap sent", waitFor(2) == 2, "" + requests.get());
+        check("no more while the cap is reached", settle() == 2 && pool.getLeased() == 2, requests.get() + " " + pool.getLeased());
+        try {
+            request(300);
+            check("request that cannot get a connection times out", false, null);
+        } catch (Exception e) {
+            check("request that cannot get a connection times out", requests.get() == 2, "" + requests.get());
+        }
+        release();
+        done.await();
+        check("waiting requests answered", answered.get() == count && requests.get() == count, answered.get() + " " + requests.get());
+        check("never more open than the cap", maxActive.get() == 2, "" + maxActive.get());
+        check("one connection kept idle", pool.getLeased() == 0 && pool.getIdle() == 1, pool.getLeased() + " " + pool.getIdle());
+    }
+
+    private ChannelData request(int timeout) throws Exception {
+        OutChannel out = ChannelFactory.getFactory().createOutChannel(null);
+        ChannelData cd = new ChannelData(ChannelData.Action.GET, endpoint);
+        cd.setResponseType(String.class);
+        cd.setUseCompression(false);
+        cd.setTimeout(timeout);
+        return out.send(cd);
+    }
+
+    private void hold() {
+        synchronized (gate) {
+            held = true;
+        }
+    }
+
+    private void release() {
+        synchronized (gate) {
+            held = false;
+            gate.notifyAll();
+        }
+    }
+
+    /**
+     * @param count
+     * @return the number of requests, once there are count of them or five seconds have passed
+     */
+    private int waitFor(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (requests.get() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests, after giving any that should not be made time to arrive
+     */
+    private int settle() throws InterruptedException {
+        Thread.sleep(500);
+        return requests.get();
+    }
+
+    private void serve(int port) throws IOException {
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("pool");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                requests.incrementAndGet();
+                int now = active.incrementAndGet();
+                synchronized (maxActive) {
+                    if (now > maxActive.get()) {
+                        maxActive.set(now);
+                    }
+                }
+                synchronized (gate) {
+                    while (held) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                active.decrementAndGet();
+                context.setResponseData("ok");
+                context.setMimeType("text/plain");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18132;
+        ConnectionPoolTest test = new ConnectionPoolTest(port);
+        test.testReuse();
+        test.testCap();
+        test.exit();
+    }
+}
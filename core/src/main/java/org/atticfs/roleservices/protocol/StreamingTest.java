@@ -0,0 +1,582 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.protocol;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.ChannelProperties;
+import org.atticfs.channel.ChannelRequestHandler;
+import org.atticfs.download.DownloadJournal;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.table.DownloadTable;
+import org.atticfs.download.table.RoundRobinTableCreator;
+import org.atticfs.stream.StreamEvent;
+import org.atticfs.stream.StreamSink;
+import org.atticfs.stream.StreamSource;
+import org.atticfs.impl.store.FileDescriptionStore;
+import org.atticfs.roleservices.Harness;
+import org.atticfs.stats.DownloadStats;
+import org.atticfs.stream.AtticInputStream;
+import org.atticfs.stream.RandomAccessChannel;
+import org.atticfs.store.DescriptionStore;
+import org.atticfs.stream.Streamer;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+import org.atticfs.util.StringConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams a file of random bytes from a local server, and reads it from any position,
+ * counting the requests the server sees.
+ * args:
+ * 1. the port of the local server. Defaults to 18128.
+ * <p/>
+ * The file and the Attic home are written to the temp directory. The file is deleted afterwards.
+ *
+ *
+ */
+
+public class StreamingTest extends Harness {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final int SEGMENTS = 8;
+
+    private byte[] data;
+    private File file;
+    private FileHash hash;
+    private Attic attic;
+    private Endpoint endpoint;
+    // where streams are cached, if they are
+    private DescriptionStore store;
+    // requests the server has answered
+    private AtomicInteger requests = new AtomicInteger();
+
+    public StreamingTest(int port) throws Exception {
+        // the last segment is short
+        data = new byte[SEGMENT * SEGMENTS - 1000];
+        new Random(3).nextBytes(data);
+        file = File.createTempFile("attic-streaming", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        hash = createFileHash();
+        // a new home, so settings stored by an earlier run are not loaded
+        attic = new Attic(new File(System.getProperty("java.io.tmpdir"), "attic-streaming-" + System.currentTimeMillis()).getAbsolutePath());
+        attic.init();
+        serve(port);
+        endpoint = new Endpoint("http://127.0.0.1:" + port + "/streaming/data");
+    }
+
+    /**
+     * the sink never reads, so only the read-ahead window is requested until a stream is exhausted.
+     */
+    public void testReadAhead() throws Exception {
+        begin("testReadAhead");
+        attic.getStreamConfig().setReadAheadSegments(3);
+        attic.getStreamConfig().setMaxReadAheadBytes(0);
+        HoldingSink sink = new HoldingSink();
+        Streamer streamer = stream(sink);
+        check("window requested", waitFor(3) == 3 && sink.waitFor(3) == 3, requests.get() + " " + sink.size());
+        check("nothing beyond the window", settle() == 3, "" + requests.get());
+
+        streamer.streamExhaused(sink.get(0));
+        check("one more for each stream read", waitFor(4) == 4 && settle() == 4, "" + requests.get());
+        streamer.streamExhaused(sink.get(1));
+        streamer.streamExhaused(sink.get(2));
+        check("two more for two streams read", waitFor(6) == 6 && settle() == 6, "" + requests.get());
+        sink.close(streamer);
+
+        // the byte cap allows two of the largest segment
+        attic.getStreamConfig().setReadAheadSegments(8);
+        attic.getStreamConfig().setMaxReadAheadBytes(SEGMENT * 2 + 100);
+        sink = new HoldingSink();
+        streamer = stream(sink);
+        check("window limited by the byte cap", waitFor(2) == 2 && settle() == 2, "" + requests.get());
+        sink.close(streamer);
+
+        // a window wider than the data
+        attic.getStreamConfig().setReadAheadSegments(20);
+        attic.getStreamConfig().setMaxReadAheadBytes(0);
+        sink = new HoldingSink();
+        streamer = stream(sink);
+        check("every segment requested once", waitFor(SEGMENTS) == SEGMENTS && settle() == SEGMENTS, "" + requests.get());
+        check("every segment arrived", sink.waitFor(SEGMENTS) == SEGMENTS, "" + sink.size());
+        sink.close(streamer);
+    }
+
+    /**
+     * each positioned read fetches only the segments it overlaps.
+     */
+    public void testPositionedReads() throws Exception {
+        begin("testPositionedReads");
+        attic.getStreamConfig().setReadAheadSegments(0);
+        attic.getStreamConfig().setBlockCacheSize(32 * 1024 * 1024);
+        requests.set(0);
+        RandomAccessChannel channel = new RandomAccessChannel(createCollection(), attic);
+        check("size", channel.size() == data.length, "" + channel.size());
+        check("across a boundary", read(channel, SEGMENT - 10, 20) == 20 && requests.get() == 2, "" + requests.get());
+        check("position not moved", channel.position() == 0, "" + channel.position());
+        check("cached segments are not fetched again", read(channel, SEGMENT - 5, 10) == 10 && requests.get() == 2, "" + requests.get());
+        check("across three segments", read(channel, SEGMENT * 2 - 5, SEGMENT + 10) == SEGMENT + 10 && requests.get() == 4,
+                "" + requests.get());
+        check("short last segment", read(channel, data.length - 5, 100) == 5 && requests.get() == 5, "" + requests.get());
+        check("at the end", channel.read(ByteBuffer.allocate(10), data.length) == -1, null);
+        channel.position(data.length + 10);
+        check("beyond the end", channel.read(ByteBuffer.allocate(10)) == -1 && channel.position() == data.length + 10, null);
+        channel.position(SEGMENT * 5 - 50);
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        check("read moves the position", channel.read(buffer) == 100 && channel.position() == SEGMENT * 5 + 50
+                && same(buffer, SEGMENT * 5 - 50), "" + channel.position());
+        check("no request made twice", settle() == 7, "" + requests.get());
+        channel.close();
+        try {
+            channel.read(ByteBuffer.allocate(10), 0);
+            check("closed channel cannot be read", false, null);
+        } catch (ClosedChannelException e) {
+            check("closed channel cannot be read", true, null);
+        }
+
+        // room for two segments
+        attic.getStreamConfig().setBlockCacheSize(SEGMENT * 2);
+        requests.set(0);
+        channel = new RandomAccessChannel(createCollection(), attic);
+        read(channel, 0, 1);
+        read(channel, SEGMENT, 1);
+        read(channel, SEGMENT * 2, 1);
+        check("recent segments stay cached", read(channel, SEGMENT + 1, 1) == 1 && requests.get() == 3, "" + requests.get());
+        check("least recent segment is dropped", read(channel, 1, 1) == 1 && requests.get() == 4, "" + requests.get());
+        channel.close();
+
+        // reads that follow on from each other fetch the next segments in the background
+        attic.getStreamConfig().setReadAheadSegments(2);
+        attic.getStreamConfig().setBlockCacheSize(32 * 1024 * 1024);
+        requests.set(0);
+        channel = new RandomAccessChannel(createCollection(), attic);
+        read(channel, 0, 10);
+        check("no read ahead for a first read", settle() == 1, "" + requests.get());
+        read(channel, 10, 10);
+        check("sequential read fetches ahead", waitFor(3) == 3 && settle() == 3, "" + requests.get());
+        check("read ahead segments are used", read(channel, SEGMENT, SEGMENT * 2) == SEGMENT * 2 && requests.get() == 3,
+                "" + requests.get());
+        read(channel, SEGMENT * 6, 10);
+        check("random read does not fetch ahead", settle() == 4, "" + requests.get());
+        channel.close();
+    }
+
+    /**
+     * streams handed straight to the stream, short, long and out of order.
+     */
+    public void testShortSegment() throws Exception {
+        begin("testShortSegment");
+        AtticInputStream in = new AtticInputStream();
+        in.streamArrived(event(20, 39, 20));
+        // longer than its segment, so only the first twenty bytes are read
+        in.streamArrived(event(0, 19, 30));
+        in.streamsFinished(event(-1, -1, 0));
+        byte[] bytes = new byte[100];
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read(bytes)) != -1) {
+            bout.write(bytes, 0, c);
+        }
+        check("out of order streams read in order", same(ByteBuffer.wrap(bout.toByteArray(), 0, bout.size()), 0) && bout.size() == 40,
+                "" + bout.size());
+
+        for (int mode = 0; mode < 3; mode++) {
+            in = new AtticInputStream();
+            // ten bytes for a twenty byte segment
+            in.streamArrived(event(0, 19, 10));
+            in.streamArrived(event(20, 39, 20));
+            in.streamsFinished(event(-1, -1, 0));
+            int read = 0;
+            try {
+                while (true) {
+                    if (mode == 0) {
+                        c = in.read();
+                        c = c == -1 ? -1 : 1;
+                    } else if (mode == 1) {
+                        c = in.read(bytes, 0, bytes.length);
+                    } else {
+                        c = in.read(ByteBuffer.allocateDirect(100));
+                    }
+                    if (c == -1) {
+                        break;
+                    }
+                    read += c;
+                }
+                check("short segment fails, mode " + mode, false, "" + read);
+            } catch (IOException e) {
+                check("short segment fails, mode " + mode, read == 10, "" + read);
+            }
+        }
+
+        in = new AtticInputStream();
+        in.streamArrived(event(0, 19, 5));
+        in.streamsFinished(event(-1, -1, 0));
+        try {
+            in.transferTo(new ByteArrayChannel());
+            check("short segment fails in transferTo", false, null);
+        } catch (IOException e) {
+            check("short segment fails in transferTo", true, null);
+        }
+    }
+
+    /**
+     * verified segments held in memory, and spooled to disk, written to a file.
+     */
+    public void testTransferTo() throws Exception {
+        begin("testTransferTo");
+        attic.getStreamConfig().setReadAheadSegments(3);
+        attic.getStreamConfig().setMaxReadAheadBytes(0);
+        attic.getStreamConfig().setAttemptVerification(true);
+        File out = File.createTempFile("attic-transfer", ".bin");
+        try {
+            for (int maxBuffer : new int[]{SEGMENT * 2, 1000}) {
+                attic.getStreamConfig().setMaxBufferSize(maxBuffer);
+                AtticInputStream in = new AtticInputStream();
+                stream(in);
+                // some bytes are read first, so the transfer starts part way through a segment
+                byte[] first = new byte[100];
+                int c = in.read(first);
+                FileOutputStream fout = new FileOutputStream(out);
+                FileChannel channel = fout.getChannel();
+                long len;
+                try {
+                    channel.write(ByteBuffer.wrap(first, 0, c));
+                    len = in.transferTo(channel);
+                } finally {
+                    fout.close();
+                }
+                in.close();
+                check("all of the rest transferred, buffer " + maxBuffer, len == data.length - c, len + " " + c);
+                check("same bytes, buffer " + maxBuffer, same(out), null);
+            }
+            check("spool files removed", spooled() == 0, "" + spooled());
+
+            attic.getStreamConfig().setMaxBufferSize(SEGMENT * 2);
+            AtticInputStream in = new AtticInputStream();
+            stream(in);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+            while (in.read(buffer) != -1) {
+                // fills the buffer
+            }
+            in.close();
+            check("read into a direct buffer", buffer.position() == data.length && same(buffer, 0), "" + buffer.position());
+        } finally {
+            out.delete();
+        }
+    }
+
+    /**
+     * a stream stopped part way keeps what it verified, and the next stream fetches only the rest.
+     */
+    public void testResume() throws Exception {
+        begin("testResume");
+        attic.getStreamConfig().setReadAheadSegments(3);
+        attic.getStreamConfig().setMaxReadAheadBytes(0);
+        attic.getStreamConfig().setAttemptVerification(true);
+        attic.getStreamConfig().setMaxBufferSize(SEGMENT * 2);
+        attic.getStreamConfig().setCacheLocally(true);
+        // long enough that only closing the cache syncs its journal
+        attic.getDownloadConfig().setJournalSyncInterval(60 * 1000);
+        File home = new File(attic.getHome(), "resume");
+        store = new FileDescriptionStore(attic, new File(home, "data"), new File(home, "desc"), null);
+        new File(home, "data").mkdirs();
+        new File(home, "desc").mkdirs();
+        store.init();
+        try {
+            AtticInputStream in = new AtticInputStream();
+            stream(in);
+            byte[] bytes = new byte[SEGMENT * 3];
+            int read = 0;
+            int c;
+            while (read < bytes.length && (c = in.read(bytes, read, bytes.length - read)) != -1) {
+                read += c;
+            }
+            in.close();
+            check("first segments read", read == bytes.length && same(ByteBuffer.wrap(bytes), 0), "" + read);
+            int first = requests.get();
+
+            File dir = new File(attic.getDWDataHome(), "streaming" + StringConstants.EXT_PARTIAL);
+            int journaled = new DownloadJournal(dir, createCollection().getDataDescription()).read().size();
+            check("verified segments journaled", journaled >= 3 && journaled <= first, journaled + " of " + first);
+
+            File out = File.createTempFile("attic-resume", ".bin");
+            try {
+                in = new AtticInputStream();
+                stream(in);
+                transfer(in, out);
+                check("resumed stream is whole", same(out), null);
+                check("only the missing segments fetched", requests.get() == SEGMENTS - journaled, requests.get() + " " + journaled);
+                check("stored once whole", store.getDataDescription("streaming") != null && !dir.exists(), null);
+
+                in = new AtticInputStream();
+                stream(in);
+                transfer(in, out);
+                check("stored data read locally", same(out) && requests.get() == 0, "" + requests.get());
+            } finally {
+                out.delete();
+            }
+        } finally {
+            attic.getStreamConfig().setCacheLocally(false);
+            store = null;
+        }
+    }
+
+    private void transfer(AtticInputStream in, File out) throws IOException {
+        FileOutputStream fout = new FileOutputStream(out);
+        try {
+            in.transferTo(fout.getChannel());
+        } finally {
+            fout.close();
+            in.close();
+        }
+    }
+
+    private StreamEvent event(long start, long end, int length) {
+        InputStream stream = null;
+        if (length > 0) {
+            stream = new ByteArrayInputStream(data, (int) start, length);
+        }
+        return new StreamEvent(this, null, "test", true, stream, start, end, new DownloadStats("streaming"));
+    }
+
+    private boolean same(File file) throws IOException {
+        if (file.length() != data.length) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] got = new byte[data.length];
+            raf.readFully(got);
+            return Arrays.equals(data, got);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int spooled() {
+        File[] files = attic.getDWDataHome().listFiles();
+        int count = 0;
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(StringConstants.EXT_PARTIAL)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of bytes read, or -1 if they are not the bytes of the file
+     */
+    private int read(RandomAccessChannel channel, long pos, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(len);
+        int ret = channel.read(buffer, pos);
+        return same(buffer, pos) ? ret : -1;
+    }
+
+    private boolean same(ByteBuffer buffer, long pos) {
+        buffer.flip();
+        byte[] got = new byte[buffer.remaining()];
+        buffer.get(got);
+        byte[] expected = new byte[got.length];
+        System.arraycopy(data, (int) pos, expected, 0, expected.length);
+        return Arrays.equals(expected, got);
+    }
+
+    private Streamer stream(StreamSink sink) {
+        requests.set(0);
+        Streamer streamer = new Streamer(createCollection(), attic);
+        // one endpoint would otherwise be asked for the whole file in one request
+        RoundRobinTableCreator creator = new RoundRobinTableCreator(attic.getDownloadConfig());
+        creator.setSingleSourceWholeFile(false);
+        streamer.setTableCreator(creator);
+        streamer.setDescriptionStore(store);
+        streamer.setSink(sink);
+        sink.setSource(streamer);
+        streamer.stream();
+        return streamer;
+    }
+
+    private RequestCollection createCollection() {
+        DataDescription dd = new DataDescription("streaming");
+        dd.setHash(hash);
+        RequestCollection rc = new RequestCollection(dd);
+        rc.addMapping(new EndpointRequest(DownloadTable.Priority.PRIMARY, hash.getChunks(), endpoint));
+        return rc;
+    }
+
+    /**
+     * @param count
+     * @return the number of requests, once there are count of them or five seconds have passed
+     */
+    private int waitFor(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (requests.get() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests, after giving any that should not be made time to arrive
+     */
+    private int settle() throws InterruptedException {
+        Thread.sleep(500);
+        return requests.get();
+    }
+
+    private void serve(int port) throws IOException {
+        ChannelProperties props = new ChannelProperties();
+        props.setLocalPort(port);
+        props.setServerContext("streaming");
+        ChannelFactory.getFactory().createInChannel(new ChannelRequestHandler() {
+            public ChannelData handleRequest(ChannelData context) {
+                requests.incrementAndGet();
+                context.setResponseData(file);
+                context.setMimeType("application/octet-stream");
+                context.setOutcome(ChannelData.Outcome.OK);
+                return context;
+            }
+
+            public String getPath() {
+                return "data";
+            }
+        }, props);
+    }
+
+    private FileHash createFileHash() throws Exception {
+        FileHash fh = new FileHash();
+        fh.setSize(data.length);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long start = 0; start < data.length; start += SEGMENT) {
+                long end = Math.min(start + SEGMENT, data.length) - 1;
+                fh.addSegment(new FileSegmentHash(HashUtils.hash(raf.getChannel(), start, end, fh.getAlgorithm(), buffer), start, end));
+            }
+            fh.setHash(HashUtils.hash(raf.getChannel(), 0, data.length - 1, fh.getAlgorithm(), buffer));
+        } finally {
+            raf.close();
+        }
+        return fh;
+    }
+
+
+    /**
+     * keeps the streams it is given without reading them.
+     */
+    private static class ByteArrayChannel implements WritableByteChannel {
+        private ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        public int write(ByteBuffer src) {
+            int len = src.remaining();
+            while (src.hasRemaining()) {
+                bout.write(src.get());
+            }
+            return len;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class HoldingSink implements StreamSink {
+        private List<StreamEvent> events = new ArrayList<StreamEvent>();
+
+        public void setSource(StreamSource source) {
+        }
+
+        public synchronized void streamArrived(StreamEvent event) {
+            events.add(event);
+            notifyAll();
+        }
+
+        public void streamsFinished(StreamEvent event) {
+        }
+
+        private synchronized StreamEvent get(int index) {
+            return events.get(index);
+        }
+
+        private synchronized int size() {
+            return events.size();
+        }
+
+        private synchronized int waitFor(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (events.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return events.size();
+        }
+
+        private synchronized void close(Streamer streamer) throws IOException {
+            streamer.streamsClosed();
+            for (StreamEvent event : events) {
+                if (event.getStream() != null) {
+                    event.getStream().close();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18128;
+        StreamingTest test = new StreamingTest(port);
+        try {
+            test.testReadAhead();
+            test.testPositionedReads();
+            test.testShortSegment();
+            test.testTransferTo();
+            test.testResume();
+        } finally {
+            test.file.delete();
+        }
+        test.exit();
+    }
+}
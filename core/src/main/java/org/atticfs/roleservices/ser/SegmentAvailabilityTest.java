@@ -0,0 +1,105 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.ser;
+
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.types.SegmentAvailability;
+
+import java.util.List;
+
+/**
+ * Encodes and parses the segments a host holds, as sent in answer to a have request.
+ *
+ *
+ */
+
+public class SegmentAvailabilityTest extends Harness {
+
+
+    public void testRoundTrip() {
+        begin("testRoundTrip");
+        FileHash publisher = TypeMaker.createFileHash("abc");
+        FileHash local = new FileHash();
+        local.setHash(publisher.getHash());
+        List<FileSegmentHash> segs = publisher.getChunks();
+        int[] held = new int[]{0, 1, 2, 5, 7, 8, 9};
+        for (int i : held) {
+            FileSegmentHash seg = segs.get(i);
+            local.addSegment(new FileSegmentHash(seg.getHash(), seg.getStartOffset(), seg.getEndOffset()));
+        }
+        // same range, different hash, so not held
+        FileSegmentHash six = segs.get(6);
+        local.addSegment(new FileSegmentHash("other", six.getStartOffset(), six.getEndOffset()));
+
+        SegmentAvailability avail = SegmentAvailability.create(publisher, local);
+        String encoded = avail.toString();
+        check("encoded as runs", encoded.equals("hashabc 10 0-2,5,7-9"), encoded);
+        SegmentAvailability parsed = SegmentAvailability.parse(encoded);
+        check("parsed", parsed != null, encoded);
+        if (parsed == null) {
+            return;
+        }
+        check("same text after parsing", encoded.equals(parsed.toString()), parsed.toString());
+        check("held count", parsed.getNumHeld() == held.length, "" + parsed.getNumHeld());
+        List<FileSegmentHash> got = parsed.getSegments(publisher);
+        boolean same = got.size() == held.length;
+        for (int i = 0; same && i < held.length; i++) {
+            same = got.get(i).getStartOffset() == segs.get(held[i]).getStartOffset();
+        }
+        check("segments of the publisher", same, "" + got);
+
+        SegmentAvailability whole = SegmentAvailability.create(publisher, publisher);
+        check("whole file", whole.isComplete() && whole.toString().equals("hashabc 10 0-9"), whole.toString());
+        SegmentAvailability none = SegmentAvailability.create(publisher, null);
+        check("nothing held", none.isEmpty() && none.toString().equals("hashabc 10 -"), none.toString());
+        SegmentAvailability parsedNone = SegmentAvailability.parse(none.toString());
+        check("nothing held parsed", parsedNone != null && parsedNone.isEmpty(), "" + parsedNone);
+    }
+
+    public void testMalformed() {
+        begin("testMalformed");
+        String[] bad = new String[]{
+                null,
+                "",
+                "hashabc 10",
+                "hashabc 10 0-2 extra",
+                "hashabc ten 0-2",
+                "hashabc -3 -",
+                "hashabc 10 a-b",
+                "hashabc 10 3-1",
+                "hashabc 10 -1",
+                "hashabc 10 0-10",
+                "hashabc 10 10",
+                "hashabc 10 0,,1",
+                "<html>not found</html>"
+        };
+        for (String s : bad) {
+            check("rejects " + (s == null ? "null" : "'" + s + "'"), SegmentAvailability.parse(s) == null, null);
+        }
+        SegmentAvailability spaced = SegmentAvailability.parse("  hashabc   10   3 \n");
+        check("surrounding space is allowed", spaced != null && spaced.isHeld(3) && spaced.getNumHeld() == 1, "" + spaced);
+    }
+
+    public static void main(String[] args) {
+        SegmentAvailabilityTest test = new SegmentAvailabilityTest();
+        test.testRoundTrip();
+        test.testMalformed();
+        test.exit();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.roleservices.store;
+
+import org.atticfs.roleservices.Harness;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the Merkle root built over segment hashes and the parallel verification of a file's segments.
+ * A file of random bytes is written to the temp directory and deleted afterwards.
+ *
+ *
+ */
+
+public class VerifyTest extends Harness {
+
+    private static final int SEGMENT = 64 * 1024;
+    private static final int SEGMENTS = 5;
+
+    private ExecutorService pool = Executors.newFixedThreadPool(3);
+
+    public void testMerkleRoot() throws Exception {
+        begin("testMerkleRoot");
+        List<FileSegmentHash> segs = new ArrayList<FileSegmentHash>();
+        segs.add(new FileSegmentHash("aa", 0, 9));
+        segs.add(new FileSegmentHash("BB", 10, 19));
+        segs.add(new FileSegmentHash("cc", 20, 29));
+
+        // built by hand: leaves are 0x00 + hash, nodes 0x01 + left + right, an odd node is carried up
+        MessageDigest md = HashUtils.createDigest(HashUtils.MD5);
+        byte[] a = leaf(md, "aa");
+        byte[] b = leaf(md, "bb");
+        byte[] c = leaf(md, "cc");
+        md.update((byte) 0x01);
+        md.update(a);
+        md.update(b);
+        byte[] ab = md.digest();
+        md.update((byte) 0x01);
+        md.update(ab);
+        md.update(c);
+        String expected = HashUtils.toHex(md.digest(), HashUtils.MD5);
+
+        String root = HashUtils.merkleRoot(segs, HashUtils.MD5);
+        check("root of three segments", expected.equals(root), root);
+        List<FileSegmentHash> shuffled = new ArrayList<FileSegmentHash>(segs);
+        Collections.reverse(shuffled);
+        check("segment order does not matter", expected.equals(HashUtils.merkleRoot(shuffled, HashUtils.MD5)), null);
+        check("one segment is its leaf", HashUtils.toHex(a, HashUtils.MD5).equals(HashUtils.merkleRoot(segs.subList(0, 1), HashUtils.MD5)), null);
+        check("no segments", HashUtils.merkleRoot(new ArrayList<FileSegmentHash>(), HashUtils.MD5) == null, null);
+
+        FileHash fh = new FileHash();
+        fh.setHash("whole");
+        for (FileSegmentHash seg : segs) {
+            fh.addSegment(seg);
+        }
+        check("no root to verify", HashUtils.verifyMerkleRoot(fh) == null, null);
+        fh.setMerkleRoot(root.toUpperCase());
+        check("root verifies", Boolean.TRUE.equals(HashUtils.verifyMerkleRoot(fh)), null);
+        fh.setMerkleRoot(HashUtils.merkleRoot(segs.subList(0, 2), HashUtils.MD5));
+        check("wrong root fails", Boolean.FALSE.equals(HashUtils.verifyMerkleRoot(fh)), null);
+    }
+
+    public void testVerifySegments() throws Exception {
+        begin("testVerifySegments");
+        File file = File.createTempFile("attic-verify", ".bin");
+        try {
+            byte[] data = new byte[SEGMENT * SEGMENTS - 100];
+            new Random(11).nextBytes(data);
+            write(file, data);
+            FileHash fh = createFileHash(file);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                for (int threads : new int[]{1, 3, 0}) {
+                    List<FileSegmentHash> failed = HashUtils.verifySegments(raf.getChannel(), fh.getChunks(), fh.getAlgorithm(), pool, threads);
+                    check("all segments verify with " + threads + " threads", failed.size() == 0, "" + failed);
+                }
+                // a pool with no free thread never runs the task, so the caller verifies every segment
+                Executor busy = new Executor() {
+                    public void execute(Runnable command) {
+                    }
+                };
+                List<FileSegmentHash> alone = HashUtils.verifySegments(raf.getChannel(), fh.getChunks(), fh.getAlgorithm(), busy, 4);
+                check("all segments verify without a free thread", alone.size() == 0, "" + alone);
+                check("whole file verifies", HashUtils.verify(file, fh, pool, 2), null);
+
+                // one byte changed in the fourth segment
+                raf.seek(SEGMENT * 3 + 17);
+                raf.write(data[SEGMENT * 3 + 17] ^ 0xff);
+                List<FileSegmentHash> failed = HashUtils.verifySegments(raf.getChannel(), fh.getChunks(), fh.getAlgorithm(), pool, 4);
+                check("only the changed segment fails", failed.size() == 1 && failed.get(0).getStartOffset() == SEGMENT * 3, "" + failed);
+                check("changed file fails", !HashUtils.verify(file, fh, pool, 2), null);
+
+                // the last segment is short, so reading past the end of the file must fail rather than hang
+                raf.setLength(data.length - 1);
+                failed = HashUtils.verifySegments(raf.getChannel(), fh.getChunks(), fh.getAlgorithm(), pool, 2);
+                check("truncated last segment fails", failed.contains(fh.getChunks().get(SEGMENTS - 1)), "" + failed);
+                check("truncated file fails", !HashUtils.verify(file, fh, pool, 2), null);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private FileHash createFileHash(File file) throws Exception {
+        FileHash fh = new FileHash();
+        fh.setSize(file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long start = 0; start < file.length(); start += SEGMENT) {
+                long end = Math.min(start + SEGMENT, file.length()) - 1;
+                fh.addSegment(new FileSegmentHash(HashUtils.hash(raf.getChannel(), start, end, fh.getAlgorithm(), buffer), start, end));
+            }
+            fh.setHash(HashUtils.hash(raf.getChannel(), 0, file.length() - 1, fh.getAlgorithm(), buffer));
+        } finally {
+            raf.close();
+        }
+        fh.setMerkleRoot(HashUtils.merkleRoot(fh.getChunks(), fh.getAlgorithm()));
+        return fh;
+    }
+
+    private byte[] leaf(MessageDigest md, String hash) {
+        md.update((byte) 0x00);
+        md.update(hash.getBytes());
+        return md.digest();
+    }
+
+    private void write(File file, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        VerifyTest test = new VerifyTest();
+        test.testMerkleRoot();
+        try {
+            test.testVerifySegments();
+        } finally {
+            test.pool.shutdown();
+        }
+        test.exit();
+    }
+}
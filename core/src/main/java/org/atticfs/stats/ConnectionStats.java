@@ -0,0 +1,84 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what the client side connection pools do with their connections.
+ * Both the blocking and the non-blocking HTTP transports report here, so the figures cover
+ * every download, stream and metadata request made by the node.
+ * <p/>
+ * A connection is created when no healthy idle one is available, reused when an idle one is lent out again,
+ * and evicted when the pool drops it because it was idle too long, had been reused too often,
+ * had been closed by the server or was over the pool's limits.
+ *
+ *
+ */
+
+public class ConnectionStats {
+
+    private AtomicLong created = new AtomicLong();
+    private AtomicLong reused = new AtomicLong();
+    private AtomicLong evicted = new AtomicLong();
+
+    private static ConnectionStats connectionStats = new ConnectionStats();
+
+    private ConnectionStats() {
+    }
+
+    public static ConnectionStats getStats() {
+        return connectionStats;
+    }
+
+    public void onCreated() {
+        created.incrementAndGet();
+    }
+
+    public void onReused() {
+        reused.incrementAndGet();
+    }
+
+    public void onEvicted() {
+        evicted.incrementAndGet();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the fraction of connections lent out that were reused rather than created.
+     */
+    public double getReuseRatio() {
+        long c = created.get();
+        long r = reused.get();
+        return c + r == 0 ? 0.0 : (double) r / (double) (c + r);
+    }
+
+    public String toString() {
+        return "created=" + getCreated() + " reused=" + getReused() + " evicted=" + getEvicted();
+    }
+}
@@ -245,11 +245,27 @@ public class DownloadStats {
 
 
     public static class EndpointDownloadStats {
+
+        // weight given to the newest sample in the moving averages
+        private static final double ALPHA = 0.3;
+        // chunk sizes are rounded down to a multiple of this
+        private static final int CHUNK_ROUNDING = 16384;
+
         private Endpoint endpoint;
         private AtomicLong totalData = new AtomicLong(0);
         private AtomicInteger totalRequests = new AtomicInteger(0);
         private AtomicLong totalTime = new AtomicLong(0);
 
+        // moving averages of chunk transfers. throughput is in bytes per millisecond.
+        private double throughput = -1;
+        private double latency = -1;
+        private double failureRate = 0;
+        // moving average of how far chunk times are from what was expected, in milliseconds
+        private double deviation = -1;
+        private int samples = 0;
+        // cleared once the endpoint has answered a multi-range request without the ranges asked for
+        private volatile boolean multiRange = true;
+
         public EndpointDownloadStats(Endpoint endpoint) {
             this.endpoint = endpoint;
         }
@@ -282,6 +298,111 @@ public class DownloadStats {
             return endpoint;
         }
 
+        /**
+         * @return false if requests to this endpoint should ask for one range at a time.
+         */
+        public boolean isMultiRange() {
+            return multiRange;
+        }
+
+        public void setMultiRange(boolean multiRange) {
+            this.multiRange = multiRange;
+        }
+
+        /**
+         * record a completed chunk transfer. The transfer is also reported to the EndpointHealth registry.
+         *
+         * @param bytes   bytes received
+         * @param millis  time taken to receive the bytes
+         * @param latency time from sending the request to receiving the response headers.
+         *                Less than 0 if not known.
+         */
+        public synchronized void onChunk(long bytes, long millis, long latency) {
+            if (bytes > 0 && samples > 0) {
+                double error = Math.abs(millis + Math.max(latency, 0) - expectedTime(bytes));
+                deviation = deviation < 0 ? error : ALPHA * error + (1 - ALPHA) * deviation;
+            } else if (bytes > 0) {
+                deviation = (millis + Math.max(latency, 0)) / 2.0;
+            }
+            if (bytes > 0) {
+                double tp = bytes / (double) Math.max(millis, 1);
+                throughput = throughput < 0 ? tp : ALPHA * tp + (1 - ALPHA) * throughput;
+                samples++;
+            }
+            if (latency >= 0) {
+                this.latency = this.latency < 0 ? latency : ALPHA * latency + (1 - ALPHA) * this.latency;
+            }
+            failureRate = (1 - ALPHA) * failureRate;
+            EndpointHealth.getHealth().onSuccess(endpoint, bytes, millis, latency);
+        }
+
+        /**
+         * record a chunk that could not be downloaded.
+         */
+        public synchronized void onChunkFailed() {
+            failureRate = ALPHA + (1 - ALPHA) * failureRate;
+        }
+
+        /**
+         * @return average throughput in bytes per millisecond, or -1 if nothing has been measured yet.
+         */
+        public synchronized double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * @return average request latency in milliseconds, or -1 if nothing has been measured yet.
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        public synchronized double getFailureRate() {
+            return failureRate;
+        }
+
+        private double expectedTime(long bytes) {
+            return Math.max(latency, 0) + bytes / throughput;
+        }
+
+        /**
+         * how long a chunk of the given size should be allowed before it is considered late.
+         * This is the expected time from the average latency and throughput, plus four times
+         * the average deviation from the expected time.
+         *
+         * @param bytes
+         * @return the time in milliseconds, or -1 if nothing has been measured yet.
+         */
+        public synchronized long getDeadline(long bytes) {
+            if (samples == 0) {
+                return -1;
+            }
+            return (long) Math.ceil(expectedTime(bytes) + 4 * Math.max(deviation, 0));
+        }
+
+        /**
+         * chooses a chunk size for this endpoint.
+         * A chunk should take about targetTime to arrive, and at least four times the latency
+         * so the cost of a request stays small compared to the transfer. Endpoints that have been failing
+         * get smaller chunks so less is lost when they fail again.
+         *
+         * @param defaultSize used until a transfer has been measured
+         * @param min
+         * @param max
+         * @param targetTime  in milliseconds
+         * @return
+         */
+        public synchronized int getChunkSize(int defaultSize, int min, int max, long targetTime) {
+            if (samples == 0) {
+                return defaultSize;
+            }
+            double time = Math.max(targetTime, latency * 4);
+            double size = throughput * time / (1 + 4 * failureRate);
+            size = Math.max(min, Math.min(max, size));
+            int rounded = ((int) size / CHUNK_ROUNDING) * CHUNK_ROUNDING;
+            return Math.max(min, rounded);
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("----\n");
@@ -289,6 +410,12 @@ public class DownloadStats {
             sb.append("  Total Requests:       ").append(totalRequests.get()).append("\n");
             sb.append("  Total Time (secs):    ").append((totalTime.get() / 1000.0)).append("\n");
             sb.append("  total Data (MB):      ").append((totalData.get() / 1024.0 / 1024.0)).append("\n");
+            // nothing measured yet, rather than a negative rate
+            double throughput = getThroughput();
+            double latency = getLatency();
+            sb.append("  Avg Throughput (KBps):")
+                    .append(throughput < 0 ? "n/a" : String.valueOf(throughput * 1000 / 1024.0)).append("\n");
+            sb.append("  Avg Latency (ms):     ").append(latency < 0 ? "n/a" : String.valueOf(latency)).append("\n");
             sb.append("----\n");
             return sb.toString();
 
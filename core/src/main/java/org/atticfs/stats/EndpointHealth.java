@@ -0,0 +1,363 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stats;
+
+import org.atticfs.types.Endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the health of the data centers this node talks to, shared by all downloads, streams and metadata requests.
+ * Endpoints are grouped by host and port, since a data center that is down is down for every file it serves.
+ * <p/>
+ * For each data center the registry keeps a moving average of throughput, recent latencies,
+ * and counts of requests, errors and hash failures. The counts decay with time, losing half their weight
+ * every HALF_LIFE, so old failures are forgotten.
+ * <p/>
+ * Each data center also has a circuit breaker. It opens after too many failures in a row, or when most
+ * recent requests have failed, and while it is open the data center is not used.
+ * Once the back off period is over, one trial request is let through. If it succeeds the breaker closes,
+ * otherwise it opens again for twice as long, up to MAX_BACKOFF.
+ *
+ *
+ */
+
+public class EndpointHealth {
+
+    static Logger log = Logger.getLogger("org.atticfs.stats.EndpointHealth");
+
+    public static enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // time over which counts lose half their weight
+    public static final long HALF_LIFE = 1000 * 60 * 5;
+    // failures in a row that open the breaker
+    public static final int MAX_CONSECUTIVE_FAILURES = 5;
+    // hash failures that open the breaker. Bad data is worse than no data.
+    public static final int MAX_HASH_FAILURES = 2;
+    // error rate that opens the breaker, once there are enough requests to judge it
+    public static final double MAX_ERROR_RATE = 0.5;
+    public static final int MIN_REQUESTS = 10;
+    public static final long MIN_BACKOFF = 1000 * 5;
+    public static final long MAX_BACKOFF = 1000 * 60 * 5;
+    // a trial request that has not reported back by now is assumed lost and another is allowed
+    public static final long TRIAL_TIMEOUT = 1000 * 60;
+
+    // weight given to the newest sample in the throughput average
+    private static final double ALPHA = 0.3;
+    // number of latencies kept for percentiles
+    private static final int LATENCY_SAMPLES = 64;
+
+    private Map<String, Health> healths = new HashMap<String, Health>();
+
+    private static EndpointHealth endpointHealth = new EndpointHealth();
+
+    private EndpointHealth() {
+    }
+
+    public static EndpointHealth getHealth() {
+        return endpointHealth;
+    }
+
+    /**
+     * @param endpoint
+     * @return the health of the data center serving the endpoint.
+     */
+    public Health getHealth(Endpoint endpoint) {
+        String key = key(endpoint);
+        synchronized (healths) {
+            Health health = healths.get(key);
+            if (health == null) {
+                health = new Health(key);
+                healths.put(key, health);
+            }
+            return health;
+        }
+    }
+
+    /**
+     * @return the health of every data center that has been used.
+     */
+    public List<Health> getHealths() {
+        synchronized (healths) {
+            return new ArrayList<Health>(healths.values());
+        }
+    }
+
+    /**
+     * @param endpoint
+     * @return true if requests may be sent to the endpoint. If the breaker is due a trial,
+     *         this lets the caller make the trial request.
+     */
+    public boolean isAvailable(Endpoint endpoint) {
+        return getHealth(endpoint).tryAcquire(System.currentTimeMillis());
+    }
+
+    /**
+     * @param endpoint
+     * @return false if the endpoint's breaker is open. Unlike isAvailable() this never takes the trial request.
+     */
+    public boolean isUsable(Endpoint endpoint) {
+        return getHealth(endpoint).getState(System.currentTimeMillis()) != State.OPEN;
+    }
+
+    /**
+     * record a successful transfer.
+     *
+     * @param endpoint
+     * @param bytes    bytes received. Zero or less if no data was measured, e.g. a metadata request.
+     * @param millis   time taken to receive the bytes
+     * @param latency  time from sending the request to receiving the response headers. Less than 0 if not known.
+     */
+    public void onSuccess(Endpoint endpoint, long bytes, long millis, long latency) {
+        getHealth(endpoint).onSuccess(System.currentTimeMillis(), bytes, millis, latency);
+    }
+
+    /**
+     * the endpoint could not be connected to, or the connection failed.
+     */
+    public void onConnectionFailure(Endpoint endpoint) {
+        getHealth(endpoint).onFailure(System.currentTimeMillis(), false);
+    }
+
+    /**
+     * the endpoint answered with an error.
+     */
+    public void onErrorResponse(Endpoint endpoint) {
+        getHealth(endpoint).onFailure(System.currentTimeMillis(), false);
+    }
+
+    /**
+     * the endpoint returned data that does not match its hash.
+     */
+    public void onHashFailure(Endpoint endpoint) {
+        getHealth(endpoint).onFailure(System.currentTimeMillis(), true);
+    }
+
+    /**
+     * forgets everything known about the data centers.
+     */
+    public void clear() {
+        synchronized (healths) {
+            healths.clear();
+        }
+    }
+
+    public static String key(Endpoint endpoint) {
+        return endpoint.getAddress() + ":" + endpoint.getPort();
+    }
+
+    /**
+     * the health of one data center.
+     */
+    public static class Health {
+
+        private String key;
+        private long lastUpdate = System.currentTimeMillis();
+
+        // decayed counts
+        private double requests = 0;
+        private double errors = 0;
+        private double hashFailures = 0;
+        private long totalRequests = 0;
+        private long totalErrors = 0;
+        private long totalHashFailures = 0;
+
+        // throughput in bytes per millisecond
+        private double throughput = -1;
+        private long[] latencies = new long[LATENCY_SAMPLES];
+        private int latencyCount = 0;
+
+        private State state = State.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openUntil = 0;
+        private long backoff = 0;
+        private boolean trialRunning = false;
+        private long trialStart = 0;
+
+        private Health(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the host and port of the data center.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        private void decay(long now) {
+            long elapsed = now - lastUpdate;
+            if (elapsed <= 0) {
+                return;
+            }
+            double factor = Math.pow(0.5, elapsed / (double) HALF_LIFE);
+            requests *= factor;
+            errors *= factor;
+            hashFailures *= factor;
+            lastUpdate = now;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            State s = getState(now);
+            if (s == State.CLOSED) {
+                return true;
+            }
+            if (s == State.HALF_OPEN && (!trialRunning || now - trialStart > TRIAL_TIMEOUT)) {
+                trialRunning = true;
+                trialStart = now;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized State getState(long now) {
+            if (state == State.OPEN && now >= openUntil) {
+                state = State.HALF_OPEN;
+                trialRunning = false;
+            }
+            return state;
+        }
+
+        private synchronized void onSuccess(long now, long bytes, long millis, long latency) {
+            decay(now);
+            requests++;
+            totalRequests++;
+            consecutiveFailures = 0;
+            if (bytes > 0) {
+                double tp = bytes / (double) Math.max(millis, 1);
+                throughput = throughput < 0 ? tp : ALPHA * tp + (1 - ALPHA) * throughput;
+            }
+            if (latency >= 0) {
+                latencies[latencyCount % LATENCY_SAMPLES] = latency;
+                latencyCount++;
+            }
+            if (state != State.CLOSED) {
+                log.info("closing breaker for " + key);
+            }
+            state = State.CLOSED;
+            trialRunning = false;
+            backoff = 0;
+        }
+
+        private synchronized void onFailure(long now, boolean hash) {
+            decay(now);
+            requests++;
+            errors++;
+            totalRequests++;
+            totalErrors++;
+            if (hash) {
+                hashFailures++;
+                totalHashFailures++;
+            }
+            consecutiveFailures++;
+            boolean trip = state == State.HALF_OPEN
+                    || consecutiveFailures >= MAX_CONSECUTIVE_FAILURES
+                    // decay leaves the counts just short of whole numbers
+                    || Math.round(hashFailures) >= MAX_HASH_FAILURES
+                    || (Math.round(requests) >= MIN_REQUESTS && errors / requests > MAX_ERROR_RATE);
+            if (trip && state != State.OPEN) {
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                openUntil = now + backoff;
+                state = State.OPEN;
+                trialRunning = false;
+                log.info("opening breaker for " + key + " for " + backoff + "ms");
+            }
+        }
+
+        public synchronized State getState() {
+            return getState(System.currentTimeMillis());
+        }
+
+        /**
+         * @return average throughput in bytes per millisecond, or -1 if nothing has been measured yet.
+         */
+        public synchronized double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency in milliseconds at the given percentile of recent requests, or -1 if none has been measured.
+         */
+        public synchronized long getLatency(double percentile) {
+            int n = Math.min(latencyCount, LATENCY_SAMPLES);
+            if (n == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, index))];
+        }
+
+        /**
+         * @return the decayed fraction of requests that failed.
+         */
+        public synchronized double getErrorRate() {
+            decay(System.currentTimeMillis());
+            return requests == 0 ? 0 : errors / requests;
+        }
+
+        /**
+         * @return the decayed number of hash failures.
+         */
+        public synchronized double getHashFailures() {
+            decay(System.currentTimeMillis());
+            return hashFailures;
+        }
+
+        public synchronized long getTotalRequests() {
+            return totalRequests;
+        }
+
+        public synchronized long getTotalErrors() {
+            return totalErrors;
+        }
+
+        public synchronized long getTotalHashFailures() {
+            return totalHashFailures;
+        }
+
+        /**
+         * a score for choosing between data centers. Higher is better. An open breaker scores zero.
+         * Otherwise the score is the throughput, or 1 if that is not known, reduced by the error rate.
+         *
+         * @return the score
+         */
+        public synchronized double getScore() {
+            if (getState(System.currentTimeMillis()) == State.OPEN) {
+                return 0;
+            }
+            double tp = throughput < 0 ? 1 : throughput;
+            return tp * (1 - getErrorRate());
+        }
+
+        public String toString() {
+            return key + " state=" + getState() + " throughput=" + getThroughput() + " p50=" + getLatency(50)
+                    + " p95=" + getLatency(95) + " errorRate=" + getErrorRate() + " hashFailures=" + getTotalHashFailures();
+        }
+    }
+}
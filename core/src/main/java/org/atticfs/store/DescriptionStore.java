@@ -18,6 +18,7 @@ package org.atticfs.store;
 
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.FileHash;
+import org.atticfs.types.SegmentAvailability;
 
 import java.io.File;
 import java.util.List;
@@ -37,6 +38,12 @@ public interface DescriptionStore {
 
     public FileHash getFileHash(String id);
 
+    /**
+     * @param id
+     * @return which of the description's segments are on the host, or null if the description is not known.
+     */
+    public SegmentAvailability getAvailability(String id);
+
     public DataDescription removeDescription(String id);
 
     public List<DataDescription> getDataDescriptions();
@@ -46,6 +46,8 @@ public class Index {
     public void index(File root) {
         BlockingQueue<FileMapping> queue = new LinkedBlockingQueue<FileMapping>();
         Indexer i = new Indexer(root, attic.getDataConfig().getFileSegmentHashSize(), queue);
+        i.setAlgorithm(attic.getDataConfig().getHashAlgorithm());
+        i.setCreateMerkleRoot(attic.getDataConfig().isCreateMerkleRoot());
         IndexReceiver ir = new IndexReceiver(queue, listener);
         attic.execute(i);
         attic.execute(ir);
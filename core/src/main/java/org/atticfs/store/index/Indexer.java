@@ -18,6 +18,7 @@ package org.atticfs.store.index;
 
 import org.atticfs.types.FileHash;
 import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.HashUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -44,6 +45,8 @@ public class Indexer implements Runnable {
     private int chunkSize;
     private BlockingQueue<FileMapping> queue;
     private Pattern p = null;
+    private String algorithm = HashUtils.MD5;
+    private boolean createMerkleRoot = true;
 
     private static String[] excludes = {".", "CVS"};
 
@@ -58,6 +61,27 @@ public class Indexer implements Runnable {
         p = Pattern.compile(filePattern);
     }
 
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * set the digest algorithm used for the file and segment hashes.
+     *
+     * @param algorithm a MessageDigest algorithm name. null means MD5.
+     */
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = HashUtils.getAlgorithm(algorithm);
+    }
+
+    public boolean isCreateMerkleRoot() {
+        return createMerkleRoot;
+    }
+
+    public void setCreateMerkleRoot(boolean createMerkleRoot) {
+        this.createMerkleRoot = createMerkleRoot;
+    }
+
     public void run() {
         if (file == null || queue == null) {
             log.warning("attempting to call index without setting the file or the queue. Returning...");
@@ -127,13 +151,16 @@ public class Indexer implements Runnable {
     }
 
     private void createChunks(int chunkSize, FileHash fileHash, File f, boolean chunk) throws IOException {
-        MessageDigest fullMd = null;
-        MessageDigest chunkMd = null;
+        MessageDigest fullMd;
+        MessageDigest chunkMd;
         try {
-            fullMd = MessageDigest.getInstance("MD5");
-            chunkMd = MessageDigest.getInstance("MD5");
+            fullMd = HashUtils.createDigest(algorithm);
+            chunkMd = HashUtils.createDigest(algorithm);
         } catch (NoSuchAlgorithmException e) {
-            assert false;
+            throw new IOException("unknown hash algorithm:" + algorithm);
+        }
+        if (!HashUtils.isDefaultAlgorithm(algorithm)) {
+            fileHash.setAlgorithm(algorithm);
         }
         FileInputStream in = new FileInputStream(f);
         byte[] buff = new byte[chunkSize];
@@ -156,22 +183,21 @@ public class Indexer implements Runnable {
             //}
         }
         in.close();
-        fileHash.setHash(toHex(fullMd.digest()));
+        fileHash.setHash(HashUtils.toHex(fullMd.digest(), algorithm));
+        if (createMerkleRoot && fileHash.getNumChunks() > 0) {
+            try {
+                fileHash.setMerkleRoot(HashUtils.merkleRoot(fileHash.getChunks(), algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("unknown hash algorithm:" + algorithm);
+            }
+        }
     }
 
     private String hashChunk(byte[] bytes, int s, int l, MessageDigest md) {
         md.update(bytes, s, l);
-        String ret = toHex(md.digest());
+        String ret = HashUtils.toHex(md.digest(), algorithm);
         md.reset();
         return ret;
     }
 
-    private String toHex(byte[] digest) {
-        StringBuffer buf = new StringBuffer();
-        for (int i = 0; i < digest.length; i++) {
-            buf.append(Integer.toHexString((int) digest[i] & 0x00FF));
-        }
-        return buf.toString();
-    }
-
 }
@@ -20,6 +20,10 @@ import org.atticfs.Attic;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -33,13 +37,15 @@ import java.util.logging.Logger;
  * <p/>
  * As long as something calls the streamArrived() method it will work.
  * <p/>
+ * It is also a ReadableByteChannel, and transferTo() writes the data to another channel.
+ * <p/>
  * If an Attic is passed into the constructor, then this wil shut down the attic
  * when close() is called.
  *
  * 
  */
 
-public class AtticInputStream extends InputStream implements StreamSink {
+public class AtticInputStream extends InputStream implements StreamSink, ReadableByteChannel {
 
     static Logger log = Logger.getLogger("org.atticfs.stream.AtticInputStream");
 
@@ -62,7 +68,9 @@ public class AtticInputStream extends InputStream implements StreamSink {
     private StreamEvent currEvent = null;
 
     private AtomicLong nextOffset = new AtomicLong(0);
-    private AtomicLong currLength = new AtomicLong(0);
+    // bytes left in the current stream, or -1 if not known
+    private long remaining = 0;
+    private volatile boolean open = true;
 
     public void setSource(StreamSource source) {
         this.source = source;
@@ -125,40 +133,181 @@ public class AtticInputStream extends InputStream implements StreamSink {
     }
 
     public synchronized int read() throws IOException {
-        getCurrStream();
-        int ret = currStream.read();
-        if (ret == -1 || ret == currLength.get() - 1) {
-            getNextStream();
-            return read();
-        } else {
+        while (nextStream()) {
+            int ret = currStream.read();
+            if (ret == -1) {
+                streamEnded();
+                continue;
+            }
+            consumed(1);
             return ret;
         }
-
+        return -1;
     }
 
     public synchronized int read(final byte[] b) throws IOException {
         return read(b, 0, b.length);
     }
 
+    /**
+     * reads from the current stream only, so a read never waits for the next stream
+     * once it has some bytes to return.
+     */
     public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
-        getCurrStream();
-        if (currStream instanceof EofStream) {
-            return -1;
+        if (len == 0) {
+            return 0;
         }
+        while (nextStream()) {
+            int max = remaining < 0 ? len : (int) Math.min(len, remaining);
+            int ret = currStream.read(b, off, max);
+            if (ret == -1) {
+                streamEnded();
+                continue;
+            }
+            consumed(ret);
+            return ret;
+        }
+        return -1;
+    }
 
+    /**
+     * reads into a buffer. If the current segment is held in memory, it is copied straight
+     * into the buffer.
+     *
+     * @param dst
+     * @return the number of bytes read, or -1 at the end of the data
+     * @throws IOException
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int ret = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (ret > 0) {
+                dst.position(dst.position() + ret);
+            }
+            return ret;
+        }
+        while (nextStream()) {
+            int max = remaining < 0 ? dst.remaining() : (int) Math.min(dst.remaining(), remaining);
+            if (currStream instanceof SegmentStream) {
+                ByteBuffer src = ((SegmentStream) currStream).take(max);
+                if (!src.hasRemaining()) {
+                    streamEnded();
+                    continue;
+                }
+                int ret = src.remaining();
+                dst.put(src);
+                consumed(ret);
+                return ret;
+            }
+            byte[] bytes = new byte[Math.min(max, 8192)];
+            int ret = currStream.read(bytes);
+            if (ret == -1) {
+                streamEnded();
+                continue;
+            }
+            dst.put(bytes, 0, ret);
+            consumed(ret);
+            return ret;
+        }
+        return -1;
+    }
 
-        int ret = currStream.read(b, off, len);
-        if (ret == -1) {
-            getNextStream();
-            ret = read(b, off, len);
-        } else if ((off + ret) == currLength.get() - 1) {
+    /**
+     * writes the rest of the data to a channel, for example a file or a socket.
+     * Verified segments are written from the pooled buffers, or the temporary file, they were verified
+     * into without being copied through the heap.
+     *
+     * @param target
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public synchronized long transferTo(WritableByteChannel target) throws IOException {
+        long total = 0;
+        byte[] bytes = null;
+        while (nextStream()) {
+            int max = remaining < 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, remaining);
+            if (currStream instanceof SpooledSegmentStream) {
+                FileChannel channel = ((SpooledSegmentStream) currStream).getChannel();
+                long len = channel.transferTo(channel.position(), Math.min(max, channel.size() - channel.position()), target);
+                if (len <= 0) {
+                    streamEnded();
+                    continue;
+                }
+                channel.position(channel.position() + len);
+                total += len;
+                consumed((int) len);
+                continue;
+            }
+            ByteBuffer src;
+            if (currStream instanceof SegmentStream) {
+                src = ((SegmentStream) currStream).take(max);
+            } else {
+                if (bytes == null) {
+                    bytes = new byte[8192];
+                }
+                int ret = currStream.read(bytes, 0, Math.min(max, bytes.length));
+                src = ByteBuffer.wrap(bytes, 0, Math.max(ret, 0));
+            }
+            if (!src.hasRemaining()) {
+                streamEnded();
+                continue;
+            }
+            int len = src.remaining();
+            while (src.hasRemaining()) {
+                target.write(src);
+            }
+            total += len;
+            consumed(len);
+        }
+        return total;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * makes sure there is a current stream with bytes left in it, taking the next one if need be.
+     *
+     * @return false at the end of the data
+     * @throws IOException
+     */
+    private boolean nextStream() throws IOException {
+        while (true) {
+            getCurrStream();
+            if (currStream instanceof EofStream) {
+                return false;
+            }
+            if (remaining != 0) {
+                return true;
+            }
             getNextStream();
-            int r = read(b, ret, len - ret);
-            if (r >= 0) {
-                ret += r;
+        }
+    }
+
+    private void consumed(int count) throws IOException {
+        if (remaining > 0) {
+            remaining -= count;
+            if (remaining == 0) {
+                getNextStream();
             }
         }
-        return ret;
+    }
+
+    /**
+     * the current stream has returned -1.
+     *
+     * @throws IOException if the stream ended before the end of its segment
+     */
+    private void streamEnded() throws IOException {
+        long left = remaining;
+        getNextStream();
+        if (left > 0) {
+            throw new IOException("stream ended " + left + " bytes before the end of the segment");
+        }
     }
 
     private void getCurrStream() throws IOException {
@@ -169,7 +318,7 @@ public class AtticInputStream extends InputStream implements StreamSink {
                     throw new IOException(((Throwable) currEvent.getSource()).getMessage());
                 }
                 currStream = currEvent.getStream();
-                currLength.set(currEvent.getEndOffset() - currEvent.getStartOffset());
+                remaining = currEvent.getEndOffset() < 0 ? -1 : currEvent.getEndOffset() - currEvent.getStartOffset() + 1;
             }
         } catch (InterruptedException e) {
             throw new IOException(e.getMessage());
@@ -178,11 +327,11 @@ public class AtticInputStream extends InputStream implements StreamSink {
 
     private void getNextStream() throws IOException {
         if (currStream != null) {
-            currStream.close();
+            InputStream in = currStream;
             currStream = null;
+            in.close();
             notifyStreamExhausted(currEvent);
         }
-        getCurrStream();
     }
 
 
@@ -195,9 +344,12 @@ public class AtticInputStream extends InputStream implements StreamSink {
      * @return
      * @throws IOException
      */
-    public int available() throws IOException {
-        getNextStream();
-        return (currStream.available());
+    public synchronized int available() throws IOException {
+        if (currStream == null || currStream instanceof EofStream) {
+            return 0;
+        }
+        int available = currStream.available();
+        return remaining < 0 ? available : (int) Math.min(available, remaining);
     }
 
     /**
@@ -206,6 +358,7 @@ public class AtticInputStream extends InputStream implements StreamSink {
      * @throws IOException
      */
     public void close() throws IOException {
+        open = false;
 
         try {
             while (streams.size() > 0) {
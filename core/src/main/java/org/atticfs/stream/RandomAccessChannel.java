@@ -0,0 +1,455 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stream;
+
+import org.atticfs.Attic;
+import org.atticfs.channel.ByteRange;
+import org.atticfs.channel.ChannelData;
+import org.atticfs.channel.ChannelFactory;
+import org.atticfs.channel.OutChannel;
+import org.atticfs.download.request.EndpointRequest;
+import org.atticfs.download.request.RequestCollection;
+import org.atticfs.download.request.RequestResolver;
+import org.atticfs.stats.EndpointHealth;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.DataPointer;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * A channel that reads the data a DataPointer points to from any position.
+ * It has the position(), position(long) and size() methods of a seekable channel.
+ * <p/>
+ * A read fetches only the segments that overlap the bytes asked for. Each segment comes from the
+ * healthiest endpoint that holds it, and is verified against its hash before it is used. Segments
+ * are kept in a cache of StreamConfig.blockCacheSize bytes, least recently used first out.
+ * When reads follow on from each other, the next StreamConfig.readAheadSegments segments are fetched
+ * in the background.
+ * <p/>
+ * If the data description has no segment hashes, the data is read in unverified blocks of
+ * StreamConfig.maxBufferSize bytes.
+ * <p/>
+ * Closing the channel does not shut down the Attic.
+ *
+ *
+ */
+
+public class RandomAccessChannel implements ReadableByteChannel {
+
+    static Logger log = Logger.getLogger("org.atticfs.stream.RandomAccessChannel");
+
+    private Attic attic;
+    private RequestCollection collection;
+    private DataDescription description;
+    private long size;
+    // the blocks the data is read in, in offset order
+    private List<Block> blocks = new ArrayList<Block>();
+    private long largest = 0;
+
+    private Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    private long cached = 0;
+    private long maxCache;
+    private int readAhead;
+    private Map<Integer, FutureTask<byte[]>> fetching = new HashMap<Integer, FutureTask<byte[]>>();
+
+    private long position = 0;
+    // where the last read ended, for spotting sequential reads
+    private long lastEnd = -1;
+    private volatile boolean open = true;
+
+    public RandomAccessChannel(DataPointer pointer, Attic attic) throws IOException {
+        this(RequestResolver.createRequestCollection(pointer, attic), attic);
+    }
+
+    public RandomAccessChannel(RequestCollection collection, Attic attic) throws IOException {
+        this.collection = collection;
+        this.attic = attic;
+        this.description = collection.getDataDescription();
+        if (description == null || description.getHash() == null) {
+            throw new IOException("No description found in pointer");
+        }
+        this.size = description.getHash().getSize();
+        this.maxCache = attic.getStreamConfig().getBlockCacheSize();
+        this.readAhead = Math.max(0, attic.getStreamConfig().getReadAheadSegments());
+        List<FileSegmentHash> segments = new ArrayList<FileSegmentHash>(description.getHash().getChunks());
+        Collections.sort(segments, new Comparator<FileSegmentHash>() {
+            public int compare(FileSegmentHash seg, FileSegmentHash seg1) {
+                return seg.getStartOffset() < seg1.getStartOffset() ? -1 : (seg.getStartOffset() > seg1.getStartOffset() ? 1 : 0);
+            }
+        });
+        if (segments.size() > 0) {
+            for (FileSegmentHash segment : segments) {
+                blocks.add(new Block(segment.getStartOffset(), segment.getEndOffset(), segment));
+            }
+        } else {
+            long blockSize = Math.max(1, attic.getStreamConfig().getMaxBufferSize());
+            for (long start = 0; start < size; start += blockSize) {
+                blocks.add(new Block(start, Math.min(start + blockSize, size) - 1, null));
+            }
+        }
+        for (Block block : blocks) {
+            largest = Math.max(largest, block.getLength());
+        }
+    }
+
+    public DataDescription getDataDescription() {
+        return description;
+    }
+
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    /**
+     * @param newPosition may be beyond the end of the data, in which case reads return -1.
+     * @return this channel
+     * @throws IOException
+     */
+    public synchronized RandomAccessChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position cannot be negative:" + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    /**
+     * reads from the current position and moves it on by the number of bytes read.
+     *
+     * @param dst
+     * @return the number of bytes read, or -1 if the position is at or beyond the end of the data
+     * @throws IOException
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    /**
+     * reads from the given position. The channel's position is not changed.
+     *
+     * @param dst
+     * @param pos
+     * @return the number of bytes read, or -1 if the position is at or beyond the end of the data
+     * @throws IOException
+     */
+    public synchronized int read(ByteBuffer dst, long pos) throws IOException {
+        checkOpen();
+        if (pos < 0) {
+            throw new IllegalArgumentException("position cannot be negative:" + pos);
+        }
+        if (pos >= size) {
+            return -1;
+        }
+        if (dst.remaining() == 0) {
+            return 0;
+        }
+        long end = Math.min(size, pos + dst.remaining()) - 1;
+        harvest();
+        int first = indexOf(pos);
+        int last = indexOf(end);
+        // start every block the read needs before waiting on any of them
+        for (int i = first; i <= last; i++) {
+            start(i);
+        }
+        int read = 0;
+        for (int i = first; i <= last; i++) {
+            Block block = blocks.get(i);
+            byte[] data = get(i);
+            int from = (int) (Math.max(pos, block.start) - block.start);
+            int to = (int) (Math.min(end, block.end) - block.start) + 1;
+            dst.put(data, from, to - from);
+            read += to - from;
+        }
+        boolean sequential = pos == lastEnd;
+        lastEnd = end + 1;
+        if (sequential) {
+            int count = Math.min(readAhead, largest <= 0 || maxCache <= 0 ? readAhead : (int) Math.max(0, maxCache / largest - 1));
+            for (int i = last + 1; i <= last + count && i < blocks.size(); i++) {
+                start(i);
+            }
+        }
+        return read;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public synchronized void close() throws IOException {
+        open = false;
+        for (FutureTask<byte[]> task : fetching.values()) {
+            task.cancel(true);
+        }
+        fetching.clear();
+        cache.clear();
+        cached = 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private int indexOf(long offset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Block block = blocks.get(mid);
+            if (block.end < offset) {
+                low = mid + 1;
+            } else if (block.start > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        throw new IllegalStateException("no segment holds offset " + offset + " of " + description.getId());
+    }
+
+    /**
+     * starts fetching a block unless it is cached or already being fetched.
+     *
+     * @param index
+     */
+    private void start(final int index) {
+        if (cache.containsKey(index) || fetching.containsKey(index)) {
+            return;
+        }
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return fetch(blocks.get(index));
+            }
+        });
+        fetching.put(index, task);
+        attic.getExecutor().execute(task);
+    }
+
+    /**
+     * moves finished background fetches into the cache, so blocks read ahead but never read
+     * are bounded by the cache size.
+     */
+    private void harvest() {
+        for (Integer index : new ArrayList<Integer>(fetching.keySet())) {
+            if (fetching.get(index).isDone()) {
+                try {
+                    get(index);
+                } catch (IOException e) {
+                    log.fine("background fetch failed:" + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private byte[] get(int index) throws IOException {
+        byte[] data = cache.get(index);
+        if (data != null) {
+            return data;
+        }
+        FutureTask<byte[]> task = fetching.get(index);
+        try {
+            data = task.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+        } finally {
+            fetching.remove(index);
+        }
+        cache.put(index, data);
+        cached += data.length;
+        for (Iterator<Map.Entry<Integer, byte[]>> it = cache.entrySet().iterator(); it.hasNext() && cached > maxCache;) {
+            Map.Entry<Integer, byte[]> eldest = it.next();
+            if (eldest.getKey() != index) {
+                cached -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * gets a block from the endpoints that hold it, best first, until one gives the right bytes
+     * or the retries run out.
+     *
+     * @param block
+     * @return the bytes of the block
+     * @throws IOException
+     */
+    private byte[] fetch(Block block) throws IOException {
+        List<Endpoint> endpoints = endpointsFor(block);
+        if (endpoints.size() == 0) {
+            throw new IOException("no endpoint holds bytes " + block.start + "-" + block.end + " of " + description.getId());
+        }
+        int tries = Math.max(1, attic.getDownloadConfig().getRetryCount() + 1);
+        for (int i = 0; i < tries && open; i++) {
+            Endpoint target = endpoints.get(i % endpoints.size());
+            log.fine(" getting bytes " + block.start + "-" + block.end + " from " + target);
+            ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
+            cd.setBufferSize(0);
+            cd.setResponseType(InputStream.class);
+            cd.setUseCompression(attic.getDownloadConfig().isCompress());
+            cd.setConnectionRetryCount(attic.getDownloadConfig().getConnectionRetryCount());
+            cd.setTimeout(attic.getDownloadConfig().getSocketTimeout());
+            cd.setByteRange(new ByteRange(block.start, block.end));
+            OutChannel out = ChannelFactory.getFactory().createOutChannel(null);
+            try {
+                cd = out.send(cd);
+            } catch (Exception e) {
+                EndpointHealth.getHealth().onConnectionFailure(target);
+                continue;
+            }
+            if (cd.getOutcome() != ChannelData.Outcome.OK || !(cd.getResponseData() instanceof InputStream)) {
+                if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
+                    EndpointHealth.getHealth().onErrorResponse(target);
+                }
+                continue;
+            }
+            InputStream in = (InputStream) cd.getResponseData();
+            long now = System.currentTimeMillis();
+            ByteArrayOutputStream bout;
+            if (block.segment != null) {
+                bout = FileUtils.verify(in, block.segment.getHash(), description.getHash().getAlgorithm());
+                in.close();
+                if (bout == null) {
+                    EndpointHealth.getHealth().onHashFailure(target);
+                    continue;
+                }
+            } else {
+                bout = readAll(in);
+                if (bout == null) {
+                    EndpointHealth.getHealth().onConnectionFailure(target);
+                    continue;
+                }
+            }
+            if (bout.size() != block.getLength()) {
+                EndpointHealth.getHealth().onErrorResponse(target);
+                continue;
+            }
+            EndpointHealth.getHealth().onSuccess(target, bout.size(), System.currentTimeMillis() - now, cd.getOutTime() + cd.getInTime());
+            return bout.toByteArray();
+        }
+        throw new IOException("could not get bytes " + block.start + "-" + block.end + " of " + description.getId());
+    }
+
+    private static ByteArrayOutputStream readAll(InputStream in) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] bytes = new byte[8192];
+            int c;
+            while ((c = in.read(bytes)) != -1) {
+                bout.write(bytes, 0, c);
+            }
+            in.close();
+            return bout;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param block
+     * @return the endpoints that hold the block. Usable endpoints come first, healthiest first,
+     *         then reserves.
+     */
+    private List<Endpoint> endpointsFor(Block block) {
+        List<EndpointRequest> mappings;
+        List<EndpointRequest> reserves;
+        synchronized (collection) {
+            mappings = new ArrayList<EndpointRequest>(collection.getMappings());
+            reserves = new ArrayList<EndpointRequest>(collection.getReserveMappings());
+        }
+        List<Endpoint> endpoints = holding(mappings, block);
+        List<Endpoint> reserve = holding(reserves, block);
+        final EndpointHealth health = EndpointHealth.getHealth();
+        Collections.sort(endpoints, new Comparator<Endpoint>() {
+            public int compare(Endpoint ep, Endpoint ep1) {
+                return Double.compare(health.getHealth(ep1).getScore(), health.getHealth(ep).getScore());
+            }
+        });
+        endpoints.addAll(reserve);
+        return endpoints;
+    }
+
+    private static List<Endpoint> holding(List<EndpointRequest> requests, Block block) {
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        for (EndpointRequest request : requests) {
+            if (request.isFailed() || endpoints.contains(request.getEndpoint())) {
+                continue;
+            }
+            if (block.segment == null || request.getChunks().size() == 0) {
+                endpoints.add(request.getEndpoint());
+                continue;
+            }
+            for (FileSegmentHash chunk : request.getChunks()) {
+                if (chunk.getStartOffset() == block.start && chunk.getEndOffset() == block.end) {
+                    endpoints.add(request.getEndpoint());
+                    break;
+                }
+            }
+        }
+        return endpoints;
+    }
+
+    private static class Block {
+        private long start;
+        private long end;
+        private FileSegmentHash segment;
+
+        private Block(long start, long end, FileSegmentHash segment) {
+            this.start = start;
+            this.end = end;
+            this.segment = segment;
+        }
+
+        private long getLength() {
+            return end - start + 1;
+        }
+    }
+}
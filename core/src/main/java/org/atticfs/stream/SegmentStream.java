@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stream;
+
+import org.atticfs.util.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A verified segment held in memory, in buffers from the BufferPool. The AtticInputStream
+ * reads its bytes as buffers, so they can be passed on without being copied.
+ * The buffers go back to the pool when the stream is closed.
+ *
+ *
+ */
+
+class SegmentStream extends InputStream {
+
+    private List<byte[]> buffers;
+    private long length;
+    private long pos = 0;
+    private boolean closed = false;
+
+    /**
+     * @param buffers full buffers, apart from the last
+     * @param length  the number of bytes in the buffers
+     */
+    SegmentStream(List<byte[]> buffers, long length) {
+        this.buffers = buffers;
+        this.length = length;
+    }
+
+    public synchronized int read() {
+        if (closed || pos >= length) {
+            return -1;
+        }
+        int ret = buffers.get((int) (pos / BufferPool.BUFFER_SIZE))[(int) (pos % BufferPool.BUFFER_SIZE)] & 0xff;
+        pos++;
+        return ret;
+    }
+
+    public synchronized int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer src = take(len);
+        if (!src.hasRemaining()) {
+            return -1;
+        }
+        int ret = src.remaining();
+        src.get(b, off, ret);
+        return ret;
+    }
+
+    public synchronized int available() {
+        return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    /**
+     * @param max
+     * @return up to max of the unread bytes, from a single buffer, which are then counted as read.
+     */
+    synchronized ByteBuffer take(int max) {
+        if (closed || pos >= length) {
+            return ByteBuffer.allocate(0);
+        }
+        int offset = (int) (pos % BufferPool.BUFFER_SIZE);
+        int len = (int) Math.min(Math.min(max, BufferPool.BUFFER_SIZE - offset), length - pos);
+        ByteBuffer ret = ByteBuffer.wrap(buffers.get((int) (pos / BufferPool.BUFFER_SIZE)), offset, len).slice();
+        pos += len;
+        return ret;
+    }
+
+    /**
+     * writes every byte of the segment to a file without changing the read position.
+     *
+     * @param channel
+     * @param position where in the file the segment starts
+     * @throws IOException
+     */
+    synchronized void writeTo(FileChannel channel, long position) throws IOException {
+        for (int i = 0; i < buffers.size(); i++) {
+            long offset = (long) i * BufferPool.BUFFER_SIZE;
+            ByteBuffer src = ByteBuffer.wrap(buffers.get(i), 0, (int) Math.min(BufferPool.BUFFER_SIZE, length - offset));
+            while (src.hasRemaining()) {
+                channel.write(src, position + offset + src.position());
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            BufferPool.getPool().give(buffers);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * A verified segment too big to hold in memory, spooled to a temporary file.
+ * The file is deleted when the stream is closed.
+ *
+ *
+ */
+
+class SpooledSegmentStream extends FileInputStream {
+
+    private File file;
+
+    SpooledSegmentStream(File file) throws IOException {
+        super(file);
+        this.file = file;
+    }
+
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.stream;
+
+import org.atticfs.Attic;
+import org.atticfs.download.DownloadJournal;
+import org.atticfs.store.DescriptionStore;
+import org.atticfs.types.DataDescription;
+import org.atticfs.types.Endpoint;
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.FileUtils;
+import org.atticfs.util.HashUtils;
+import org.atticfs.util.StringConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the verified segments of a stream on the local host, so a later stream of the same data
+ * reads them from disk rather than fetching them again.
+ * <p/>
+ * Segments are written into a partial file in the data worker's data directory, and recorded in a
+ * DownloadJournal next to it. A later stream checks the journaled segments against the partial file
+ * and fetches only the ones that are missing. Once every segment is held, the file is put into the
+ * DescriptionStore, so it is also served to other hosts.
+ * <p/>
+ * Like a Downloader's, the partial file and the journal are forced to disk together, at most every
+ * DownloadConfig.journalSyncInterval, and when the cache is closed.
+ *
+ *
+ */
+
+class StreamCache {
+
+    static Logger log = Logger.getLogger("org.atticfs.stream.StreamCache");
+
+    private DescriptionStore store;
+    private DataDescription description;
+    private File dir;
+    private File file;
+    private RandomAccessFile access;
+    private FileChannel channel;
+    private DownloadJournal journal;
+    // held segments by start offset
+    private Map<Long, FileSegmentHash> held = new TreeMap<Long, FileSegmentHash>();
+    private boolean stored = false;
+
+    private StreamCache(DescriptionStore store, DataDescription description) {
+        this.store = store;
+        this.description = description;
+    }
+
+    /**
+     * @param attic
+     * @param store
+     * @param dd
+     * @return the cache for the data, or null if it cannot be cached here.
+     */
+    static StreamCache open(Attic attic, DescriptionStore store, DataDescription dd) {
+        FileHash fh = dd.getHash();
+        if (store == null || fh == null || dd.getId() == null || fh.getSize() <= 0) {
+            return null;
+        }
+        StreamCache cache = new StreamCache(store, dd);
+        DataDescription local = store.getDataDescription(dd.getId());
+        File f = store.getFile(dd.getId());
+        if (local != null && local.getHash() != null && fh.getHash() != null && fh.getHash().equals(local.getHash().getHash())
+                && f != null && f.length() == fh.getSize()) {
+            cache.file = f;
+            cache.stored = true;
+            return cache;
+        }
+        if (fh.getNumChunks() == 0) {
+            // nothing to verify the bytes against as they arrive
+            return null;
+        }
+        String name = dd.getId().replaceAll("[^A-Za-z0-9._-]", "_");
+        File home = attic.getDWDataHome();
+        cache.dir = new File(home, name + StringConstants.EXT_PARTIAL);
+        cache.file = new File(cache.dir, name + StringConstants.EXT_DATA);
+        if (!cache.file.exists() && FileUtils.spaceAvailable(home, attic.getDataConfig().getMaxLocalData()) < fh.getSize()) {
+            log.fine("not caching stream of " + dd.getId() + ". Not enough space left");
+            return null;
+        }
+        try {
+            cache.recover(attic.getExecutor(), attic.getDataConfig().getVerificationThreads(),
+                    attic.getDownloadConfig().getJournalSyncInterval());
+        } catch (IOException e) {
+            log.warning("could not open stream cache for " + dd.getId() + ":" + e.getMessage());
+            cache.close();
+            return null;
+        }
+        return cache;
+    }
+
+    /**
+     * opens the partial file and keeps the journaled segments that are still good.
+     */
+    private void recover(Executor executor, int threads, long syncInterval) throws IOException {
+        dir.mkdirs();
+        access = new RandomAccessFile(file, "rw");
+        if (access.length() != description.getHash().getSize()) {
+            access.setLength(description.getHash().getSize());
+        }
+        channel = access.getChannel();
+        journal = new DownloadJournal(dir, description);
+        journal.setSyncInterval(syncInterval);
+        List<DownloadJournal.Entry> entries = journal.read();
+        List<DownloadJournal.Entry> good = new ArrayList<DownloadJournal.Entry>();
+        if (entries.size() > 0) {
+            List<FileSegmentHash> segs = new ArrayList<FileSegmentHash>();
+            for (DownloadJournal.Entry entry : entries) {
+                segs.add(entry.getSegment());
+            }
+            List<FileSegmentHash> failed = HashUtils.verifySegments(channel, segs, description.getHash().getAlgorithm(), executor, threads);
+            for (DownloadJournal.Entry entry : entries) {
+                FileSegmentHash seg = entry.getSegment();
+                if (!failed.contains(seg) && !held.containsKey(seg.getStartOffset())) {
+                    held.put(seg.getStartOffset(), seg);
+                    good.add(entry);
+                }
+            }
+            log.info("StreamCache recovered " + held.size() + " of " + description.getHash().getNumChunks()
+                    + " segments for " + description.getId());
+        }
+        journal.open(good);
+        if (isComplete()) {
+            store();
+        }
+    }
+
+    /**
+     * @return true if the whole of the data is in the DescriptionStore.
+     */
+    synchronized boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * @return the file the data is in. This changes when a partial file is put in the store.
+     */
+    synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the segments held in the partial file, in offset order.
+     */
+    synchronized List<FileSegmentHash> getHeld() {
+        return new ArrayList<FileSegmentHash>(held.values());
+    }
+
+    synchronized boolean isHeld(FileSegmentHash segment) {
+        return held.containsKey(segment.getStartOffset());
+    }
+
+    /**
+     * @param start
+     * @param length
+     * @return a stream of bytes from the file. The file is opened when the stream is first read.
+     */
+    InputStream open(long start, long length) {
+        return new RegionStream(start, length);
+    }
+
+    /**
+     * writes a verified segment into the partial file and records it in the journal.
+     * Only segments held in memory or spooled to disk by the StreamRequestor have been verified,
+     * so other streams are ignored. The stream's read position is not changed.
+     *
+     * @param segment
+     * @param in
+     * @param endpoint
+     */
+    synchronized void add(FileSegmentHash segment, InputStream in, Endpoint endpoint) {
+        if (channel == null || held.containsKey(segment.getStartOffset())) {
+            return;
+        }
+        long length = segment.getEndOffset() - segment.getStartOffset() + 1;
+        try {
+            if (in instanceof SegmentStream) {
+                ((SegmentStream) in).writeTo(channel, segment.getStartOffset());
+            } else if (in instanceof SpooledSegmentStream) {
+                FileChannel src = ((SpooledSegmentStream) in).getChannel();
+                channel.position(segment.getStartOffset());
+                long done = 0;
+                while (done < length) {
+                    long c = src.transferTo(done, length - done, channel);
+                    if (c <= 0) {
+                        throw new IOException("spooled segment is shorter than " + length + " bytes");
+                    }
+                    done += c;
+                }
+            } else {
+                return;
+            }
+            journal.segmentVerified(segment, endpoint);
+            held.put(segment.getStartOffset(), segment);
+            if (journal.isSyncDue()) {
+                sync();
+            }
+        } catch (IOException e) {
+            log.warning("could not cache segment " + segment + " of " + description.getId() + ":" + e.getMessage());
+        }
+    }
+
+    /**
+     * forces the segments written since the last sync to disk, then the journal records for them.
+     *
+     * @throws IOException
+     */
+    private void sync() throws IOException {
+        channel.force(false);
+        journal.sync();
+    }
+
+    /**
+     * closes the partial file. If every segment is held, it is put into the store.
+     */
+    synchronized void close() {
+        if (isComplete()) {
+            store();
+        }
+        if (channel != null && journal != null) {
+            try {
+                sync();
+            } catch (IOException e) {
+                log.warning("could not record cached segments of " + description.getId() + ":" + e.getMessage());
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (access != null) {
+            try {
+                access.close();
+            } catch (IOException e) {
+            }
+            access = null;
+            channel = null;
+        }
+    }
+
+    private boolean isComplete() {
+        return !stored && description.getHash().getNumChunks() > 0 && held.size() == description.getHash().getNumChunks();
+    }
+
+    private void store() {
+        try {
+            access.close();
+        } catch (IOException e) {
+        }
+        access = null;
+        channel = null;
+        journal.close();
+        store.put(file, description);
+        File mapped = store.getFile(description.getId());
+        if (store.getDataDescription(description.getId()) == null || mapped == null || !mapped.exists()) {
+            // keep the partial file and its journal so a later stream can try again
+            log.warning("could not put " + description.getId() + " in the store");
+            return;
+        }
+        journal.delete();
+        file = mapped;
+        dir.delete();
+        stored = true;
+        log.info("StreamCache stored " + description.getId() + " locally");
+    }
+
+    private class RegionStream extends InputStream {
+
+        private long start;
+        private long remaining;
+        private RandomAccessFile in;
+
+        private RegionStream(long start, long length) {
+            this.start = start;
+            this.remaining = length;
+        }
+
+        private RandomAccessFile in() throws IOException {
+            if (in == null) {
+                in = new RandomAccessFile(getFile(), "r");
+                in.seek(start);
+            }
+            return in;
+        }
+
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int ret = in().read();
+            if (ret != -1) {
+                remaining--;
+            }
+            return ret;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int ret = in().read(b, off, (int) Math.min(len, remaining));
+            if (ret > 0) {
+                remaining -= ret;
+            }
+            return ret;
+        }
+
+        public void close() throws IOException {
+            remaining = 0;
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
@@ -16,10 +16,14 @@
 
 package org.atticfs.stream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
@@ -29,10 +33,13 @@ import org.atticfs.channel.OutChannel;
 import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.stats.DownloadStats;
-import org.atticfs.stats.EndpointStats;
+import org.atticfs.stats.EndpointHealth;
 import org.atticfs.types.Endpoint;
 import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.BufferPool;
 import org.atticfs.util.FileUtils;
+import org.atticfs.util.HashUtils;
+import org.atticfs.util.StringConstants;
 
 /**
  * Class Description Here...
@@ -49,13 +56,26 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
 
     private int maxBufferSize;
     private boolean attemptVerification;
+    private File spoolDir;
+    private long maxLocalData;
 
 
-    public StreamRequestor(DownloadTable table, DownloadStats stats, boolean verify, int maxBuffer) {
+    /**
+     * @param table
+     * @param stats
+     * @param verify       if true, segments are checked against their hash before they are handed on
+     * @param maxBuffer    segments bigger than this are spooled to a file while they are checked
+     * @param spoolDir     the directory segments are spooled to
+     * @param maxLocalData the most the spool directory may hold, spooled segments included
+     */
+    public StreamRequestor(DownloadTable table, DownloadStats stats, boolean verify, int maxBuffer,
+                           File spoolDir, long maxLocalData) {
         this.table = table;
         this.stats = stats;
         this.attemptVerification = verify;
         this.maxBufferSize = maxBuffer;
+        this.spoolDir = spoolDir;
+        this.maxLocalData = maxLocalData;
     }
 
     public Streamer.StreamFetchResult call() throws Exception {
@@ -71,12 +91,24 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
         eps.incTotalRequests();
         id = request.getEndpointRequestId();
         Endpoint target = request.getEndpoint();
+        if (request.getRetries() < table.getDownloadConfig().getRetryCount()
+                && !EndpointHealth.getHealth().isAvailable(target)) {
+            // don't spend a connection on a data center that is known to be broken while there are retries to spare.
+            log.fine(" not getting data from " + target + ". Its breaker is open.");
+            return new Streamer.StreamFetchResult(request, null, false);
+        }
         log.fine(" getting data from " + target);
         FileSegmentHash chunk = request.getFileSegmentHash();
         ChannelData cd = new ChannelData(ChannelData.Action.GET, target.toString());
         boolean doingVerify = false;
-        if (chunk != null && attemptVerification && chunk.getSize() <= maxBufferSize) {
+        if (chunk != null && attemptVerification) {
             doingVerify = true;
+            long size = chunk.getEndOffset() - chunk.getStartOffset() + 1;
+            if (size > maxBufferSize && FileUtils.spaceAvailable(spoolDir, maxLocalData) < size) {
+                // not the endpoint's fault, so its health is left alone
+                log.warning("no space left in " + spoolDir + " to spool segment " + chunk);
+                return new Streamer.StreamFetchResult(request, null, false);
+            }
         }
         cd.setBufferSize(0);
         cd.setResponseType(InputStream.class);
@@ -88,14 +120,15 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
             try {
                 cd = out.send(cd);
             } catch (IOException e1) {
-                EndpointStats.getStats().addBadConnectionEndpoint(target);
+                EndpointHealth.getHealth().onConnectionFailure(target);
             }
             stats.addChannelData(cd, eps);
             if (cd.getOutcome() == ChannelData.Outcome.OK) {
+                EndpointHealth.getHealth().onSuccess(target, 0, 0, cd.getOutTime() + cd.getInTime());
                 return new Streamer.StreamFetchResult(request, (InputStream) cd.getResponseData(), true);
             } else {
                 if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
-                    EndpointStats.getStats().addBadMessageEndpoint(target);
+                    EndpointHealth.getHealth().onErrorResponse(target);
                 }
                 return new Streamer.StreamFetchResult(request, null, false);
             }
@@ -104,7 +137,7 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
             try {
                 cd = out.send(cd);
             } catch (IOException e1) {
-                EndpointStats.getStats().addBadConnectionEndpoint(target);
+                EndpointHealth.getHealth().onConnectionFailure(target);
                 return new Streamer.StreamFetchResult(request, null, false);
             }
             stats.addChannelData(cd, eps);
@@ -112,15 +145,27 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
                 if (cd.getResponseData() instanceof InputStream) {
                     InputStream in = (InputStream) cd.getResponseData();
                     if (doingVerify) {
-                        ByteArrayOutputStream bout = FileUtils.verify(in, chunk.getHash());
-                        in.close();
-                        if (bout == null) {
+                        long now = System.currentTimeMillis();
+                        InputStream verified;
+                        try {
+                            verified = verify(in, chunk, table.getDescription().getHash().getAlgorithm());
+                        } catch (IOException e) {
+                            log.warning("error reading segment " + chunk + " from " + target + ":" + e.getMessage());
+                            EndpointHealth.getHealth().onConnectionFailure(target);
+                            return new Streamer.StreamFetchResult(request, null, false);
+                        } finally {
+                            in.close();
+                        }
+                        if (verified == null) {
+                            EndpointHealth.getHealth().onHashFailure(target);
                             return new Streamer.StreamFetchResult(request, null, false);
                         } else {
-                            ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
-                            return new Streamer.StreamFetchResult(request, bin, true);
+                            EndpointHealth.getHealth().onSuccess(target, chunk.getEndOffset() - chunk.getStartOffset() + 1,
+                                    System.currentTimeMillis() - now, cd.getOutTime() + cd.getInTime());
+                            return new Streamer.StreamFetchResult(request, verified, true);
                         }
                     } else {
+                        EndpointHealth.getHealth().onSuccess(target, 0, 0, cd.getOutTime() + cd.getInTime());
                         return new Streamer.StreamFetchResult(request, in, true);
                     }
                 } else {
@@ -129,7 +174,7 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
 
             } else {
                 if (cd.getOutcome() == ChannelData.Outcome.CLIENT_ERROR || cd.getOutcome() == ChannelData.Outcome.SERVER_ERROR) {
-                    EndpointStats.getStats().addBadMessageEndpoint(target);
+                    EndpointHealth.getHealth().onErrorResponse(target);
                 }
                 return new Streamer.StreamFetchResult(request, null, false);
             }
@@ -137,4 +182,96 @@ public class StreamRequestor implements Callable<Streamer.StreamFetchResult> {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * reads a segment, updating its digest as the bytes arrive. Segments up to maxBufferSize are held in
+     * pooled buffers. Bigger ones are spooled to a file in the spool directory. Nothing is handed on until the hash checks out.
+     *
+     * @param in
+     * @param chunk
+     * @param algorithm
+     * @return a stream of the verified bytes, or null if the bytes do not match the hash, or the segment is the wrong size.
+     * @throws IOException if the segment could not be read
+     */
+    private InputStream verify(InputStream in, FileSegmentHash chunk, String algorithm) throws IOException {
+        MessageDigest md;
+        try {
+            md = HashUtils.createDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.warning("cannot verify segment:" + e.getMessage());
+            return null;
+        }
+        long size = chunk.getEndOffset() - chunk.getStartOffset() + 1;
+        BufferPool pool = BufferPool.getPool();
+        if (size <= maxBufferSize) {
+            List<byte[]> buffers = new ArrayList<byte[]>();
+            long length = 0;
+            boolean ok = false;
+            try {
+                while (true) {
+                    int offset = (int) (length % BufferPool.BUFFER_SIZE);
+                    if (offset == 0) {
+                        if (length >= size) {
+                            // one more byte would be too many
+                            if (in.read() != -1) {
+                                return null;
+                            }
+                            break;
+                        }
+                        buffers.add(pool.take());
+                    }
+                    byte[] buffer = buffers.get(buffers.size() - 1);
+                    int c = in.read(buffer, offset, BufferPool.BUFFER_SIZE - offset);
+                    if (c == -1) {
+                        break;
+                    }
+                    md.update(buffer, offset, c);
+                    length += c;
+                }
+                if (length != size || !HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(chunk.getHash())) {
+                    return null;
+                }
+                ok = true;
+                return new SegmentStream(buffers, length);
+            } finally {
+                if (!ok) {
+                    pool.give(buffers);
+                }
+            }
+        }
+        if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+            throw new IOException("could not create spool directory " + spoolDir);
+        }
+        File file = File.createTempFile("segment", StringConstants.EXT_PARTIAL, spoolDir);
+        boolean ok = false;
+        byte[] buffer = pool.take();
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            long length = 0;
+            try {
+                // reads at most one byte more than the segment, so a sender that does not stop cannot fill the disk
+                while (length <= size) {
+                    int c = in.read(buffer, 0, (int) Math.min(buffer.length, size + 1 - length));
+                    if (c == -1) {
+                        break;
+                    }
+                    md.update(buffer, 0, c);
+                    out.write(buffer, 0, c);
+                    length += c;
+                }
+            } finally {
+                out.close();
+            }
+            if (length != size || !HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(chunk.getHash())) {
+                return null;
+            }
+            ok = true;
+            return new SpooledSegmentStream(file);
+        } finally {
+            pool.give(buffer);
+            if (!ok) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -18,26 +18,53 @@ package org.atticfs.stream;
 
 import org.atticfs.Attic;
 import org.atticfs.download.DownloadException;
+import org.atticfs.download.request.EndpointRequest;
 import org.atticfs.download.request.RequestCollection;
 import org.atticfs.download.request.SegmentRequest;
 import org.atticfs.download.table.DownloadTable;
 import org.atticfs.download.table.DownloadTableCreator;
 import org.atticfs.download.table.RoundRobinTableCreator;
+import org.atticfs.roles.DescriptionStorage;
+import org.atticfs.roles.Role;
 import org.atticfs.stats.DownloadStats;
+import org.atticfs.store.DescriptionStore;
 import org.atticfs.types.DataDescription;
 import org.atticfs.types.FileSegmentHash;
+import org.atticfs.util.StringConstants;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 /**
- * 
+ * Fetches the segments of some data and passes them, as streams, to a StreamSink.
+ * <p/>
+ * If the StreamConfig gives a read-ahead window, the Streamer keeps up to that many segments
+ * requested or buffered ahead of the sink's read position, and fetches another each time the sink
+ * finishes with a stream. It stops asking for more when the window, or the byte cap, is full.
+ * The one exception is when every buffered segment is waiting behind a segment that is being retried.
+ * Then a single request is let through so the reader is not left waiting on the gap.
+ * <p/>
+ * With no window, the Streamer fetches the first maxFileConnections segments and then one
+ * more each time the sink finishes with a stream.
+ * <p/>
+ * If the StreamConfig asks for local caching, verified segments are also written to the local
+ * DescriptionStore. Segments already held there are read from disk and only the missing ones are fetched.
  */
 
 public class Streamer implements Runnable, StreamSource {
@@ -61,12 +88,32 @@ public class Streamer implements Runnable, StreamSource {
 
     private List<Future<StreamFetchResult>> futures = new ArrayList<Future<StreamFetchResult>>();
 
+    // read-ahead window in segments, or zero to fetch one segment each time a stream is exhausted.
+    private int readAhead = 0;
+    private long maxReadAheadBytes = 0;
+    // requests running
+    private int inFlight = 0;
+    // streams passed to the sink that it has not yet exhausted
+    private int ahead = 0;
+    // the end of the contiguous streams passed to the sink, and those passed beyond a gap, end offsets by start offsets
+    private long contiguous = 0;
+    private Map<Long, Long> beyondGap = new TreeMap<Long, Long>();
+    // the table has handed out poison, so no more requests are needed
+    private boolean drained = false;
+
+    private DescriptionStore descriptionStore;
+    private StreamCache cache;
+    // start offsets of the segments read from the local cache
+    private Set<Long> fromCache = new HashSet<Long>();
+
     public Streamer(RequestCollection collection, Attic attic) {
         this.collection = collection;
         this.attic = attic;
         this.ecs = new ExecutorCompletionService<StreamFetchResult>(this.attic.getExecutor());
         this.attemptVerification = attic.getStreamConfig().isAttemptVerification();
         this.maxBuffer = attic.getStreamConfig().getMaxBufferSize();
+        this.readAhead = Math.max(0, attic.getStreamConfig().getReadAheadSegments());
+        this.maxReadAheadBytes = attic.getStreamConfig().getMaxReadAheadBytes();
     }
 
     public DownloadTableCreator getTableCreator() {
@@ -77,6 +124,24 @@ public class Streamer implements Runnable, StreamSource {
         this.downloadTableCreator = downloadTableCreator;
     }
 
+    /**
+     * @return the store verified segments are cached in. If none has been set, the store of the
+     *         Attic's data worker role, if it has one.
+     */
+    public DescriptionStore getDescriptionStore() {
+        if (descriptionStore == null) {
+            Role role = attic.getRole(StringConstants.DATA_WORKER);
+            if (role instanceof DescriptionStorage) {
+                return ((DescriptionStorage) role).getDescriptionStore();
+            }
+        }
+        return descriptionStore;
+    }
+
+    public void setDescriptionStore(DescriptionStore descriptionStore) {
+        this.descriptionStore = descriptionStore;
+    }
+
     public DownloadStats getStats() {
         return stats;
     }
@@ -100,10 +165,34 @@ public class Streamer implements Runnable, StreamSource {
             if (downloadTableCreator == null) {
                 downloadTableCreator = new RoundRobinTableCreator(attic.getDownloadConfig());
             }
+            List<FileSegmentHash> held = new ArrayList<FileSegmentHash>();
+            if (attic.getStreamConfig().isCacheLocally()) {
+                cache = StreamCache.open(attic, getDescriptionStore(), dd);
+                if (cache != null && cache.isStored() && streamStored(dd)) {
+                    return;
+                }
+                if (cache != null) {
+                    held = cache.getHeld();
+                    for (FileSegmentHash seg : held) {
+                        for (EndpointRequest request : pointers.getMappings()) {
+                            request.completed(seg);
+                        }
+                        for (EndpointRequest request : pointers.getReserveMappings()) {
+                            request.completed(seg);
+                        }
+                    }
+                }
+            }
             table = downloadTableCreator.createTable(pointers);
             log.fine("Downloader.fetchData download table:\n");
             log.fine(table.toString());
             stats.setPreEndTime(System.currentTimeMillis());
+            for (FileSegmentHash seg : held) {
+                fromCache.add(seg.getStartOffset());
+                arrived(seg);
+                notifyStreamArrived(new StreamEvent(this, dd, "read from the local cache", true,
+                        cache.open(seg.getStartOffset(), seg.getEndOffset() - seg.getStartOffset() + 1), seg.getStartOffset(), seg.getEndOffset(), stats));
+            }
             submit(dd);
         } catch (DownloadException e) {
             e.printStackTrace();
@@ -113,6 +202,31 @@ public class Streamer implements Runnable, StreamSource {
 
     }
 
+    /**
+     * passes the copy of the data in the local store to the sink.
+     *
+     * @param dd
+     * @return false if the file could not be opened.
+     */
+    private boolean streamStored(DataDescription dd) {
+        File file = cache.getFile();
+        try {
+            InputStream in = new FileInputStream(file);
+            log.fine("Streamer.streamStored reading " + dd.getId() + " from " + file);
+            stats.setPreEndTime(System.currentTimeMillis());
+            stats.setStartTime(System.currentTimeMillis());
+            notifyStreamArrived(new StreamEvent(this, dd, "read from the local store", true, in, 0L, dd.getHash().getSize() - 1, stats));
+            done = true;
+            stats.setEndTime(System.currentTimeMillis());
+            notifyStreamFinished(new StreamEvent(this, dd, "EOF", true, null, -1, -1, stats));
+            return true;
+        } catch (IOException e) {
+            log.warning("could not read " + file + ". Fetching the data instead:" + e.getMessage());
+            cache = null;
+            return false;
+        }
+    }
+
     private void submit(final DataDescription dd) throws DownloadException {
         int numThreads = table.getDownloadConfig().getMaxFileConnections();
         stats.setNumThreads(numThreads);
@@ -120,8 +234,14 @@ public class Streamer implements Runnable, StreamSource {
         stats.setInitialStatus(table.getTemplate().getStatus().toString());
         stats.setStartTime(System.currentTimeMillis());
 
+        if (readAhead > 0) {
+            readAhead = Math.min(readAhead, segmentsForBytes(dd));
+            log.fine("Streamer.submit reading ahead " + readAhead + " segments");
+            fill();
+            return;
+        }
         for (int i = 0; i < numThreads; i++) {
-            futures.add(ecs.submit(new StreamRequestor(table, stats, attemptVerification, maxBuffer)));
+            futures.add(ecs.submit(createRequestor()));
         }
 
         for (int count = 0; count < numThreads; count++) {
@@ -133,7 +253,7 @@ public class Streamer implements Runnable, StreamSource {
                     boolean b = sfr.isSuccess();
                     if (!b) {
                         table.onFailure(sfr.getRequest());
-                        futures.add(ecs.submit(new StreamRequestor(table, stats, attemptVerification, maxBuffer)));
+                        futures.add(ecs.submit(createRequestor()));
                     } else {
                         StreamEvent event;
                         if (sfr.getRequest().getFileSegmentHash() == null) {
@@ -143,7 +263,9 @@ public class Streamer implements Runnable, StreamSource {
                             event = new StreamEvent(this, dd, "got a stream", true, sfr.getStream(), fsh.getStartOffset(), fsh.getEndOffset(), stats);
                         }
                         table.onSuccess(sfr.getRequest());
-                        notifyStreamArrived(event);
+                        if (tee(sfr)) {
+                            notifyStreamArrived(event);
+                        }
                     }
                 }
             } catch (InterruptedException e) {
@@ -155,6 +277,154 @@ public class Streamer implements Runnable, StreamSource {
         }
     }
 
+    /**
+     * @param dd
+     * @return the number of segments, each counted as the largest segment in the data, that fit in the byte cap.
+     *         At least one.
+     */
+    private int segmentsForBytes(DataDescription dd) {
+        if (maxReadAheadBytes <= 0 || dd.getHash() == null) {
+            return Integer.MAX_VALUE;
+        }
+        long largest = 0;
+        for (FileSegmentHash segment : dd.getHash().getChunks()) {
+            largest = Math.max(largest, segment.getEndOffset() - segment.getStartOffset() + 1);
+        }
+        if (largest <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxReadAheadBytes / largest));
+    }
+
+    /**
+     * starts requests while the read-ahead window has room.
+     */
+    private synchronized void fill() {
+        for (Iterator<Future<StreamFetchResult>> it = futures.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        while (!done && !drained && hasRoom()) {
+            inFlight++;
+            final StreamRequestor requestor = createRequestor();
+            FutureTask<StreamFetchResult> task = new FutureTask<StreamFetchResult>(new Callable<StreamFetchResult>() {
+                public StreamFetchResult call() throws Exception {
+                    StreamFetchResult sfr;
+                    try {
+                        sfr = requestor.call();
+                    } catch (Exception e) {
+                        log.warning("Exception thrown fetching segment:" + e.getMessage());
+                        fetched(null, false, false);
+                        throw e;
+                    }
+                    // the segment is written to the local cache before the Streamer is locked,
+                    // so a slow disk holds up only this fetch, not the reader or other fetches
+                    boolean keep = sfr != null && sfr.isSuccess() && tee(sfr);
+                    fetched(sfr, sfr == null, keep);
+                    return sfr;
+                }
+            });
+            futures.add(task);
+            attic.getExecutor().execute(task);
+        }
+    }
+
+    /**
+     * segments too big to hold in memory while they are verified are spooled to the data worker's data directory,
+     * so they count against maxLocalData like the stream cache does.
+     */
+    private StreamRequestor createRequestor() {
+        return new StreamRequestor(table, stats, attemptVerification, maxBuffer,
+                attic.getDWDataHome(), attic.getDataConfig().getMaxLocalData());
+    }
+
+    private boolean hasRoom() {
+        if (inFlight + ahead < readAhead) {
+            return true;
+        }
+        // every buffered stream is waiting on a segment that is not buffered, so let one request through for it
+        return inFlight == 0 && beyondGap.size() == ahead;
+    }
+
+    private void arrived(FileSegmentHash fsh) {
+        if (fsh.getStartOffset() == contiguous) {
+            contiguous = fsh.getEndOffset() + 1;
+            Long end;
+            while ((end = beyondGap.remove(contiguous)) != null) {
+                contiguous = end + 1;
+            }
+        } else {
+            beyondGap.put(fsh.getStartOffset(), fsh.getEndOffset());
+        }
+    }
+
+    /**
+     * writes a verified segment to the local cache.
+     *
+     * @param sfr
+     * @return false if the segment is being read from the cache already. Its stream is then closed.
+     */
+    private boolean tee(StreamFetchResult sfr) {
+        FileSegmentHash fsh = sfr.getRequest().getFileSegmentHash();
+        if (cache == null || fsh == null) {
+            return true;
+        }
+        if (fromCache.contains(fsh.getStartOffset())) {
+            try {
+                sfr.getStream().close();
+            } catch (IOException e) {
+            }
+            return false;
+        }
+        cache.add(fsh, sfr.getStream(), sfr.getRequest().getEndpoint());
+        return true;
+    }
+
+    /**
+     * handles the result of a read-ahead request and refills the window.
+     *
+     * @param sfr     the result, or null if there was none
+     * @param drained true if the table had nothing left to request
+     * @param keep    true if a successful result should be passed to the sink. False if its
+     *                segment is being read from the local cache already.
+     */
+    private synchronized void fetched(StreamFetchResult sfr, boolean drained, boolean keep) {
+        inFlight--;
+        if (done) {
+            return;
+        }
+        if (drained) {
+            this.drained = true;
+        } else if (sfr == null) {
+            // the request threw. There is nothing to give back to the table.
+        } else if (!sfr.isSuccess()) {
+            table.onFailure(sfr.getRequest());
+        } else if (!keep) {
+            table.onSuccess(sfr.getRequest());
+        } else {
+            StreamEvent event;
+            FileSegmentHash fsh = sfr.getRequest().getFileSegmentHash();
+            if (fsh == null) {
+                event = new StreamEvent(this, collection.getDataDescription(), "got a stream", true, sfr.getStream(), 0L, -1L, stats);
+            } else {
+                event = new StreamEvent(this, collection.getDataDescription(), "got a stream", true, sfr.getStream(), fsh.getStartOffset(), fsh.getEndOffset(), stats);
+                arrived(fsh);
+            }
+            ahead++;
+            table.onSuccess(sfr.getRequest());
+            notifyStreamArrived(event);
+        }
+        if (this.drained) {
+            if (inFlight == 0 && !table.isComplete()) {
+                notifyStreamArrived(new StreamEvent(this, collection.getDataDescription(),
+                        new DownloadException("could not get every segment of " + collection.getDataDescription().getId()), stats));
+            }
+            return;
+        }
+        fill();
+    }
+
     private void finish() {
         if (done) {
             return;
@@ -167,6 +437,9 @@ public class Streamer implements Runnable, StreamSource {
         stats.setPostStartTime(System.currentTimeMillis());
         stats.setPostEndTime(System.currentTimeMillis());
         notifyStreamFinished(new StreamEvent(this, collection.getDataDescription(), "EOF", true, null, -1, -1, stats));
+        if (cache != null) {
+            cache.close();
+        }
         for (Future<StreamFetchResult> future : futures) {
             log.fine("Downloader.submit canelling future...");
             future.cancel(true);
@@ -200,9 +473,20 @@ public class Streamer implements Runnable, StreamSource {
             log.fine("Streamer.streamExhaused table is complete");
             finish();
         }
+        if (fromCache.contains(event.getStartOffset())) {
+            // segments read from the local cache take no part in the read-ahead window
+            return;
+        }
+        if (readAhead > 0) {
+            if (ahead > 0) {
+                ahead--;
+            }
+            fill();
+            return;
+        }
         log.fine("Streamer.streamExhaused adding future");
 
-        futures.add(ecs.submit(new StreamRequestor(table, stats, attemptVerification, maxBuffer)));
+        futures.add(ecs.submit(createRequestor()));
         try {
             Future<StreamFetchResult> f = ecs.take();
             futures.remove(f);
@@ -211,7 +495,7 @@ public class Streamer implements Runnable, StreamSource {
                 boolean b = sfr.isSuccess();
                 if (!b) {
                     table.onFailure(sfr.getRequest());
-                    futures.add(ecs.submit(new StreamRequestor(table, stats, attemptVerification, maxBuffer)));
+                    futures.add(ecs.submit(createRequestor()));
                 } else {
                     if (sfr.getRequest().getFileSegmentHash() == null) {
                         event = new StreamEvent(this, collection.getDataDescription(), "got a stream", true, sfr.getStream(), 0L, -1L, stats);
@@ -220,7 +504,9 @@ public class Streamer implements Runnable, StreamSource {
                         event = new StreamEvent(this, collection.getDataDescription(), "got a stream", true, sfr.getStream(), fsh.getStartOffset(), fsh.getEndOffset(), stats);
                     }
                     table.onSuccess(sfr.getRequest());
-                    notifyStreamArrived(event);
+                    if (tee(sfr)) {
+                        notifyStreamArrived(event);
+                    }
                 }
             }
         } catch (InterruptedException e) {
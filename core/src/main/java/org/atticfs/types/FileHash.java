@@ -33,6 +33,10 @@ public class FileHash extends WireType {
     private long defaultChunkSize = -1;
     private String hash;
     private long size;
+    // digest algorithm used for the hash and segment hashes. null means MD5
+    private String algorithm;
+    // optional Merkle root built over the segment hashes
+    private String merkleRoot;
     private List<FileSegmentHash> chunks = new Vector<FileSegmentHash>();
 
     public FileHash() {
@@ -67,6 +71,25 @@ public class FileHash extends WireType {
         this.hash = hash;
     }
 
+    /**
+     * @return the digest algorithm name. Descriptions that do not specify one use MD5.
+     */
+    public String getAlgorithm() {
+        return algorithm == null ? "MD5" : algorithm;
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
     public void addSegment(String hash, long start, long end) {
         FileSegmentHash fsh = getChunkByRange(start, end);
         if (fsh != null) {
@@ -117,6 +140,8 @@ public class FileHash extends WireType {
         if (size != fileHash.size) return false;
         if (chunks != null ? !chunks.equals(fileHash.chunks) : fileHash.chunks != null) return false;
         if (hash != null ? !hash.equals(fileHash.hash) : fileHash.hash != null) return false;
+        if (!getAlgorithm().equalsIgnoreCase(fileHash.getAlgorithm())) return false;
+        if (merkleRoot != null ? !merkleRoot.equals(fileHash.merkleRoot) : fileHash.merkleRoot != null) return false;
 
         return true;
     }
@@ -127,6 +152,8 @@ public class FileHash extends WireType {
         result = 31 * result + (hash != null ? hash.hashCode() : 0);
         result = 31 * result + (int) (size ^ (size >>> 32));
         result = 31 * result + (chunks != null ? chunks.hashCode() : 0);
+        result = 31 * result + getAlgorithm().toUpperCase().hashCode();
+        result = 31 * result + (merkleRoot != null ? merkleRoot.hashCode() : 0);
         return result;
     }
 
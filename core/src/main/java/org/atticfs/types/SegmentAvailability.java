@@ -0,0 +1,180 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.types;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The segments a host holds of some data, as indexes into the segments of the publisher's FileHash
+ * in offset order. It is sent as a line of text: the whole-file hash, the number of segments
+ * and the runs of held indexes, e.g. <code>9e107d9d372bb6826bd81d3542a419d6 40 0-15,17,20-39</code>.
+ * A host with none of the segments sends <code>-</code> for the runs.
+ *
+ *
+ */
+
+public class SegmentAvailability {
+
+    private String hash;
+    private int numSegments;
+    private BitSet held = new BitSet();
+
+    public SegmentAvailability(String hash, int numSegments) {
+        this.hash = hash;
+        this.numSegments = numSegments;
+    }
+
+    /**
+     * works out which of the publisher's segments a host holds.
+     * A segment is held if the host has a segment at the same offset with the same hash.
+     *
+     * @param publisher the FileHash from the data description
+     * @param local     the FileHash of the segments the host holds
+     * @return
+     */
+    public static SegmentAvailability create(FileHash publisher, FileHash local) {
+        List<FileSegmentHash> segs = sorted(publisher);
+        SegmentAvailability avail = new SegmentAvailability(publisher.getHash(), segs.size());
+        if (local == null || local.getHash() == null || !local.getHash().equals(publisher.getHash())) {
+            return avail;
+        }
+        if (local == publisher) {
+            avail.held.set(0, segs.size());
+            return avail;
+        }
+        for (int i = 0; i < segs.size(); i++) {
+            FileSegmentHash seg = segs.get(i);
+            FileSegmentHash other = local.getChunkByRange(seg.getStartOffset(), seg.getEndOffset());
+            if (other != null && seg.getHash() != null && seg.getHash().equals(other.getHash())) {
+                avail.held.set(i);
+            }
+        }
+        return avail;
+    }
+
+    /**
+     * @param encoded
+     * @return the availability, or null if the text is not in the expected form.
+     */
+    public static SegmentAvailability parse(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] parts = encoded.trim().split("\\s+");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            SegmentAvailability avail = new SegmentAvailability(parts[0], Integer.parseInt(parts[1]));
+            if (avail.numSegments < 0) {
+                return null;
+            }
+            if (parts[2].equals("-")) {
+                return avail;
+            }
+            for (String run : parts[2].split(",")) {
+                int dash = run.indexOf('-');
+                int from = Integer.parseInt(dash < 0 ? run : run.substring(0, dash));
+                int to = dash < 0 ? from : Integer.parseInt(run.substring(dash + 1));
+                if (from < 0 || to < from || to >= avail.numSegments) {
+                    return null;
+                }
+                avail.held.set(from, to + 1);
+            }
+            return avail;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public int getNumSegments() {
+        return numSegments;
+    }
+
+    public boolean isHeld(int index) {
+        return held.get(index);
+    }
+
+    public void setHeld(int index) {
+        held.set(index);
+    }
+
+    public int getNumHeld() {
+        return held.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return held.isEmpty();
+    }
+
+    public boolean isComplete() {
+        return held.cardinality() == numSegments;
+    }
+
+    /**
+     * @param publisher the FileHash the indexes refer to
+     * @return the publisher's segments that are held, in offset order.
+     */
+    public List<FileSegmentHash> getSegments(FileHash publisher) {
+        List<FileSegmentHash> segs = sorted(publisher);
+        List<FileSegmentHash> ret = new ArrayList<FileSegmentHash>(held.cardinality());
+        for (int i = held.nextSetBit(0); i >= 0 && i < segs.size(); i = held.nextSetBit(i + 1)) {
+            ret.add(segs.get(i));
+        }
+        return ret;
+    }
+
+    private static List<FileSegmentHash> sorted(FileHash fileHash) {
+        List<FileSegmentHash> segs = new ArrayList<FileSegmentHash>(fileHash.getChunks());
+        Collections.sort(segs, new Comparator<FileSegmentHash>() {
+            public int compare(FileSegmentHash seg, FileSegmentHash seg1) {
+                return seg.getStartOffset() < seg1.getStartOffset() ? -1 : (seg.getStartOffset() > seg1.getStartOffset() ? 1 : 0);
+            }
+        });
+        return segs;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(hash).append(" ").append(numSegments).append(" ");
+        if (held.isEmpty()) {
+            return sb.append("-").toString();
+        }
+        boolean first = true;
+        for (int from = held.nextSetBit(0); from >= 0; ) {
+            int to = held.nextClearBit(from) - 1;
+            if (!first) {
+                sb.append(",");
+            }
+            sb.append(from);
+            if (to > from) {
+                sb.append("-").append(to);
+            }
+            first = false;
+            from = held.nextSetBit(to + 1);
+        }
+        return sb.toString();
+    }
+}
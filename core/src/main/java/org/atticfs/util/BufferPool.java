@@ -0,0 +1,73 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of fixed-size buffers, shared by the streams that hold verified segments until they are read
+ * and the server when it copies ranges of a file to a response. Buffers are handed back when they
+ * are finished with. Up to MAX_POOLED idle buffers are
+ * kept. Beyond that, returned buffers are left to the garbage collector.
+ *
+ *
+ */
+
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    public static final int MAX_POOLED = 64;
+
+    private List<byte[]> idle = new ArrayList<byte[]>();
+
+    private static BufferPool bufferPool = new BufferPool();
+
+    private BufferPool() {
+    }
+
+    public static BufferPool getPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return a buffer of BUFFER_SIZE bytes. Its contents are undefined.
+     */
+    public synchronized byte[] take() {
+        if (idle.size() > 0) {
+            return idle.remove(idle.size() - 1);
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    public synchronized void give(byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE && idle.size() < MAX_POOLED) {
+            idle.add(buffer);
+        }
+    }
+
+    public synchronized void give(List<byte[]> buffers) {
+        for (byte[] buffer : buffers) {
+            give(buffer);
+        }
+    }
+
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+}
@@ -81,6 +81,22 @@ public class FileUtils {
         return total;
     }
 
+    /**
+     * converts a digest to the hex form used in Attic descriptions.
+     * Bytes are not zero padded, so this is not the usual hex encoding,
+     * but it is what existing descriptions contain.
+     *
+     * @param digest
+     * @return
+     */
+    public static String toHex(byte[] digest) {
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < digest.length; i++) {
+            buf.append(Integer.toHexString((int) digest[i] & 0x00FF));
+        }
+        return buf.toString();
+    }
+
     public static boolean verify(File f, String hash) {
         try {
             FileChannel channel = new FileInputStream(f).getChannel();
@@ -93,12 +109,7 @@ public class FileUtils {
                 in.get(bytes, 0, c);
                 md.update(bytes, 0, c);
             }
-            byte[] digest = md.digest();
-            StringBuffer buf = new StringBuffer();
-            for (int i = 0; i < digest.length; i++) {
-                buf.append(Integer.toHexString((int) digest[i] & 0x00FF));
-            }
-            boolean b = buf.toString().equalsIgnoreCase(hash);
+            boolean b = toHex(md.digest()).equalsIgnoreCase(hash);
             return b;
 
         } catch (Exception e) {
@@ -108,9 +119,13 @@ public class FileUtils {
     }
 
     public static ByteArrayOutputStream verify(InputStream in, String hash) {
+        return verify(in, hash, HashUtils.MD5);
+    }
+
+    public static ByteArrayOutputStream verify(InputStream in, String hash, String algorithm) {
         try {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            MessageDigest md = MessageDigest.getInstance("MD5");
+            MessageDigest md = HashUtils.createDigest(algorithm);
             int len = 8192;
             byte[] bytes = new byte[len];
             int c;
@@ -120,12 +135,7 @@ public class FileUtils {
             }
             bout.flush();
             bout.close();
-            byte[] digest = md.digest();
-            StringBuffer buf = new StringBuffer();
-            for (int i = 0; i < digest.length; i++) {
-                buf.append(Integer.toHexString((int) digest[i] & 0x00FF));
-            }
-            boolean b = buf.toString().equalsIgnoreCase(hash);
+            boolean b = HashUtils.toHex(md.digest(), algorithm).equalsIgnoreCase(hash);
             if (b) {
                 return bout;
             }
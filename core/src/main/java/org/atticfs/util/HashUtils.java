@@ -0,0 +1,297 @@
+/*
+ * Copyright 2004 - 2012 Cardiff University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.atticfs.util;
+
+import org.atticfs.types.FileHash;
+import org.atticfs.types.FileSegmentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Hashing helpers shared by indexing and verification.
+ * <p/>
+ * The algorithm is any MessageDigest name, e.g. MD5, SHA-1 or SHA-256. A null algorithm means MD5.
+ * MD5 hashes are written using the legacy non-padded hex form so that existing
+ * descriptions keep working. Other algorithms use normal, zero padded, hex.
+ * <p/>
+ * The Merkle root of a FileHash is built over its segment hashes in offset order.
+ * A leaf is H(0x00 | segment hash) where the segment hash is the lower case hex string,
+ * and a node is H(0x01 | left | right). An odd node at the end of a level is promoted unchanged.
+ *
+ *
+ */
+
+public class HashUtils {
+
+    static Logger log = Logger.getLogger("org.atticfs.util.HashUtils");
+
+    public static final String MD5 = "MD5";
+
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static String getAlgorithm(String algorithm) {
+        if (algorithm == null || algorithm.length() == 0) {
+            return MD5;
+        }
+        return algorithm;
+    }
+
+    public static boolean isDefaultAlgorithm(String algorithm) {
+        return getAlgorithm(algorithm).equalsIgnoreCase(MD5);
+    }
+
+    public static MessageDigest createDigest(String algorithm) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(getAlgorithm(algorithm));
+    }
+
+    public static String toHex(byte[] digest, String algorithm) {
+        if (isDefaultAlgorithm(algorithm)) {
+            return FileUtils.toHex(digest);
+        }
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX[digest[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * sorts the segments by offset.
+     *
+     * @param segments
+     * @return a new list
+     */
+    public static List<FileSegmentHash> sortSegments(List<FileSegmentHash> segments) {
+        List<FileSegmentHash> sorted = new ArrayList<FileSegmentHash>(segments);
+        Collections.sort(sorted, new Comparator<FileSegmentHash>() {
+            public int compare(FileSegmentHash one, FileSegmentHash two) {
+                if (one.getStartOffset() < two.getStartOffset()) {
+                    return -1;
+                } else if (one.getStartOffset() > two.getStartOffset()) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * computes the Merkle root over the segment hashes.
+     *
+     * @param segments
+     * @param algorithm
+     * @return the root, or null if there are no segments
+     * @throws NoSuchAlgorithmException
+     */
+    public static String merkleRoot(List<FileSegmentHash> segments, String algorithm) throws NoSuchAlgorithmException {
+        if (segments.size() == 0) {
+            return null;
+        }
+        MessageDigest md = createDigest(algorithm);
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (FileSegmentHash segment : sortSegments(segments)) {
+            md.update(LEAF);
+            md.update(segment.getHash().toLowerCase().getBytes());
+            level.add(md.digest());
+        }
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    next.add(level.get(i));
+                } else {
+                    md.update(NODE);
+                    md.update(level.get(i));
+                    md.update(level.get(i + 1));
+                    next.add(md.digest());
+                }
+            }
+            level = next;
+        }
+        return toHex(level.get(0), algorithm);
+    }
+
+    /**
+     * checks the Merkle root of the file hash against its segment hashes.
+     *
+     * @param fileHash
+     * @return null if the file hash has no Merkle root or it cannot be computed.
+     */
+    public static Boolean verifyMerkleRoot(FileHash fileHash) {
+        if (fileHash.getMerkleRoot() == null) {
+            return null;
+        }
+        try {
+            String root = merkleRoot(fileHash.getChunks(), fileHash.getAlgorithm());
+            return root != null && root.equalsIgnoreCase(fileHash.getMerkleRoot());
+        } catch (NoSuchAlgorithmException e) {
+            log.warning("unknown hash algorithm:" + fileHash.getAlgorithm());
+            return null;
+        }
+    }
+
+    /**
+     * hashes the given region of the channel.
+     *
+     * @param channel
+     * @param start     inclusive
+     * @param end       inclusive
+     * @param algorithm
+     * @param buffer
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String hash(FileChannel channel, long start, long end, String algorithm, ByteBuffer buffer)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = createDigest(algorithm);
+        long pos = start;
+        while (pos <= end) {
+            buffer.clear();
+            if (end - pos + 1 < buffer.capacity()) {
+                buffer.limit((int) (end - pos + 1));
+            }
+            int c = channel.read(buffer, pos);
+            if (c < 0) {
+                throw new IOException("unexpected end of file at " + pos);
+            }
+            buffer.flip();
+            md.update(buffer);
+            pos += c;
+        }
+        return toHex(md.digest(), algorithm);
+    }
+
+    /**
+     * verifies the segments of a file in parallel. The calling thread verifies segments too, and
+     * only waits for segments other threads have started. So the executor may be the pool the caller
+     * runs on, and if it has no free thread, the caller verifies every segment itself.
+     *
+     * @param channel
+     * @param segments
+     * @param algorithm
+     * @param executor  runs the threads other than the caller's
+     * @param threads   the number of threads to use, including the caller's. If less than 1, the number of available processors is used.
+     * @return the segments that failed verification
+     * @throws IOException
+     */
+    public static List<FileSegmentHash> verifySegments(final FileChannel channel, final List<FileSegmentHash> segments,
+                                                       final String algorithm, Executor executor, int threads) throws IOException {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max(1, Math.min(threads, segments.size()));
+        final AtomicInteger next = new AtomicInteger();
+        final boolean[] verified = new boolean[segments.size()];
+        final CountDownLatch done = new CountDownLatch(segments.size());
+        Runnable verifier = new Runnable() {
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                int i;
+                while ((i = next.getAndIncrement()) < segments.size()) {
+                    FileSegmentHash segment = segments.get(i);
+                    try {
+                        String hash = hash(channel, segment.getStartOffset(), segment.getEndOffset(), algorithm, buffer);
+                        verified[i] = hash.equalsIgnoreCase(segment.getHash());
+                    } catch (Exception e) {
+                        log.warning("error verifying segment:" + e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < threads; i++) {
+            try {
+                executor.execute(verifier);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        verifier.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while verifying segments");
+        }
+        List<FileSegmentHash> failed = new ArrayList<FileSegmentHash>();
+        for (int i = 0; i < verified.length; i++) {
+            if (!verified[i]) {
+                failed.add(segments.get(i));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * verifies a whole file against a FileHash. If the file hash has a Merkle root, then the segments are
+     * verified in parallel and the root is checked against them. Otherwise the whole file is hashed.
+     *
+     * @param f
+     * @param fileHash
+     * @param executor runs the threads verifying segments, other than the caller's
+     * @param threads
+     * @return
+     */
+    public static boolean verify(File f, FileHash fileHash, Executor executor, int threads) {
+        if (f.length() != fileHash.getSize()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            FileChannel channel = raf.getChannel();
+            Boolean merkle = verifyMerkleRoot(fileHash);
+            if (merkle != null && fileHash.getNumChunks() > 0) {
+                return merkle && verifySegments(channel, fileHash.getChunks(), fileHash.getAlgorithm(), executor, threads).size() == 0;
+            }
+            String hash = hash(channel, 0, f.length() - 1, fileHash.getAlgorithm(), ByteBuffer.allocateDirect(65536));
+            return hash.equalsIgnoreCase(fileHash.getHash());
+        } catch (Exception e) {
+            log.warning("error verifying file:" + e.getMessage());
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
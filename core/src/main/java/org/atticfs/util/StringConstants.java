@@ -59,6 +59,10 @@ public class StringConstants {
      * key for file hashes. This can either be a query or a path component
      */
     public static final String FILE_HASH_KEY = "filehash";
+    /**
+     * key for the segments of some data a host holds, in compact form. This is a query
+     */
+    public static final String HAVE_KEY = "have";
     /**
      * key for data descriptions. This can either be a query or a path component
      */
@@ -87,4 +91,5 @@ public class StringConstants {
     public static final String EXT_DESC = ".atticmd";
     public static final String EXT_DATA = ".atticd";
     public static final String EXT_UNMAPPED = ".unmapped";
+    public static final String EXT_PARTIAL = ".atticp";
 }
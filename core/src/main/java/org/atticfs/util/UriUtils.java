@@ -91,6 +91,25 @@ public class UriUtils {
         }
     }
 
+    /**
+     * @param requestPath
+     * @param key
+     * @return the value of the key in the query of the path, or null if it is not there.
+     */
+    public static String extractQuery(String requestPath, String key) {
+        try {
+            String query = new URI(requestPath).getQuery();
+            if (query != null) {
+                String value = getQueryValues(query).get(key);
+                if (value != null) {
+                    return value.trim();
+                }
+            }
+        } catch (URISyntaxException e) {
+        }
+        return null;
+    }
+
     public static String appendPath(String root, String path) {
         if (root.endsWith("/")) {
             if (path.startsWith("/")) {